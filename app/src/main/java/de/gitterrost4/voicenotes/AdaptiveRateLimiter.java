@@ -0,0 +1,76 @@
+package de.gitterrost4.voicenotes;
+
+// Token bucket whose refill rate adapts to the server: it grows a little after every success
+// and is halved when the server throttles, which also pauses all requests for Retry-After.
+// Callers don't block; reserve() tells them how long to wait before trying again.
+public class AdaptiveRateLimiter {
+    
+    private final double minRatePerSecond;
+    private final double maxRatePerSecond;
+    private final double increasePerSuccess;
+    private final double burst;
+    
+    // Guarded by this
+    private double ratePerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+    
+    public AdaptiveRateLimiter(double initialRatePerSecond, double minRatePerSecond, double maxRatePerSecond, int burst) {
+        this.minRatePerSecond = minRatePerSecond;
+        this.maxRatePerSecond = maxRatePerSecond;
+        this.increasePerSuccess = Math.max(0.05, initialRatePerSecond / 10);
+        this.burst = burst;
+        this.ratePerSecond = initialRatePerSecond;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+    
+    // Takes a token and returns 0, or returns how many milliseconds to wait before asking again
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        if (now < pausedUntilNanos) {
+            return nanosToMillis(pausedUntilNanos - now);
+        }
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / ratePerSecond));
+    }
+    
+    public synchronized void onSuccess() {
+        refill(System.nanoTime());
+        ratePerSecond = Math.min(maxRatePerSecond, ratePerSecond + increasePerSuccess);
+    }
+    
+    // retryAfterMs < 0 means the server didn't say how long to wait
+    public synchronized void onThrottled(long retryAfterMs) {
+        long now = System.nanoTime();
+        refill(now);
+        ratePerSecond = Math.max(minRatePerSecond, ratePerSecond / 2);
+        tokens = Math.min(tokens, 0);
+        if (retryAfterMs > 0) {
+            pausedUntilNanos = Math.max(pausedUntilNanos, now + retryAfterMs * 1_000_000L);
+            lastRefillNanos = pausedUntilNanos; // Nothing accumulates while paused
+        }
+    }
+    
+    public synchronized double getRatePerSecond() {
+        return ratePerSecond;
+    }
+    
+    private void refill(long now) {
+        if (now <= lastRefillNanos) {
+            return;
+        }
+        double elapsedSeconds = (now - lastRefillNanos) / 1e9;
+        tokens = Math.min(burst, tokens + elapsedSeconds * ratePerSecond);
+        lastRefillNanos = now;
+    }
+    
+    private static long nanosToMillis(long nanos) {
+        return (nanos + 999_999) / 1_000_000;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,324 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Frame index of an AMR-NB or AMR-WB recording, either in the 3GP container MediaRecorder writes or
+// a plain "#!AMR\n" or "#!AMR-WB\n" file. Only offsets and frame types are kept in memory; frame
+// bytes stay in the file. Both codecs use 20 ms frames; files written from one keep its codec.
+public class AmrFile {
+    
+    public static final int FRAME_MS = 20;
+    public static final int FRAME_TYPE_NO_DATA = 15;
+    
+    private static final int FRAME_TYPE_SID = 8;
+    private static final int FRAME_TYPE_SID_WB = 9;
+    private static final byte[] STORAGE_MAGIC = "#!AMR\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STORAGE_MAGIC_WB = "#!AMR-WB\n".getBytes(StandardCharsets.US_ASCII);
+    
+    // Frame length including its one-byte header, by frame type (RFC 4867, section 5.3)
+    private static final int[] FRAME_BYTES = { 13, 14, 16, 18, 20, 21, 27, 32, 6, 1, 1, 1, 1, 1, 1, 1 };
+    private static final int[] FRAME_BYTES_WB = { 18, 24, 33, 37, 41, 47, 51, 59, 61, 6, 1, 1, 1, 1, 1, 1 };
+    
+    private final File file;
+    private boolean wideband = false;
+    private long[] offsets = new long[1024];
+    private byte[] types = new byte[1024];
+    private int frameCount = 0;
+    
+    private AmrFile(File file) {
+        this.file = file;
+    }
+    
+    public static AmrFile read(File file) throws IOException {
+        AmrFile amr = new AmrFile(file);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[STORAGE_MAGIC_WB.length];
+            if (in.length() >= magic.length) {
+                in.readFully(magic);
+            }
+            if (Arrays.equals(magic, STORAGE_MAGIC_WB)) {
+                amr.wideband = true;
+                amr.indexFrames(in, STORAGE_MAGIC_WB.length, in.length() - STORAGE_MAGIC_WB.length);
+            } else if (Arrays.equals(Arrays.copyOf(magic, STORAGE_MAGIC.length), STORAGE_MAGIC)) {
+                amr.indexFrames(in, STORAGE_MAGIC.length, in.length() - STORAGE_MAGIC.length);
+            } else {
+                amr.readContainer(in);
+            }
+        }
+        return amr;
+    }
+    
+    public File getFile() { return file; }
+    public int getFrameCount() { return frameCount; }
+    public boolean isWideband() { return wideband; }
+    
+    public long getDurationMs() {
+        return (long) frameCount * FRAME_MS;
+    }
+    
+    public int getFrameType(int index) {
+        return types[index];
+    }
+    
+    public int getFrameBytes(int index) {
+        return (wideband ? FRAME_BYTES_WB : FRAME_BYTES)[types[index]];
+    }
+    
+    // Comfort noise or no data at all: a cut here can't split a word
+    public boolean isSilent(int index) {
+        return types[index] == (wideband ? FRAME_TYPE_SID_WB : FRAME_TYPE_SID) || types[index] == FRAME_TYPE_NO_DATA;
+    }
+    
+    // Writes frames [start, end) as a standalone "#!AMR\n" or "#!AMR-WB\n" file
+    public void writeFrames(int start, int end, File target) throws IOException {
+        writeFrames(Collections.singletonList(new int[] { start, end }), target);
+    }
+    
+    // Writes the given [start, end) frame ranges, in order, as one storage format file. Returns the
+    // number of bytes written.
+    public long writeFrames(List<int[]> ranges, File target) throws IOException {
+        byte[] magic = wideband ? STORAGE_MAGIC_WB : STORAGE_MAGIC;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            out.write(magic);
+            return magic.length + copyFrames(ranges, out);
+        }
+    }
+    
+    // Writes every frame of the given recordings, which all have to use the same codec, into one
+    // storage format file, with gapFrames NO_DATA frames (silence to a decoder) between one
+    // recording and the next
+    public static void concatenate(List<AmrFile> recordings, int gapFrames, File target) throws IOException {
+        boolean wideband = recordings.get(0).wideband;
+        byte[] gap = new byte[gapFrames];
+        Arrays.fill(gap, (byte) (FRAME_TYPE_NO_DATA << 3 | 0x04)); // Frame type and the "quality good" bit
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            out.write(wideband ? STORAGE_MAGIC_WB : STORAGE_MAGIC);
+            for (int i = 0; i < recordings.size(); i++) {
+                if (i > 0) {
+                    out.write(gap);
+                }
+                AmrFile recording = recordings.get(i);
+                if (recording.wideband != wideband) {
+                    throw new IllegalArgumentException("Can't join AMR-NB and AMR-WB recordings");
+                }
+                recording.copyFrames(Collections.singletonList(new int[] { 0, recording.frameCount }), out);
+            }
+        }
+    }
+    
+    // Adjacent frames are copied in one read. Returns the number of bytes copied.
+    private long copyFrames(List<int[]> ranges, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        long written = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            for (int[] range : ranges) {
+                int i = range[0];
+                int end = range[1];
+                while (i < end) {
+                    long runStart = offsets[i];
+                    long runLength = 0;
+                    while (i < end && offsets[i] == runStart + runLength) {
+                        runLength += getFrameBytes(i);
+                        i++;
+                    }
+                    written += runLength;
+                    in.seek(runStart);
+                    while (runLength > 0) {
+                        int chunk = (int) Math.min(buffer.length, runLength);
+                        in.readFully(buffer, 0, chunk);
+                        out.write(buffer, 0, chunk);
+                        runLength -= chunk;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+    
+    // Walks moov/trak/mdia/minf/stbl to the AMR track's sample table, then indexes every sample
+    private void readContainer(RandomAccessFile in) throws IOException {
+        SampleTable table = new SampleTable();
+        readBoxes(in, 0, in.length(), table);
+        wideband = table.isWideband;
+        if (!table.isAmr || table.sampleSizes == null || table.chunkOffsets == null
+                || table.chunkRuns == null || table.chunkRuns.length == 0) {
+            throw new IOException("No AMR track in " + file.getName());
+        }
+        
+        int sample = 0;
+        int runIndex = 0;
+        int[] runs = table.chunkRuns; // (first chunk, samples per chunk) pairs, chunks numbered from 1
+        for (int chunk = 0; chunk < table.chunkOffsets.length && sample < table.sampleSizes.length; chunk++) {
+            while (runIndex + 2 < runs.length && chunk + 1 >= runs[runIndex + 2]) {
+                runIndex += 2;
+            }
+            int samplesInChunk = runs[runIndex + 1];
+            long chunkLength = 0;
+            for (int s = 0; s < samplesInChunk && sample + s < table.sampleSizes.length; s++) {
+                chunkLength += table.sampleSizes[sample + s];
+            }
+            // A sample may hold several frames; frame headers are self-describing
+            indexFrames(in, table.chunkOffsets[chunk], chunkLength);
+            sample += samplesInChunk;
+        }
+    }
+    
+    private void readBoxes(RandomAccessFile in, long start, long end, SampleTable table) throws IOException {
+        long position = start;
+        while (position + 8 <= end) {
+            in.seek(position);
+            long size = in.readInt() & 0xffffffffL;
+            String type = readType(in);
+            long headerLength = 8;
+            if (size == 1) {
+                size = in.readLong();
+                headerLength = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < headerLength || position + size > end) {
+                throw new IOException("Corrupt box " + type + " in " + file.getName());
+            }
+            
+            long bodyStart = position + headerLength;
+            long bodyLength = size - headerLength;
+            switch (type) {
+                case "moov":
+                case "mdia":
+                case "minf":
+                case "stbl":
+                    readBoxes(in, bodyStart, bodyStart + bodyLength, table);
+                    break;
+                case "trak":
+                    SampleTable track = new SampleTable();
+                    readBoxes(in, bodyStart, bodyStart + bodyLength, track);
+                    if (track.isAmr && !table.isAmr) {
+                        table.copyFrom(track);
+                    }
+                    break;
+                case "stsd":
+                case "stsz":
+                case "stco":
+                case "co64":
+                case "stsc":
+                    table.parse(type, readBody(in, bodyStart, bodyLength));
+                    break;
+                default:
+                    break;
+            }
+            position += size;
+        }
+    }
+    
+    private void indexFrames(RandomAccessFile in, long start, long length) throws IOException {
+        byte[] data = new byte[(int) length];
+        in.seek(start);
+        in.readFully(data);
+        int position = 0;
+        while (position < data.length) {
+            int type = (data[position] >> 3) & 0x0f;
+            int frameBytes = (wideband ? FRAME_BYTES_WB : FRAME_BYTES)[type];
+            if (position + frameBytes > data.length) {
+                break; // Truncated final frame
+            }
+            addFrame(start + position, type);
+            position += frameBytes;
+        }
+    }
+    
+    private void addFrame(long offset, int type) {
+        if (frameCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, frameCount * 2);
+            types = Arrays.copyOf(types, frameCount * 2);
+        }
+        offsets[frameCount] = offset;
+        types[frameCount] = (byte) type;
+        frameCount++;
+    }
+    
+    private static String readType(RandomAccessFile in) throws IOException {
+        byte[] type = new byte[4];
+        in.readFully(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+    
+    private static ByteBuffer readBody(RandomAccessFile in, long start, long length) throws IOException {
+        byte[] body = new byte[(int) length];
+        in.seek(start);
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+    
+    // The parts of one track's sample table needed to find its frames
+    private static class SampleTable {
+        boolean isAmr;
+        boolean isWideband;
+        int[] sampleSizes;
+        long[] chunkOffsets;
+        int[] chunkRuns;
+        
+        void parse(String type, ByteBuffer body) {
+            body.getInt(); // Version and flags
+            switch (type) {
+                case "stsd":
+                    if (body.getInt() > 0) {
+                        body.getInt(); // Entry size
+                        byte[] format = new byte[4];
+                        body.get(format);
+                        String codec = new String(format, StandardCharsets.US_ASCII);
+                        isAmr = codec.equals("samr") || codec.equals("sawb");
+                        isWideband = codec.equals("sawb");
+                    }
+                    break;
+                case "stsz": {
+                    int uniformSize = body.getInt();
+                    int count = body.getInt();
+                    sampleSizes = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        sampleSizes[i] = uniformSize != 0 ? uniformSize : body.getInt();
+                    }
+                    break;
+                }
+                case "stco":
+                case "co64": {
+                    int count = body.getInt();
+                    chunkOffsets = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        chunkOffsets[i] = type.equals("co64") ? body.getLong() : body.getInt() & 0xffffffffL;
+                    }
+                    break;
+                }
+                case "stsc": {
+                    int count = body.getInt();
+                    chunkRuns = new int[count * 2];
+                    for (int i = 0; i < count; i++) {
+                        chunkRuns[i * 2] = body.getInt();
+                        chunkRuns[i * 2 + 1] = body.getInt();
+                        body.getInt(); // Sample description index
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        
+        void copyFrom(SampleTable other) {
+            isAmr = other.isAmr;
+            isWideband = other.isWideband;
+            sampleSizes = other.sampleSizes;
+            chunkOffsets = other.chunkOffsets;
+            chunkRuns = other.chunkRuns;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Replaces a file in one step: the content goes to a temp file that is fsynced and then renamed
+// over the target, so a crash mid-write leaves either the old or the new file, never a truncated one.
+public final class AtomicFileWriter {
+    
+    public interface Content {
+        void writeTo(Writer writer) throws IOException;
+    }
+    
+    public interface BinaryContent {
+        // Anything buffering on top of out has to be flushed before returning
+        void writeTo(OutputStream out) throws IOException;
+    }
+    
+    private AtomicFileWriter() {}
+    
+    public static void write(File target, Content content) throws IOException {
+        writeBinary(target, out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            content.writeTo(writer);
+            writer.flush();
+        });
+    }
+    
+    public static void writeBinary(File target, BinaryContent content) throws IOException {
+        File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            content.writeTo(out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + target.getName());
+        }
+    }
+}
\ No newline at end of file
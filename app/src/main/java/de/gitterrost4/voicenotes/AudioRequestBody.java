@@ -0,0 +1,126 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+// Recognition request body that streams the audio through a base64 encoder straight into
+// the sink. Only two fixed-size buffers are allocated per upload, whatever the recording length,
+// and the content length is known up front. The audio comes from a file or an in-memory buffer.
+public class AudioRequestBody extends RequestBody {
+    
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final int CHUNK_SIZE = 3 * 4096; // Multiple of 3, so chunks encode without padding
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    
+    private final byte[] prefix;
+    private final File audioFile; // null when the audio is in memory
+    private final byte[] audioBytes;
+    private final long audioLength;
+    private final byte[] suffix;
+    
+    // The audio is written as a base64 JSON string between prefix and suffix
+    public AudioRequestBody(String prefix, File audioFile, String suffix) {
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.audioFile = audioFile;
+        this.audioBytes = null;
+        this.audioLength = audioFile.length();
+        this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    // The first length bytes of audio are sent; the array must not change until the call completes
+    public AudioRequestBody(String prefix, byte[] audio, int length, String suffix) {
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.audioFile = null;
+        this.audioBytes = audio;
+        this.audioLength = length;
+        this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    public static long encodedLength(long length) {
+        return (length + 2) / 3 * 4;
+    }
+    
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+    
+    @Override
+    public long contentLength() {
+        return prefix.length + encodedLength(audioLength) + suffix.length;
+    }
+    
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        long start = Metrics.start();
+        sink.write(prefix);
+        
+        byte[] input = new byte[CHUNK_SIZE];
+        byte[] output = new byte[CHUNK_SIZE / 3 * 4];
+        long remaining = audioLength;
+        try (InputStream in = openAudio()) {
+            while (remaining > 0) {
+                int wanted = (int) Math.min(CHUNK_SIZE, remaining);
+                int filled = readFully(in, input, wanted);
+                if (filled < wanted) {
+                    throw new IOException("Audio shrank while uploading");
+                }
+                int encoded = encode(input, filled, output);
+                sink.write(output, 0, encoded);
+                remaining -= filled;
+            }
+        }
+        
+        sink.write(suffix);
+        Metrics metrics = Metrics.getInstance();
+        metrics.record(Metrics.Stage.UPLOAD, start);
+        metrics.add(Metrics.Counter.BYTES_UPLOADED, contentLength()); // Only once all of it was written
+    }
+    
+    private InputStream openAudio() throws IOException {
+        return audioFile != null ? new FileInputStream(audioFile) : new ByteArrayInputStream(audioBytes, 0, (int) audioLength);
+    }
+    
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = in.read(buffer, filled, length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+    
+    // Standard base64 without line breaks; only the final chunk can need padding
+    static int encode(byte[] input, int length, byte[] output) {
+        int out = 0;
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | (input[i + 2] & 0xff);
+            output[out++] = ALPHABET[bits >>> 18];
+            output[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            output[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+            output[out++] = ALPHABET[bits & 0x3f];
+        }
+        int left = length - i;
+        if (left > 0) {
+            int bits = (input[i] & 0xff) << 16 | (left == 2 ? (input[i + 1] & 0xff) << 8 : 0);
+            output[out++] = ALPHABET[bits >>> 18];
+            output[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            output[out++] = left == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            output[out++] = '=';
+        }
+        return out;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,291 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary list of notes, used for the snapshot (notes.bin). Layout, big-endian:
+//   magic
+//   one record per note:
+//     fixed part: timestamp (epoch millis of the local date-time, plus the nanos below a millisecond),
+//                 duration, category index, type byte, flag byte
+//     id, file path (relative to the recordings directory when it is in there), content:
+//                 length-prefixed UTF-8
+//     for transcriptions with details: confidence, then the packed TranscriptWords, length-prefixed
+//     for audio notes with a stored recording profile: its key, length-prefixed UTF-8
+//   category dictionary: count, then length-prefixed UTF-8 names
+//   offset table: the start of every record
+//   trailer: dictionary offset, table offset, note count, version, magic
+// The file is read through a memory map, so a note is only decoded when it is asked for.
+final class BinaryNoteFile {
+    
+    private static final int MAGIC = 0x564E4231; // "VNB1"
+    private static final int VERSION = 3; // 2 added transcript details, 3 recording profiles; older files read the same
+    private static final int TRAILER_BYTES = 8 + 8 + 4 + 4 + 4;
+    
+    private static final byte TYPE_TEXT = 0;
+    private static final byte TYPE_AUDIO = 1;
+    
+    private static final int FLAG_DONE = 1;
+    private static final int FLAG_FILE = 2; // Has a file path
+    private static final int FLAG_RELATIVE_FILE = 4; // The path is a name in the recordings directory
+    private static final int FLAG_CONTENT = 8; // Content is not null
+    private static final int FLAG_TRANSCRIPT = 16; // Confidence and word positions follow the content
+    private static final int FLAG_PROFILE = 32; // The recording profile's key comes last
+    
+    private static final int NO_CATEGORY = -1;
+    
+    private BinaryNoteFile() {}
+    
+    static void write(File target, List<Note> notes, File recordingsDirectory) throws IOException {
+        AtomicFileWriter.writeBinary(target, stream -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            Map<String, Integer> categoryIds = new HashMap<>();
+            List<String> categories = new ArrayList<>();
+            long[] offsets = new long[notes.size()];
+            
+            out.writeInt(MAGIC);
+            for (int i = 0; i < notes.size(); i++) {
+                Note note = notes.get(i);
+                offsets[i] = out.size();
+                
+                int categoryId = NO_CATEGORY;
+                if (note.getCategory() != null) {
+                    Integer id = categoryIds.get(note.getCategory());
+                    if (id == null) {
+                        id = categories.size();
+                        categories.add(note.getCategory());
+                        categoryIds.put(note.getCategory(), id);
+                    }
+                    categoryId = id;
+                }
+                
+                String filePath = note.getFilePath();
+                int flags = (note.isDone() ? FLAG_DONE : 0) | (note.getContent() != null ? FLAG_CONTENT : 0);
+                if (note.getContent() != null && (note.getConfidence() > 0 || note.getWords() != null)) {
+                    flags |= FLAG_TRANSCRIPT;
+                }
+                if (note.getStoredRecordingProfile() != null) {
+                    flags |= FLAG_PROFILE;
+                }
+                if (filePath != null) {
+                    flags |= FLAG_FILE;
+                    File file = new File(filePath);
+                    if (recordingsDirectory.equals(file.getParentFile())) {
+                        flags |= FLAG_RELATIVE_FILE;
+                        filePath = file.getName();
+                    }
+                }
+                
+                LocalDateTime timestamp = note.getTimestamp();
+                out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC) * 1000 + timestamp.getNano() / 1_000_000);
+                out.writeInt(timestamp.getNano() % 1_000_000);
+                out.writeLong(note.getDurationMs());
+                out.writeInt(categoryId);
+                out.writeByte(note.getType() == Note.Type.AUDIO ? TYPE_AUDIO : TYPE_TEXT);
+                out.writeByte(flags);
+                writeString(out, note.getId());
+                if (filePath != null) {
+                    writeString(out, filePath);
+                }
+                if (note.getContent() != null) {
+                    writeString(out, note.getContent());
+                }
+                if ((flags & FLAG_TRANSCRIPT) != 0) {
+                    byte[] words = note.getWords() != null ? note.getWords().toByteArray() : new byte[0];
+                    out.writeFloat(note.getConfidence());
+                    out.writeInt(words.length);
+                    out.write(words);
+                }
+                if ((flags & FLAG_PROFILE) != 0) {
+                    writeString(out, note.getStoredRecordingProfile().getKey());
+                }
+            }
+            
+            long dictionaryOffset = out.size();
+            out.writeInt(categories.size());
+            for (String category : categories) {
+                writeString(out, category);
+            }
+            long tableOffset = out.size();
+            for (long offset : offsets) {
+                out.writeInt((int) offset);
+            }
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException("Note file exceeds 2 GB"); // size() stops counting there
+            }
+            out.writeLong(dictionaryOffset);
+            out.writeLong(tableOffset);
+            out.writeInt(notes.size());
+            out.writeInt(VERSION);
+            out.writeInt(MAGIC);
+            out.flush();
+        });
+    }
+    
+    // Maps the file and reads the trailer and category dictionary; the notes themselves are decoded by get()
+    static Reader open(File file, File recordingsDirectory) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid after close
+        }
+        return new Reader(buffer.order(ByteOrder.BIG_ENDIAN), recordingsDirectory);
+    }
+    
+    // For files written by older versions, and for anything that wants the notes as JSON
+    static List<Note> importJson(File jsonFile, Gson gson) throws IOException {
+        TypeAdapter<Note> noteAdapter = gson.getAdapter(Note.class);
+        List<Note> notes = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                new FileInputStream(jsonFile), StandardCharsets.UTF_8)))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Note note = noteAdapter.read(reader);
+                if (note != null) {
+                    notes.add(note);
+                }
+            }
+            reader.endArray();
+        }
+        return notes;
+    }
+    
+    // Writes the notes as a JSON array in the same format notes.json had
+    static void exportJson(List<Note> notes, Writer out, Gson gson) throws IOException {
+        TypeAdapter<Note> noteAdapter = gson.getAdapter(Note.class);
+        JsonWriter writer = new JsonWriter(out);
+        writer.setSerializeNulls(false); // Like Gson.toJson(), which wrote notes.json
+        writer.beginArray();
+        for (Note note : notes) {
+            noteAdapter.write(writer, note);
+        }
+        writer.endArray();
+        writer.flush();
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    // Decodes notes straight from the mapped file. Not thread-safe.
+    static final class Reader {
+        private final ByteBuffer buffer;
+        private final File recordingsDirectory;
+        private final int count;
+        private final int tableOffset;
+        private final String[] categories;
+        
+        private Reader(ByteBuffer buffer, File recordingsDirectory) throws IOException {
+            this.buffer = buffer;
+            this.recordingsDirectory = recordingsDirectory;
+            int limit = buffer.limit();
+            if (limit < 4 + TRAILER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(limit - 4) != MAGIC) {
+                throw new IOException("Not a note file");
+            }
+            int trailer = limit - TRAILER_BYTES;
+            int version = buffer.getInt(trailer + 20);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported note file version " + version);
+            }
+            long dictionaryOffset = buffer.getLong(trailer);
+            long table = buffer.getLong(trailer + 8);
+            count = buffer.getInt(trailer + 16);
+            if (dictionaryOffset < 4 || table < dictionaryOffset || table + 4L * count != trailer) {
+                throw new IOException("Corrupt note file");
+            }
+            tableOffset = (int) table;
+            
+            try {
+                buffer.position((int) dictionaryOffset);
+                categories = new String[buffer.getInt()];
+                for (int i = 0; i < categories.length; i++) {
+                    categories[i] = readString();
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt note file", e);
+            }
+        }
+        
+        int size() {
+            return count;
+        }
+        
+        Note get(int index) throws IOException {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Note " + index + " of " + count);
+            }
+            try {
+                buffer.position(buffer.getInt(tableOffset + 4 * index));
+                long millis = buffer.getLong();
+                int subMillisNanos = buffer.getInt();
+                long durationMs = buffer.getLong();
+                int categoryId = buffer.getInt();
+                byte type = buffer.get();
+                int flags = buffer.get();
+                String id = readString();
+                String filePath = (flags & FLAG_FILE) != 0 ? readString() : null;
+                String content = (flags & FLAG_CONTENT) != 0 ? readString() : null;
+                float confidence = 0;
+                TranscriptWords words = null;
+                if ((flags & FLAG_TRANSCRIPT) != 0) {
+                    confidence = buffer.getFloat();
+                    byte[] packed = new byte[buffer.getInt()];
+                    buffer.get(packed);
+                    words = packed.length > 0 ? TranscriptWords.fromByteArray(packed) : null;
+                }
+                RecordingProfile profile = (flags & FLAG_PROFILE) != 0
+                        ? RecordingProfile.fromKey(readString(), null) : null;
+                
+                if ((flags & FLAG_RELATIVE_FILE) != 0) {
+                    filePath = new File(recordingsDirectory, filePath).getPath();
+                }
+                LocalDateTime timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000),
+                        (int) Math.floorMod(millis, 1000) * 1_000_000 + subMillisNanos, ZoneOffset.UTC);
+                String category = categoryId != NO_CATEGORY ? categories[categoryId] : null;
+                
+                Note note = type == TYPE_AUDIO
+                        ? new Note(id, Note.Type.AUDIO, category, timestamp, content, filePath)
+                        : new Note(id, Note.Type.TEXT, category, timestamp, content);
+                if ((flags & FLAG_TRANSCRIPT) != 0) {
+                    note.setTranscript(new Transcript(content, confidence, words));
+                }
+                note.setDone((flags & FLAG_DONE) != 0);
+                note.setDurationMs(durationMs);
+                note.setRecordingProfile(profile);
+                return note;
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt note " + index, e); // Out-of-range offsets, lengths or ids
+            }
+        }
+        
+        private String readString() {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,157 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// StreamingRecognizer on top of the synchronous REST endpoint: PCM is buffered and every few
+// seconds a chunk is cut at its quietest point and recognized while recording goes on.
+// Chunks are recognized one after another, so the transcript grows in order.
+public class ChunkedStreamingRecognizer implements StreamingRecognizer {
+    
+    private static final int MIN_CHUNK_MS = 3500;
+    private static final int MAX_CHUNK_MS = 5000;
+    private static final int WINDOW_MS = 100; // Loudness is compared over windows of this length
+    
+    private final TranscriptionClient client;
+    
+    public ChunkedStreamingRecognizer(TranscriptionClient client) {
+        this.client = client;
+    }
+    
+    @Override
+    public Session start(String credentialsJson, String languageCode, int sampleRate, Listener listener) {
+        return new ChunkedSession(credentialsJson, languageCode, sampleRate, listener);
+    }
+    
+    private class ChunkedSession implements Session {
+        private final String credentialsJson;
+        private final String languageCode;
+        private final int sampleRate;
+        private final Listener listener;
+        private final int bytesPerMs;
+        private final ExecutorService sender = Executors.newSingleThreadExecutor();
+        
+        // Only touched by the thread feeding audio
+        private byte[] pending;
+        private int pendingLength = 0;
+        
+        // Sender thread only
+        private final List<String> transcripts = new ArrayList<>();
+        
+        private volatile boolean stopped = false; // Cancelled, failed or final
+        
+        ChunkedSession(String credentialsJson, String languageCode, int sampleRate, Listener listener) {
+            this.credentialsJson = credentialsJson;
+            this.languageCode = languageCode;
+            this.sampleRate = sampleRate;
+            this.listener = listener;
+            this.bytesPerMs = sampleRate * 2 / 1000;
+            this.pending = new byte[MAX_CHUNK_MS * bytesPerMs];
+        }
+        
+        @Override
+        public void sendAudio(byte[] pcm, int length) {
+            int offset = 0;
+            while (offset < length && !stopped) {
+                int copied = Math.min(length - offset, pending.length - pendingLength);
+                System.arraycopy(pcm, offset, pending, pendingLength, copied);
+                pendingLength += copied;
+                offset += copied;
+                if (pendingLength == pending.length) {
+                    cutChunk();
+                }
+            }
+        }
+        
+        @Override
+        public void finish() {
+            if (pendingLength > 0) {
+                submitChunk(Arrays.copyOf(pending, pendingLength));
+                pendingLength = 0;
+            }
+            send(() -> {
+                if (!stopped) {
+                    stopped = true;
+                    listener.onFinal(joinTranscripts());
+                }
+            });
+            sender.shutdown();
+        }
+        
+        @Override
+        public void cancel() {
+            stopped = true;
+            sender.shutdownNow();
+        }
+        
+        // Sends everything up to the quietest window after MIN_CHUNK_MS and keeps the rest
+        private void cutChunk() {
+            int cut = quietestPoint(MIN_CHUNK_MS * bytesPerMs, pendingLength);
+            submitChunk(Arrays.copyOf(pending, cut));
+            
+            System.arraycopy(pending, cut, pending, 0, pendingLength - cut);
+            pendingLength -= cut;
+        }
+        
+        private void submitChunk(byte[] audio) {
+            send(() -> {
+                if (stopped) {
+                    return;
+                }
+                try {
+                    String transcript = client.transcribePcm(credentialsJson, audio, audio.length, sampleRate, languageCode);
+                    // Placeholders would end up in the middle of the note's text
+                    if (!TranscriptionClient.NO_SPEECH.equals(transcript)
+                            && !TranscriptionClient.PARSING_FAILED.equals(transcript)) {
+                        transcripts.add(transcript);
+                    }
+                    if (!stopped) {
+                        listener.onInterim(joinTranscripts());
+                    }
+                } catch (IOException e) {
+                    if (!stopped) {
+                        stopped = true;
+                        listener.onError(e);
+                    }
+                }
+            });
+        }
+        
+        // cancel() may have shut the sender down from another thread; there is nothing left to do then
+        private void send(Runnable task) {
+            try {
+                sender.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Cancelled
+            }
+        }
+        
+        // Returns the byte offset in the middle of the window with the least energy
+        private int quietestPoint(int from, int to) {
+            int window = WINDOW_MS * bytesPerMs;
+            int best = to;
+            long bestEnergy = Long.MAX_VALUE;
+            for (int start = from; start + window <= to; start += window / 2) {
+                long energy = 0;
+                for (int i = start; i < start + window; i += 2) {
+                    int sample = (short) ((pending[i] & 0xff) | (pending[i + 1] << 8));
+                    energy += (long) sample * sample;
+                }
+                if (energy < bestEnergy) {
+                    bestEnergy = energy;
+                    best = start + window / 2;
+                }
+            }
+            return best - best % 2;
+        }
+        
+        private String joinTranscripts() {
+            return String.join(" ", transcripts).trim();
+        }
+    }
+}
\ No newline at end of file
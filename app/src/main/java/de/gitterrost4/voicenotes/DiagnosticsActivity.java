@@ -0,0 +1,160 @@
+package de.gitterrost4.voicenotes;
+
+import android.app.AlertDialog;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Shows the pipeline metrics collected by Metrics, the store's write statistics and the recent
+// startup times, and exports them as JSON to attach to a bug report.
+public class DiagnosticsActivity extends AppCompatActivity {
+    
+    private static final String PREFS_NAME = "voice_notes_prefs";
+    
+    private TextView diagnosticsText;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+            getSupportActionBar().setTitle(R.string.diagnostics);
+        }
+        
+        diagnosticsText = findViewById(R.id.diagnosticsText);
+        Button exportButton = findViewById(R.id.exportDiagnosticsButton);
+        Button resetButton = findViewById(R.id.resetDiagnosticsButton);
+        exportButton.setOnClickListener(v -> exportDiagnostics());
+        resetButton.setOnClickListener(v -> confirmReset());
+    }
+    
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showDiagnostics();
+    }
+    
+    private void showDiagnostics() {
+        Metrics.Snapshot metrics = Metrics.getInstance().snapshot();
+        NoteStore store = NoteStore.getInstance(this);
+        StringBuilder text = new StringBuilder();
+        
+        text.append("Since ").append(DateFormat.getDateTimeInstance().format(new Date(metrics.sinceMillis)))
+                .append("\n\n");
+        text.append(String.format(Locale.US, "%-16s %6s %7s %7s %7s %7s%n", "stage", "count", "avg", "p50", "p95", "max"));
+        for (Map.Entry<String, Metrics.HistogramSnapshot> stage : metrics.stages.entrySet()) {
+            Metrics.HistogramSnapshot histogram = stage.getValue();
+            text.append(String.format(Locale.US, "%-16s %6d %7s %7s %7s %7s%n", stage.getKey(), histogram.count,
+                    millis(histogram.averageMs()), bound(histogram.percentileMs(0.5)),
+                    bound(histogram.percentileMs(0.95)), millis(histogram.maxMs)));
+        }
+        
+        text.append('\n');
+        for (Map.Entry<String, Long> counter : metrics.counters.entrySet()) {
+            text.append(String.format(Locale.US, "%-24s %d%n", counter.getKey(), counter.getValue()));
+        }
+        
+        if (!metrics.httpStatus.isEmpty()) {
+            text.append("\nHTTP status\n");
+            for (Map.Entry<String, Long> status : metrics.httpStatus.entrySet()) {
+                text.append(String.format(Locale.US, "  %s  %d%n", status.getKey(), status.getValue()));
+            }
+        }
+        
+        text.append(String.format(Locale.US, "%nNote store (this session)%n  %d saves, %d writes, avg %.1f ms, max %.1f ms%n",
+                store.getRequestedSaves(), store.getPerformedWrites(),
+                store.getAverageWriteMillis(), store.getMaxWriteMillis()));
+        
+        List<StartupMetrics.Sample> samples = getStartupMetrics().getSamples();
+        if (!samples.isEmpty()) {
+            text.append("\nStartup, newest first\n");
+            for (int i = samples.size() - 1; i >= 0; i--) {
+                StartupMetrics.Sample sample = samples.get(i);
+                text.append(String.format(Locale.US, "  %6d ms  %-8s %s%n", sample.millis,
+                        sample.fromSnapshot ? "snapshot" : "loaded", sample.appVersion));
+            }
+        }
+        diagnosticsText.setText(text);
+    }
+    
+    private static String millis(long value) {
+        return value + "ms";
+    }
+    
+    // Percentiles are bucket bounds, so they are shown as "at most"
+    private static String bound(long value) {
+        return value < 0 ? "slow" : "<" + value + "ms";
+    }
+    
+    private void exportDiagnostics() {
+        NoteStore store = NoteStore.getInstance(this);
+        JsonObject report = new JsonObject();
+        report.addProperty("appVersion", getAppVersion());
+        report.addProperty("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.addProperty("sdk", Build.VERSION.SDK_INT);
+        report.addProperty("exportedAt", System.currentTimeMillis());
+        report.add("metrics", gson.toJsonTree(Metrics.getInstance().snapshot()));
+        
+        JsonObject storeStats = new JsonObject();
+        storeStats.addProperty("requestedSaves", store.getRequestedSaves());
+        storeStats.addProperty("performedWrites", store.getPerformedWrites());
+        storeStats.addProperty("averageWriteMillis", store.getAverageWriteMillis());
+        storeStats.addProperty("maxWriteMillis", store.getMaxWriteMillis());
+        report.add("noteStore", storeStats);
+        report.add("startup", gson.toJsonTree(getStartupMetrics().getSamples()));
+        
+        Intent send = new Intent(Intent.ACTION_SEND);
+        send.setType("application/json");
+        send.putExtra(Intent.EXTRA_SUBJECT, "Voice Notes diagnostics");
+        send.putExtra(Intent.EXTRA_TEXT, gson.toJson(report));
+        startActivity(Intent.createChooser(send, getString(R.string.export_diagnostics)));
+    }
+    
+    private void confirmReset() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.diagnostics)
+                .setMessage(R.string.reset_diagnostics_confirm)
+                .setPositiveButton(R.string.reset_diagnostics, (dialog, which) -> {
+                    Metrics.getInstance().reset();
+                    showDiagnostics();
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+    
+    private StartupMetrics getStartupMetrics() {
+        return new StartupMetrics(getSharedPreferences(PREFS_NAME, MODE_PRIVATE));
+    }
+    
+    private String getAppVersion() {
+        try {
+            return getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+    
+    @Override
+    public boolean onSupportNavigateUp() {
+        finish();
+        return true;
+    }
+}
\ No newline at end of file
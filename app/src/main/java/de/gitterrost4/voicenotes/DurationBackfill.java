@@ -0,0 +1,77 @@
+package de.gitterrost4.voicenotes;
+
+import android.media.MediaMetadataRetriever;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// One-off background job that fills in durations for audio notes recorded before the duration
+// was stored with the note. Results are handed back in chunks so they can go through the normal save path.
+public class DurationBackfill {
+    
+    public static final String PREF_KEY = "durations_backfilled";
+    private static final int CHUNK_SIZE = 100;
+    
+    public interface Listener {
+        void onDurations(Map<String, Long> durationsById);
+        void onFinished();
+    }
+    
+    private DurationBackfill() {}
+    
+    public static void start(Collection<Note> notes, Executor callbackExecutor, Listener listener) {
+        // Only id and path are needed; the notes themselves stay on the calling thread
+        List<String[]> pending = new ArrayList<>();
+        for (Note note : notes) {
+            if (note.getType() == Note.Type.AUDIO && note.getDurationMs() <= 0 && note.getFilePath() != null) {
+                pending.add(new String[] { note.getId(), note.getFilePath() });
+            }
+        }
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            Map<String, Long> chunk = new HashMap<>();
+            for (String[] entry : pending) {
+                long durationMs = probe(entry[1]);
+                if (durationMs > 0) {
+                    chunk.put(entry[0], durationMs);
+                }
+                if (chunk.size() >= CHUNK_SIZE) {
+                    Map<String, Long> ready = chunk;
+                    callbackExecutor.execute(() -> listener.onDurations(ready));
+                    chunk = new HashMap<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                Map<String, Long> ready = chunk;
+                callbackExecutor.execute(() -> listener.onDurations(ready));
+            }
+            callbackExecutor.execute(listener::onFinished);
+        });
+        executor.shutdown();
+    }
+    
+    // Reads the duration from the file's metadata, or returns 0 if it can't be determined
+    public static long probe(String filePath) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(filePath);
+            String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return durationStr != null ? Long.parseLong(durationStr) : 0;
+        } catch (Exception e) {
+            return 0;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception e) {
+                // Already released
+            }
+        }
+    }
+}
\ No newline at end of file
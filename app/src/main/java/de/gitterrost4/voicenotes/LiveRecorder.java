@@ -0,0 +1,140 @@
+package de.gitterrost4.voicenotes;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Records 16 kHz mono PCM into a WAV file and hands every buffer to a listener as it arrives,
+// so audio can be recognized while the recording is still going on.
+public class LiveRecorder {
+    
+    public static final int SAMPLE_RATE = 16000;
+    public static final String WAV_EXTENSION = ".wav";
+    
+    private static final int BYTES_PER_SAMPLE = 2;
+    private static final int WAV_HEADER_BYTES = 44;
+    
+    public interface PcmListener {
+        // Called on the recording thread; the buffer is reused once this returns
+        void onPcm(byte[] pcm, int length);
+    }
+    
+    private final File outputFile;
+    private final PcmListener listener;
+    private AudioRecord audioRecord;
+    private Thread captureThread;
+    private volatile boolean running = false;
+    
+    // Written by the capture thread, read after it has been joined
+    private long dataBytes = 0;
+    private IOException writeError;
+    
+    public LiveRecorder(File outputFile, PcmListener listener) {
+        this.outputFile = outputFile;
+        this.listener = listener;
+    }
+    
+    public void start() throws IOException {
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            throw new IOException("PCM recording is not supported on this device");
+        }
+        int bufferSize = Math.max(minBufferSize, SAMPLE_RATE * BYTES_PER_SAMPLE / 10); // At least 100 ms
+        
+        audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize * 2);
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            audioRecord = null;
+            throw new IOException("Microphone is not available");
+        }
+        
+        RandomAccessFile out = new RandomAccessFile(outputFile, "rw");
+        try {
+            out.setLength(0);
+            out.write(wavHeader(0));
+            audioRecord.startRecording();
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            audioRecord.release();
+            audioRecord = null;
+            throw e;
+        }
+        
+        running = true;
+        captureThread = new Thread(() -> capture(out, bufferSize), "LiveRecorder");
+        captureThread.start();
+    }
+    
+    // Stops recording, completes the WAV header and returns the recorded duration
+    public long stop() throws IOException {
+        running = false;
+        if (audioRecord == null) {
+            return 0;
+        }
+        try {
+            audioRecord.stop();
+            captureThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            audioRecord.release();
+            audioRecord = null;
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+        return dataBytes * 1000 / (SAMPLE_RATE * BYTES_PER_SAMPLE);
+    }
+    
+    private void capture(RandomAccessFile out, int bufferSize) {
+        byte[] buffer = new byte[bufferSize];
+        try {
+            while (running) {
+                int read = audioRecord.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    break; // The recorder was stopped or failed
+                }
+                out.write(buffer, 0, read);
+                dataBytes += read;
+                listener.onPcm(buffer, read);
+            }
+            out.seek(0);
+            out.write(wavHeader(dataBytes));
+        } catch (IOException e) {
+            writeError = e;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+    }
+    
+    private static byte[] wavHeader(long dataBytes) {
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt((int) (dataBytes + WAV_HEADER_BYTES - 8));
+        header.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        header.putInt(16); // Format chunk size
+        header.putShort((short) 1); // PCM
+        header.putShort((short) 1); // Mono
+        header.putInt(SAMPLE_RATE);
+        header.putInt(SAMPLE_RATE * BYTES_PER_SAMPLE);
+        header.putShort((short) BYTES_PER_SAMPLE);
+        header.putShort((short) (BYTES_PER_SAMPLE * 8));
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt((int) dataBytes);
+        return header.array();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,283 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The synchronous recognize endpoint only takes about a minute of audio. Longer AMR recordings
+// are cut into overlapping segments at frame boundaries, preferably inside silence, and the
+// segments are transcribed in parallel on their own pool. The transcripts are joined in order,
+// dropping words repeated in an overlap, and their word positions are moved to where each segment
+// starts. Everything shorter goes to the client unchanged. Each segment is a request of its own:
+// it takes a token from the rate limiter, and a throttled segment slows the limiter down, so the
+// scheduler leaves the limiter alone for a note that is split (see requestCount()).
+public class LongAudioTranscriber implements Transcriber {
+    
+    private static final int MAX_SEGMENT_FRAMES = 55_000 / AmrFile.FRAME_MS;
+    private static final int OVERLAP_FRAMES = 2_000 / AmrFile.FRAME_MS;
+    private static final int CUT_SEARCH_FRAMES = 10_000 / AmrFile.FRAME_MS; // Look for silence in the last 10 s
+    private static final int MIN_SILENT_FRAMES = 3;
+    private static final int MAX_OVERLAP_WORDS = 12;
+    private static final int SEGMENT_CONCURRENCY = 4;
+    private static final long IDLE_SECONDS = 30;
+    private static final Pattern WORD = Pattern.compile("\\S+");
+    
+    private final Transcriber client;
+    private final AdaptiveRateLimiter rateLimiter;
+    private final File segmentDirectory;
+    private final ThreadPoolExecutor segmentPool;
+    
+    // Segment requests draw from the same rate limiter as whole notes
+    public LongAudioTranscriber(Transcriber client, AdaptiveRateLimiter rateLimiter, File segmentDirectory) {
+        this.client = client;
+        this.rateLimiter = rateLimiter;
+        this.segmentDirectory = segmentDirectory;
+        // Long notes are rare, so the workers exit when idle, and never keep the process alive
+        this.segmentPool = new ThreadPoolExecutor(SEGMENT_CONCURRENCY, SEGMENT_CONCURRENCY, IDLE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "LongAudioTranscriber");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.segmentPool.allowCoreThreadTimeOut(true);
+    }
+    
+    @Override
+    public int requestCount(String filePath, RecordingProfile profile) {
+        AmrFile amr = readIfLong(filePath, profile);
+        return amr != null ? planSegments(amr, MAX_SEGMENT_FRAMES, OVERLAP_FRAMES, CUT_SEARCH_FRAMES).size() : 1;
+    }
+    
+    @Override
+    public Transcript transcribe(String credentialsJson, String filePath, RecordingProfile profile,
+                                 String languageCode) throws IOException {
+        AmrFile amr = readIfLong(filePath, profile);
+        if (amr == null) {
+            return client.transcribe(credentialsJson, filePath, profile, languageCode);
+        }
+        
+        List<int[]> segments = planSegments(amr, MAX_SEGMENT_FRAMES, OVERLAP_FRAMES, CUT_SEARCH_FRAMES);
+        List<Future<Transcript>> results = new ArrayList<>(segments.size());
+        for (int[] segment : segments) {
+            AmrFile source = amr;
+            results.add(segmentPool.submit(() -> transcribeSegment(source, segment, credentialsJson, profile,
+                    languageCode)));
+        }
+        
+        List<Transcript> transcripts = new ArrayList<>(segments.size());
+        try {
+            for (Future<Transcript> result : results) {
+                transcripts.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            cancelAll(results);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Segment transcription failed", cause);
+        } catch (InterruptedException e) {
+            cancelAll(results);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while transcribing segments");
+        }
+        
+        long[] segmentStartMs = new long[segments.size()];
+        for (int i = 0; i < segmentStartMs.length; i++) {
+            segmentStartMs[i] = (long) segments.get(i)[0] * AmrFile.FRAME_MS;
+        }
+        Transcript transcript = stitch(transcripts, segmentStartMs);
+        return transcript.getText().isEmpty() ? Transcript.of(TranscriptionClient.NO_SPEECH) : transcript;
+    }
+    
+    // The frame index of an AMR recording too long for one request, or null
+    private static AmrFile readIfLong(String filePath, RecordingProfile profile) {
+        if (!profile.isAmr()) {
+            return null;
+        }
+        try {
+            AmrFile amr = AmrFile.read(new File(filePath));
+            return amr.getFrameCount() > MAX_SEGMENT_FRAMES ? amr : null;
+        } catch (IOException | RuntimeException e) {
+            return null; // Not something we can split; let the API judge it
+        }
+    }
+    
+    private Transcript transcribeSegment(AmrFile amr, int[] segment, String credentialsJson, RecordingProfile profile,
+                                         String languageCode) throws IOException, InterruptedException {
+        long waitMs;
+        while ((waitMs = rateLimiter.reserve()) > 0) {
+            // Blocks this segment worker, and with it the scheduler worker waiting for the note
+            Thread.sleep(waitMs);
+        }
+        
+        segmentDirectory.mkdirs();
+        File segmentFile = File.createTempFile("segment", ".amr", segmentDirectory);
+        try {
+            long writeStart = Metrics.start();
+            amr.writeFrames(segment[0], segment[1], segmentFile);
+            Metrics.getInstance().record(Metrics.Stage.SEGMENT_WRITE, writeStart);
+            Transcript transcript = client.transcribe(credentialsJson, segmentFile.getPath(), profile, languageCode);
+            rateLimiter.onSuccess();
+            return transcript.isNoSpeech() ? Transcript.of("") : transcript;
+        } catch (TranscriptionException e) {
+            if (e.isThrottled()) {
+                rateLimiter.onThrottled(e.getRetryAfterMs());
+            }
+            throw e;
+        } finally {
+            segmentFile.delete();
+        }
+    }
+    
+    private static void cancelAll(List<Future<Transcript>> results) {
+        for (Future<Transcript> result : results) {
+            result.cancel(true);
+        }
+    }
+    
+    // Returns [start, end) frame ranges no longer than maxFrames. A cut goes into the middle of the
+    // longest silent run near the end of a segment; without one, the next segment starts
+    // overlapFrames earlier so a word cut in half is heard whole at least once.
+    static List<int[]> planSegments(AmrFile amr, int maxFrames, int overlapFrames, int searchFrames) {
+        List<int[]> segments = new ArrayList<>();
+        int total = amr.getFrameCount();
+        int start = 0;
+        while (total - start > maxFrames) {
+            int limit = start + maxFrames;
+            int cut = findSilentCut(amr, limit - searchFrames, limit);
+            if (cut > start) {
+                segments.add(new int[] { start, cut });
+                start = cut;
+            } else {
+                segments.add(new int[] { start, limit });
+                start = limit - overlapFrames;
+            }
+        }
+        segments.add(new int[] { start, total });
+        return segments;
+    }
+    
+    private static int findSilentCut(AmrFile amr, int from, int to) {
+        int bestStart = -1;
+        int bestLength = 0;
+        int runStart = -1;
+        for (int i = from; i <= to; i++) {
+            if (i < to && amr.isSilent(i)) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            } else if (runStart >= 0) {
+                if (i - runStart > bestLength) {
+                    bestStart = runStart;
+                    bestLength = i - runStart;
+                }
+                runStart = -1;
+            }
+        }
+        return bestLength >= MIN_SILENT_FRAMES ? bestStart + bestLength / 2 : -1;
+    }
+    
+    // Joins segment transcripts, dropping the longest run of words that ends one segment and starts
+    // the next. Word positions are shifted by where their segment starts in the recording.
+    static Transcript stitch(List<Transcript> transcripts, long[] segmentStartMs) {
+        List<Word> words = new ArrayList<>();
+        double confidenceSum = 0;
+        int confidenceChars = 0;
+        for (int t = 0; t < transcripts.size(); t++) {
+            Transcript transcript = transcripts.get(t);
+            List<Word> next = words(transcript, segmentStartMs[t]);
+            if (next.isEmpty()) {
+                continue;
+            }
+            if (transcript.getConfidence() > 0) {
+                confidenceSum += (double) transcript.getConfidence() * transcript.getText().length();
+                confidenceChars += transcript.getText().length();
+            }
+            int overlap = Math.min(MAX_OVERLAP_WORDS, Math.min(words.size(), next.size()));
+            int skip = 0;
+            for (int k = overlap; k > 0; k--) {
+                if (sameWords(words, words.size() - k, next, k)) {
+                    skip = k;
+                    break;
+                }
+            }
+            words.addAll(next.subList(skip, next.size()));
+        }
+        
+        StringBuilder text = new StringBuilder();
+        TranscriptWords.Builder positions = new TranscriptWords.Builder();
+        long lastStartMs = -1;
+        for (Word word : words) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            int charStart = text.length();
+            text.append(word.text);
+            // Overlapping segments may disagree on timing; the position of a word never goes backwards
+            if (word.startMs >= 0 && word.startMs >= lastStartMs) {
+                positions.add(charStart, text.length(), word.startMs, word.endMs, word.confidence);
+                lastStartMs = word.startMs;
+            }
+        }
+        float confidence = confidenceChars > 0 ? (float) (confidenceSum / confidenceChars) : 0;
+        return new Transcript(text.toString(), confidence, positions.size() > 0 ? positions.build() : null);
+    }
+    
+    // Splits a transcript at whitespace and attaches the recognizer's position to each word that has one
+    private static List<Word> words(Transcript transcript, long offsetMs) {
+        List<Word> words = new ArrayList<>();
+        TranscriptWords positions = transcript.getWords();
+        int count = positions != null ? positions.size() : 0;
+        int position = 0;
+        Matcher matcher = WORD.matcher(transcript.getText());
+        while (matcher.find()) {
+            Word word = new Word(matcher.group());
+            while (position < count && positions.getCharStart(position) < matcher.start()) {
+                position++;
+            }
+            if (position < count && positions.getCharStart(position) == matcher.start()) {
+                word.startMs = positions.getStartMs(position) + offsetMs;
+                word.endMs = positions.getEndMs(position) + offsetMs;
+                word.confidence = positions.getConfidence(position);
+            }
+            words.add(word);
+        }
+        return words;
+    }
+    
+    private static boolean sameWords(List<Word> words, int from, List<Word> next, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!normalize(words.get(from + i).text).equals(normalize(next.get(i).text))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Case and punctuation differ between segments for the same spoken word
+    private static String normalize(String word) {
+        return word.replaceAll("[\\p{Punct}]", "").toLowerCase(Locale.ROOT);
+    }
+    
+    private static final class Word {
+        final String text;
+        long startMs = -1; // -1 if the recognizer didn't place it
+        long endMs;
+        float confidence;
+        
+        Word(String text) {
+            this.text = text;
+        }
+    }
+}
\ No newline at end of file
@@ -7,9 +7,14 @@ import android.content.pm.PackageManager;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.app.AlertDialog;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -27,100 +32,102 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
 import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.Type;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import com.google.auth.oauth2.GoogleCredentials;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import okhttp3.MediaType;
-
-import java.io.InputStream;
-import android.util.Base64;
 
 public class MainActivity extends AppCompatActivity {
     
+    private static final String TAG = "MainActivity";
     private static final int PERMISSION_REQUEST_CODE = 1001;
-    private static final String NOTES_FILE = "notes.json";
     private static final String PREFS_NAME = "voice_notes_prefs";
     private static final String CATEGORIES_KEY = "categories";
     private static final String CREDENTIALS_KEY = "google_cloud_credentials";
+    private static final int ARCHIVE_PAGE_SIZE = 50;
+    private static final int ARCHIVE_PREFETCH_ROWS = 10;
     
-    // Audio recording constants
-    private static final int AUDIO_SAMPLE_RATE = 8000;
-    private static final String AUDIO_ENCODING = "AMR";
-    
-    // Transcription constants
-    private static final long BATCH_TRANSCRIPTION_DELAY_MS = 1000;
-    private static final String GOOGLE_CLOUD_SCOPE = "https://www.googleapis.com/auth/cloud-platform";
-    private static final String SPEECH_API_URL = "https://speech.googleapis.com/v1/speech:recognize";
     private static final List<String> DEFAULT_CATEGORIES = Arrays.asList(
         "ToDos", "Reminders", "Town Meeting"
     );
     
     private List<String> categories;
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
     
     private Gson gson;
+    private NoteStore noteStore;
+    private RecordingsDirectory recordings;
     
     private MediaRecorder mediaRecorder;
+    private LiveRecorder liveRecorder;
+    private LiveTranscription liveTranscription;
+    private StreamingRecognizer streamingRecognizer;
     private MediaPlayer mediaPlayer;
     private Button recordButton;
     private ImageButton addTextNoteButton;
     private View recordIndicator;
     private Spinner categorySpinner;
-    private RecyclerView activeNotesRecyclerView;
-    private RecyclerView completedNotesRecyclerView;
-    private TextView completedSectionHeader;
-    private NoteAdapter activeAdapter;
-    private NoteAdapter completedAdapter;
-    private List<Note> notes;
-    private List<Note> activeNotes;
-    private List<Note> completedNotes;
+    private RecyclerView notesRecyclerView;
+    private TextView liveTranscriptText;
+    private EditText searchInput;
+    private NoteAdapter noteAdapter;
+    private NoteRepository notes;
     private Optional<String> currentRecordingPath = Optional.empty();
+    private RecordingProfile currentRecordingProfile = RecordingProfile.DEFAULT;
+    private long recordingStartTime;
     private Optional<Note> currentlyPlaying = Optional.empty();
     private boolean isRecording = false;
-    private boolean isCompletedSectionExpanded = false;
-    private ExecutorService speechExecutor = Executors.newSingleThreadExecutor();
+    private boolean notesLoaded = false; // Never compact a partially loaded list over the snapshot
+    private TranscriptionJobQueue transcriptionQueue;
+    private TranscriptionJobQueue.Listener transcriptionListener;
+    private SearchIndex searchIndex;
+    private String searchQuery = "";
+    private int archivedCount = 0; // Completed notes still in the archive, not loaded
+    private boolean archiveHasMore = false;
+    private boolean archivePageLoading = false;
+    private long createdAtMs;
+    private boolean measureStartup = false; // Until the first frame with notes has been timed
+    private boolean showingFirstScreen = false;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAtMs = SystemClock.elapsedRealtime();
+        measureStartup = savedInstanceState == null; // Not after a configuration change
         setContentView(R.layout.activity_main);
         
         initializeGson();
-        loadCategories();
+        Metrics.getInstance().attach(getFilesDir());
+        noteStore = NoteStore.getInstance(this);
+        recordings = RecordingsDirectory.getInstance(this);
+        transcriptionQueue = TranscriptionJobQueue.getInstance(this);
+        streamingRecognizer = new ChunkedStreamingRecognizer(TranscriptionClient.getInstance());
+        transcriptionListener = createTranscriptionListener();
+        transcriptionQueue.setListener(transcriptionListener);
+        searchIndex = new SearchIndex(getFilesDir());
+        categories = new ArrayList<>(DEFAULT_CATEGORIES); // Until onResume() has read the saved ones
         initializeViews();
         setupCategorySpinner();
         setupRecyclerView();
         setupButtonListeners();
+        setupSearch();
+        showFirstScreen();
         loadNotes();
         
         checkPermissions();
@@ -128,9 +135,7 @@ public class MainActivity extends AppCompatActivity {
     
     private void initializeGson() {
         gson = new GsonBuilder()
-            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeSerializer())
-            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeDeserializer())
-            .registerTypeAdapter(Note.class, new NoteDeserializer())
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
             .create();
     }
     
@@ -139,20 +144,37 @@ public class MainActivity extends AppCompatActivity {
         addTextNoteButton = findViewById(R.id.addTextNoteButton);
         recordIndicator = findViewById(R.id.recordIndicator);
         categorySpinner = findViewById(R.id.categorySpinner);
-        activeNotesRecyclerView = findViewById(R.id.activeRecordingsRecyclerView);
-        completedNotesRecyclerView = findViewById(R.id.completedRecordingsRecyclerView);
-        completedSectionHeader = findViewById(R.id.completedSectionHeader);
+        notesRecyclerView = findViewById(R.id.notesRecyclerView);
+        liveTranscriptText = findViewById(R.id.liveTranscriptText);
+        searchInput = findViewById(R.id.searchInput);
     }
     
+    // Reading the preferences file and parsing the list happen in the background, so neither
+    // delays the first frame. The selected category is kept if it is still there.
     private void loadCategories() {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String categoriesJson = prefs.getString(CATEGORIES_KEY, null);
-        if (categoriesJson != null) {
-            Type listType = new TypeToken<List<String>>(){}.getType();
-            categories = new ArrayList<>(gson.fromJson(categoriesJson, listType));
-        } else {
-            categories = new ArrayList<>(DEFAULT_CATEGORIES);
-        }
+        backgroundExecutor.execute(() -> {
+            String categoriesJson = prefs.getString(CATEGORIES_KEY, null);
+            List<String> loaded;
+            if (categoriesJson != null) {
+                Type listType = new TypeToken<List<String>>(){}.getType();
+                loaded = new ArrayList<>(gson.fromJson(categoriesJson, listType));
+            } else {
+                loaded = new ArrayList<>(DEFAULT_CATEGORIES);
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed() || loaded.equals(categories)) {
+                    return;
+                }
+                Object selected = categorySpinner.getSelectedItem();
+                categories = loaded;
+                setupCategorySpinner();
+                int index = categories.indexOf(selected);
+                if (index >= 0) {
+                    categorySpinner.setSelection(index);
+                }
+            });
+        });
     }
     
     private void setupCategorySpinner() {
@@ -166,9 +188,7 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void setupRecyclerView() {
-        notes = new ArrayList<>();
-        activeNotes = new ArrayList<>();
-        completedNotes = new ArrayList<>();
+        notes = new NoteRepository();
         
         NoteAdapter.OnNoteActionListener listener = new NoteAdapter.OnNoteActionListener() {
             @Override
@@ -179,22 +199,27 @@ public class MainActivity extends AppCompatActivity {
             public void onDelete(Note note) { deleteNote(note); }
             @Override
             public void onEditTextNote(Note note) { showEditTextNoteDialog(note); }
+            @Override
+            public void onCompletedExpanded() { loadArchivePage(ARCHIVE_PAGE_SIZE); }
         };
         
-        activeAdapter = new NoteAdapter(activeNotes, listener, this);
-        activeNotesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        activeNotesRecyclerView.setAdapter(activeAdapter);
-        
-        completedAdapter = new NoteAdapter(completedNotes, listener, this);
-        completedNotesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        completedNotesRecyclerView.setAdapter(completedAdapter);
+        // The list has a fixed height, so only the visible rows are ever created and bound
+        noteAdapter = new NoteAdapter(notes.getActive(), notes.getDone(), listener, this);
+        notesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        notesRecyclerView.setHasFixedSize(true);
+        notesRecyclerView.setAdapter(noteAdapter);
         
-        setupCompletedSectionHeader();
-    }
-    
-    private void setupCompletedSectionHeader() {
-        completedSectionHeader.setOnClickListener(v -> toggleCompletedSection());
-        updateCompletedSectionHeader();
+        // Completed notes are paged in from the archive as the open section is scrolled to its end
+        LinearLayoutManager layoutManager = (LinearLayoutManager) notesRecyclerView.getLayoutManager();
+        notesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (noteAdapter.isCompletedExpanded()
+                        && layoutManager.findLastVisibleItemPosition() >= noteAdapter.getItemCount() - ARCHIVE_PREFETCH_ROWS) {
+                    loadArchivePage(ARCHIVE_PAGE_SIZE);
+                }
+            }
+        });
     }
     
     private void setupButtonListeners() {
@@ -202,6 +227,26 @@ public class MainActivity extends AppCompatActivity {
         addTextNoteButton.setOnClickListener(v -> showAddTextNoteDialog());
     }
     
+    // Filters the list on every keystroke; the index answers within a frame even for large stores
+    private void setupSearch() {
+        searchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchQuery = s.toString();
+                refreshNoteLists();
+                if (!searchQuery.trim().isEmpty()) {
+                    loadArchivePage(Integer.MAX_VALUE); // Completed notes have to be loaded to be found
+                }
+            }
+        });
+    }
+    
     private void showAddTextNoteDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.add_text_note);
@@ -216,7 +261,7 @@ public class MainActivity extends AppCompatActivity {
             String noteText = input.getText().toString().trim();
             if (!noteText.isEmpty()) {
                 String selectedCategory = categories.get(categorySpinner.getSelectedItemPosition());
-                String noteId = "text_" + System.currentTimeMillis();
+                String noteId = notes.newId("text");
                 
                 Note textNote = new Note(
                     noteId,
@@ -226,9 +271,11 @@ public class MainActivity extends AppCompatActivity {
                     noteText
                 );
                 
-                notes.add(0, textNote);
+                notes.add(textNote);
+                searchIndex.put(textNote);
                 refreshNoteLists();
-                saveNotes();
+                noteStore.recordInsert(textNote);
+                compactNotesIfNeeded();
                 
                 Toast.makeText(this, R.string.text_note_saved, Toast.LENGTH_SHORT).show();
             }
@@ -252,10 +299,12 @@ public class MainActivity extends AppCompatActivity {
         
         builder.setPositiveButton(R.string.save, (dialog, which) -> {
             String noteText = input.getText().toString().trim();
-            if (!noteText.isEmpty()) {
-                note.setContent(noteText);
+            Note updatedNote = noteText.isEmpty() ? null : notes.updateContent(note.getId(), noteText);
+            if (updatedNote != null) {
+                searchIndex.put(updatedNote);
                 refreshNoteLists();
-                saveNotes();
+                noteStore.recordContent(updatedNote);
+                compactNotesIfNeeded();
                 
                 Toast.makeText(this, R.string.text_note_updated, Toast.LENGTH_SHORT).show();
             }
@@ -296,27 +345,30 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
         
+        // Live mode records PCM so it can be recognized while recording
+        boolean live = isLiveTranscriptionEnabled() && !getCredentialsJson().isEmpty();
         String selectedCategory = categories.get(categorySpinner.getSelectedItemPosition());
         String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-        String fileName = String.format("%s_%s.3gp", selectedCategory, timestamp);
+        RecordingProfile profile = live ? RecordingProfile.PCM_WAV : getRecordingProfile();
+        String fileName = String.format("%s_%s%s", selectedCategory, timestamp, profile.getExtension());
         
-        File recordingsDir = new File(getExternalFilesDir(null), "recordings");
-        if (!recordingsDir.exists()) {
-            recordingsDir.mkdirs();
-        }
-        
-        File outputFile = new File(recordingsDir, fileName);
+        File outputFile = recordings.newFile(fileName);
         currentRecordingPath = Optional.of(outputFile.getAbsolutePath());
+        currentRecordingProfile = profile;
         
         try {
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
-            mediaRecorder.setOutputFile(currentRecordingPath.get());
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-            
-            mediaRecorder.prepare();
-            mediaRecorder.start();
+            if (live) {
+                startLiveRecording(outputFile);
+            } else {
+                mediaRecorder = new MediaRecorder();
+                mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+                profile.configure(mediaRecorder);
+                mediaRecorder.setOutputFile(currentRecordingPath.get());
+                
+                mediaRecorder.prepare();
+                mediaRecorder.start();
+            }
+            recordingStartTime = SystemClock.elapsedRealtime();
             
             isRecording = true;
             updateRecordButtonAppearance();
@@ -329,29 +381,34 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
+    private void startLiveRecording(File outputFile) throws IOException {
+        LiveTranscription transcription = new LiveTranscription();
+        transcription.session = streamingRecognizer.start(getCredentialsJson(), getLanguageCode(),
+                LiveRecorder.SAMPLE_RATE, transcription);
+        liveRecorder = new LiveRecorder(outputFile, transcription.session::sendAudio);
+        try {
+            liveRecorder.start();
+        } catch (IOException e) {
+            transcription.session.cancel();
+            liveRecorder = null;
+            throw e;
+        }
+        liveTranscription = transcription;
+        liveTranscriptText.setText(R.string.live_transcript_listening);
+        liveTranscriptText.setVisibility(View.VISIBLE);
+    }
+    
     private void stopRecording() {
-        if (mediaRecorder != null && currentRecordingPath.isPresent()) {
+        if (liveRecorder != null && currentRecordingPath.isPresent()) {
+            stopLiveRecording();
+        } else if (mediaRecorder != null && currentRecordingPath.isPresent()) {
             try {
                 mediaRecorder.stop();
+                long durationMs = SystemClock.elapsedRealtime() - recordingStartTime;
                 mediaRecorder.release();
                 mediaRecorder = null;
                 
-                String category = categories.get(categorySpinner.getSelectedItemPosition());
-                String noteId = "audio_" + System.currentTimeMillis();
-                Note audioNote = new Note(
-                    noteId,
-                    Note.Type.AUDIO,
-                    category,
-                    LocalDateTime.now(),
-                    "", // Empty transcription initially
-                    currentRecordingPath.get()
-                );
-                
-                notes.add(0, audioNote);
-                refreshNoteLists();
-                
-                Toast.makeText(this, R.string.recording_saved, Toast.LENGTH_SHORT).show();
-                saveNotes(); // Save to persistent storage
+                Note audioNote = saveAudioNote(currentRecordingPath.get(), durationMs, "");
                 
                 // Start transcription in background
                 transcribeAudio(audioNote);
@@ -366,6 +423,104 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
+    private void stopLiveRecording() {
+        LiveTranscription transcription = liveTranscription;
+        liveTranscription = null;
+        liveTranscriptText.setVisibility(View.GONE);
+        try {
+            long durationMs = liveRecorder.stop();
+            transcription.session.finish();
+            
+            // What has been recognized so far is stored right away; the last chunk follows shortly,
+            // and until it does, a held job stands in for it
+            Note audioNote = saveAudioNote(currentRecordingPath.get(), durationMs, transcription.transcript);
+            transcription.attach(audioNote);
+            
+        } catch (IOException e) {
+            transcription.session.cancel();
+            Toast.makeText(this, "Stop recording failed", Toast.LENGTH_SHORT).show();
+        } finally {
+            liveRecorder = null;
+            currentRecordingPath = Optional.empty();
+            isRecording = false;
+            updateRecordButtonAppearance();
+        }
+    }
+    
+    private Note saveAudioNote(String filePath, long durationMs, String transcription) {
+        String category = categories.get(categorySpinner.getSelectedItemPosition());
+        String noteId = notes.newId("audio");
+        Note audioNote = new Note(
+            noteId,
+            Note.Type.AUDIO,
+            category,
+            LocalDateTime.now(),
+            transcription, // Empty unless transcribed live
+            filePath
+        );
+        audioNote.setDurationMs(durationMs);
+        audioNote.setRecordingProfile(currentRecordingProfile);
+        recordings.added(new File(filePath)); // Before the store checks for it
+        
+        notes.add(audioNote);
+        searchIndex.put(audioNote);
+        refreshNoteLists();
+        
+        Toast.makeText(this, R.string.recording_saved, Toast.LENGTH_SHORT).show();
+        noteStore.recordInsert(audioNote); // Save to persistent storage
+        compactNotesIfNeeded();
+        return audioNote;
+    }
+    
+    // One live recording's transcript. Callbacks arrive on the recognizer's thread and are
+    // moved to the UI thread; a new recording gets a new instance, so late results can't mix.
+    private class LiveTranscription implements StreamingRecognizer.Listener {
+        StreamingRecognizer.Session session;
+        String transcript = "";
+        Note note; // Set once the recording is saved
+        boolean failed = false;
+        
+        @Override
+        public void onInterim(String interim) {
+            runOnUiThread(() -> {
+                transcript = interim;
+                if (note == null && !interim.isEmpty()) {
+                    liveTranscriptText.setText(interim);
+                }
+            });
+        }
+        
+        @Override
+        public void onFinal(String finalTranscript) {
+            runOnUiThread(() -> {
+                transcript = finalTranscript;
+                if (note != null) {
+                    updateNoteTranscription(note.getId(), Transcript.of(
+                            finalTranscript.isEmpty() ? TranscriptionClient.NO_SPEECH : finalTranscript));
+                    transcriptionQueue.cancel(note.getId()); // The held job isn't needed any more
+                }
+            });
+        }
+        
+        @Override
+        public void onError(Exception error) {
+            runOnUiThread(() -> {
+                failed = true;
+                if (note != null) {
+                    transcribeAudio(note); // Fall back to transcribing the saved file
+                }
+            });
+        }
+        
+        void attach(Note savedNote) {
+            note = savedNote;
+            transcriptionQueue.hold(savedNote);
+            if (failed) {
+                transcribeAudio(savedNote);
+            }
+        }
+    }
+    
     private boolean hasRecordingPermission() {
         return ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) 
                 == PackageManager.PERMISSION_GRANTED;
@@ -377,101 +532,11 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void transcribeAudio(Note audioNote) {
-        speechExecutor.execute(() -> {
-            try {
-                // Check if credentials are available
-                String credentialsJson = getCredentialsJson();
-                if (credentialsJson.isEmpty()) {
-                    return; // Silently skip transcription if no credentials
-                }
-                
-                // Read audio file
-                byte[] audioData = Files.readAllBytes(Paths.get(audioNote.getFilePath()));
-                String audioBase64 = Base64.encodeToString(audioData, Base64.NO_WRAP);
-                
-                // Get access token
-                try (InputStream credentialsStream = new java.io.ByteArrayInputStream(credentialsJson.getBytes())) {
-                    GoogleCredentials credentials = GoogleCredentials.fromStream(credentialsStream)
-                            .createScoped(GOOGLE_CLOUD_SCOPE);
-                    credentials.refresh();
-                    String accessToken = credentials.getAccessToken().getTokenValue();
-                    
-                    // Get selected language
-                    SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-                    String languageCode = SettingsActivity.getSelectedLanguageCode(prefs);
-                    
-                    // Create JSON request body
-                    String requestJson = "{"
-                            + "\"config\": {"
-                            + "\"encoding\": \"" + AUDIO_ENCODING + "\","
-                            + "\"sampleRateHertz\": " + AUDIO_SAMPLE_RATE + ","
-                            + "\"languageCode\": \"" + languageCode + "\""
-                            + "},"
-                            + "\"audio\": {"
-                            + "\"content\": \"" + audioBase64 + "\""
-                            + "}"
-                            + "}";
-                    
-                    // Make HTTP request to Speech-to-Text REST API
-                    OkHttpClient client = new OkHttpClient();
-                    RequestBody body = RequestBody.create(requestJson, MediaType.parse("application/json"));
-                    Request request = new Request.Builder()
-                            .url(SPEECH_API_URL)
-                            .addHeader("Authorization", "Bearer " + accessToken)
-                            .addHeader("Content-Type", "application/json")
-                            .post(body)
-                            .build();
-                    
-                    try (Response response = client.newCall(request).execute()) {
-                        if (response.isSuccessful() && response.body() != null) {
-                            String responseJson = response.body().string();
-                            String transcription = parseTranscriptionResponse(responseJson);
-                            
-                            // Update note with transcription on UI thread
-                            runOnUiThread(() -> {
-                                updateNoteTranscription(audioNote, transcription);
-                            });
-                        } else {
-                            runOnUiThread(() -> {
-                                Toast.makeText(this, "Transcription failed: HTTP " + response.code(), Toast.LENGTH_SHORT).show();
-                            });
-                        }
-                    }
-                }
-                
-            } catch (Exception e) {
-                runOnUiThread(() -> {
-                    Toast.makeText(this, "Transcription failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                });
-            }
-        });
-    }
-    
-    private String parseTranscriptionResponse(String responseJson) {
-        try {
-            JsonObject response = gson.fromJson(responseJson, JsonObject.class);
-            StringBuilder transcript = new StringBuilder();
-            
-            if (response.has("results")) {
-                for (JsonElement result : response.getAsJsonArray("results")) {
-                    JsonObject resultObj = result.getAsJsonObject();
-                    if (resultObj.has("alternatives")) {
-                        for (JsonElement alternative : resultObj.getAsJsonArray("alternatives")) {
-                            JsonObject altObj = alternative.getAsJsonObject();
-                            if (altObj.has("transcript")) {
-                                transcript.append(altObj.get("transcript").getAsString());
-                            }
-                        }
-                    }
-                }
-            }
-            
-            String transcription = transcript.toString().trim();
-            return transcription.isEmpty() ? "[No speech detected]" : transcription;
-            
-        } catch (Exception e) {
-            return "[Transcription parsing failed]";
+        // Silently skip transcription if no credentials
+        if (getCredentialsJson().isEmpty()) {
+            return;
         }
+        transcriptionQueue.enqueue(Collections.singletonList(audioNote));
     }
     
     private void transcribeExistingNotes() {
@@ -483,9 +548,8 @@ public class MainActivity extends AppCompatActivity {
         }
         
         // Find all non-completed audio notes without transcription
-        List<Note> notesToTranscribe = notes.stream()
+        List<Note> notesToTranscribe = notes.getActive().stream()
             .filter(note -> note.getType() == Note.Type.AUDIO)
-            .filter(note -> !note.isDone())
             .filter(note -> note.getText() == null || note.getText().trim().isEmpty())
             .collect(Collectors.toList());
         
@@ -503,128 +567,72 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void batchTranscribeNotes(List<Note> notesToTranscribe) {
-        speechExecutor.execute(() -> {
-            int processedCount = 0;
-            
-            for (Note note : notesToTranscribe) {
-                try {
-                    // Add delay between requests to avoid rate limiting
-                    if (processedCount > 0) {
-                        Thread.sleep(BATCH_TRANSCRIPTION_DELAY_MS);
-                    }
-                    
-                    transcribeNoteSync(note);
-                    processedCount++;
-                    
-                    // Update UI on main thread
-                    final int currentCount = processedCount;
-                    runOnUiThread(() -> {
-                        refreshNoteLists();
-                        saveNotes();
-                    });
-                    
-                } catch (Exception e) {
-                    // Continue with next note if one fails
-                    runOnUiThread(() -> {
-                        Toast.makeText(this, "Failed to transcribe note: " + note.getCategory(), 
-                                     Toast.LENGTH_SHORT).show();
-                    });
-                }
-            }
-            
-            // Show completion message
-            final int finalCount = processedCount;
-            runOnUiThread(() -> {
-                String completeMessage = getString(R.string.transcription_complete, finalCount);
-                Toast.makeText(this, completeMessage, Toast.LENGTH_LONG).show();
-            });
-        });
+        // Notes that already have a job waiting or running are skipped by the queue
+        transcriptionQueue.enqueue(notesToTranscribe);
     }
     
-    private void transcribeNoteSync(Note audioNote) throws Exception {
-        // Check if credentials are available
-        String credentialsJson = getCredentialsJson();
-        if (credentialsJson.isEmpty()) {
-            throw new Exception("No credentials configured");
-        }
-        
-        // Read audio file
-        byte[] audioData = Files.readAllBytes(Paths.get(audioNote.getFilePath()));
-        String audioBase64 = Base64.encodeToString(audioData, Base64.NO_WRAP);
-        
-        // Get access token
-        try (InputStream credentialsStream = new java.io.ByteArrayInputStream(credentialsJson.getBytes())) {
-            GoogleCredentials credentials = GoogleCredentials.fromStream(credentialsStream)
-                    .createScoped(GOOGLE_CLOUD_SCOPE);
-            credentials.refresh();
-            String accessToken = credentials.getAccessToken().getTokenValue();
-            
-            // Get selected language
-            SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-            String languageCode = SettingsActivity.getSelectedLanguageCode(prefs);
-            
-            // Create JSON request body
-            String requestJson = "{"
-                    + "\"config\": {"
-                    + "\"encoding\": \"" + AUDIO_ENCODING + "\","
-                    + "\"sampleRateHertz\": " + AUDIO_SAMPLE_RATE + ","
-                    + "\"languageCode\": \"" + languageCode + "\""
-                    + "},"
-                    + "\"audio\": {"
-                    + "\"content\": \"" + audioBase64 + "\""
-                    + "}"
-                    + "}";
+    private String getLanguageCode() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        return SettingsActivity.getSelectedLanguageCode(prefs);
+    }
+    
+    private RecordingProfile getRecordingProfile() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        return SettingsActivity.getRecordingProfile(prefs);
+    }
+    
+    private boolean isLiveTranscriptionEnabled() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        return SettingsActivity.isLiveTranscriptionEnabled(prefs);
+    }
+    
+    private int getTranscriptionConcurrency() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        return SettingsActivity.getTranscriptionConcurrency(prefs);
+    }
+    
+    // Receives results from the process-wide queue while this activity is alive
+    private TranscriptionJobQueue.Listener createTranscriptionListener() {
+        return new TranscriptionJobQueue.Listener() {
+            @Override
+            public boolean onTranscriptionResult(String noteId, Transcript transcript) {
+                if (!notesLoaded) {
+                    return false; // Delivered again once the notes are loaded
+                }
+                updateNoteTranscription(noteId, transcript);
+                return true;
+            }
             
-            // Make HTTP request to Speech-to-Text REST API
-            OkHttpClient client = new OkHttpClient();
-            RequestBody body = RequestBody.create(requestJson, MediaType.parse("application/json"));
-            Request request = new Request.Builder()
-                    .url(SPEECH_API_URL)
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .addHeader("Content-Type", "application/json")
-                    .post(body)
-                    .build();
+            @Override
+            public void onTranscriptionFailed(TranscriptionJob job, Exception error) {
+                // The other notes carry on
+                Toast.makeText(MainActivity.this, "Failed to transcribe note: " + job.getCategory(),
+                        Toast.LENGTH_SHORT).show();
+            }
             
-            try (Response response = client.newCall(request).execute()) {
-                if (response.isSuccessful() && response.body() != null) {
-                    String responseJson = response.body().string();
-                    String transcription = parseTranscriptionResponse(responseJson);
-                    
-                    // Update note with transcription synchronously
-                    runOnUiThread(() -> {
-                        updateNoteTranscription(audioNote, transcription);
-                    });
-                } else {
-                    throw new Exception("HTTP " + response.code());
+            @Override
+            public void onBatchFinished(TranscriptionScheduler.BatchReport report) {
+                Log.i(TAG, "Batch transcription: " + report);
+                if (report.getTotal() > 1) {
+                    String completeMessage = getString(R.string.transcription_complete,
+                            report.getSucceeded(), report.getFailed());
+                    Toast.makeText(MainActivity.this, completeMessage, Toast.LENGTH_LONG).show();
                 }
             }
-        }
+        };
     }
     
-    private void updateNoteTranscription(Note audioNote, String transcription) {
-        // Find the note in our list and update it
-        for (int i = 0; i < notes.size(); i++) {
-            Note note = notes.get(i);
-            if (note.getId().equals(audioNote.getId())) {
-                // Create new note with transcription
-                Note updatedNote = new Note(
-                    note.getId(),
-                    note.getType(),
-                    note.getCategory(),
-                    note.getTimestamp(),
-                    transcription,
-                    note.getFilePath()
-                );
-                updatedNote.setDone(note.isDone());
-                
-                notes.set(i, updatedNote);
-                refreshNoteLists();
-                saveNotes();
-                
-                // Transcription completed silently
-                break;
-            }
+    private void updateNoteTranscription(String noteId, Transcript transcript) {
+        Note updatedNote = notes.updateTranscript(noteId, transcript);
+        if (updatedNote == null) {
+            // Not loaded, e.g. archived; the store applies it when the note is read
+            noteStore.recordTranscript(noteId, transcript);
+            return;
         }
+        searchIndex.put(updatedNote);
+        refreshNoteLists();
+        noteStore.recordContent(updatedNote);
+        compactNotesIfNeeded();
     }
     
     private void playNote(Note note) {
@@ -633,18 +641,16 @@ public class MainActivity extends AppCompatActivity {
         }
         
         // If this note is currently playing, pause it
-        if (currentlyPlaying.isPresent() && currentlyPlaying.get().equals(note)) {
+        if (isCurrentlyPlaying(note)) {
             if (mediaPlayer != null && mediaPlayer.isPlaying()) {
                 mediaPlayer.pause();
-                activeAdapter.notifyDataSetChanged();
-                completedAdapter.notifyDataSetChanged();
+                noteAdapter.notifyPlaybackChanged(note);
                 Toast.makeText(this, "Paused: " + note.getCategory(), Toast.LENGTH_SHORT).show();
                 return;
             } else if (mediaPlayer != null) {
                 // Resume playback
                 mediaPlayer.start();
-                activeAdapter.notifyDataSetChanged();
-                completedAdapter.notifyDataSetChanged();
+                noteAdapter.notifyPlaybackChanged(note);
                 Toast.makeText(this, "Resumed: " + note.getCategory(), Toast.LENGTH_SHORT).show();
                 return;
             }
@@ -656,16 +662,10 @@ public class MainActivity extends AppCompatActivity {
         try {
             mediaPlayer = new MediaPlayer();
             mediaPlayer.setDataSource(note.getFilePath());
-            mediaPlayer.setOnCompletionListener(mp -> {
-                stopCurrentPlayback();
-                activeAdapter.notifyDataSetChanged();
-                completedAdapter.notifyDataSetChanged();
-            });
+            mediaPlayer.setOnCompletionListener(mp -> stopCurrentPlayback());
             mediaPlayer.setOnErrorListener((mp, what, extra) -> {
                 Toast.makeText(this, "Playback error", Toast.LENGTH_SHORT).show();
                 stopCurrentPlayback();
-                activeAdapter.notifyDataSetChanged();
-                completedAdapter.notifyDataSetChanged();
                 return true;
             });
             
@@ -673,8 +673,7 @@ public class MainActivity extends AppCompatActivity {
             mediaPlayer.start();
             
             currentlyPlaying = Optional.of(note);
-            activeAdapter.notifyDataSetChanged();
-            completedAdapter.notifyDataSetChanged();
+            noteAdapter.notifyPlaybackChanged(note);
             
             Toast.makeText(this, "Playing: " + note.getCategory(), Toast.LENGTH_SHORT).show();
             
@@ -693,69 +692,97 @@ public class MainActivity extends AppCompatActivity {
             mediaPlayer.release();
             mediaPlayer = null;
         }
+        Optional<Note> stopped = currentlyPlaying;
         currentlyPlaying = Optional.empty();
+        // Only the row that was playing needs its play button reset
+        if (stopped.isPresent() && noteAdapter != null) {
+            noteAdapter.notifyPlaybackChanged(stopped.get());
+        }
     }
     
+    // Compared by id: a transcription update replaces the Note object while it may be playing
     public boolean isCurrentlyPlaying(Note note) {
-        return currentlyPlaying.map(playing -> playing.equals(note)).orElse(false);
+        return currentlyPlaying.map(playing -> playing.getId().equals(note.getId())).orElse(false);
     }
     
     public boolean isCurrentlyPaused(Note note) {
-        return currentlyPlaying.map(playing -> playing.equals(note) && mediaPlayer != null && !mediaPlayer.isPlaying()).orElse(false);
+        return isCurrentlyPlaying(note) && mediaPlayer != null && !mediaPlayer.isPlaying();
     }
     
     public NoteAdapter getAdapter() {
-        // Return the adapter that contains the currently playing note
-        if (currentlyPlaying.isPresent()) {
-            Note playing = currentlyPlaying.get();
-            if (activeNotes.contains(playing)) {
-                return activeAdapter;
-            } else if (completedNotes.contains(playing)) {
-                return completedAdapter;
-            }
-        }
-        return activeAdapter; // Default to active adapter
+        // Active and completed notes share one adapter
+        return noteAdapter;
     }
     
+    // The row may hold an older copy of the note, so the current one is looked up by id
     private void toggleDoneStatus(Note note) {
-        note.setDone(!note.isDone());
+        Note current = notes.get(note.getId());
+        if (current == null) {
+            return;
+        }
+        notes.setDone(current.getId(), !current.isDone());
         refreshNoteLists();
-        saveNotes(); // Save updated status
+        noteStore.recordDone(current); // Save updated status
+        compactNotesIfNeeded();
     }
     
     private void deleteNote(Note note) {
-        notes.remove(note);
+        if (notes.remove(note.getId()) == null) {
+            return;
+        }
+        searchIndex.remove(note.getId());
         refreshNoteLists();
         
         // Delete the actual file if it's an audio note
         if (note.getType() == Note.Type.AUDIO && note.getFilePath() != null) {
-            new File(note.getFilePath()).delete();
+            recordings.delete(note.getFilePath());
         }
-        saveNotes(); // Save updated list
+        noteStore.recordDelete(note); // Save updated list
+        transcriptionQueue.cancel(note.getId());
+        compactNotesIfNeeded();
     }
     
     @Override
     protected void onPause() {
         super.onPause();
         stopCurrentPlayback();
-        if (activeAdapter != null) {
-            activeAdapter.notifyDataSetChanged();
-        }
-        if (completedAdapter != null) {
-            completedAdapter.notifyDataSetChanged();
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Fold the journal into the snapshot while the app is in the background
+        if (notesLoaded && noteStore.hasPendingChanges()) {
+            noteStore.compact(notes.getAll());
         }
+        searchIndex.save();
+        Metrics.getInstance().save();
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        backgroundExecutor.shutdown();
         stopCurrentPlayback();
         if (mediaRecorder != null) {
             mediaRecorder.release();
             mediaRecorder = null;
         }
-        if (speechExecutor != null) {
-            speechExecutor.shutdown();
+        if (liveRecorder != null) {
+            try {
+                liveRecorder.stop();
+            } catch (IOException e) {
+                // The recording is abandoned anyway
+            }
+            liveRecorder = null;
+        }
+        if (liveTranscription != null) {
+            liveTranscription.session.cancel();
+            liveTranscription = null;
+        }
+        // The store and the queue are process-wide and keep running; results now go straight to the store
+        if (transcriptionQueue != null) {
+            transcriptionQueue.removeListener(transcriptionListener);
         }
     }
     
@@ -774,16 +801,41 @@ public class MainActivity extends AppCompatActivity {
         } else if (item.getItemId() == R.id.action_transcribe_existing) {
             transcribeExistingNotes();
             return true;
+        } else if (item.getItemId() == R.id.action_export_notes) {
+            exportNotes();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
     
+    // Writes all notes to the app's external files directory, where a file manager or USB can reach them
+    private void exportNotes() {
+        if (!notesLoaded) {
+            return;
+        }
+        File target = new File(getExternalFilesDir(null), "notes_export.json");
+        noteStore.exportJson(notes.getAll(), target, this::runOnUiThread, new NoteStore.ExportListener() {
+            @Override
+            public void onExported(File file, int noteCount) {
+                Toast.makeText(MainActivity.this, getString(R.string.notes_exported, noteCount, file.getPath()),
+                        Toast.LENGTH_LONG).show();
+            }
+            
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(MainActivity.this, "Export failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+    
     @Override
     protected void onResume() {
         super.onResume();
         // Reload categories in case they were changed in settings
         loadCategories();
-        setupCategorySpinner();
+        noteAdapter.setTranscriptionAvailable(!getCredentialsJson().isEmpty());
+        transcriptionQueue.setConcurrency(getTranscriptionConcurrency());
+        transcriptionQueue.dispatchPending(); // Credentials may have been added in settings
     }
     
     @Override
@@ -797,164 +849,202 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private void saveNotes() {
-        try {
-            File file = new File(getFilesDir(), NOTES_FILE);
-            // Filter out audio notes where the audio file no longer exists
-            List<Note> validNotes = notes.stream()
-                .filter(note -> {
-                    if (note.getType() == Note.Type.AUDIO) {
-                        return new File(note.getFilePath()).exists();
-                    }
-                    return true; // Text notes are always valid
-                })
-                .collect(Collectors.toList());
-            
-            try (FileWriter writer = new FileWriter(file)) {
-                gson.toJson(validNotes, writer);
-            }
-        } catch (IOException e) {
-            Toast.makeText(this, "Failed to save notes", Toast.LENGTH_SHORT).show();
+    private void compactNotesIfNeeded() {
+        if (notesLoaded && noteStore.shouldCompact()) {
+            noteStore.compact(notes.getAll());
         }
     }
     
     private void loadNotes() {
-        try {
-            File file = new File(getFilesDir(), NOTES_FILE);
-            if (!file.exists()) {
-                return; // No saved notes yet
+        noteStore.load(this::runOnUiThread, new NoteStore.LoadListener() {
+            @Override
+            public void onBatch(List<Note> batch) {
+                notes.addLoaded(batch);
+                refreshNoteLists();
             }
             
-            try (FileReader reader = new FileReader(file)) {
-                Type listType = new TypeToken<List<Note>>(){}.getType();
-                List<Note> loadedNotes = gson.fromJson(reader, listType);
-                
-                if (loadedNotes != null) {
-                    // Filter out audio notes where the audio file no longer exists
-                    List<Note> validNotes = loadedNotes.stream()
-                        .filter(note -> {
-                            if (note.getType() == Note.Type.AUDIO) {
-                                return new File(note.getFilePath()).exists();
-                            }
-                            return true; // Text notes are always valid
-                        })
-                        .collect(Collectors.toList());
-                    
-                    notes.clear();
-                    notes.addAll(validNotes);
-                    refreshNoteLists();
+            @Override
+            public void onLoaded(int archived) {
+                notes.finishLoading();
+                notesLoaded = true;
+                archivedCount = archived;
+                archiveHasMore = archived > 0;
+                noteAdapter.setArchivedCount(archived);
+                refreshNoteLists();
+                if (noteAdapter.isCompletedExpanded() || !searchQuery.trim().isEmpty()) {
+                    loadArchivePage(searchQuery.trim().isEmpty() ? ARCHIVE_PAGE_SIZE : Integer.MAX_VALUE);
                 }
+                retainTranscriptionJobs();
+                buildSearchIndex();
+                compactNotesIfNeeded();
+                backfillDurationsIfNeeded();
+                reconcileRecordings();
             }
-        } catch (Exception e) {
-            Toast.makeText(this, "Failed to load notes", Toast.LENGTH_SHORT).show();
-        }
+            
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(MainActivity.this, "Failed to load notes", Toast.LENGTH_SHORT).show();
+            }
+        });
     }
     
-    private void refreshNoteLists() {
-        activeNotes.clear();
-        completedNotes.clear();
-        
-        // Sort notes by timestamp (newest first) for chronological order
-        notes.sort((n1, n2) -> n2.getTimestamp().compareTo(n1.getTimestamp()));
-        
-        for (Note note : notes) {
-            if (note.isDone()) {
-                completedNotes.add(note);
-            } else {
-                activeNotes.add(note);
+    // Drops queued jobs whose note no longer exists. Archived notes aren't loaded but still exist,
+    // so their ids are read from the store first.
+    private void retainTranscriptionJobs() {
+        noteStore.readArchivedIds(this::runOnUiThread, archivedIds -> {
+            Set<String> noteIds = new HashSet<>(archivedIds);
+            for (Note note : notes.getAll()) {
+                noteIds.add(note.getId());
             }
-        }
-        
-        activeAdapter.notifyDataSetChanged();
-        completedAdapter.notifyDataSetChanged();
-        updateCompletedSectionHeader();
+            transcriptionQueue.retainNotes(noteIds);
+        });
     }
     
-    private void toggleCompletedSection() {
-        isCompletedSectionExpanded = !isCompletedSectionExpanded;
-        updateCompletedSectionVisibility();
-        updateCompletedSectionHeader();
+    // Drops notes whose audio file was deleted behind the app's back; unreferenced files go to the trash
+    private void reconcileRecordings() {
+        noteStore.reconcileRecordings(notes.getAll(), this::runOnUiThread, (missingNoteIds, trashedFiles) -> {
+            if (trashedFiles > 0) {
+                Log.i(TAG, "Moved " + trashedFiles + " recordings without a note to the trash");
+            }
+            if (missingNoteIds.isEmpty() || isDestroyed()) {
+                return;
+            }
+            for (String noteId : missingNoteIds) {
+                notes.remove(noteId); // The store drops them with its next compaction
+                searchIndex.remove(noteId);
+                transcriptionQueue.cancel(noteId);
+            }
+            refreshNoteLists();
+        });
     }
     
-    private void updateCompletedSectionVisibility() {
-        int visibility = isCompletedSectionExpanded ? View.VISIBLE : View.GONE;
-        completedNotesRecyclerView.setVisibility(visibility);
+    // One page at a time; the store keeps the position in the archive
+    private void loadArchivePage(int maxNotes) {
+        if (!notesLoaded || !archiveHasMore || archivePageLoading) {
+            return;
+        }
+        archivePageLoading = true;
+        noteStore.loadArchivePage(maxNotes, this::runOnUiThread, new NoteStore.ArchiveListener() {
+            @Override
+            public void onArchivePage(List<Note> page, boolean hasMore) {
+                if (isDestroyed()) {
+                    return;
+                }
+                archivePageLoading = false;
+                archiveHasMore = hasMore;
+                archivedCount = hasMore ? Math.max(0, archivedCount - page.size()) : 0;
+                noteAdapter.setArchivedCount(archivedCount);
+                for (Note note : page) {
+                    notes.add(note);
+                    searchIndex.put(note);
+                }
+                refreshNoteLists();
+                if (!searchQuery.trim().isEmpty()) {
+                    loadArchivePage(Integer.MAX_VALUE); // Typed while a page was loading
+                }
+            }
+            
+            @Override
+            public void onError(Exception e) {
+                if (isDestroyed()) {
+                    return;
+                }
+                // Not retried on every scroll; the next start tries again
+                archivePageLoading = false;
+                archiveHasMore = false;
+                archivedCount = 0;
+                noteAdapter.setArchivedCount(0);
+                refreshNoteLists();
+                Toast.makeText(MainActivity.this, "Failed to load completed notes", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+    
+    // Notes added or edited while the index is being built are applied once it is ready
+    private void buildSearchIndex() {
+        searchIndex.build(notes.getAll(), this::runOnUiThread, () -> {
+            searchIndex.save();
+            if (!searchQuery.trim().isEmpty()) {
+                refreshNoteLists(); // Typed before the index was ready
+            }
+        });
     }
     
-    private void updateCompletedSectionHeader() {
-        int completedCount = completedNotes.size();
+    // Notes recorded before durations were stored get theirs filled in once, in the background
+    private void backfillDurationsIfNeeded() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (prefs.getBoolean(DurationBackfill.PREF_KEY, false)) {
+            return;
+        }
         
-        if (completedCount == 0) {
-            completedSectionHeader.setVisibility(View.GONE);
-            completedNotesRecyclerView.setVisibility(View.GONE);
-        } else {
-            completedSectionHeader.setVisibility(View.VISIBLE);
-            
-            String headerText = getString(R.string.show_completed, completedCount);
-            if (isCompletedSectionExpanded) {
-                headerText = getString(R.string.hide_completed);
-                completedSectionHeader.setCompoundDrawablesWithIntrinsicBounds(0, 0, android.R.drawable.arrow_up_float, 0);
-            } else {
-                completedSectionHeader.setCompoundDrawablesWithIntrinsicBounds(0, 0, android.R.drawable.arrow_down_float, 0);
+        DurationBackfill.start(notes.getAll(), this::runOnUiThread, new DurationBackfill.Listener() {
+            @Override
+            public void onDurations(Map<String, Long> durationsById) {
+                if (isDestroyed()) {
+                    return; // The store is closed; the job runs again on the next start
+                }
+                for (Map.Entry<String, Long> entry : durationsById.entrySet()) {
+                    Note note = notes.setDuration(entry.getKey(), entry.getValue());
+                    if (note != null) {
+                        noteStore.recordDuration(note);
+                    }
+                }
+                refreshNoteLists();
+                compactNotesIfNeeded();
             }
             
-            completedSectionHeader.setText(headerText);
-            updateCompletedSectionVisibility();
-        }
+            @Override
+            public void onFinished() {
+                if (isDestroyed()) {
+                    return;
+                }
+                prefs.edit().putBoolean(DurationBackfill.PREF_KEY, true).apply();
+            }
+        });
     }
     
-    // Custom serializer for LocalDateTime
-    private static class LocalDateTimeSerializer implements JsonSerializer<LocalDateTime> {
-        @Override
-        public JsonElement serialize(LocalDateTime dateTime, Type type, JsonSerializationContext context) {
-            return new JsonPrimitive(dateTime.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        }
+    // The repository keeps the active and done notes sorted; only the search filter is applied here
+    private void refreshNoteLists() {
+        noteAdapter.setFilter(searchIndex.search(searchQuery)); // null when not searching
+        noteAdapter.refresh(measureStartup ? this::onRowsCommitted : null);
     }
     
-    // Custom deserializer for LocalDateTime
-    private static class LocalDateTimeDeserializer implements JsonDeserializer<LocalDateTime> {
-        @Override
-        public LocalDateTime deserialize(JsonElement json, Type type, JsonDeserializationContext context)
-                throws JsonParseException {
-            return LocalDateTime.parse(json.getAsString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    // Shows the newest active notes as saved on the last run while load() reads everything.
+    // Read on the main thread on purpose: the file is tiny, and waiting for the writer thread
+    // would cost the frame it is meant to save.
+    private void showFirstScreen() {
+        List<Note> firstScreen = noteStore.readFirstScreen();
+        if (!firstScreen.isEmpty()) {
+            notes.addProvisional(firstScreen);
+            showingFirstScreen = true;
+            refreshNoteLists();
         }
     }
     
-    // Custom deserializer for Note to handle backward compatibility
-    private static class NoteDeserializer implements JsonDeserializer<Note> {
-        @Override
-        public Note deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-                throws JsonParseException {
-            JsonObject jsonObject = json.getAsJsonObject();
-            
-            String id = jsonObject.get("id").getAsString();
-            Note.Type noteType = Note.Type.valueOf(jsonObject.get("type").getAsString());
-            String category = jsonObject.get("category").getAsString();
-            LocalDateTime timestamp = context.deserialize(jsonObject.get("timestamp"), LocalDateTime.class);
-            String content = jsonObject.get("content").getAsString();
-            boolean done = jsonObject.has("done") ? jsonObject.get("done").getAsBoolean() : false;
-            
-            Note note;
-            if (noteType == Note.Type.TEXT) {
-                note = new Note(id, noteType, category, timestamp, content);
-            } else {
-                // For audio notes, check if filePath exists (new format) or use content as filePath (old format)
-                String filePath;
-                String transcription;
-                if (jsonObject.has("filePath")) {
-                    // New format: content is transcription, filePath is separate
-                    filePath = jsonObject.get("filePath").getAsString();
-                    transcription = content;
-                } else {
-                    // Old format: content was the file path
-                    filePath = content;
-                    transcription = "";
-                }
-                note = new Note(id, noteType, category, timestamp, transcription, filePath);
+    // Times startup up to the first frame drawn with notes in it, or with the final (empty) list
+    private void onRowsCommitted() {
+        if (!measureStartup || (noteAdapter.getItemCount() == 0 && !notesLoaded)) {
+            return;
+        }
+        measureStartup = false;
+        boolean fromSnapshot = showingFirstScreen && !notesLoaded;
+        notesRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                notesRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                long elapsedMs = SystemClock.elapsedRealtime() - createdAtMs;
+                new StartupMetrics(getSharedPreferences(PREFS_NAME, MODE_PRIVATE))
+                        .record(getAppVersion(), elapsedMs, fromSnapshot);
+                return true;
             }
-            
-            note.setDone(done);
-            return note;
+        });
+    }
+    
+    private String getAppVersion() {
+        try {
+            return getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,325 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process-wide latency histograms and counters for the transcription and persistence paths.
+// Recording a sample is a few atomic adds on a fixed set of buckets, so it can stay on in release
+// builds. Totals are saved to metrics.json and keep adding up across sessions until reset.
+public final class Metrics {
+    
+    private static final String METRICS_FILE = "metrics.json";
+    
+    // Upper bounds of the histogram buckets; the last bucket takes everything slower
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+    
+    public enum Stage {
+        TRANSCRIBE("transcribe"), // One attempt of a transcription job, end to end
+        SEGMENT_WRITE("segment_write"), // Cutting a long recording into a segment file
+        SILENCE_STRIP("silence_strip"), // Copying a recording without its long pauses
+        ACCESS_TOKEN("access_token"), // Cached, or refreshed from the credentials
+        HTTP("http"), // Request sent, including the streamed upload, until the response headers
+        UPLOAD("upload"), // Reading, base64-encoding and writing the audio into the request
+        PARSE("parse"), // Reading and parsing the response body
+        NOTES_LOAD("notes_load"), // Snapshot plus journal, on the store's writer thread
+        JOURNAL_FLUSH("journal_flush"),
+        SNAPSHOT_WRITE("snapshot_write"); // Compaction: archive, snapshot, journal and first screen
+        
+        final String key;
+        
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+    
+    public enum Counter {
+        TRANSCRIPTIONS_SUCCEEDED("transcriptions_succeeded"),
+        TRANSCRIPTIONS_FAILED("transcriptions_failed"),
+        RETRIES("retries"),
+        THROTTLED("throttled"),
+        TOKEN_REFRESHES("token_refreshes"), // Access tokens fetched: first use, expiry, or rejected by the server
+        BYTES_UPLOADED("bytes_uploaded"), // Request bodies written in full, retries included
+        SILENCE_SAVED_MS("silence_saved_ms"), // Audio left out of uploads by the SilenceStripper
+        SILENCE_SAVED_BYTES("silence_saved_bytes"),
+        PACKED_NOTES("packed_notes"), // Transcribed as part of a NotePacker request
+        PACK_FALLBACKS("pack_fallbacks"), // Packs that had to be sent again note by note
+        CACHE_HITS("cache_hits"), // Notes the TranscriptionCache answered without an upload
+        CACHE_MISSES("cache_misses"),
+        JOURNAL_RECORDS("journal_records"),
+        JOURNAL_WRITE_FAILURES("journal_write_failures"), // Flushes whose records had to be kept for later
+        SNAPSHOT_WRITE_FAILURES("snapshot_write_failures"); // Compactions that left the journal as it was
+        
+        final String key;
+        
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+    
+    private static final Metrics instance = new Metrics();
+    
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final AtomicLong[] counters = new AtomicLong[Counter.values().length];
+    private final Map<Integer, AtomicLong> httpStatus = new ConcurrentHashMap<>();
+    private final AtomicLong sinceMillis = new AtomicLong(System.currentTimeMillis());
+    private final Gson gson = new Gson();
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean attached = new AtomicBoolean(false);
+    private volatile File metricsFile;
+    
+    private Metrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+    }
+    
+    public static Metrics getInstance() {
+        return instance;
+    }
+    
+    // Monotonic start time for record()
+    public static long start() {
+        return System.nanoTime();
+    }
+    
+    public void record(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].add(System.nanoTime() - startNanos);
+    }
+    
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].incrementAndGet();
+    }
+    
+    public void add(Counter counter, long amount) {
+        counters[counter.ordinal()].addAndGet(amount);
+    }
+    
+    public void countHttpStatus(int code) {
+        statusCounter(code).incrementAndGet();
+    }
+    
+    private AtomicLong statusCounter(int code) {
+        AtomicLong count = httpStatus.get(code);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = httpStatus.putIfAbsent(code, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+    
+    // Adds the totals saved by earlier sessions, in the background. Samples recorded before that are kept.
+    public void attach(File directory) {
+        if (!attached.compareAndSet(false, true)) {
+            return;
+        }
+        File file = new File(directory, METRICS_FILE);
+        metricsFile = file;
+        io.execute(() -> {
+            Snapshot saved = read(file);
+            if (saved != null) {
+                merge(saved);
+            }
+        });
+    }
+    
+    public void save() {
+        File file = metricsFile;
+        if (file == null) {
+            return;
+        }
+        io.execute(() -> {
+            try {
+                // Taken here, after the saved totals have been merged in by attach()
+                Snapshot snapshot = snapshot();
+                AtomicFileWriter.write(file, out -> gson.toJson(snapshot, out));
+            } catch (IOException e) {
+                // Only diagnostics; the next save tries again
+            }
+        });
+    }
+    
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.clear();
+        }
+        for (AtomicLong counter : counters) {
+            counter.set(0);
+        }
+        httpStatus.clear();
+        sinceMillis.set(System.currentTimeMillis());
+        save();
+    }
+    
+    // A consistent-enough copy for display and export; samples recorded meanwhile may be half in it
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.sinceMillis = sinceMillis.get();
+        snapshot.bucketBoundsMs = BUCKET_BOUNDS_MS.clone();
+        for (Stage stage : Stage.values()) {
+            snapshot.stages.put(stage.key, histograms[stage.ordinal()].snapshot());
+        }
+        for (Counter counter : Counter.values()) {
+            snapshot.counters.put(counter.key, counters[counter.ordinal()].get());
+        }
+        for (Map.Entry<Integer, AtomicLong> status : httpStatus.entrySet()) {
+            snapshot.httpStatus.put(String.valueOf(status.getKey()), status.getValue().get());
+        }
+        return snapshot;
+    }
+    
+    private void merge(Snapshot saved) {
+        if (saved.stages != null && saved.bucketBoundsMs != null
+                && Arrays.equals(saved.bucketBoundsMs, BUCKET_BOUNDS_MS)) {
+            for (Stage stage : Stage.values()) {
+                HistogramSnapshot histogram = saved.stages.get(stage.key);
+                if (histogram != null) {
+                    histograms[stage.ordinal()].merge(histogram);
+                }
+            }
+        }
+        if (saved.counters != null) {
+            for (Counter counter : Counter.values()) {
+                Long value = saved.counters.get(counter.key);
+                if (value != null) {
+                    counters[counter.ordinal()].addAndGet(value);
+                }
+            }
+        }
+        if (saved.httpStatus != null) {
+            for (Map.Entry<String, Long> status : saved.httpStatus.entrySet()) {
+                try {
+                    statusCounter(Integer.parseInt(status.getKey())).addAndGet(status.getValue());
+                } catch (NumberFormatException e) {
+                    // Not written by us
+                }
+            }
+        }
+        if (saved.sinceMillis > 0) {
+            sinceMillis.accumulateAndGet(saved.sinceMillis, Math::min);
+        }
+    }
+    
+    private Snapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return gson.fromJson(reader, Snapshot.class);
+        } catch (IOException | JsonParseException e) {
+            return null; // Start counting afresh
+        }
+    }
+    
+    private static int bucketOf(long nanos) {
+        long millis = nanos / 1_000_000;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (millis < BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+    
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        
+        void add(long nanos) {
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+        
+        void merge(HistogramSnapshot saved) {
+            if (saved.buckets == null || saved.buckets.length != buckets.length()) {
+                return;
+            }
+            for (int i = 0; i < saved.buckets.length; i++) {
+                buckets.addAndGet(i, saved.buckets[i]);
+            }
+            count.addAndGet(saved.count);
+            totalNanos.addAndGet(saved.totalMs * 1_000_000);
+            maxNanos.accumulateAndGet(saved.maxMs * 1_000_000, Math::max);
+        }
+        
+        void clear() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+        
+        HistogramSnapshot snapshot() {
+            HistogramSnapshot snapshot = new HistogramSnapshot();
+            snapshot.count = count.get();
+            snapshot.totalMs = totalNanos.get() / 1_000_000;
+            snapshot.maxMs = maxNanos.get() / 1_000_000;
+            snapshot.buckets = new long[buckets.length()];
+            for (int i = 0; i < snapshot.buckets.length; i++) {
+                snapshot.buckets[i] = buckets.get(i);
+            }
+            return snapshot;
+        }
+    }
+    
+    // The saved and exported form
+    public static class Snapshot {
+        public long sinceMillis;
+        public long[] bucketBoundsMs;
+        public Map<String, HistogramSnapshot> stages = new LinkedHashMap<>();
+        public Map<String, Long> counters = new LinkedHashMap<>();
+        public Map<String, Long> httpStatus = new TreeMap<>();
+    }
+    
+    public static class HistogramSnapshot {
+        public long count;
+        public long totalMs;
+        public long maxMs;
+        public long[] buckets;
+        
+        public long averageMs() {
+            return count > 0 ? totalMs / count : 0;
+        }
+        
+        // Upper bound of the bucket holding the given fraction of samples, -1 if beyond the last bound
+        public long percentileMs(double fraction) {
+            long needed = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= needed && seen > 0) {
+                    return i < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[i] : -1;
+                }
+            }
+            return 0;
+        }
+    }
+}
\ No newline at end of file
@@ -3,9 +3,10 @@ package de.gitterrost4.voicenotes;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Objects;
-import android.media.MediaMetadataRetriever;
 
 public final class Note {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    
     public enum Type {
         AUDIO, TEXT
     }
@@ -17,6 +18,10 @@ public final class Note {
     private String content; // For text notes: the text content; For audio notes: the transcription
     private final String filePath; // For audio notes: the audio file path
     private boolean done;
+    private long durationMs; // For audio notes: recording length, 0 if not known yet
+    private float confidence; // For transcriptions: the recognizer's confidence, 0 if not known
+    private TranscriptWords words; // For transcriptions: where each word is in the audio, if known
+    private RecordingProfile recordingProfile; // For audio notes: null if recorded before profiles were stored
     
     // Constructor for text notes
     public Note(String id, Type type, String category, LocalDateTime timestamp, String content) {
@@ -47,6 +52,19 @@ public final class Note {
     public LocalDateTime getTimestamp() { return timestamp; }
     public String getContent() { return content; }
     public boolean isDone() { return done; }
+    public long getDurationMs() { return durationMs; }
+    public float getConfidence() { return confidence; }
+    public TranscriptWords getWords() { return words; }
+    
+    // What the audio was recorded with; for older notes, what their file name says
+    public RecordingProfile getRecordingProfile() {
+        return recordingProfile != null ? recordingProfile : RecordingProfile.forFile(filePath);
+    }
+    
+    // Null if not stored with the note
+    RecordingProfile getStoredRecordingProfile() {
+        return recordingProfile;
+    }
     
     // For audio notes, returns the file path
     public String getFilePath() {
@@ -62,41 +80,64 @@ public final class Note {
         this.done = done;
     }
     
+    // Any confidence and word positions belonged to the old content and are dropped
     public void setContent(String content) {
-        this.content = content;
+        setTranscript(Transcript.of(content));
+    }
+    
+    public void setTranscript(Transcript transcript) {
+        this.content = transcript.getText();
+        this.confidence = transcript.getConfidence();
+        this.words = transcript.getWords();
+    }
+    
+    public Transcript getTranscript() {
+        return new Transcript(content, confidence, words);
+    }
+    
+    public void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+    }
+    
+    public void setRecordingProfile(RecordingProfile recordingProfile) {
+        this.recordingProfile = recordingProfile;
+    }
+    
+    public Note copy() {
+        Note copy = new Note(id, type, category, timestamp, content, filePath);
+        copy.setDone(done);
+        copy.setDurationMs(durationMs);
+        copy.confidence = confidence;
+        copy.words = words; // Immutable, so it can be shared
+        copy.recordingProfile = recordingProfile;
+        return copy;
     }
     
     public String getFormattedTimestamp() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
-        return timestamp.format(formatter);
+        return timestamp.format(TIMESTAMP_FORMAT);
     }
     
     public String getDurationString() {
-        if (type != Type.AUDIO || filePath == null) {
+        if (type != Type.AUDIO) {
             return "";
         }
+        return formatDuration(durationMs);
+    }
+    
+    // "(m:ss)", or an empty string if the duration isn't known
+    static String formatDuration(long durationMs) {
+        if (durationMs <= 0) {
+            return "";
+        }
+        
+        long seconds = (durationMs / 1000) % 60;
+        long minutes = (durationMs / (1000 * 60)) % 60;
         
-        try {
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(filePath);
-            String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-            retriever.release();
-            
-            if (durationStr != null) {
-                long durationMs = Long.parseLong(durationStr);
-                long seconds = (durationMs / 1000) % 60;
-                long minutes = (durationMs / (1000 * 60)) % 60;
-                
-                if (minutes > 0) {
-                    return String.format("(%d:%02d)", minutes, seconds);
-                } else {
-                    return String.format("(0:%02d)", seconds);
-                }
-            }
-        } catch (Exception e) {
-            // If we can't get duration, just return empty string
+        if (minutes > 0) {
+            return String.format("(%d:%02d)", minutes, seconds);
+        } else {
+            return String.format("(0:%02d)", seconds);
         }
-        return "";
     }
     
     @Override
@@ -1,7 +1,6 @@
 package de.gitterrost4.voicenotes;
 
 import android.content.res.ColorStateList;
-import android.content.SharedPreferences;
 import androidx.core.content.ContextCompat;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,171 +10,340 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+// One sectioned list: active notes, then the collapsible "completed" header, then completed notes.
+// Completed notes still in the archive are only counted; the activity pages them in while the
+// section is open. Updates are diffed off the main thread, keyed by note id, so only changed rows are rebound.
+// Binding only copies prepared values into views: rows carry their display strings, colors are resolved
+// once, and every ViewHolder sets up its click listeners when it is created.
 public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     
     private static final int TYPE_AUDIO = 0;
     private static final int TYPE_TEXT = 1;
+    private static final int TYPE_COMPLETED_HEADER = 2;
     
-    private final List<Note> notes;
+    private static final Object PAYLOAD_HEADER = new Object();
+    private static final Object PAYLOAD_PLAY_STATE = new Object();
+    
+    private static final DiffUtil.ItemCallback<NoteRow> DIFF_CALLBACK = new DiffUtil.ItemCallback<NoteRow>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull NoteRow oldRow, @NonNull NoteRow newRow) {
+            return oldRow.getId().equals(newRow.getId());
+        }
+        
+        @Override
+        public boolean areContentsTheSame(@NonNull NoteRow oldRow, @NonNull NoteRow newRow) {
+            return oldRow.hasSameContent(newRow);
+        }
+        
+        @Override
+        public Object getChangePayload(@NonNull NoteRow oldRow, @NonNull NoteRow newRow) {
+            return oldRow.isHeader() ? PAYLOAD_HEADER : null;
+        }
+    };
+    
+    private final Collection<Note> activeNotes;
+    private final Collection<Note> completedNotes;
     private final OnNoteActionListener listener;
     private final MainActivity mainActivity;
+    private final AsyncListDiffer<NoteRow> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private boolean completedExpanded = false;
+    private Set<String> filter; // Ids of the notes to show, null to show all
+    private int archivedCount = 0; // Completed notes not loaded yet
+    private Map<String, NoteRow> rowsById = new HashMap<>(); // Rows of the last refresh, reused while current
+    private boolean transcriptionAvailable = false; // Untranscribed audio shows "Transcribing..."
+    
+    private final int activeTextColor;
+    private final int activeSecondaryColor;
+    private final int completedTextColor;
+    private final int completedSecondaryColor;
+    private final ColorStateList doneTint;
+    private final ColorStateList notDoneTint;
+    private final ColorStateList deleteTint;
+    private final ColorStateList playActiveTint;
+    private final ColorStateList playDefaultTint;
     
     public interface OnNoteActionListener {
         void onPlayAudio(Note note);
         void onToggleDone(Note note);
         void onDelete(Note note);
         void onEditTextNote(Note note);
+        void onCompletedExpanded();
     }
     
-    public NoteAdapter(List<Note> notes, OnNoteActionListener listener, MainActivity mainActivity) {
-        this.notes = notes;
+    // The collections are live views that are kept sorted by their owner
+    public NoteAdapter(Collection<Note> activeNotes, Collection<Note> completedNotes, OnNoteActionListener listener, MainActivity mainActivity) {
+        this.activeNotes = activeNotes;
+        this.completedNotes = completedNotes;
         this.listener = listener;
         this.mainActivity = mainActivity;
+        
+        activeTextColor = ContextCompat.getColor(mainActivity, R.color.note_active_text);
+        activeSecondaryColor = ContextCompat.getColor(mainActivity, R.color.note_active_secondary);
+        completedTextColor = ContextCompat.getColor(mainActivity, R.color.note_completed_text);
+        completedSecondaryColor = ContextCompat.getColor(mainActivity, R.color.note_completed_secondary);
+        doneTint = ColorStateList.valueOf(ContextCompat.getColor(mainActivity, R.color.done_button_active));
+        notDoneTint = ColorStateList.valueOf(ContextCompat.getColor(mainActivity, R.color.text_disabled));
+        deleteTint = ColorStateList.valueOf(ContextCompat.getColor(mainActivity, R.color.delete_button));
+        playActiveTint = ColorStateList.valueOf(ContextCompat.getColor(mainActivity, R.color.play_button_active));
+        playDefaultTint = ColorStateList.valueOf(ContextCompat.getColor(mainActivity, R.color.play_button_default));
+    }
+    
+    // Whether transcription credentials are configured; pushed in by the activity when they may have changed
+    public void setTranscriptionAvailable(boolean available) {
+        if (transcriptionAvailable != available) {
+            transcriptionAvailable = available;
+            notifyItemRangeChanged(0, getItemCount());
+        }
+    }
+    
+    public boolean isCompletedExpanded() {
+        return completedExpanded;
+    }
+    
+    // Takes effect with the next refresh()
+    public void setFilter(Set<String> noteIds) {
+        filter = noteIds;
+    }
+    
+    // Takes effect with the next refresh()
+    public void setArchivedCount(int archivedCount) {
+        this.archivedCount = archivedCount;
+    }
+    
+    // Rebuilds the rows from the active and completed notes; the diff runs in the background
+    public void refresh() {
+        refresh(null);
+    }
+    
+    // onCommitted runs on the main thread once the new rows are in place
+    public void refresh(Runnable onCommitted) {
+        List<NoteRow> rows = new ArrayList<>(activeNotes.size() + 1 + (completedExpanded ? completedNotes.size() : 0));
+        Map<String, NoteRow> shownRows = new HashMap<>(rowsById.size() * 2);
+        for (Note note : activeNotes) {
+            if (isShown(note)) {
+                rows.add(rowFor(note, shownRows));
+            }
+        }
+        // Archived notes can't be matched before they are loaded; a search loads them all
+        int completedCount = filter == null ? completedNotes.size() + archivedCount : countShown(completedNotes);
+        if (completedCount > 0) {
+            rows.add(NoteRow.completedHeader(completedCount, completedExpanded));
+            if (completedExpanded) {
+                for (Note note : completedNotes) {
+                    if (isShown(note)) {
+                        rows.add(rowFor(note, shownRows));
+                    }
+                }
+            }
+        }
+        rowsById = shownRows;
+        differ.submitList(rows, onCommitted);
+    }
+    
+    // The row from the last refresh if the note hasn't changed since, so its strings are kept
+    private NoteRow rowFor(Note note, Map<String, NoteRow> shownRows) {
+        NoteRow row = rowsById.get(note.getId());
+        if (row == null || !row.isCurrentFor(note)) {
+            row = NoteRow.forNote(note);
+        }
+        shownRows.put(note.getId(), row);
+        return row;
+    }
+    
+    private boolean isShown(Note note) {
+        return filter == null || filter.contains(note.getId());
+    }
+    
+    private int countShown(Collection<Note> notes) {
+        int count = 0;
+        for (Note note : notes) {
+            if (isShown(note)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    // Only the header and the completed rows change; nothing else is rebound
+    public void toggleCompletedSection() {
+        completedExpanded = !completedExpanded;
+        refresh();
+        if (completedExpanded) {
+            listener.onCompletedExpanded();
+        }
+    }
+    
+    // Rebinds just the play button of the row showing this note
+    public void notifyPlaybackChanged(Note note) {
+        List<NoteRow> rows = differ.getCurrentList();
+        for (int i = 0; i < rows.size(); i++) {
+            if (note.getId().equals(rows.get(i).getId())) {
+                notifyItemChanged(i, PAYLOAD_PLAY_STATE);
+                return;
+            }
+        }
     }
     
     @Override
     public int getItemViewType(int position) {
-        return notes.get(position).getType() == Note.Type.AUDIO ? TYPE_AUDIO : TYPE_TEXT;
+        NoteRow row = getRow(position);
+        if (row.isHeader()) {
+            return TYPE_COMPLETED_HEADER;
+        }
+        return row.getNote().getType() == Note.Type.AUDIO ? TYPE_AUDIO : TYPE_TEXT;
     }
     
     @NonNull
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        LayoutInflater inflater = LayoutInflater.from(parent.getContext());
         if (viewType == TYPE_AUDIO) {
-            View view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_audio_recording, parent, false);
-            return new AudioViewHolder(view);
+            AudioViewHolder holder = new AudioViewHolder(inflater.inflate(R.layout.item_audio_recording, parent, false));
+            holder.playButton.setOnClickListener(v -> listener.onPlayAudio(holder.note));
+            holder.doneButton.setOnClickListener(v -> listener.onToggleDone(holder.note));
+            holder.deleteButton.setOnClickListener(v -> listener.onDelete(holder.note));
+            holder.deleteButton.setImageTintList(deleteTint);
+            return holder;
+        } else if (viewType == TYPE_COMPLETED_HEADER) {
+            HeaderViewHolder holder = new HeaderViewHolder(inflater.inflate(R.layout.item_section_header, parent, false));
+            holder.title.setOnClickListener(v -> toggleCompletedSection());
+            return holder;
         } else {
-            View view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_text_note, parent, false);
-            return new TextViewHolder(view);
+            TextViewHolder holder = new TextViewHolder(inflater.inflate(R.layout.item_text_note, parent, false));
+            holder.textIcon.setOnClickListener(v -> listener.onEditTextNote(holder.note));
+            holder.doneButton.setOnClickListener(v -> listener.onToggleDone(holder.note));
+            holder.deleteButton.setOnClickListener(v -> listener.onDelete(holder.note));
+            holder.deleteButton.setImageTintList(deleteTint);
+            return holder;
         }
     }
     
     @Override
-    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Note note = notes.get(position);
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
         
-        if (holder instanceof AudioViewHolder) {
-            bindAudioNote((AudioViewHolder) holder, note);
+        NoteRow row = getRow(position);
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_PLAY_STATE && holder instanceof AudioViewHolder) {
+                bindPlayState((AudioViewHolder) holder, row.getNote());
+            } else if (payload == PAYLOAD_HEADER && holder instanceof HeaderViewHolder) {
+                bindCompletedHeader((HeaderViewHolder) holder, row);
+            } else {
+                onBindViewHolder(holder, position);
+                return;
+            }
+        }
+    }
+    
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
+        NoteRow row = getRow(position);
+        if (holder instanceof HeaderViewHolder) {
+            bindCompletedHeader((HeaderViewHolder) holder, row);
+        } else if (holder instanceof AudioViewHolder) {
+            bindAudioNote((AudioViewHolder) holder, row);
         } else if (holder instanceof TextViewHolder) {
-            bindTextNote((TextViewHolder) holder, note);
+            bindTextNote((TextViewHolder) holder, row);
         }
     }
     
-    private void bindAudioNote(AudioViewHolder holder, Note note) {
-        String titleWithDuration = note.getCategory() + " " + note.getDurationString();
-        holder.title.setText(titleWithDuration);
-        holder.timestamp.setText(note.getFormattedTimestamp());
+    private void bindCompletedHeader(HeaderViewHolder holder, NoteRow row) {
+        if (row.isExpanded()) {
+            holder.title.setText(R.string.hide_completed);
+            holder.title.setCompoundDrawablesWithIntrinsicBounds(0, 0, android.R.drawable.arrow_up_float, 0);
+        } else {
+            String headerText = holder.itemView.getContext().getString(R.string.show_completed, row.getCompletedCount());
+            holder.title.setText(headerText);
+            holder.title.setCompoundDrawablesWithIntrinsicBounds(0, 0, android.R.drawable.arrow_down_float, 0);
+        }
+    }
+    
+    private void bindAudioNote(AudioViewHolder holder, NoteRow row) {
+        holder.note = row.getNote();
+        holder.title.setText(row.getTitle());
+        holder.timestamp.setText(row.getTimestampText());
         
-        // Display transcription
-        String transcriptionText = note.getText();
-        if (transcriptionText != null && !transcriptionText.trim().isEmpty()) {
-            holder.transcription.setText(transcriptionText);
+        // Display transcription, or that one is on its way
+        if (row.hasText()) {
+            holder.transcription.setText(row.getContent());
+            holder.transcription.setVisibility(View.VISIBLE);
+        } else if (transcriptionAvailable) {
+            holder.transcription.setText(R.string.transcribing);
             holder.transcription.setVisibility(View.VISIBLE);
         } else {
-            // Check if credentials are configured before showing "Transcribing..."
-            SharedPreferences prefs = holder.itemView.getContext().getSharedPreferences("voice_notes_prefs", 0);
-            String credentials = prefs.getString("google_cloud_credentials", "");
-            if (!credentials.isEmpty()) {
-                holder.transcription.setText("Transcribing...");
-                holder.transcription.setVisibility(View.VISIBLE);
-            } else {
-                holder.transcription.setVisibility(View.GONE);
-            }
+            holder.transcription.setVisibility(View.GONE);
         }
         
         // Set text colors based on completion status
-        if (note.isDone()) {
-            holder.title.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_completed_text));
-            holder.timestamp.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_completed_secondary));
-            holder.transcription.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_completed_secondary));
-        } else {
-            holder.title.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_active_text));
-            holder.timestamp.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_active_secondary));
-            holder.transcription.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_active_secondary));
-        }
+        boolean done = row.isDone();
+        holder.title.setTextColor(done ? completedTextColor : activeTextColor);
+        holder.timestamp.setTextColor(done ? completedSecondaryColor : activeSecondaryColor);
+        holder.transcription.setTextColor(done ? completedSecondaryColor : activeSecondaryColor);
+        holder.doneButton.setImageTintList(done ? doneTint : notDoneTint);
         
+        bindPlayState(holder, row.getNote());
+    }
+    
+    private void bindPlayState(AudioViewHolder holder, Note note) {
         // Update play button based on playing/paused state
         boolean isPlaying = mainActivity.isCurrentlyPlaying(note);
         boolean isPaused = mainActivity.isCurrentlyPaused(note);
         
         if (isPlaying && !isPaused) {
             holder.playButton.setImageResource(android.R.drawable.ic_media_pause);
-            holder.playButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.play_button_active)));
+            holder.playButton.setImageTintList(playActiveTint);
         } else if (isPaused) {
             holder.playButton.setImageResource(android.R.drawable.ic_media_play);
-            holder.playButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.play_button_active)));
+            holder.playButton.setImageTintList(playActiveTint);
         } else {
             holder.playButton.setImageResource(android.R.drawable.ic_media_play);
-            holder.playButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.play_button_default)));
+            holder.playButton.setImageTintList(playDefaultTint);
         }
-        
-        // Update done button
-        if (note.isDone()) {
-            holder.doneButton.setImageResource(android.R.drawable.ic_menu_view);
-            holder.doneButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.done_button_active)));
-        } else {
-            holder.doneButton.setImageResource(android.R.drawable.ic_menu_view);
-            holder.doneButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.text_disabled)));
-        }
-        
-        // Set delete button color
-        holder.deleteButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.delete_button)));
-        
-        // Set click listeners
-        holder.playButton.setOnClickListener(v -> listener.onPlayAudio(note));
-        holder.doneButton.setOnClickListener(v -> listener.onToggleDone(note));
-        holder.deleteButton.setOnClickListener(v -> listener.onDelete(note));
     }
     
-    private void bindTextNote(TextViewHolder holder, Note note) {
-        holder.title.setText(note.getCategory());
-        holder.text.setText(note.getText());
-        holder.timestamp.setText(note.getFormattedTimestamp());
+    private void bindTextNote(TextViewHolder holder, NoteRow row) {
+        holder.note = row.getNote();
+        holder.title.setText(row.getTitle());
+        holder.text.setText(row.getContent());
+        holder.timestamp.setText(row.getTimestampText());
         
         // Set text colors based on completion status
-        if (note.isDone()) {
-            holder.title.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_completed_text));
-            holder.text.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_completed_secondary));
-            holder.timestamp.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_completed_secondary));
-        } else {
-            holder.title.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_active_text));
-            holder.text.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_active_secondary));
-            holder.timestamp.setTextColor(ContextCompat.getColor(holder.itemView.getContext(), R.color.note_active_secondary));
-        }
-        
-        // Update done button
-        if (note.isDone()) {
-            holder.doneButton.setImageResource(android.R.drawable.ic_menu_view);
-            holder.doneButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.done_button_active)));
-        } else {
-            holder.doneButton.setImageResource(android.R.drawable.ic_menu_view);
-            holder.doneButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.text_disabled)));
-        }
-        
-        // Set delete button color
-        holder.deleteButton.setImageTintList(ColorStateList.valueOf(ContextCompat.getColor(holder.itemView.getContext(), R.color.delete_button)));
-        
-        // Set click listeners
-        holder.textIcon.setOnClickListener(v -> listener.onEditTextNote(note));
-        holder.doneButton.setOnClickListener(v -> listener.onToggleDone(note));
-        holder.deleteButton.setOnClickListener(v -> listener.onDelete(note));
+        boolean done = row.isDone();
+        holder.title.setTextColor(done ? completedTextColor : activeTextColor);
+        holder.text.setTextColor(done ? completedSecondaryColor : activeSecondaryColor);
+        holder.timestamp.setTextColor(done ? completedSecondaryColor : activeSecondaryColor);
+        holder.doneButton.setImageTintList(done ? doneTint : notDoneTint);
     }
     
     @Override
     public int getItemCount() {
-        return notes.size();
+        return differ.getCurrentList().size();
+    }
+    
+    // The row shown at this position since the last committed refresh
+    NoteRow getRow(int position) {
+        return differ.getCurrentList().get(position);
     }
     
     static class AudioViewHolder extends RecyclerView.ViewHolder {
         TextView title, timestamp, transcription;
         ImageView playButton;
         ImageButton doneButton, deleteButton;
+        Note note; // The bound note, read by the click listeners
         
         AudioViewHolder(View itemView) {
             super(itemView);
@@ -188,10 +356,20 @@ public class NoteAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
     
+    static class HeaderViewHolder extends RecyclerView.ViewHolder {
+        TextView title;
+        
+        HeaderViewHolder(View itemView) {
+            super(itemView);
+            title = itemView.findViewById(R.id.completedSectionHeader);
+        }
+    }
+    
     static class TextViewHolder extends RecyclerView.ViewHolder {
         TextView title, text, timestamp;
         ImageView textIcon;
         ImageButton doneButton, deleteButton;
+        Note note; // The bound note, read by the click listeners
         
         TextViewHolder(View itemView) {
             super(itemView);
@@ -0,0 +1,318 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Completed notes, kept out of notes.bin so startup only has to read the count. The file
+// (notes_archive.jsonl) starts with the number of notes, followed by one "timestamp<TAB>id<TAB>json"
+// line per note, newest first. The sort key in front lets pages be found, and the file be merged,
+// without parsing the notes themselves. Only used on the NoteStore's writer thread.
+class NoteArchive {
+    
+    private static final String ARCHIVE_FILE = "notes_archive.jsonl";
+    
+    private final File file;
+    private final TypeAdapter<Note> noteAdapter;
+    private final RecordingsDirectory recordings;
+    
+    // Paging position: the key of the last line handed out, and the byte offset of the line after it.
+    // The offset is -1 after the file was rewritten; the next page then seeks by key.
+    private Key cursor;
+    private long offset = -1;
+    // Done notes the caller already holds (written by the last merge); they are never paged in again
+    private Set<String> residentIds = Collections.emptySet();
+    
+    NoteArchive(File directory, TypeAdapter<Note> noteAdapter, RecordingsDirectory recordings) {
+        this.file = new File(directory, ARCHIVE_FILE);
+        this.noteAdapter = noteAdapter;
+        this.recordings = recordings;
+    }
+    
+    // Reads just the header line
+    int readCount() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            return header != null ? Integer.parseInt(header.trim()) : 0;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt archive header", e);
+        }
+    }
+    
+    // Starts paging from the newest note again, for a caller that holds no archived notes yet
+    void resetCursor() {
+        cursor = null;
+        offset = -1;
+        residentIds = Collections.emptySet();
+    }
+    
+    // Appends up to maxNotes of the next archived notes to page, with pending journal patches applied.
+    // Notes that were deleted, restored or lost their audio file are skipped. Returns false once
+    // the end of the archive has been reached.
+    boolean readPage(int maxNotes, Map<String, NoteStore.Patch> patches, List<Note> page) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            long position = offset;
+            if (position > 0) {
+                in.getChannel().position(position);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            if (position < 0) {
+                String header = reader.readLine();
+                position = header != null ? lineBytes(header) : 0;
+            }
+            
+            String line;
+            while (page.size() < maxNotes && (line = reader.readLine()) != null) {
+                position += lineBytes(line);
+                Key key = Key.parse(line);
+                if (cursor != null && key.compareTo(cursor) <= 0) {
+                    continue; // Handed out before the file was rewritten
+                }
+                cursor = key;
+                offset = position;
+                if (residentIds.contains(key.id)) {
+                    continue;
+                }
+                Note note = parseNote(line);
+                NoteStore.Patch patch = patches.get(key.id);
+                if (patch != null) {
+                    note = patch.supersedesArchive() ? null : patch.applyTo(note);
+                }
+                if (note != null && note.isDone() && recordings.hasAudio(note)) {
+                    page.add(note);
+                }
+            }
+            return reader.readLine() != null;
+        }
+    }
+    
+    // Merges the done notes the caller holds into the archive, and applies pending patches to the
+    // notes it doesn't hold. Held notes whose audio is gone are dropped from it, like the snapshot
+    // drops active ones. The file is left alone if that changes nothing.
+    void merge(List<Note> doneNotes, Map<String, NoteStore.Patch> patches) throws IOException {
+        List<Note> resident = new ArrayList<>(doneNotes.size());
+        Map<String, String> residentLines = new HashMap<>();
+        Set<String> missingAudio = new HashSet<>();
+        for (Note note : doneNotes) {
+            if (recordings.hasAudio(note)) {
+                resident.add(note);
+                residentLines.put(note.getId(), toLine(note));
+            } else {
+                missingAudio.add(note.getId());
+            }
+        }
+        Collections.sort(resident, NoteRepository.NEWEST_FIRST);
+        
+        // First pass: find out what changes and how many notes remain
+        Map<String, String> replacedLines = new HashMap<>(); // Patched notes; null if dropped
+        int kept = 0;
+        int unchangedResidents = 0;
+        if (file.exists()) {
+            try (BufferedReader reader = openLines()) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String id = Key.parse(line).id;
+                    if (missingAudio.contains(id)) {
+                        replacedLines.put(id, null);
+                        continue;
+                    }
+                    String residentLine = residentLines.get(id);
+                    if (residentLine != null) {
+                        if (residentLine.equals(line)) {
+                            unchangedResidents++;
+                        }
+                        continue;
+                    }
+                    NoteStore.Patch patch = patches.get(id);
+                    if (patch == null) {
+                        kept++;
+                        continue;
+                    }
+                    Note note = patch.supersedesArchive() ? null : patch.applyTo(parseNote(line));
+                    String patched = note != null && note.isDone() ? toLine(note) : null;
+                    if (!line.equals(patched)) {
+                        replacedLines.put(id, patched);
+                    }
+                    if (patched != null) {
+                        kept++;
+                    }
+                }
+            }
+        }
+        residentIds = residentLines.keySet();
+        if (unchangedResidents == resident.size() && replacedLines.isEmpty() && file.exists()) {
+            return;
+        }
+        
+        // Second pass: merge both sorted sequences into the new file
+        int count = kept + resident.size();
+        boolean hadFile = file.exists();
+        AtomicFileWriter.write(file, out -> {
+            out.write(Integer.toString(count));
+            out.write('\n');
+            int next = 0;
+            if (hadFile) {
+                try (BufferedReader reader = openLines()) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Key key = Key.parse(line);
+                        while (next < resident.size() && Key.of(resident.get(next)).compareTo(key) < 0) {
+                            out.write(residentLines.get(resident.get(next++).getId()));
+                            out.write('\n');
+                        }
+                        if (residentLines.containsKey(key.id)) {
+                            continue;
+                        }
+                        String written = replacedLines.containsKey(key.id) ? replacedLines.get(key.id) : line;
+                        if (written != null) {
+                            out.write(written);
+                            out.write('\n');
+                        }
+                    }
+                }
+            }
+            while (next < resident.size()) {
+                out.write(residentLines.get(resident.get(next++).getId()));
+                out.write('\n');
+            }
+        });
+        offset = -1; // Line positions moved; the cursor key still holds
+    }
+    
+    // Appends every archived note except those in skipIds, with pending patches applied, skipping
+    // the same notes readPage() would
+    void readAll(Set<String> skipIds, Map<String, NoteStore.Patch> patches, List<Note> notes) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = openLines()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Key key = Key.parse(line);
+                if (skipIds.contains(key.id)) {
+                    continue;
+                }
+                Note note = parseNote(line);
+                NoteStore.Patch patch = patches.get(key.id);
+                if (patch != null) {
+                    note = patch.supersedesArchive() ? null : patch.applyTo(note);
+                }
+                if (note != null && note.isDone() && recordings.hasAudio(note)) {
+                    notes.add(note);
+                }
+            }
+        }
+    }
+    
+    // Adds the id of every archived note, as written, from the sort keys alone
+    void collectIds(Collection<String> ids) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = openLines()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ids.add(Key.parse(line).id);
+            }
+        }
+    }
+    
+    // Adds the audio file of every archived note, as written; pending patches don't add files
+    void collectAudioPaths(Collection<String> paths) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = openLines()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Note note = parseNote(line);
+                if (note.getFilePath() != null) {
+                    paths.add(note.getFilePath());
+                }
+            }
+        }
+    }
+    
+    // A reader positioned after the header line
+    private BufferedReader openLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8));
+        reader.readLine();
+        return reader;
+    }
+    
+    private String toLine(Note note) {
+        return NoteTypeAdapter.formatTimestamp(note.getTimestamp()) + '\t' + note.getId() + '\t'
+                + noteAdapter.toJson(note);
+    }
+    
+    private Note parseNote(String line) throws IOException {
+        int json = line.indexOf('\t', line.indexOf('\t') + 1) + 1;
+        try {
+            return noteAdapter.fromJson(line.substring(json));
+        } catch (JsonParseException e) {
+            throw new IOException("Corrupt archive line", e);
+        }
+    }
+    
+    private static long lineBytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length + 1; // Lines end with a single '\n'
+    }
+    
+    // Sort key of a line, ordered like NoteRepository.NEWEST_FIRST
+    private static final class Key implements Comparable<Key> {
+        final LocalDateTime timestamp;
+        final String id;
+        
+        Key(LocalDateTime timestamp, String id) {
+            this.timestamp = timestamp;
+            this.id = id;
+        }
+        
+        static Key of(Note note) {
+            return new Key(note.getTimestamp(), note.getId());
+        }
+        
+        static Key parse(String line) throws IOException {
+            int first = line.indexOf('\t');
+            int second = first < 0 ? -1 : line.indexOf('\t', first + 1);
+            if (second < 0) {
+                throw new IOException("Corrupt archive line");
+            }
+            try {
+                return new Key(NoteTypeAdapter.parseTimestamp(line.substring(0, first)),
+                        line.substring(first + 1, second));
+            } catch (JsonParseException e) {
+                throw new IOException("Corrupt archive line", e);
+            }
+        }
+        
+        @Override
+        public int compareTo(Key other) {
+            int byTime = other.timestamp.compareTo(timestamp);
+            return byTime != 0 ? byTime : id.compareTo(other.id);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,216 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Sends several short AMR notes of the same codec as one recognize request: their frames are joined with a second
+// of NO_DATA frames between them, and the words that come back are handed to the note whose audio
+// they were heard in. A word that reaches well into another note's audio, or text that no word
+// accounts for, makes the split ambiguous; the caller then transcribes the notes one by one.
+public class NotePacker {
+    
+    private static final int MAX_NOTE_FRAMES = 10_000 / AmrFile.FRAME_MS; // Longer notes go alone
+    private static final int MAX_PACK_FRAMES = 50_000 / AmrFile.FRAME_MS; // Well below the request limit
+    private static final int MAX_PACK_NOTES = 8;
+    private static final int GAP_FRAMES = 1_000 / AmrFile.FRAME_MS;
+    private static final long OVERLAP_TOLERANCE_MS = 200; // Word offsets are only roughly aligned
+    
+    private final File directory;
+    
+    // The joined recordings are written to the given directory
+    public NotePacker(File directory) {
+        this.directory = directory;
+    }
+    
+    public static final class Pack {
+        private final List<TranscriptionJob> jobs = new ArrayList<>();
+        private final List<AmrFile> recordings = new ArrayList<>();
+        private int frames = 0;
+        
+        public List<TranscriptionJob> getJobs() { return jobs; }
+        
+        // The joined recording is in the same format as the notes
+        public RecordingProfile getProfile() { return jobs.get(0).getProfile(); }
+        
+        boolean fits(AmrFile recording) {
+            return jobs.size() < MAX_PACK_NOTES
+                    && (recordings.isEmpty() || recordings.get(0).isWideband() == recording.isWideband())
+                    && frames + GAP_FRAMES + recording.getFrameCount() <= MAX_PACK_FRAMES;
+        }
+        
+        void add(TranscriptionJob job, AmrFile recording) {
+            frames += (jobs.isEmpty() ? 0 : GAP_FRAMES) + recording.getFrameCount();
+            jobs.add(job);
+            recordings.add(recording);
+        }
+        
+        // Where the given note starts in the joined audio
+        long startMs(int index) {
+            long frames = 0;
+            for (int i = 0; i < index; i++) {
+                frames += recordings.get(i).getFrameCount() + GAP_FRAMES;
+            }
+            return frames * AmrFile.FRAME_MS;
+        }
+    }
+    
+    // Groups the short AMR notes among the jobs into packs of at least two. Every other job, and any
+    // note left on its own, is added to unpacked. Reads each note's frame index, so not on the UI thread.
+    public List<Pack> plan(List<TranscriptionJob> jobs, List<TranscriptionJob> unpacked) {
+        List<Pack> packs = new ArrayList<>();
+        Pack pack = new Pack();
+        for (TranscriptionJob job : jobs) {
+            AmrFile recording = readShort(job);
+            if (recording == null) {
+                unpacked.add(job);
+                continue;
+            }
+            if (!pack.fits(recording)) {
+                close(pack, packs, unpacked);
+                pack = new Pack();
+            }
+            pack.add(job, recording);
+        }
+        close(pack, packs, unpacked);
+        return packs;
+    }
+    
+    private static void close(Pack pack, List<Pack> packs, List<TranscriptionJob> unpacked) {
+        if (pack.jobs.size() > 1) {
+            packs.add(pack);
+        } else {
+            unpacked.addAll(pack.jobs);
+        }
+    }
+    
+    private static AmrFile readShort(TranscriptionJob job) {
+        if (job.getFilePath() == null || !job.getProfile().isAmr()) {
+            return null;
+        }
+        try {
+            AmrFile recording = AmrFile.read(new File(job.getFilePath()));
+            return recording.getFrameCount() > 0 && recording.getFrameCount() <= MAX_NOTE_FRAMES ? recording : null;
+        } catch (IOException | RuntimeException e) {
+            return null; // Missing or not AMR: transcribed alone, which reports the problem
+        }
+    }
+    
+    // The joined recording; the caller deletes it when done
+    public File write(Pack pack) throws IOException {
+        directory.mkdirs();
+        File target = File.createTempFile("pack", ".amr", directory);
+        try {
+            AmrFile.concatenate(pack.recordings, GAP_FRAMES, target);
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        return target;
+    }
+    
+    // One transcript per job of the pack, in order, or null if the words can't be assigned with confidence
+    public static List<Transcript> split(Pack pack, Transcript transcript) {
+        int notes = pack.jobs.size();
+        List<Transcript> parts = new ArrayList<>(notes);
+        if (transcript.isNoSpeech()) {
+            for (int i = 0; i < notes; i++) {
+                parts.add(Transcript.of(TranscriptionClient.NO_SPEECH));
+            }
+            return parts;
+        }
+        TranscriptWords words = transcript.getWords();
+        if (words == null || words.size() == 0) {
+            return null; // Nothing to tell the notes apart by
+        }
+        
+        long[] startMs = new long[notes];
+        long[] endMs = new long[notes];
+        for (int i = 0; i < notes; i++) {
+            startMs[i] = pack.startMs(i);
+            endMs[i] = startMs[i] + pack.recordings.get(i).getDurationMs();
+        }
+        
+        // The note each word belongs to: the one closest to its middle, which words never run back from
+        int[] owner = new int[words.size()];
+        int note = 0;
+        for (int w = 0; w < words.size(); w++) {
+            long middle = (words.getStartMs(w) + words.getEndMs(w)) / 2;
+            while (note + 1 < notes && middle >= (endMs[note] + startMs[note + 1]) / 2) {
+                note++;
+            }
+            if (overlaps(words.getStartMs(w), words.getEndMs(w), startMs, endMs, note)) {
+                return null;
+            }
+            owner[w] = note;
+        }
+        
+        // Everything in the text has to be covered by a word, or it could belong to any note
+        String text = transcript.getText();
+        int covered = 0;
+        for (int w = 0; w < words.size(); w++) {
+            if (!isBlank(text, covered, words.getCharStart(w))) {
+                return null;
+            }
+            covered = words.getCharEnd(w);
+        }
+        if (!isBlank(text, covered, text.length())) {
+            return null;
+        }
+        
+        int first = 0;
+        for (int i = 0; i < notes; i++) {
+            int last = first;
+            while (last < words.size() && owner[last] == i) {
+                last++;
+            }
+            parts.add(first == last ? Transcript.of(TranscriptionClient.NO_SPEECH)
+                    : part(text, words, first, last, startMs[i], endMs[i] - startMs[i]));
+            first = last;
+        }
+        return parts;
+    }
+    
+    // True if the word reaches more than the tolerance into a note other than its own
+    private static boolean overlaps(long wordStartMs, long wordEndMs, long[] startMs, long[] endMs, int note) {
+        for (int i = Math.max(0, note - 1); i <= Math.min(startMs.length - 1, note + 1); i++) {
+            long overlapMs = Math.min(wordEndMs, endMs[i]) - Math.max(wordStartMs, startMs[i]);
+            if (i != note && overlapMs > OVERLAP_TOLERANCE_MS) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isBlank(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Words [first, last) as a transcript of their own, with offsets relative to the note
+    private static Transcript part(String text, TranscriptWords words, int first, int last, long offsetMs,
+                                   long durationMs) {
+        int charStart = words.getCharStart(first);
+        TranscriptWords.Builder positions = new TranscriptWords.Builder();
+        double confidenceSum = 0;
+        int confidenceChars = 0;
+        for (int w = first; w < last; w++) {
+            long wordStart = Math.max(0, Math.min(durationMs, words.getStartMs(w) - offsetMs));
+            long wordEnd = Math.max(wordStart, Math.min(durationMs, words.getEndMs(w) - offsetMs));
+            positions.add(words.getCharStart(w) - charStart, words.getCharEnd(w) - charStart, wordStart, wordEnd,
+                    words.getConfidence(w));
+            if (words.getConfidence(w) > 0) {
+                int length = words.getCharEnd(w) - words.getCharStart(w);
+                confidenceSum += (double) words.getConfidence(w) * length;
+                confidenceChars += length;
+            }
+        }
+        float confidence = confidenceChars > 0 ? (float) (confidenceSum / confidenceChars) : 0;
+        return new Transcript(text.substring(charStart, words.getCharEnd(last - 1)), confidence, positions.build());
+    }
+}
\ No newline at end of file
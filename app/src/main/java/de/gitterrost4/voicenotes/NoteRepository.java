@@ -0,0 +1,200 @@
+package de.gitterrost4.voicenotes;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+// The notes shown by MainActivity, indexed by id and kept in display order (newest first).
+// Active and done notes are separate sorted sets that every mutation keeps up to date, so nothing
+// is scanned or re-sorted when a single note changes. Ordering only uses the immutable timestamp
+// and id, so changing a note's content never disturbs the sets.
+// While the store loads, the list may already show provisional notes from the first-screen
+// snapshot; see addProvisional(). Main thread only.
+public class NoteRepository {
+    
+    static final Comparator<Note> NEWEST_FIRST = (n1, n2) -> {
+        int byTime = n2.getTimestamp().compareTo(n1.getTimestamp());
+        return byTime != 0 ? byTime : n1.getId().compareTo(n2.getId());
+    };
+    
+    private final Map<String, Note> notesById = new HashMap<>();
+    private final NavigableSet<Note> allNotes = new TreeSet<>(NEWEST_FIRST);
+    private final NavigableSet<Note> activeNotes = new TreeSet<>(NEWEST_FIRST);
+    private final NavigableSet<Note> doneNotes = new TreeSet<>(NEWEST_FIRST);
+    private long lastIdMillis = 0;
+    
+    // Changes made to provisional notes, as bits per id
+    private static final int CHANGED_CONTENT = 1;
+    private static final int CHANGED_DONE = 2;
+    private static final int CHANGED_DURATION = 4;
+    private static final int DELETED = 8;
+    
+    private final Set<String> provisionalIds = new HashSet<>(); // Not confirmed by the store yet
+    private final Map<String, Integer> changedWhileLoading = new HashMap<>();
+    
+    // Read-only views, newest first
+    public Collection<Note> getAll() { return Collections.unmodifiableSet(allNotes); }
+    public Collection<Note> getActive() { return Collections.unmodifiableSet(activeNotes); }
+    public Collection<Note> getDone() { return Collections.unmodifiableSet(doneNotes); }
+    
+    public Note get(String id) {
+        return notesById.get(id);
+    }
+    
+    // Returns a new id like "audio_1700000000000". The number is the creation time, but never equal
+    // to or below one handed out or loaded before, so two notes created in the same millisecond
+    // (or after the clock was set back) still get distinct ids.
+    public String newId(String prefix) {
+        long millis = Math.max(System.currentTimeMillis(), lastIdMillis + 1);
+        String id = prefix + "_" + millis;
+        while (notesById.containsKey(id)) {
+            id = prefix + "_" + ++millis;
+        }
+        lastIdMillis = millis;
+        return id;
+    }
+    
+    // Adds a note, replacing any note with the same id
+    public void add(Note note) {
+        Note previous = notesById.put(note.getId(), note);
+        if (previous != null) {
+            unlink(previous);
+        }
+        allNotes.add(note);
+        (note.isDone() ? doneNotes : activeNotes).add(note);
+        observeId(note.getId());
+    }
+    
+    public void addAll(Collection<Note> notes) {
+        for (Note note : notes) {
+            add(note);
+        }
+    }
+    
+    // Shows possibly outdated notes until the loaded ones arrive via addLoaded()
+    public void addProvisional(Collection<Note> notes) {
+        for (Note note : notes) {
+            add(note);
+            provisionalIds.add(note.getId());
+        }
+    }
+    
+    // Adds notes read by the store, replacing their provisional copies. Changes made to a provisional
+    // copy are journaled after what the store loaded, so they are applied on top of the loaded note.
+    public void addLoaded(Collection<Note> notes) {
+        for (Note note : notes) {
+            provisionalIds.remove(note.getId());
+            Integer changes = changedWhileLoading.remove(note.getId());
+            if (changes == null) {
+                add(note);
+            } else if ((changes & DELETED) == 0) {
+                Note local = notesById.get(note.getId());
+                if ((changes & CHANGED_CONTENT) != 0) {
+                    note.setTranscript(local.getTranscript());
+                }
+                if ((changes & CHANGED_DONE) != 0) {
+                    note.setDone(local.isDone());
+                }
+                if ((changes & CHANGED_DURATION) != 0) {
+                    note.setDurationMs(local.getDurationMs());
+                }
+                add(note);
+            }
+        }
+    }
+    
+    // Drops provisional notes the store didn't have any more, e.g. deleted after the snapshot was taken
+    public void finishLoading() {
+        for (String id : provisionalIds) {
+            Note stale = notesById.remove(id);
+            if (stale != null) {
+                unlink(stale);
+            }
+        }
+        provisionalIds.clear();
+        changedWhileLoading.clear();
+    }
+    
+    // Returns the removed note, or null if there was none
+    public Note remove(String id) {
+        markChanged(id, DELETED);
+        Note removed = notesById.remove(id);
+        if (removed != null) {
+            unlink(removed);
+        }
+        return removed;
+    }
+    
+    // Replaces the note with a copy carrying the new content, so list rows still holding the
+    // old object compare as changed. Returns the new note, or null if the note is gone.
+    public Note updateContent(String id, String content) {
+        return updateTranscript(id, Transcript.of(content));
+    }
+    
+    public Note updateTranscript(String id, Transcript transcript) {
+        Note note = notesById.get(id);
+        if (note == null) {
+            return null;
+        }
+        markChanged(id, CHANGED_CONTENT);
+        Note updated = note.copy();
+        updated.setTranscript(transcript);
+        add(updated);
+        return updated;
+    }
+    
+    // Moves the note between the active and done sets. Returns the note, or null if it is gone.
+    public Note setDone(String id, boolean done) {
+        Note note = notesById.get(id);
+        if (note == null || note.isDone() == done) {
+            return note;
+        }
+        markChanged(id, CHANGED_DONE);
+        (done ? activeNotes : doneNotes).remove(note);
+        note.setDone(done);
+        (done ? doneNotes : activeNotes).add(note);
+        return note;
+    }
+    
+    // The duration isn't part of the ordering, so the note is updated in place
+    public Note setDuration(String id, long durationMs) {
+        Note note = notesById.get(id);
+        if (note != null) {
+            markChanged(id, CHANGED_DURATION);
+            note.setDurationMs(durationMs);
+        }
+        return note;
+    }
+    
+    private void markChanged(String id, int change) {
+        if (provisionalIds.contains(id)) {
+            Integer changes = changedWhileLoading.get(id);
+            changedWhileLoading.put(id, changes != null ? changes | change : change);
+        }
+    }
+    
+    private void unlink(Note note) {
+        allNotes.remove(note);
+        activeNotes.remove(note);
+        doneNotes.remove(note);
+    }
+    
+    // Keeps newId() ahead of ids created on an earlier run
+    private void observeId(String id) {
+        int separator = id.lastIndexOf('_');
+        if (separator < 0) {
+            return;
+        }
+        try {
+            lastIdMillis = Math.max(lastIdMillis, Long.parseLong(id.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            // Not a generated id
+        }
+    }
+}
\ No newline at end of file
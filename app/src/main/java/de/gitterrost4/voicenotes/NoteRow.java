@@ -0,0 +1,86 @@
+package de.gitterrost4.voicenotes;
+
+import java.util.Objects;
+
+// Immutable snapshot of one list row. Notes are mutable, so the list diff compares these
+// captured values instead of the live Note objects. The adapter keeps a row for as long as its
+// note is unchanged, so the display strings are only formatted once per change.
+public final class NoteRow {
+    
+    private static final String COMPLETED_HEADER_ID = "\u0000completed_header";
+    
+    private final String id;
+    private final Note note; // null for the section header
+    private final String content;
+    private final boolean done;
+    private final long durationMs;
+    private final int completedCount;
+    private final boolean expanded;
+    
+    // Formatted on first bind; rows built for notes that are never scrolled to skip the work
+    private String title;
+    private String timestampText;
+    
+    private NoteRow(String id, Note note, int completedCount, boolean expanded) {
+        this.id = id;
+        this.note = note;
+        this.content = note != null ? note.getContent() : null;
+        this.done = note != null && note.isDone();
+        this.durationMs = note != null ? note.getDurationMs() : 0;
+        this.completedCount = completedCount;
+        this.expanded = expanded;
+    }
+    
+    public static NoteRow forNote(Note note) {
+        return new NoteRow(note.getId(), note, 0, false);
+    }
+    
+    public static NoteRow completedHeader(int completedCount, boolean expanded) {
+        return new NoteRow(COMPLETED_HEADER_ID, null, completedCount, expanded);
+    }
+    
+    // Whether this row still shows the note as it is now. Content changes replace the Note object,
+    // so the content reference is enough.
+    public boolean isCurrentFor(Note note) {
+        return this.note == note
+                && content == note.getContent()
+                && done == note.isDone()
+                && durationMs == note.getDurationMs();
+    }
+    
+    public String getId() { return id; }
+    public Note getNote() { return note; }
+    public boolean isHeader() { return note == null; }
+    public int getCompletedCount() { return completedCount; }
+    public boolean isExpanded() { return expanded; }
+    public String getContent() { return content; }
+    public boolean isDone() { return done; }
+    public boolean hasText() { return content != null && !content.trim().isEmpty(); }
+    
+    // Category, followed by the duration for audio notes. Main thread only.
+    public String getTitle() {
+        if (title == null) {
+            String duration = note.getType() == Note.Type.AUDIO ? Note.formatDuration(durationMs) : "";
+            title = duration.isEmpty() ? note.getCategory() : note.getCategory() + " " + duration;
+        }
+        return title;
+    }
+    
+    // Main thread only
+    public String getTimestampText() {
+        if (timestampText == null) {
+            timestampText = note.getFormattedTimestamp();
+        }
+        return timestampText;
+    }
+    
+    public boolean hasSameContent(NoteRow other) {
+        return done == other.done
+                && durationMs == other.durationMs
+                && completedCount == other.completedCount
+                && expanded == other.expanded
+                && Objects.equals(content, other.content)
+                && (note == null) == (other.note == null)
+                && (note == null || Objects.equals(note.getCategory(), other.note.getCategory()));
+    }
+}
\ No newline at end of file
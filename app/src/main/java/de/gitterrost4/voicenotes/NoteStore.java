@@ -0,0 +1,745 @@
+package de.gitterrost4.voicenotes;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Persists notes as a binary snapshot (notes.bin) plus an append-only journal of mutations.
+// Every change appends one small record; the snapshot is only rewritten on compaction.
+// Completed notes are moved into a separate NoteArchive on compaction; startup only reads their
+// count, and they are paged in when asked for.
+// All disk writes happen on a single writer thread, and bursts of requests collapse into one write.
+// There is one store per process, so work that outlives an activity can still record its changes.
+public class NoteStore {
+    
+    private static final String TAG = "NoteStore";
+    private static final String SNAPSHOT_FILE = "notes.bin";
+    private static final String LEGACY_SNAPSHOT_FILE = "notes.json"; // Written by older versions
+    private static final String JOURNAL_FILE = "notes.journal";
+    private static final String FIRST_SCREEN_FILE = "first_screen.json";
+    private static final int FIRST_SCREEN_NOTES = 20;
+    private static final int COMPACTION_THRESHOLD = 500;
+    private static final long ORPHAN_MIN_AGE_MS = 24 * 60 * 60 * 1000L; // Never races a recording being saved
+    private static final long TRASH_RETENTION_MS = 30 * 24 * 60 * 60 * 1000L;
+    
+    private static final String OP_INSERT = "insert";
+    private static final String OP_CONTENT = "content";
+    private static final String OP_DONE = "done";
+    private static final String OP_DELETE = "delete";
+    private static final String OP_DURATION = "duration";
+    private static final String OP_RESTORE = "restore";
+    
+    private static NoteStore instance;
+    
+    private final File snapshotFile;
+    private final File legacySnapshotFile;
+    private final File journalFile;
+    private final File firstScreenFile;
+    private final Gson gson;
+    private final RecordingsDirectory recordings;
+    private final NoteArchive archive;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    
+    // Handed from the calling thread to the writer thread
+    private final ConcurrentLinkedQueue<PendingRecord> pendingRecords = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean journalFlushScheduled = new AtomicBoolean(false);
+    private final AtomicReference<PendingSnapshot> pendingSnapshot = new AtomicReference<>();
+    private final AtomicBoolean journalWriteFailed = new AtomicBoolean(false); // Until a snapshot covers it
+    private final AtomicBoolean snapshotWriteFailed = new AtomicBoolean(false); // Until a snapshot is written
+    
+    // Only touched on the writer thread
+    private FileOutputStream journalStream;
+    private final List<PendingRecord> journalContents = new ArrayList<>();
+    private final List<PendingRecord> unwrittenRecords = new ArrayList<>(); // A failed flush; written first next time
+    private Map<String, Patch> archivePatches = new HashMap<>(); // Journal changes not yet in the archive
+    
+    // Only touched on the main thread
+    private long nextSequence = 0;
+    private int journalRecords = 0;
+    private boolean migrationPending = false;
+    
+    // Coalescing statistics
+    private final AtomicLong requestedSaves = new AtomicLong();
+    private final AtomicLong performedWrites = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    private final Metrics metrics = Metrics.getInstance();
+    
+    public static synchronized NoteStore getInstance(Context context) {
+        if (instance == null) {
+            Gson gson = new GsonBuilder()
+                .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+                .create();
+            instance = new NoteStore(context.getApplicationContext().getFilesDir(), gson,
+                    RecordingsDirectory.getInstance(context));
+        }
+        return instance;
+    }
+    
+    public NoteStore(File directory, Gson gson, RecordingsDirectory recordings) {
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+        this.legacySnapshotFile = new File(directory, LEGACY_SNAPSHOT_FILE);
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.firstScreenFile = new File(directory, FIRST_SCREEN_FILE);
+        this.gson = gson;
+        this.recordings = recordings;
+        this.archive = new NoteArchive(directory, gson.getAdapter(Note.class), recordings);
+    }
+    
+    public interface LoadListener {
+        // Called with successive batches of notes while the snapshot is still being parsed
+        void onBatch(List<Note> batch);
+        // archivedCount completed notes were not loaded; they can be paged in with loadArchivePage()
+        void onLoaded(int archivedCount);
+        void onError(Exception e);
+    }
+    
+    public interface ReconcileListener {
+        // Ids of the given notes whose audio file is gone, and how many unreferenced files were
+        // moved to the trash
+        void onReconciled(List<String> missingNoteIds, int trashedFiles);
+    }
+    
+    public interface ArchivedIdsListener {
+        void onArchivedIds(Set<String> ids);
+    }
+    
+    public interface ExportListener {
+        void onExported(File file, int noteCount);
+        void onError(Exception e);
+    }
+    
+    public interface ArchiveListener {
+        // hasMore is false once the end of the archive has been reached
+        void onArchivePage(List<Note> page, boolean hasMore);
+        void onError(Exception e);
+    }
+    
+    // Replays snapshot plus journal on the writer thread, so it is ordered before any later write.
+    // Notes are handed out in growing batches: the first rows show up quickly, while the number
+    // of hand-offs stays logarithmic in the size of the store. Audio notes whose file is gone are dropped.
+    // Archived notes are only counted.
+    public void load(Executor callbackExecutor, LoadListener listener) {
+        writer.execute(() -> {
+            long start = Metrics.start();
+            try {
+                Map<String, Patch> patches = new LinkedHashMap<>();
+                int records = readJournal(patches);
+                BatchEmitter emitter = new BatchEmitter(callbackExecutor, listener);
+                
+                // A notes.json comes from an older version (the binary snapshot wins if a crash left both):
+                // it is imported now and replaced by the next compaction
+                BinaryNoteFile.Reader snapshot = snapshotFile.exists()
+                        ? BinaryNoteFile.open(snapshotFile, recordings.getDirectory()) : null;
+                boolean migrate = snapshot == null && legacySnapshotFile.exists();
+                List<Note> legacyNotes = migrate
+                        ? BinaryNoteFile.importJson(legacySnapshotFile, gson) : Collections.<Note>emptyList();
+                int snapshotSize = snapshot != null ? snapshot.size() : legacyNotes.size();
+                for (int i = 0; i < snapshotSize; i++) {
+                    Note note = snapshot != null ? snapshot.get(i) : legacyNotes.get(i);
+                    Patch patch = patches.remove(note.getId());
+                    Note current = patch != null ? patch.applyTo(note) : note;
+                    // Completed notes in the snapshot predate the archive, or were completed since
+                    // the last compaction; either way the next compaction moves them over
+                    migrate = migrate || (current != null && current.isDone());
+                    emitter.add(current);
+                }
+                
+                // Whatever is left was inserted after the last compaction, or belongs to an archived note
+                int leftArchive = 0;
+                for (Patch patch : patches.values()) {
+                    emitter.add(patch.applyTo(null));
+                    if (patch.leavesArchive()) {
+                        leftArchive++;
+                    }
+                }
+                emitter.flush();
+                
+                // The caller starts without archived notes, so paging starts from the top again
+                archivePatches = new HashMap<>(patches);
+                archive.resetCursor();
+                int archivedCount = Math.max(0, archive.readCount() - leftArchive);
+                boolean compact = migrate;
+                metrics.record(Metrics.Stage.NOTES_LOAD, start);
+                
+                callbackExecutor.execute(() -> {
+                    // A second load (e.g. a recreated activity) re-reads records already counted
+                    journalRecords = Math.max(journalRecords, records);
+                    migrationPending = migrationPending || compact;
+                    listener.onLoaded(archivedCount);
+                });
+            } catch (Exception e) {
+                callbackExecutor.execute(() -> listener.onError(e));
+            }
+        });
+    }
+    
+    // The newest active notes as of the last compaction, read synchronously so the list can be
+    // drawn before load() has read anything. The file is a few KB at most. It may be out of date;
+    // the notes from load() replace it.
+    public List<Note> readFirstScreen() {
+        if (!firstScreenFile.exists()) {
+            return new ArrayList<>();
+        }
+        Type listType = new TypeToken<List<Note>>(){}.getType();
+        try (BufferedReader reader = new BufferedReader(new FileReader(firstScreenFile))) {
+            List<Note> notes = gson.fromJson(reader, listType);
+            return notes != null ? notes : new ArrayList<>();
+        } catch (IOException | JsonParseException e) {
+            return new ArrayList<>();
+        }
+    }
+    
+    public void recordInsert(Note note) {
+        JournalRecord record = new JournalRecord(OP_INSERT, note.getId());
+        record.note = note.copy();
+        append(record);
+    }
+    
+    public void recordContent(Note note) {
+        recordTranscript(note.getId(), note.getTranscript());
+    }
+    
+    // For changes made without the note at hand, e.g. a transcription finishing in the background
+    public void recordTranscript(String id, Transcript transcript) {
+        JournalRecord record = new JournalRecord(OP_CONTENT, id);
+        record.content = transcript.getText();
+        record.confidence = transcript.getConfidence() > 0 ? transcript.getConfidence() : null;
+        record.words = transcript.getWords();
+        append(record);
+    }
+    
+    // Un-completing carries the whole note: it may only exist in the archive, and has to show up
+    // among the active notes on the next start without reading the archive
+    public void recordDone(Note note) {
+        if (note.isDone()) {
+            JournalRecord record = new JournalRecord(OP_DONE, note.getId());
+            record.done = true;
+            append(record);
+        } else {
+            JournalRecord record = new JournalRecord(OP_RESTORE, note.getId());
+            record.note = note.copy();
+            append(record);
+        }
+    }
+    
+    public void recordDuration(Note note) {
+        JournalRecord record = new JournalRecord(OP_DURATION, note.getId());
+        record.durationMs = note.getDurationMs();
+        append(record);
+    }
+    
+    public void recordDelete(Note note) {
+        append(new JournalRecord(OP_DELETE, note.getId()));
+    }
+    
+    // Reads the next completed notes from the archive, newest first, on the writer thread
+    public void loadArchivePage(int maxNotes, Executor callbackExecutor, ArchiveListener listener) {
+        writer.execute(() -> {
+            try {
+                List<Note> page = new ArrayList<>();
+                boolean hasMore = archive.readPage(maxNotes, archivePatches, page);
+                callbackExecutor.execute(() -> listener.onArchivePage(page, hasMore));
+            } catch (IOException | RuntimeException e) {
+                callbackExecutor.execute(() -> listener.onError(e));
+            }
+        });
+    }
+    
+    // Ids of the archived notes, for telling a note that isn't loaded from one that is gone. Nothing
+    // is reported if the archive can't be read, so a caller never drops anything because of it.
+    public void readArchivedIds(Executor callbackExecutor, ArchivedIdsListener listener) {
+        writer.execute(() -> {
+            Set<String> ids = new HashSet<>();
+            try {
+                archive.collectIds(ids);
+            } catch (IOException e) {
+                return;
+            }
+            callbackExecutor.execute(() -> listener.onArchivedIds(ids));
+        });
+    }
+    
+    // Writes every note, the given loaded ones plus those still in the archive, to target as a JSON
+    // array in the format notes.json had, e.g. for a backup or for tools that don't read notes.bin
+    public void exportJson(Collection<Note> notes, File target, Executor callbackExecutor, ExportListener listener) {
+        List<Note> copies = new ArrayList<>(notes.size());
+        Set<String> loadedIds = new HashSet<>();
+        for (Note note : notes) {
+            copies.add(note.copy());
+            loadedIds.add(note.getId());
+        }
+        writer.execute(() -> {
+            try {
+                List<Note> allNotes = new ArrayList<>(copies);
+                archive.readAll(loadedIds, archivePatches, allNotes);
+                AtomicFileWriter.write(target, out -> BinaryNoteFile.exportJson(allNotes, out, gson));
+                callbackExecutor.execute(() -> listener.onExported(target, allNotes.size()));
+            } catch (IOException | RuntimeException e) {
+                callbackExecutor.execute(() -> listener.onError(e));
+            }
+        });
+    }
+    
+    // Background pass over the recordings directory, for a caller holding the given (fully loaded)
+    // notes: reports notes whose audio file has gone since they were loaded, and moves audio files
+    // that neither these notes nor the archived ones refer to into the trash. Files that have been
+    // in the trash for a month are deleted.
+    public void reconcileRecordings(Collection<Note> notes, Executor callbackExecutor, ReconcileListener listener) {
+        List<String> noteIds = new ArrayList<>(notes.size());
+        List<String> paths = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            if (note.getType() == Note.Type.AUDIO && note.getFilePath() != null) {
+                noteIds.add(note.getId());
+                paths.add(note.getFilePath());
+            }
+        }
+        writer.execute(() -> {
+            List<String> missingNoteIds = new ArrayList<>();
+            for (int i = 0; i < noteIds.size(); i++) {
+                if (!recordings.exists(paths.get(i))) {
+                    missingNoteIds.add(noteIds.get(i));
+                }
+            }
+            int trashed = 0;
+            try {
+                archive.collectAudioPaths(paths);
+                for (File orphan : recordings.findOrphans(paths, ORPHAN_MIN_AGE_MS)) {
+                    if (recordings.moveToTrash(orphan)) {
+                        trashed++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Without every archived path, no file is known to be unreferenced
+            }
+            recordings.emptyTrash(TRASH_RETENTION_MS);
+            int trashedFiles = trashed;
+            callbackExecutor.execute(() -> listener.onReconciled(missingNoteIds, trashedFiles));
+        });
+    }
+    
+    // Also true after a journal write failed, so a snapshot gets a chance to save those changes, and
+    // after a snapshot write failed, since the journal it was meant to replace keeps growing
+    public boolean shouldCompact() {
+        return migrationPending || journalRecords >= COMPACTION_THRESHOLD || journalWriteFailed.get()
+                || snapshotWriteFailed.get();
+    }
+    
+    public boolean hasPendingChanges() {
+        return migrationPending || journalRecords > 0 || journalWriteFailed.get() || snapshotWriteFailed.get();
+    }
+    
+    // Takes an immutable copy of the notes on the calling thread and rewrites the snapshot on the
+    // writer thread. If a snapshot is still waiting to be written, it is replaced rather than queued.
+    public void compact(Collection<Note> notes) {
+        List<Note> copies = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            copies.add(note.copy());
+        }
+        journalRecords = 0;
+        migrationPending = false;
+        journalWriteFailed.set(false); // Set again if writing still fails
+        snapshotWriteFailed.set(false);
+        requestedSaves.incrementAndGet();
+        
+        PendingSnapshot snapshot = new PendingSnapshot(copies, nextSequence);
+        if (pendingSnapshot.getAndSet(snapshot) == null) {
+            writer.execute(this::writePendingSnapshot);
+        }
+    }
+    
+    public long getRequestedSaves() {
+        return requestedSaves.get();
+    }
+    
+    public long getPerformedWrites() {
+        return performedWrites.get();
+    }
+    
+    public double getAverageWriteMillis() {
+        long writes = performedWrites.get();
+        return writes == 0 ? 0 : totalWriteNanos.get() / (writes * 1_000_000.0);
+    }
+    
+    public double getMaxWriteMillis() {
+        return maxWriteNanos.get() / 1_000_000.0;
+    }
+    
+    private void append(JournalRecord record) {
+        journalRecords++;
+        requestedSaves.incrementAndGet();
+        pendingRecords.add(new PendingRecord(nextSequence++, gson.toJson(record), record));
+        if (journalFlushScheduled.compareAndSet(false, true)) {
+            writer.execute(this::flushJournal);
+        }
+    }
+    
+    // Writer thread: appends every record queued so far in one write and one fsync. If that fails,
+    // the records are kept and written ahead of the next ones; a compaction in between makes them
+    // part of the snapshot instead.
+    private void flushJournal() {
+        journalFlushScheduled.set(false);
+        List<PendingRecord> batch = new ArrayList<>(unwrittenRecords);
+        PendingRecord record;
+        while ((record = pendingRecords.poll()) != null) {
+            batch.add(record);
+            // Pages read from the archive later in this session have to see these changes too
+            patchFor(archivePatches, record.record.id).add(record.record);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        StringBuilder lines = new StringBuilder();
+        for (PendingRecord pending : batch) {
+            lines.append(pending.line).append('\n');
+        }
+        
+        long start = System.nanoTime();
+        try {
+            if (journalStream == null) {
+                // A crash or a failed write may have left part of a line; a line break ends it, so
+                // it is skipped on replay instead of swallowing the next record
+                boolean endsMidLine = endsMidLine(journalFile);
+                journalStream = new FileOutputStream(journalFile, true);
+                if (endsMidLine) {
+                    journalStream.write('\n');
+                }
+            }
+            journalStream.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            journalStream.getFD().sync();
+            journalContents.addAll(batch);
+            unwrittenRecords.clear();
+            metrics.add(Metrics.Counter.JOURNAL_RECORDS, batch.size());
+        } catch (IOException e) {
+            closeJournal();
+            unwrittenRecords.clear();
+            unwrittenRecords.addAll(batch);
+            journalWriteFailed.set(true);
+            metrics.increment(Metrics.Counter.JOURNAL_WRITE_FAILURES);
+            Log.w(TAG, "Journal write failed, " + batch.size() + " changes kept for the next write", e);
+        }
+        recordWrite(start);
+        metrics.record(Metrics.Stage.JOURNAL_FLUSH, start);
+    }
+    
+    // Writer thread: writes the newest requested snapshot, then drops the journal records it contains
+    private void writePendingSnapshot() {
+        PendingSnapshot snapshot = pendingSnapshot.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        try {
+            // The archive goes first: until the snapshot is replaced, the old one still has every note
+            List<Note> activeNotes = new ArrayList<>();
+            List<Note> doneNotes = new ArrayList<>();
+            for (Note note : snapshot.notes) {
+                (note.isDone() ? doneNotes : activeNotes).add(note);
+            }
+            archive.merge(doneNotes, archivePatches);
+            writeSnapshot(activeNotes);
+            legacySnapshotFile.delete();
+            rewriteJournal(snapshot.sequence);
+            writeFirstScreen(activeNotes);
+        } catch (IOException e) {
+            // The journal is kept, so nothing is lost; the next compaction retries
+            snapshotWriteFailed.set(true);
+            metrics.increment(Metrics.Counter.SNAPSHOT_WRITE_FAILURES);
+            Log.w(TAG, "Snapshot write failed, keeping the journal", e);
+        }
+        recordWrite(start);
+        metrics.record(Metrics.Stage.SNAPSHOT_WRITE, start);
+    }
+    
+    private void recordWrite(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        performedWrites.incrementAndGet();
+        totalWriteNanos.addAndGet(elapsed);
+        long max;
+        do {
+            max = maxWriteNanos.get();
+        } while (elapsed > max && !maxWriteNanos.compareAndSet(max, elapsed));
+    }
+    
+    // Folds the journal into per-note patches and returns the number of records read
+    private int readJournal(Map<String, Patch> patches) throws IOException {
+        int records = 0;
+        if (!journalFile.exists()) {
+            return records;
+        }
+        
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JournalRecord record;
+                try {
+                    record = gson.fromJson(line, JournalRecord.class);
+                } catch (JsonParseException e) {
+                    continue; // Torn write from a crash; the record never completed
+                }
+                if (record == null || record.op == null || record.id == null) {
+                    continue;
+                }
+                patchFor(patches, record.id).add(record);
+                records++;
+            }
+        }
+        return records;
+    }
+    
+    private void writeSnapshot(List<Note> notes) throws IOException {
+        List<Note> validNotes = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            if (recordings.hasAudio(note)) {
+                validNotes.add(note);
+            }
+        }
+        
+        BinaryNoteFile.write(snapshotFile, validNotes, recordings.getDirectory());
+    }
+    
+    private void writeFirstScreen(List<Note> activeNotes) throws IOException {
+        List<Note> newest = new ArrayList<>(activeNotes);
+        Collections.sort(newest, NoteRepository.NEWEST_FIRST); // Usually sorted already
+        List<Note> firstScreen = new ArrayList<>(newest.subList(0, Math.min(FIRST_SCREEN_NOTES, newest.size())));
+        AtomicFileWriter.write(firstScreenFile, out -> gson.toJson(firstScreen, out));
+    }
+    
+    // Keeps only records newer than the snapshot. The journal is replaced atomically as well;
+    // an existing (possibly empty) journal also marks the snapshot as current format.
+    private void rewriteJournal(long snapshotSequence) throws IOException {
+        closeJournal();
+        List<PendingRecord> remaining = new ArrayList<>();
+        for (PendingRecord record : journalContents) {
+            if (record.sequence >= snapshotSequence) {
+                remaining.add(record);
+            }
+        }
+        for (PendingRecord record : unwrittenRecords) {
+            if (record.sequence >= snapshotSequence) {
+                remaining.add(record);
+            }
+        }
+        AtomicFileWriter.write(journalFile, out -> {
+            for (PendingRecord record : remaining) {
+                out.write(record.line);
+                out.write('\n');
+            }
+        });
+        journalContents.clear();
+        journalContents.addAll(remaining);
+        unwrittenRecords.clear();
+    }
+    
+    private static boolean endsMidLine(File file) throws IOException {
+        if (file.length() == 0) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(in.length() - 1);
+            return in.read() != '\n';
+        }
+    }
+    
+    private void closeJournal() {
+        if (journalStream != null) {
+            try {
+                journalStream.close();
+            } catch (IOException e) {
+                // Nothing left to flush into
+            }
+            journalStream = null;
+        }
+    }
+    
+    private static Patch patchFor(Map<String, Patch> patches, String id) {
+        Patch patch = patches.get(id);
+        if (patch == null) {
+            patch = new Patch();
+            patches.put(id, patch);
+        }
+        return patch;
+    }
+    
+    private class BatchEmitter {
+        private static final int FIRST_BATCH_SIZE = 50;
+        private static final int MAX_BATCH_SIZE = 5000;
+        
+        private final Executor callbackExecutor;
+        private final LoadListener listener;
+        private List<Note> batch = new ArrayList<>();
+        private int batchSize = FIRST_BATCH_SIZE;
+        
+        BatchEmitter(Executor callbackExecutor, LoadListener listener) {
+            this.callbackExecutor = callbackExecutor;
+            this.listener = listener;
+        }
+        
+        void add(Note note) {
+            if (note == null || !recordings.hasAudio(note)) {
+                return;
+            }
+            batch.add(note);
+            if (batch.size() >= batchSize) {
+                flush();
+                batchSize = Math.min(batchSize * 2, MAX_BATCH_SIZE);
+            }
+        }
+        
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Note> ready = batch;
+            batch = new ArrayList<>();
+            callbackExecutor.execute(() -> listener.onBatch(ready));
+        }
+    }
+    
+    private static class PendingRecord {
+        final long sequence;
+        final String line;
+        final JournalRecord record;
+        
+        PendingRecord(long sequence, String line, JournalRecord record) {
+            this.sequence = sequence;
+            this.line = line;
+            this.record = record;
+        }
+    }
+    
+    private static class PendingSnapshot {
+        final List<Note> notes;
+        final long sequence; // Records with a lower sequence number are contained in the snapshot
+        
+        PendingSnapshot(List<Note> notes, long sequence) {
+            this.notes = notes;
+            this.sequence = sequence;
+        }
+    }
+    
+    // One line of the journal; unused fields stay null and are omitted by Gson
+    private static class JournalRecord {
+        String op;
+        String id;
+        Note note;
+        String content;
+        Float confidence; // With content, for transcriptions
+        TranscriptWords words;
+        Boolean done;
+        Long durationMs;
+        
+        JournalRecord(String op, String id) {
+            this.op = op;
+            this.id = id;
+        }
+    }
+    
+    // All journal records for one note folded together, so replay is a single pass over the snapshot.
+    // Replay is idempotent: re-applying a journal that the snapshot already contains is harmless.
+    static class Patch {
+        private Note inserted;
+        private boolean deleted;
+        private Transcript content;
+        private Boolean done;
+        private Long durationMs;
+        private boolean insertedInJournal; // Created after the last compaction, so never archived
+        private boolean restored; // Moved back out of the archive
+        
+        void add(JournalRecord record) {
+            switch (record.op) {
+                case OP_INSERT:
+                case OP_RESTORE:
+                    inserted = record.note;
+                    deleted = false;
+                    content = null;
+                    done = null;
+                    durationMs = null;
+                    insertedInJournal = insertedInJournal || record.op.equals(OP_INSERT);
+                    restored = restored || record.op.equals(OP_RESTORE);
+                    break;
+                case OP_CONTENT:
+                    content = record.content != null ? new Transcript(record.content,
+                            record.confidence != null ? record.confidence : 0, record.words) : null;
+                    break;
+                case OP_DONE:
+                    done = record.done;
+                    break;
+                case OP_DURATION:
+                    durationMs = record.durationMs;
+                    break;
+                case OP_DELETE:
+                    inserted = null;
+                    deleted = true;
+                    content = null;
+                    done = null;
+                    durationMs = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        // The journal holds the whole current note, so an archived copy is outdated
+        boolean supersedesArchive() {
+            return inserted != null;
+        }
+        
+        // True if this removes a note from the archive, i.e. the archive count is one too high
+        boolean leavesArchive() {
+            return !insertedInJournal && (restored || deleted);
+        }
+        
+        // Returns the resulting note, or null if the note does not exist after replay
+        Note applyTo(Note base) {
+            Note note = inserted != null ? inserted : (deleted ? null : base);
+            if (note == null) {
+                return null;
+            }
+            if (content != null) {
+                note.setTranscript(content);
+            }
+            if (done != null) {
+                note.setDone(done);
+            }
+            if (durationMs != null) {
+                note.setDurationMs(durationMs);
+            }
+            return note;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,234 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+// Streaming codec for Note. Reads field by field without building a JsonObject tree per note,
+// and handles the old format where an audio note's content was its file path.
+public class NoteTypeAdapter extends TypeAdapter<Note> {
+    
+    private static final TranscriptWords.GsonAdapter WORDS = new TranscriptWords.GsonAdapter();
+    
+    @Override
+    public void write(JsonWriter out, Note note) throws IOException {
+        if (note == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(note.getId());
+        out.name("type").value(note.getType().name());
+        out.name("category").value(note.getCategory());
+        out.name("timestamp").value(formatTimestamp(note.getTimestamp()));
+        out.name("content").value(note.getContent());
+        if (note.getFilePath() != null) {
+            out.name("filePath").value(note.getFilePath());
+        }
+        out.name("done").value(note.isDone());
+        if (note.getDurationMs() > 0) {
+            out.name("durationMs").value(note.getDurationMs());
+        }
+        if (note.getConfidence() > 0) {
+            out.name("confidence").value(note.getConfidence());
+        }
+        if (note.getWords() != null) {
+            out.name("words");
+            WORDS.write(out, note.getWords());
+        }
+        if (note.getStoredRecordingProfile() != null) {
+            out.name("recordingProfile").value(note.getStoredRecordingProfile().getKey());
+        }
+        out.endObject();
+    }
+    
+    @Override
+    public Note read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        
+        String id = null;
+        Note.Type type = null;
+        String category = null;
+        LocalDateTime timestamp = null;
+        String content = null;
+        String filePath = null;
+        boolean hasFilePath = false;
+        boolean done = false;
+        long durationMs = 0;
+        float confidence = 0;
+        TranscriptWords words = null;
+        RecordingProfile recordingProfile = null;
+        
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    id = in.nextString();
+                    break;
+                case "type":
+                    type = Note.Type.valueOf(in.nextString());
+                    break;
+                case "category":
+                    category = in.nextString();
+                    break;
+                case "timestamp":
+                    timestamp = parseTimestamp(in.nextString());
+                    break;
+                case "content":
+                    content = in.nextString();
+                    break;
+                case "filePath":
+                    filePath = in.nextString();
+                    hasFilePath = true;
+                    break;
+                case "done":
+                    done = in.nextBoolean();
+                    break;
+                case "durationMs":
+                    durationMs = in.nextLong();
+                    break;
+                case "confidence":
+                    confidence = (float) in.nextDouble();
+                    break;
+                case "words":
+                    words = WORDS.read(in);
+                    break;
+                case "recordingProfile":
+                    recordingProfile = RecordingProfile.fromKey(in.nextString(), null);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        
+        if (id == null || type == null || timestamp == null) {
+            throw new JsonParseException("Incomplete note record: " + id);
+        }
+        
+        Note note;
+        if (type == Note.Type.TEXT) {
+            note = new Note(id, type, category, timestamp, content);
+        } else if (hasFilePath) {
+            // New format: content is transcription, filePath is separate
+            note = new Note(id, type, category, timestamp, content, filePath);
+        } else {
+            // Old format: content was the file path
+            note = new Note(id, type, category, timestamp, "", content);
+        }
+        if (content != null && hasFilePath) {
+            note.setTranscript(new Transcript(content, confidence, words));
+        }
+        note.setDone(done);
+        note.setDurationMs(durationMs);
+        note.setRecordingProfile(recordingProfile);
+        return note;
+    }
+    
+    // Same output as DateTimeFormatter.ISO_LOCAL_DATE_TIME, without going through the formatter
+    static String formatTimestamp(LocalDateTime timestamp) {
+        StringBuilder sb = new StringBuilder(29);
+        int year = timestamp.getYear();
+        if (year < 0 || year > 9999) {
+            return timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        }
+        appendPadded(sb, year, 4).append('-');
+        appendPadded(sb, timestamp.getMonthValue(), 2).append('-');
+        appendPadded(sb, timestamp.getDayOfMonth(), 2).append('T');
+        appendPadded(sb, timestamp.getHour(), 2).append(':');
+        appendPadded(sb, timestamp.getMinute(), 2).append(':');
+        appendPadded(sb, timestamp.getSecond(), 2);
+        int nano = timestamp.getNano();
+        if (nano > 0) {
+            int digits = 9;
+            while (nano % 10 == 0) {
+                nano /= 10;
+                digits--;
+            }
+            sb.append('.');
+            appendPadded(sb, nano, digits);
+        }
+        return sb.toString();
+    }
+    
+    // Fast path for "yyyy-MM-ddTHH:mm[:ss[.fffffffff]]"; anything else goes through the formatter
+    static LocalDateTime parseTimestamp(String value) {
+        int length = value.length();
+        if (length >= 16 && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == 'T'
+                && value.charAt(13) == ':') {
+            int year = digits(value, 0, 4);
+            int month = digits(value, 5, 7);
+            int day = digits(value, 8, 10);
+            int hour = digits(value, 11, 13);
+            int minute = digits(value, 14, 16);
+            int second = 0;
+            int nano = 0;
+            boolean valid = year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0;
+            
+            if (valid && length > 16) {
+                valid = length >= 19 && value.charAt(16) == ':';
+                second = valid ? digits(value, 17, 19) : -1;
+                valid = second >= 0;
+                if (valid && length > 19) {
+                    int fractionDigits = length - 20;
+                    valid = value.charAt(19) == '.' && fractionDigits >= 1 && fractionDigits <= 9;
+                    nano = valid ? digits(value, 20, length) : -1;
+                    valid = nano >= 0;
+                    for (int i = fractionDigits; valid && i < 9; i++) {
+                        nano *= 10;
+                    }
+                }
+            }
+            
+            if (valid) {
+                try {
+                    return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+                } catch (java.time.DateTimeException e) {
+                    // Out-of-range field; let the formatter report it
+                }
+            }
+        }
+        try {
+            return LocalDateTime.parse(value, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        } catch (DateTimeParseException e) {
+            throw new JsonParseException("Invalid timestamp: " + value, e);
+        }
+    }
+    
+    private static int digits(String value, int start, int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+    
+    private static StringBuilder appendPadded(StringBuilder sb, int value, int width) {
+        for (int bound = 10, i = 1; i < width; i++, bound *= 10) {
+            if (value < bound) {
+                sb.append('0');
+            }
+        }
+        return sb.append(value);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package de.gitterrost4.voicenotes;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import com.google.gson.annotations.SerializedName;
+
+// How a note is recorded, and therefore what the recognizer has to be told about its audio. Each
+// note keeps the profile it was recorded with, so changing the setting never changes how older
+// notes are sent. The extensions differ, so a recording's profile can also be told from its name.
+// Sizes below are of a minute of speech; AMR and PCM are exact apart from the file header, Opus
+// follows its target bitrate and was not measured on recorded files.
+public enum RecordingProfile {
+    // 12.2 kbit/s, 96,000 bytes a minute in 32-byte frames, plus the 3GP tables; audio up to 4 kHz
+    @SerializedName("amr_nb")
+    AMR_NB("amr_nb", MediaRecorder.OutputFormat.THREE_GPP, MediaRecorder.AudioEncoder.AMR_NB, 8000, 12_200,
+            ".3gp", "AMR", 1, R.string.recording_profile_amr_nb),
+    // 23.85 kbit/s, 183,000 bytes a minute in 61-byte frames; audio up to 8 kHz
+    @SerializedName("amr_wb")
+    AMR_WB("amr_wb", MediaRecorder.OutputFormat.AMR_WB, MediaRecorder.AudioEncoder.AMR_WB, 16000, 23_850,
+            ".awb", "AMR_WB", 1, R.string.recording_profile_amr_wb),
+    // 16 kbit/s target, variable, so about 120 KB a minute; audio up to 8 kHz. Can't be cut into
+    // segments, so a note over a minute is sent whole, and the recognizer turns it down.
+    @SerializedName("opus")
+    OGG_OPUS("opus", MediaRecorder.OutputFormat.OGG, MediaRecorder.AudioEncoder.OPUS, 16000, 16_000,
+            ".ogg", "OGG_OPUS", Build.VERSION_CODES.Q, R.string.recording_profile_opus),
+    // Uncompressed, 1,920,000 bytes a minute; only recorded by live transcription, never selected
+    @SerializedName("pcm")
+    PCM_WAV("pcm", 0, 0, LiveRecorder.SAMPLE_RATE, LiveRecorder.SAMPLE_RATE * 16, LiveRecorder.WAV_EXTENSION,
+            "LINEAR16", 1, 0);
+    
+    public static final RecordingProfile DEFAULT = AMR_NB;
+    
+    private final String key;
+    private final int outputFormat;
+    private final int audioEncoder;
+    private final int sampleRate;
+    private final int bitRate;
+    private final String extension;
+    private final String encoding; // As the recognize API names it
+    private final int minSdk;
+    private final int labelResource;
+    
+    RecordingProfile(String key, int outputFormat, int audioEncoder, int sampleRate, int bitRate, String extension,
+                     String encoding, int minSdk, int labelResource) {
+        this.key = key;
+        this.outputFormat = outputFormat;
+        this.audioEncoder = audioEncoder;
+        this.sampleRate = sampleRate;
+        this.bitRate = bitRate;
+        this.extension = extension;
+        this.encoding = encoding;
+        this.minSdk = minSdk;
+        this.labelResource = labelResource;
+    }
+    
+    public String getKey() { return key; }
+    public int getSampleRate() { return sampleRate; }
+    public int getBitRate() { return bitRate; }
+    public String getExtension() { return extension; }
+    public String getEncoding() { return encoding; }
+    public int getLabelResource() { return labelResource; }
+    
+    // AMR-NB or AMR-WB, which AmrFile can index, cut and join
+    public boolean isAmr() {
+        return this == AMR_NB || this == AMR_WB;
+    }
+    
+    // Offered in Settings on this device
+    public boolean isSelectable() {
+        return labelResource != 0 && Build.VERSION.SDK_INT >= minSdk;
+    }
+    
+    // Real files differ by their headers, pauses and Opus's variable rate
+    public long getBytesPerMinute() {
+        if (isAmr()) {
+            // Each 20 ms frame is padded to whole bytes and starts with a header byte
+            long frameBytes = ((long) bitRate * AmrFile.FRAME_MS / 1000 + 7) / 8 + 1;
+            return frameBytes * (60_000 / AmrFile.FRAME_MS);
+        }
+        return bitRate / 8L * 60;
+    }
+    
+    // Sets everything but the audio source and the output file
+    public void configure(MediaRecorder recorder) {
+        recorder.setOutputFormat(outputFormat);
+        recorder.setAudioEncoder(audioEncoder);
+        recorder.setAudioSamplingRate(sampleRate);
+        recorder.setAudioEncodingBitRate(bitRate);
+        recorder.setAudioChannels(1);
+    }
+    
+    // The given default if the key is unknown, e.g. from a newer version
+    public static RecordingProfile fromKey(String key, RecordingProfile fallback) {
+        for (RecordingProfile profile : values()) {
+            if (profile.key.equals(key)) {
+                return profile;
+            }
+        }
+        return fallback;
+    }
+    
+    // For recordings made before profiles were stored with notes; those were AMR-NB in 3GP, or WAV
+    public static RecordingProfile forFile(String filePath) {
+        if (filePath != null) {
+            for (RecordingProfile profile : values()) {
+                if (filePath.endsWith(profile.extension)) {
+                    return profile;
+                }
+            }
+        }
+        return DEFAULT;
+    }
+}
\ No newline at end of file
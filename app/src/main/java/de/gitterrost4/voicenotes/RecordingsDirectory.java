@@ -0,0 +1,205 @@
+package de.gitterrost4.voicenotes;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The files in the recordings directory, listed once and then kept current by the app's own
+// recordings and deletes, plus a FileObserver for changes made by anything else. Checking whether
+// a note's audio is still there is a set lookup instead of a stat call per note. Files no note
+// refers to are moved to a trash directory next to it rather than deleted. Thread-safe.
+public class RecordingsDirectory {
+    
+    private static final String DIRECTORY = "recordings";
+    private static final String TRASH_DIRECTORY = "recordings_trash";
+    private static final int WATCHED_EVENTS = FileObserver.CREATE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF;
+    
+    private static RecordingsDirectory instance;
+    
+    private final File directory;
+    private final File trash;
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    private final FileObserver observer; // Held so it isn't collected, which would stop the watch
+    private volatile boolean listed = false;
+    
+    public static synchronized RecordingsDirectory getInstance(Context context) {
+        if (instance == null) {
+            File baseDirectory = context.getApplicationContext().getExternalFilesDir(null);
+            if (baseDirectory == null) {
+                baseDirectory = context.getApplicationContext().getFilesDir(); // External storage unavailable
+            }
+            instance = new RecordingsDirectory(new File(baseDirectory, DIRECTORY));
+        }
+        return instance;
+    }
+    
+    RecordingsDirectory(File directory) {
+        this.directory = directory;
+        this.trash = new File(directory.getParentFile(), TRASH_DIRECTORY);
+        this.observer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new Watcher(directory) : new Watcher(directory.getPath());
+    }
+    
+    public File getDirectory() {
+        return directory;
+    }
+    
+    // Where a new recording with the given file name goes; the directory is created if needed
+    public File newFile(String name) {
+        directory.mkdirs();
+        return new File(directory, name);
+    }
+    
+    // Registers a recording the app has just written, without waiting for the observer
+    public void added(File file) {
+        if (isInDirectory(file)) {
+            names.add(file.getName());
+        }
+    }
+    
+    public boolean delete(String path) {
+        File file = new File(path);
+        boolean deleted = file.delete();
+        if (isInDirectory(file)) {
+            names.remove(file.getName());
+        }
+        return deleted;
+    }
+    
+    // Moves a file out of the directory into the trash, where it stays for a while in case a note
+    // still needed it, e.g. one restored from an older backup. The move is the start of that while.
+    public boolean moveToTrash(File file) {
+        trash.mkdirs();
+        File target = new File(trash, file.getName());
+        if (target.exists()) {
+            target = new File(trash, System.currentTimeMillis() + "_" + file.getName());
+        }
+        if (!file.renameTo(target)) {
+            return false;
+        }
+        target.setLastModified(System.currentTimeMillis());
+        if (isInDirectory(file)) {
+            names.remove(file.getName());
+        }
+        return true;
+    }
+    
+    // Deletes the files that have been in the trash for longer than maxAgeMs; returns how many
+    public int emptyTrash(long maxAgeMs) {
+        File[] files = trash.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.isFile() && file.lastModified() < cutoff && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+    
+    public boolean exists(String path) {
+        File file = new File(path);
+        if (!isInDirectory(file)) {
+            return file.exists(); // Recorded elsewhere by an older version
+        }
+        listIfNeeded();
+        return names.contains(file.getName());
+    }
+    
+    // Text notes have no file and are always valid
+    public boolean hasAudio(Note note) {
+        if (note.getType() == Note.Type.AUDIO) {
+            return note.getFilePath() != null && exists(note.getFilePath());
+        }
+        return true;
+    }
+    
+    // Files that none of the given paths refer to and that haven't been written to for minAgeMs,
+    // so a recording still in progress (or just finished, but not saved yet) is never included
+    public List<File> findOrphans(Collection<String> referencedPaths, long minAgeMs) {
+        listIfNeeded();
+        Set<String> referenced = new HashSet<>();
+        for (String path : referencedPaths) {
+            File file = new File(path);
+            if (isInDirectory(file)) {
+                referenced.add(file.getName());
+            }
+        }
+        long cutoff = System.currentTimeMillis() - minAgeMs;
+        List<File> orphans = new ArrayList<>();
+        for (String name : names) {
+            if (!referenced.contains(name)) {
+                File file = new File(directory, name);
+                if (file.isFile() && file.lastModified() < cutoff) {
+                    orphans.add(file);
+                }
+            }
+        }
+        return orphans;
+    }
+    
+    // The one directory listing. The observer starts first, so nothing changing in between is missed.
+    private void listIfNeeded() {
+        if (!listed) {
+            listDirectory();
+        }
+    }
+    
+    private synchronized void listDirectory() {
+        if (listed || !directory.isDirectory()) {
+            return; // Without a directory there are no files; it is listed once a recording creates it
+        }
+        observer.startWatching();
+        String[] files = directory.list();
+        if (files != null) {
+            for (String name : files) {
+                names.add(name);
+            }
+        }
+        listed = true;
+    }
+    
+    private boolean isInDirectory(File file) {
+        return directory.equals(file.getParentFile());
+    }
+    
+    // Keeps the names current when something else changes the directory
+    private class Watcher extends FileObserver {
+        
+        @TargetApi(Build.VERSION_CODES.Q)
+        Watcher(File directory) {
+            super(directory, WATCHED_EVENTS);
+        }
+        
+        @SuppressWarnings("deprecation") // The File constructor needs API 29
+        Watcher(String path) {
+            super(path, WATCHED_EVENTS);
+        }
+        
+        @Override
+        public void onEvent(int event, String name) {
+            if ((event & FileObserver.DELETE_SELF) != 0) {
+                names.clear();
+            } else if (name == null) {
+                return;
+            } else if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+                names.add(name);
+            } else {
+                names.remove(name);
+            }
+        }
+    }
+}
\ No newline at end of file
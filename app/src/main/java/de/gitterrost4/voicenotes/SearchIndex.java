@@ -0,0 +1,386 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+// Inverted index over note content (text and transcriptions). Tokens are lower-cased with accents
+// stripped, and kept sorted, so every query word matches as a prefix via one sorted range. Each
+// note gets a small number (its slot), and a token's postings are a sorted array of slots, so the
+// many tokens a short prefix covers are merged in one bit set instead of one hash set of ids.
+// It is updated per note as notes change. The tokens are saved in search_index.json with the
+// SHA-256 of the content they came from, so startup only re-tokenizes notes that changed in the
+// meantime. Saved entries of notes that aren't loaded, i.e. archived ones, are kept as they are.
+// All state is owned by the main thread; building from the notes and the file write happen in the background.
+public class SearchIndex {
+    
+    private static final String INDEX_FILE = "search_index.json";
+    private static final int FORMAT_VERSION = 2; // Bump when tokenization or the content hash changes
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+    
+    private final File indexFile;
+    private final Gson gson = new Gson();
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private final AtomicReference<StoredIndex> pendingSave = new AtomicReference<>();
+    
+    // Main thread only
+    private TreeMap<String, Postings> postings = new TreeMap<>();
+    private Map<String, Entry> entries = new HashMap<>();
+    private Slots slots = new Slots();
+    private final Map<String, String> changesWhileBuilding = new LinkedHashMap<>(); // Content by id, null if deleted
+    private boolean ready = false;
+    private boolean dirty = false;
+    
+    public SearchIndex(File directory) {
+        this.indexFile = new File(directory, INDEX_FILE);
+    }
+    
+    // Builds the index for the loaded notes in the background, reusing saved tokens for notes whose
+    // content hash still matches. Saved notes that aren't among them keep their tokens; they are
+    // re-indexed by put() once paged in. Changes made in the meantime are applied on top before
+    // onReady runs on the callback executor.
+    public void build(Collection<Note> notes, Executor callbackExecutor, Runnable onReady) {
+        Map<String, String> contents = new HashMap<>(notes.size() * 2);
+        for (Note note : notes) {
+            contents.put(note.getId(), contentOf(note));
+        }
+        io.execute(() -> {
+            Map<String, Entry> saved = readEntries();
+            TreeMap<String, Postings> builtPostings = new TreeMap<>();
+            Slots builtSlots = new Slots();
+            Map<String, Entry> builtEntries = new HashMap<>(Math.max(saved.size(), contents.size()) * 2);
+            boolean changed = false;
+            for (Map.Entry<String, String> note : contents.entrySet()) {
+                String hash = hash(note.getValue());
+                Entry entry = saved.remove(note.getKey());
+                if (entry == null || !hash.equals(entry.hash) || entry.tokens == null) {
+                    entry = new Entry(hash, tokenize(note.getValue()));
+                    changed = true;
+                }
+                builtEntries.put(note.getKey(), entry);
+                addPostings(builtPostings, builtSlots.assign(note.getKey()), entry);
+            }
+            for (Map.Entry<String, Entry> archived : saved.entrySet()) {
+                if (archived.getValue().tokens != null) {
+                    builtEntries.put(archived.getKey(), archived.getValue());
+                    addPostings(builtPostings, builtSlots.assign(archived.getKey()), archived.getValue());
+                }
+            }
+            boolean rewrite = changed;
+            callbackExecutor.execute(() -> {
+                postings = builtPostings;
+                entries = builtEntries;
+                slots = builtSlots;
+                ready = true;
+                dirty = dirty || rewrite;
+                for (Map.Entry<String, String> change : changesWhileBuilding.entrySet()) {
+                    if (change.getValue() != null) {
+                        putContent(change.getKey(), change.getValue());
+                    } else {
+                        remove(change.getKey());
+                    }
+                }
+                changesWhileBuilding.clear();
+                onReady.run();
+            });
+        });
+    }
+    
+    // Indexes a new note or re-indexes one whose content changed
+    public void put(Note note) {
+        putContent(note.getId(), contentOf(note));
+    }
+    
+    public void remove(String noteId) {
+        if (!ready) {
+            changesWhileBuilding.put(noteId, null);
+            return;
+        }
+        Entry removed = entries.remove(noteId);
+        if (removed == null) {
+            return;
+        }
+        removePostings(slots.release(noteId), removed);
+        dirty = true;
+    }
+    
+    // Returns the ids of notes containing a word starting with every word of the query,
+    // or null if there is nothing to filter by: the query has no words or the index isn't built yet
+    public Set<String> search(String query) {
+        String[] terms = tokenize(query);
+        if (terms.length == 0 || !ready) {
+            return null;
+        }
+        
+        BitSet matches = null;
+        for (String term : terms) {
+            BitSet termMatches = matchPrefix(term);
+            if (matches == null) {
+                matches = termMatches;
+            } else {
+                matches.and(termMatches);
+            }
+            if (matches.isEmpty()) {
+                return Collections.emptySet();
+            }
+        }
+        
+        Set<String> result = new HashSet<>(matches.cardinality() * 4 / 3 + 1);
+        for (int slot = matches.nextSetBit(0); slot >= 0; slot = matches.nextSetBit(slot + 1)) {
+            result.add(slots.idAt(slot));
+        }
+        return result;
+    }
+    
+    // Writes the index if it changed since the last save; a save that is still waiting is replaced
+    public void save() {
+        if (!ready || !dirty) {
+            return; // Until the build has read it, the file holds entries we haven't taken over
+        }
+        dirty = false;
+        StoredIndex snapshot = new StoredIndex(FORMAT_VERSION, new HashMap<>(entries)); // Entries are immutable
+        if (pendingSave.getAndSet(snapshot) == null) {
+            io.execute(this::writePendingSave);
+        }
+    }
+    
+    // Lower-cases, strips accents ("Müller" finds "muller" and vice versa) and splits on anything
+    // that is not a letter or digit. Duplicates are dropped.
+    static String[] tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return new String[0];
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        normalized = COMBINING_MARKS.matcher(normalized).replaceAll("").toLowerCase(Locale.ROOT);
+        Set<String> tokens = new HashSet<>();
+        for (String token : SEPARATORS.split(normalized)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+    
+    private BitSet matchPrefix(String prefix) {
+        // Every token starting with the prefix sorts between the prefix itself and prefix + U+FFFF
+        BitSet matches = new BitSet(slots.size());
+        for (Postings range : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+            range.addTo(matches);
+        }
+        return matches;
+    }
+    
+    private void putContent(String noteId, String content) {
+        if (!ready) {
+            changesWhileBuilding.put(noteId, content);
+            return;
+        }
+        String hash = hash(content);
+        Entry current = entries.get(noteId);
+        if (current != null && hash.equals(current.hash)) {
+            return;
+        }
+        Entry entry = new Entry(hash, tokenize(content));
+        entries.put(noteId, entry);
+        int slot = slots.assign(noteId);
+        if (current != null) {
+            removePostings(slot, current);
+        }
+        addPostings(postings, slot, entry);
+        dirty = true;
+    }
+    
+    private static void addPostings(TreeMap<String, Postings> postings, int slot, Entry entry) {
+        for (String token : entry.tokens) {
+            Postings slots = postings.get(token);
+            if (slots == null) {
+                slots = new Postings();
+                postings.put(token, slots);
+            }
+            slots.add(slot);
+        }
+    }
+    
+    private void removePostings(int slot, Entry entry) {
+        for (String token : entry.tokens) {
+            Postings slots = postings.get(token);
+            if (slots != null && slots.remove(slot) && slots.isEmpty()) {
+                postings.remove(token);
+            }
+        }
+    }
+    
+    // SHA-256 of the UTF-8 content as hex; a 32-bit hash would let an edited note keep stale tokens
+    static String hash(String content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Android version has it
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest(content.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return hex.toString();
+    }
+    
+    private static String contentOf(Note note) {
+        return note.getContent() != null ? note.getContent() : "";
+    }
+    
+    private Map<String, Entry> readEntries() {
+        if (!indexFile.exists()) {
+            return new HashMap<>();
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            StoredIndex index = gson.fromJson(reader, StoredIndex.class);
+            if (index == null || index.version != FORMAT_VERSION || index.entries == null) {
+                return new HashMap<>();
+            }
+            for (Iterator<Entry> it = index.entries.values().iterator(); it.hasNext(); ) {
+                if (it.next() == null) {
+                    it.remove();
+                }
+            }
+            return index.entries;
+        } catch (IOException | JsonParseException e) {
+            return new HashMap<>(); // Everything is tokenized again and the file rewritten
+        }
+    }
+    
+    private void writePendingSave() {
+        StoredIndex snapshot = pendingSave.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            AtomicFileWriter.write(indexFile, out -> gson.toJson(snapshot, out));
+        } catch (IOException e) {
+            // The index is rebuilt from the notes if the file is missing or stale
+        }
+    }
+    
+    // The tokens of one note and the hash of the content they were taken from
+    private static class Entry {
+        final String hash;
+        final String[] tokens;
+        
+        Entry(String hash, String[] tokens) {
+            this.hash = hash;
+            this.tokens = tokens;
+        }
+    }
+    
+    // Numbers the indexed notes. A removed note's slot stays unused until the next build.
+    private static final class Slots {
+        private final Map<String, Integer> byId = new HashMap<>();
+        private final List<String> ids = new ArrayList<>();
+        
+        // The note's slot, given a new one if it has none
+        int assign(String noteId) {
+            Integer slot = byId.get(noteId);
+            if (slot == null) {
+                slot = ids.size();
+                byId.put(noteId, slot);
+                ids.add(noteId);
+            }
+            return slot;
+        }
+        
+        int release(String noteId) {
+            int slot = byId.remove(noteId);
+            ids.set(slot, null);
+            return slot;
+        }
+        
+        String idAt(int slot) {
+            return ids.get(slot);
+        }
+        
+        int size() {
+            return ids.size();
+        }
+    }
+    
+    // The slots of the notes containing one token, sorted. New notes have the highest slot, so
+    // adding is almost always an append.
+    private static final class Postings {
+        private int[] slots = new int[2];
+        private int size = 0;
+        
+        void add(int slot) {
+            int index = size == 0 || slots[size - 1] < slot ? size : Arrays.binarySearch(slots, 0, size, slot);
+            if (index >= 0 && index < size) {
+                return; // Already there
+            }
+            index = index < 0 ? -index - 1 : index;
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            System.arraycopy(slots, index, slots, index + 1, size - index);
+            slots[index] = slot;
+            size++;
+        }
+        
+        boolean remove(int slot) {
+            int index = Arrays.binarySearch(slots, 0, size, slot);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(slots, index + 1, slots, index, size - index - 1);
+            size--;
+            return true;
+        }
+        
+        boolean isEmpty() {
+            return size == 0;
+        }
+        
+        void addTo(BitSet matches) {
+            for (int i = 0; i < size; i++) {
+                matches.set(slots[i]);
+            }
+        }
+    }
+    
+    private static class StoredIndex {
+        int version;
+        Map<String, Entry> entries;
+        
+        StoredIndex(int version, Map<String, Entry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+}
\ No newline at end of file
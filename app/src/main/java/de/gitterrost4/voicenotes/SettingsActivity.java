@@ -1,6 +1,7 @@
 package de.gitterrost4.voicenotes;
 
 import android.app.AlertDialog;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.widget.ArrayAdapter;
@@ -8,6 +9,7 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.Spinner;
+import android.widget.Switch;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -31,6 +33,9 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
     private static final String CATEGORIES_KEY = "categories";
     private static final String CREDENTIALS_KEY = "google_cloud_credentials";
     private static final String LANGUAGE_KEY = "transcription_language";
+    private static final String CONCURRENCY_KEY = "transcription_concurrency";
+    private static final String LIVE_TRANSCRIPTION_KEY = "live_transcription";
+    private static final String RECORDING_PROFILE_KEY = "recording_profile";
     private static final int DEFAULT_LANGUAGE_INDEX = 0; // German
     private static final List<String> DEFAULT_CATEGORIES = Arrays.asList(
         "ToDos", "Reminders", "Town Meeting"
@@ -43,6 +48,10 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
     private ItemTouchHelper itemTouchHelper;
     private EditText credentialsEditText;
     private Spinner languageSpinner;
+    private Spinner concurrencySpinner;
+    private Spinner recordingProfileSpinner;
+    private List<RecordingProfile> recordingProfiles;
+    private Switch liveTranscriptionSwitch;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,6 +71,11 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
         setupViews();
         loadCredentials();
         loadLanguageSelection();
+        loadConcurrencySelection();
+        loadRecordingProfileSelection();
+        liveTranscriptionSwitch.setChecked(isLiveTranscriptionEnabled(prefs));
+        liveTranscriptionSwitch.setOnCheckedChangeListener((button, isChecked) ->
+            prefs.edit().putBoolean(LIVE_TRANSCRIPTION_KEY, isChecked).apply());
     }
     
     private void loadCategories() {
@@ -86,9 +100,13 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
         
         // Credentials views
         languageSpinner = findViewById(R.id.languageSpinner);
+        concurrencySpinner = findViewById(R.id.concurrencySpinner);
+        recordingProfileSpinner = findViewById(R.id.recordingProfileSpinner);
+        liveTranscriptionSwitch = findViewById(R.id.liveTranscriptionSwitch);
         credentialsEditText = findViewById(R.id.credentialsEditText);
         Button saveCredentialsButton = findViewById(R.id.saveCredentialsButton);
         ImageButton transcriptionInfoButton = findViewById(R.id.transcriptionInfoButton);
+        Button diagnosticsButton = findViewById(R.id.diagnosticsButton);
         
         // Setup language spinner
         ArrayAdapter<CharSequence> languageAdapter = ArrayAdapter.createFromResource(
@@ -96,6 +114,26 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
         languageAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         languageSpinner.setAdapter(languageAdapter);
         
+        // Setup concurrency spinner
+        ArrayAdapter<CharSequence> concurrencyAdapter = ArrayAdapter.createFromResource(
+            this, R.array.transcription_concurrency_options, android.R.layout.simple_spinner_item);
+        concurrencyAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        concurrencySpinner.setAdapter(concurrencyAdapter);
+        
+        // Setup recording profile spinner, with only the profiles this device can record
+        recordingProfiles = new ArrayList<>();
+        List<String> profileLabels = new ArrayList<>();
+        for (RecordingProfile profile : RecordingProfile.values()) {
+            if (profile.isSelectable()) {
+                recordingProfiles.add(profile);
+                profileLabels.add(getString(profile.getLabelResource(), profile.getBytesPerMinute() / 1000));
+            }
+        }
+        ArrayAdapter<String> profileAdapter = new ArrayAdapter<>(
+            this, android.R.layout.simple_spinner_item, profileLabels);
+        profileAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        recordingProfileSpinner.setAdapter(profileAdapter);
+        
         adapter = new CategoriesAdapter(categories, this::deleteCategory, this);
         categoriesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         categoriesRecyclerView.setAdapter(adapter);
@@ -109,6 +147,7 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
         addCategoryButton.setOnClickListener(v -> showAddCategoryDialog());
         saveCredentialsButton.setOnClickListener(v -> saveCredentials());
         transcriptionInfoButton.setOnClickListener(v -> showTranscriptionHelpDialog());
+        diagnosticsButton.setOnClickListener(v -> startActivity(new Intent(this, DiagnosticsActivity.class)));
         
         // Auto-save credentials when text changes
         credentialsEditText.setOnFocusChangeListener((v, hasFocus) -> {
@@ -129,6 +168,33 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
                 // Do nothing
             }
         });
+        
+        // Save concurrency selection when changed
+        concurrencySpinner.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(android.widget.AdapterView<?> parent, android.view.View view, int position, long id) {
+                int concurrency = Integer.parseInt(parent.getItemAtPosition(position).toString());
+                prefs.edit().putInt(CONCURRENCY_KEY, concurrency).apply();
+            }
+            
+            @Override
+            public void onNothingSelected(android.widget.AdapterView<?> parent) {
+                // Do nothing
+            }
+        });
+        
+        // Save recording profile when changed; notes already recorded keep theirs
+        recordingProfileSpinner.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(android.widget.AdapterView<?> parent, android.view.View view, int position, long id) {
+                prefs.edit().putString(RECORDING_PROFILE_KEY, recordingProfiles.get(position).getKey()).apply();
+            }
+            
+            @Override
+            public void onNothingSelected(android.widget.AdapterView<?> parent) {
+                // Do nothing
+            }
+        });
     }
     
     private void showAddCategoryDialog() {
@@ -192,6 +258,7 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
         if (credentials.isEmpty()) {
             // Allow saving empty credentials (to delete them)
             prefs.edit().putString(CREDENTIALS_KEY, "").apply();
+            TranscriptionClient.getInstance().invalidateCredentials();
             Toast.makeText(this, "Credentials cleared", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -217,6 +284,7 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
             
             // Save valid credentials
             prefs.edit().putString(CREDENTIALS_KEY, credentials).apply();
+            TranscriptionClient.getInstance().invalidateCredentials();
             Toast.makeText(this, R.string.credentials_valid, Toast.LENGTH_LONG).show();
             
         } catch (JsonSyntaxException e) {
@@ -246,6 +314,37 @@ public class SettingsActivity extends AppCompatActivity implements CategoriesAda
         prefs.edit().putInt(LANGUAGE_KEY, position).apply();
     }
     
+    private void loadConcurrencySelection() {
+        String saved = String.valueOf(getTranscriptionConcurrency(prefs));
+        String[] options = getResources().getStringArray(R.array.transcription_concurrency_options);
+        int index = Arrays.asList(options).indexOf(saved);
+        if (index >= 0) {
+            concurrencySpinner.setSelection(index);
+        }
+    }
+    
+    private void loadRecordingProfileSelection() {
+        int index = recordingProfiles.indexOf(getRecordingProfile(prefs));
+        if (index >= 0) {
+            recordingProfileSpinner.setSelection(index);
+        }
+    }
+    
+    // What new notes are recorded with, unless live transcription records them
+    public static RecordingProfile getRecordingProfile(SharedPreferences prefs) {
+        RecordingProfile profile = RecordingProfile.fromKey(prefs.getString(RECORDING_PROFILE_KEY, null),
+                RecordingProfile.DEFAULT);
+        return profile.isSelectable() ? profile : RecordingProfile.DEFAULT;
+    }
+    
+    public static int getTranscriptionConcurrency(SharedPreferences prefs) {
+        return prefs.getInt(CONCURRENCY_KEY, TranscriptionScheduler.DEFAULT_CONCURRENCY);
+    }
+    
+    public static boolean isLiveTranscriptionEnabled(SharedPreferences prefs) {
+        return prefs.getBoolean(LIVE_TRANSCRIPTION_KEY, false);
+    }
+    
     public static String getSelectedLanguageCode(SharedPreferences prefs) {
         int languageIndex = prefs.getInt(LANGUAGE_KEY, DEFAULT_LANGUAGE_INDEX);
         String[] languageCodes = {
@@ -0,0 +1,164 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Shortens long pauses in an AMR recording before it is uploaded, so fewer bytes are sent and
+// fewer seconds are billed. Frames are copied as they are, out of the 3GP container or a plain AMR
+// file; nothing is re-encoded. A pause is a run of comfort-noise or no-data frames (see
+// AmrFile.isSilent()); a long one keeps a short gap at each end, so words stay apart and
+// LongAudioTranscriber still finds silence to cut at. The TimeMap turns positions in the shortened
+// audio back into positions in the recording.
+public class SilenceStripper {
+    
+    private static final int MIN_RUN_FRAMES = 1_000 / AmrFile.FRAME_MS; // Shorter pauses are left alone
+    private static final int KEPT_FRAMES = 300 / AmrFile.FRAME_MS; // What is left of a long pause
+    
+    private final File directory;
+    
+    // The shortened copies are written to the given directory
+    public SilenceStripper(File directory) {
+        this.directory = directory;
+    }
+    
+    public static final class Result {
+        private final File file;
+        private final TimeMap timeMap;
+        private final long savedBytes;
+        private final long savedMs;
+        
+        Result(File file, TimeMap timeMap, long savedBytes, long savedMs) {
+            this.file = file;
+            this.timeMap = timeMap;
+            this.savedBytes = savedBytes;
+            this.savedMs = savedMs;
+        }
+        
+        // A temporary copy; the caller deletes it when done
+        public File getFile() { return file; }
+        public TimeMap getTimeMap() { return timeMap; }
+        public long getSavedBytes() { return savedBytes; }
+        public long getSavedMs() { return savedMs; }
+    }
+    
+    // Returns null if the file is not AMR or has no pause long enough to shorten. Failing to
+    // write the copy also returns null: the original can always be sent instead.
+    public Result strip(String filePath) {
+        File source = new File(filePath);
+        AmrFile amr;
+        try {
+            amr = AmrFile.read(source);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        
+        List<int[]> kept = keptRanges(amr);
+        if (kept.size() == 1 && kept.get(0)[0] == 0 && kept.get(0)[1] == amr.getFrameCount()) {
+            return null;
+        }
+        
+        File target = null;
+        try {
+            directory.mkdirs();
+            target = File.createTempFile("stripped", ".amr", directory);
+            long written = amr.writeFrames(kept, target);
+            long savedBytes = source.length() - written;
+            if (savedBytes <= 0) {
+                target.delete();
+                return null;
+            }
+            TimeMap timeMap = TimeMap.of(kept);
+            return new Result(target, timeMap, savedBytes, amr.getDurationMs() - timeMap.getDurationMs());
+        } catch (IOException | RuntimeException e) {
+            if (target != null) {
+                target.delete();
+            }
+            return null;
+        }
+    }
+    
+    // [start, end) frame ranges to keep: everything but the middle of each long silent run
+    static List<int[]> keptRanges(AmrFile amr) {
+        List<int[]> kept = new ArrayList<>();
+        int frames = amr.getFrameCount();
+        int keptStart = 0;
+        int i = 0;
+        while (i < frames) {
+            if (!amr.isSilent(i)) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < frames && amr.isSilent(i)) {
+                i++;
+            }
+            if (i - runStart >= MIN_RUN_FRAMES) {
+                int cutStart = runStart + KEPT_FRAMES / 2;
+                kept.add(new int[] { keptStart, cutStart });
+                keptStart = i - (KEPT_FRAMES - KEPT_FRAMES / 2);
+            }
+        }
+        if (keptStart < frames || kept.isEmpty()) {
+            kept.add(new int[] { keptStart, frames });
+        }
+        return kept;
+    }
+    
+    // Maps a position in the shortened audio to the same moment in the original recording
+    public static final class TimeMap {
+        private final long[] shortenedStartMs; // Where each kept range starts in the shortened audio
+        private final long[] originalStartMs; // and in the original
+        private final long durationMs; // Of the shortened audio
+        
+        private TimeMap(long[] shortenedStartMs, long[] originalStartMs, long durationMs) {
+            this.shortenedStartMs = shortenedStartMs;
+            this.originalStartMs = originalStartMs;
+            this.durationMs = durationMs;
+        }
+        
+        static TimeMap of(List<int[]> keptRanges) {
+            long[] shortened = new long[keptRanges.size()];
+            long[] original = new long[keptRanges.size()];
+            long position = 0;
+            for (int i = 0; i < keptRanges.size(); i++) {
+                int[] range = keptRanges.get(i);
+                shortened[i] = position;
+                original[i] = (long) range[0] * AmrFile.FRAME_MS;
+                position += (long) (range[1] - range[0]) * AmrFile.FRAME_MS;
+            }
+            return new TimeMap(shortened, original, position);
+        }
+        
+        public long getDurationMs() {
+            return durationMs;
+        }
+        
+        public long toOriginalMs(long shortenedMs) {
+            int index = Arrays.binarySearch(shortenedStartMs, shortenedMs);
+            if (index < 0) {
+                index = Math.max(0, -index - 2); // The range starting before the position
+            }
+            return originalStartMs[index] + shortenedMs - shortenedStartMs[index];
+        }
+        
+        // The same transcript with its word positions moved back onto the original recording
+        public Transcript toOriginal(Transcript transcript) {
+            TranscriptWords words = transcript.getWords();
+            if (words == null) {
+                return transcript;
+            }
+            TranscriptWords.Builder mapped = new TranscriptWords.Builder();
+            for (int i = 0; i < words.size(); i++) {
+                // A word ending right where a pause was cut ends there, not after the removed part
+                long endMs = words.getEndMs(i) > words.getStartMs(i)
+                        ? toOriginalMs(words.getEndMs(i) - 1) + 1 : toOriginalMs(words.getEndMs(i));
+                mapped.add(words.getCharStart(i), words.getCharEnd(i), toOriginalMs(words.getStartMs(i)),
+                        endMs, words.getConfidence(i));
+            }
+            return new Transcript(transcript.getText(), transcript.getConfidence(), mapped.build());
+        }
+    }
+}
\ No newline at end of file
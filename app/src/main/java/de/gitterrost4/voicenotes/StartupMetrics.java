@@ -0,0 +1,67 @@
+package de.gitterrost4.voicenotes;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+// Time from MainActivity.onCreate until the first frame that shows notes, for the last few starts.
+// Samples carry the app version, so a regression can be traced to the release that introduced it.
+public class StartupMetrics {
+    
+    private static final String TAG = "StartupMetrics";
+    private static final String SAMPLES_KEY = "startup_samples";
+    private static final int MAX_SAMPLES = 20;
+    
+    public static class Sample {
+        public final String appVersion;
+        public final long millis;
+        public final boolean fromSnapshot; // The first frame showed the first-screen snapshot
+        public final long recordedAt;
+        
+        Sample(String appVersion, long millis, boolean fromSnapshot, long recordedAt) {
+            this.appVersion = appVersion;
+            this.millis = millis;
+            this.fromSnapshot = fromSnapshot;
+            this.recordedAt = recordedAt;
+        }
+    }
+    
+    private final SharedPreferences prefs;
+    private final Gson gson = new Gson();
+    
+    public StartupMetrics(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+    
+    public void record(String appVersion, long millis, boolean fromSnapshot) {
+        Log.i(TAG, "First notes frame after " + millis + " ms (" + (fromSnapshot ? "snapshot" : "loaded") + ")");
+        List<Sample> samples = getSamples();
+        samples.add(new Sample(appVersion, millis, fromSnapshot, System.currentTimeMillis()));
+        while (samples.size() > MAX_SAMPLES) {
+            samples.remove(0);
+        }
+        prefs.edit().putString(SAMPLES_KEY, gson.toJson(samples)).apply();
+    }
+    
+    // Oldest first
+    public List<Sample> getSamples() {
+        String json = prefs.getString(SAMPLES_KEY, null);
+        if (json == null) {
+            return new ArrayList<>();
+        }
+        Type listType = new TypeToken<List<Sample>>(){}.getType();
+        try {
+            List<Sample> samples = gson.fromJson(json, listType);
+            return samples != null ? samples : new ArrayList<>();
+        } catch (JsonParseException e) {
+            return new ArrayList<>();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,25 @@
+package de.gitterrost4.voicenotes;
+
+// Recognizes audio while it is still being recorded. Implementations own the network side,
+// so the recording code can be driven against a stand-in recognizer.
+public interface StreamingRecognizer {
+    
+    // Called on a background thread. After onFinal or onError nothing else is reported.
+    interface Listener {
+        // The transcript of everything recognized so far
+        void onInterim(String transcript);
+        void onFinal(String transcript);
+        void onError(Exception error);
+    }
+    
+    interface Session {
+        // 16-bit little-endian mono PCM; the bytes are copied before this returns
+        void sendAudio(byte[] pcm, int length);
+        // No more audio follows; onFinal is reported once the rest is recognized
+        void finish();
+        // Stops recognizing; the listener hears nothing more
+        void cancel();
+    }
+    
+    Session start(String credentialsJson, String languageCode, int sampleRate, Listener listener);
+}
@@ -0,0 +1,17 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.IOException;
+
+// Turns one audio file, recorded with the given profile, into text. Blocking; must not be called on
+// the UI thread.
+public interface Transcriber {
+    Transcript transcribe(String credentialsJson, String filePath, RecordingProfile profile, String languageCode)
+            throws IOException;
+    
+    // Recognize requests transcribe() sends for this file. A transcriber that sends more than one
+    // paces them on the rate limiter and slows it down when throttled itself, so for such a file the
+    // caller leaves the limiter alone.
+    default int requestCount(String filePath, RecordingProfile profile) {
+        return 1;
+    }
+}
\ No newline at end of file
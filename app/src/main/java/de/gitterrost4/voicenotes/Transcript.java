@@ -0,0 +1,29 @@
+package de.gitterrost4.voicenotes;
+
+// What a Transcriber returns: the text, the recognizer's confidence in it and, when the recognizer
+// reported them, the words' positions in the audio. Immutable.
+public final class Transcript {
+    
+    private final String text;
+    private final float confidence; // 0 if not reported
+    private final TranscriptWords words; // null if not reported
+    
+    public Transcript(String text, float confidence, TranscriptWords words) {
+        this.text = text;
+        this.confidence = confidence;
+        this.words = words;
+    }
+    
+    // Text without confidence or word positions, e.g. a placeholder or typed text
+    public static Transcript of(String text) {
+        return new Transcript(text, 0, null);
+    }
+    
+    public String getText() { return text; }
+    public float getConfidence() { return confidence; }
+    public TranscriptWords getWords() { return words; }
+    
+    public boolean isNoSpeech() {
+        return TranscriptionClient.NO_SPEECH.equals(text);
+    }
+}
\ No newline at end of file
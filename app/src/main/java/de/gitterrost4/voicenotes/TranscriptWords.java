@@ -0,0 +1,230 @@
+package de.gitterrost4.voicenotes;
+
+import android.util.Base64;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+// Where each word of a transcript is in the text and in the audio, and how sure the recognizer was
+// about it. Stored packed: per word the gap to the previous word and the word's length, both in
+// characters and in milliseconds, as variable-length integers, plus one byte of confidence. That
+// is about six bytes a word; it is only unpacked when a word is looked up. Immutable.
+@JsonAdapter(TranscriptWords.GsonAdapter.class)
+public final class TranscriptWords {
+    
+    private static final int FIELDS = 5;
+    private static final int CHAR_START = 0;
+    private static final int CHAR_END = 1;
+    private static final int START_MS = 2;
+    private static final int END_MS = 3;
+    private static final int CONFIDENCE = 4; // 1..255, 0 if the recognizer gave none
+    
+    private final byte[] packed;
+    private volatile int[] words; // Unpacked on first use
+    
+    private TranscriptWords(byte[] packed) {
+        this.packed = packed;
+    }
+    
+    // Words have to be added in order, in the text as well as in the audio
+    public static final class Builder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int count;
+        private int lastCharEnd;
+        private long lastEndMs;
+        
+        public Builder add(int charStart, int charEnd, long startMs, long endMs, float confidence) {
+            if (charStart < lastCharEnd || charEnd < charStart) {
+                throw new IllegalArgumentException("Word " + count + " overlaps or is out of order");
+            }
+            endMs = Math.max(startMs, endMs);
+            writeVarint(out, charStart - lastCharEnd);
+            writeVarint(out, charEnd - charStart);
+            writeVarint(out, zigzag(startMs - lastEndMs)); // Offsets may step back where segments overlap
+            writeVarint(out, endMs - startMs);
+            out.write(confidence > 0 ? Math.max(1, Math.min(255, Math.round(confidence * 255))) : 0);
+            lastCharEnd = charEnd;
+            lastEndMs = endMs;
+            count++;
+            return this;
+        }
+        
+        public int size() {
+            return count;
+        }
+        
+        public TranscriptWords build() {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(out.size() + 5);
+            writeVarint(result, count);
+            result.write(out.toByteArray(), 0, out.size());
+            return new TranscriptWords(result.toByteArray());
+        }
+    }
+    
+    public int size() {
+        return words().length / FIELDS;
+    }
+    
+    public int getCharStart(int index) { return words()[index * FIELDS + CHAR_START]; }
+    public int getCharEnd(int index) { return words()[index * FIELDS + CHAR_END]; }
+    public long getStartMs(int index) { return words()[index * FIELDS + START_MS]; }
+    public long getEndMs(int index) { return words()[index * FIELDS + END_MS]; }
+    
+    // 0 if the recognizer didn't report one
+    public float getConfidence(int index) {
+        return words()[index * FIELDS + CONFIDENCE] / 255f;
+    }
+    
+    // The word being spoken at the given position, or the last one before it; -1 before the first word
+    public int indexAt(long positionMs) {
+        int[] unpacked = words();
+        int low = 0;
+        int high = unpacked.length / FIELDS - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (unpacked[middle * FIELDS + START_MS] <= positionMs) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+    
+    // The word covering the given character of the text, or -1
+    public int indexOfChar(int charIndex) {
+        int[] unpacked = words();
+        for (int i = 0; i < unpacked.length; i += FIELDS) {
+            if (unpacked[i + CHAR_START] > charIndex) {
+                break;
+            }
+            if (charIndex < unpacked[i + CHAR_END]) {
+                return i / FIELDS;
+            }
+        }
+        return -1;
+    }
+    
+    byte[] toByteArray() {
+        return packed.clone();
+    }
+    
+    // Returns null if the bytes aren't a word list
+    static TranscriptWords fromByteArray(byte[] bytes) {
+        TranscriptWords words = new TranscriptWords(bytes.clone());
+        words.words = words.unpack();
+        return words.words != null ? words : null;
+    }
+    
+    private int[] words() {
+        int[] unpacked = words;
+        if (unpacked == null) {
+            unpacked = unpack();
+            if (unpacked == null) {
+                unpacked = new int[0]; // Validated when read, so only reachable through a bug
+            }
+            words = unpacked;
+        }
+        return unpacked;
+    }
+    
+    private int[] unpack() {
+        int[] position = {0};
+        try {
+            long count = readVarint(packed, position);
+            if (count < 0 || count > packed.length) {
+                return null; // Every word takes at least five bytes
+            }
+            int[] unpacked = new int[(int) count * FIELDS];
+            long charEnd = 0;
+            long endMs = 0;
+            for (int i = 0; i < unpacked.length; i += FIELDS) {
+                long charGap = readVarint(packed, position);
+                long charLength = readVarint(packed, position);
+                long startGap = readVarint(packed, position);
+                long lengthMs = readVarint(packed, position);
+                if (charGap < 0 || charLength < 0 || startGap < 0 || lengthMs < 0) {
+                    return null;
+                }
+                long charStart = charEnd + charGap;
+                charEnd = charStart + charLength;
+                long startMs = endMs + unzigzag(startGap);
+                endMs = startMs + lengthMs;
+                if (charEnd > Integer.MAX_VALUE || startMs < 0 || endMs > Integer.MAX_VALUE
+                        || position[0] >= packed.length) {
+                    return null;
+                }
+                unpacked[i + CHAR_START] = (int) charStart;
+                unpacked[i + CHAR_END] = (int) charEnd;
+                unpacked[i + START_MS] = (int) startMs;
+                unpacked[i + END_MS] = (int) endMs;
+                unpacked[i + CONFIDENCE] = packed[position[0]++] & 0xFF;
+            }
+            return position[0] == packed.length ? unpacked : null;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null; // Truncated
+        }
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    // -1 if the value is too long to be one we wrote
+    private static long readVarint(byte[] bytes, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return shift < 35 ? value : -1;
+            }
+        }
+        return -1;
+    }
+    
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    // A base64 string in JSON: the journal, the archive and the job list
+    static final class GsonAdapter extends TypeAdapter<TranscriptWords> {
+        @Override
+        public void write(JsonWriter out, TranscriptWords words) throws IOException {
+            if (words == null) {
+                out.nullValue();
+            } else {
+                out.value(Base64.encodeToString(words.packed, Base64.NO_WRAP | Base64.NO_PADDING));
+            }
+        }
+        
+        @Override
+        public TranscriptWords read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            try {
+                return fromByteArray(Base64.decode(in.nextString(), Base64.NO_WRAP));
+            } catch (IllegalArgumentException e) {
+                return null; // Only loses the word positions; the text is stored separately
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Remembers transcripts by what was sent: the SHA-256 of the audio, the language and the request
+// settings. The same recording transcribed again, after switching the language back or restoring
+// a backup, is then not uploaded and paid for a second time. Least recently used entries go once
+// the estimated size passes the limit. Saved to a JSON file in the background after each new
+// entry; a hit only reorders the entries, which is written with the next entry or by flush().
+// Placeholders such as NO_SPEECH are never kept, so such a note is sent again next time.
+public class TranscriptionCache {
+    
+    private static final int VERSION = 1; // Bump to drop results made with older request settings
+    static final long MAX_BYTES = 2 * 1024 * 1024;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private static final class Entry {
+        String key;
+        String text;
+        float confidence;
+        TranscriptWords words;
+        
+        transient long size;
+    }
+    
+    private final File file;
+    private final Gson gson = new Gson();
+    private final Executor io;
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private boolean loaded = false;
+    private boolean reordered = false; // Hits since the last save
+    
+    public TranscriptionCache(File file) {
+        this(file, Executors.newSingleThreadExecutor());
+    }
+    
+    // Saves on the given executor
+    TranscriptionCache(File file, Executor io) {
+        this.file = file;
+        this.io = io;
+    }
+    
+    // Reads the whole file, so not on the UI thread. Returns null if it can't be read; such a note
+    // is just not cached.
+    public String key(String filePath, RecordingProfile profile, String languageCode) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null; // Every Android version has it
+        }
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(filePath)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return key.append('/').append(languageCode).append('/').append(TranscriptionClient.audioConfig(profile))
+                .append('/').append(VERSION).toString();
+    }
+    
+    // Null on a miss; counts either way
+    public synchronized Transcript get(String key) {
+        load();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Metrics.getInstance().increment(Metrics.Counter.CACHE_MISSES);
+            return null;
+        }
+        Metrics.getInstance().increment(Metrics.Counter.CACHE_HITS);
+        reordered = true;
+        return new Transcript(entry.text, entry.confidence, entry.words);
+    }
+    
+    public synchronized void put(String key, Transcript transcript) {
+        if (isPlaceholder(transcript)) {
+            return;
+        }
+        load();
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.text = transcript.getText();
+        entry.confidence = transcript.getConfidence();
+        entry.words = transcript.getWords();
+        add(entry);
+        save();
+    }
+    
+    // Writes the order of use if hits changed it; called once a batch is done
+    public synchronized void flush() {
+        if (reordered) {
+            save();
+        }
+    }
+    
+    // Stands in for a result rather than being one; a later attempt may do better
+    private static boolean isPlaceholder(Transcript transcript) {
+        return transcript.isNoSpeech() || TranscriptionClient.PARSING_FAILED.equals(transcript.getText());
+    }
+    
+    private void add(Entry entry) {
+        entry.size = estimateSize(entry);
+        Entry replaced = entries.put(entry.key, entry);
+        if (replaced != null) {
+            bytes -= replaced.size;
+        }
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+    
+    // Roughly what the entry takes in memory and in the file
+    private static long estimateSize(Entry entry) {
+        long size = 2L * (entry.key.length() + entry.text.length()) + 32;
+        if (entry.words != null) {
+            size += entry.words.size() * 6L; // About six packed bytes a word
+        }
+        return size;
+    }
+    
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        Type type = new TypeToken<List<Entry>>() {}.getType();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            List<Entry> saved = gson.fromJson(reader, type);
+            if (saved != null) {
+                for (Entry entry : saved) { // Least recently used first
+                    if (entry != null && entry.key != null && entry.text != null) {
+                        add(entry);
+                    }
+                }
+            }
+        } catch (IOException | JsonParseException e) {
+            // Start over with an empty cache
+        }
+    }
+    
+    // Several changes in a row are written once
+    private void save() {
+        if (!savePending.compareAndSet(false, true)) {
+            return;
+        }
+        io.execute(() -> {
+            List<Entry> snapshot;
+            synchronized (this) {
+                savePending.set(false);
+                reordered = false;
+                snapshot = new ArrayList<>(entries.values());
+            }
+            try {
+                AtomicFileWriter.write(file, out -> gson.toJson(snapshot, out));
+            } catch (IOException e) {
+                // The next change tries again
+            }
+        });
+    }
+}
\ No newline at end of file
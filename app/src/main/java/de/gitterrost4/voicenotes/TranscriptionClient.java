@@ -0,0 +1,182 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+// Process-wide client for the Speech-to-Text REST API. One OkHttpClient (and with it one
+// connection pool and dispatcher) is shared by every transcription, and the parsed service
+// account credentials are kept so access tokens are only fetched again shortly before they expire.
+public final class TranscriptionClient implements Transcriber {
+    
+    public static final String NO_SPEECH = "[No speech detected]";
+    public static final String PARSING_FAILED = "[Transcription parsing failed]";
+    
+    private static final String GOOGLE_CLOUD_SCOPE = "https://www.googleapis.com/auth/cloud-platform";
+    private static final String SPEECH_API_URL = "https://speech.googleapis.com/v1/speech:recognize";
+    private static final int HTTP_UNAUTHORIZED = 401;
+    
+    // Must match what MainActivity.startRecording() produces
+    private static final String PCM_ENCODING = "LINEAR16";
+    private static final String REQUEST_SUFFIX = "\"}}";
+    
+    private static TranscriptionClient instance;
+    
+    private final OkHttpClient httpClient;
+    private final String endpointUrl;
+    private final Metrics metrics = Metrics.getInstance();
+    
+    // Guarded by this
+    private GoogleCredentials credentials;
+    private String credentialsJson;
+    
+    public static synchronized TranscriptionClient getInstance() {
+        if (instance == null) {
+            instance = new TranscriptionClient(new OkHttpClient(), SPEECH_API_URL);
+        }
+        return instance;
+    }
+    
+    // The endpoint is a parameter so the client can be pointed at a local stand-in server
+    public TranscriptionClient(OkHttpClient httpClient, String endpointUrl) {
+        this.httpClient = httpClient;
+        this.endpointUrl = endpointUrl;
+    }
+    
+    // Drops the parsed credentials and their cached token, e.g. after new credentials were saved
+    public synchronized void invalidateCredentials() {
+        credentials = null;
+        credentialsJson = null;
+    }
+    
+    // Returns a cached access token; it is refreshed only when missing or about to expire
+    synchronized String getAccessToken(String json) throws IOException {
+        if (credentials == null || !json.equals(credentialsJson)) {
+            try (InputStream credentialsStream = new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))) {
+                credentials = GoogleCredentials.fromStream(credentialsStream).createScoped(GOOGLE_CLOUD_SCOPE);
+            }
+            credentialsJson = json;
+        }
+        AccessToken cached = credentials.getAccessToken();
+        credentials.refreshIfExpired();
+        AccessToken token = credentials.getAccessToken();
+        if (token != cached) {
+            metrics.increment(Metrics.Counter.TOKEN_REFRESHES);
+        }
+        return token.getTokenValue();
+    }
+    
+    // Forces a new token, e.g. after the server rejected the cached one
+    private synchronized void refreshAccessToken() throws IOException {
+        if (credentials != null) {
+            credentials.refresh();
+            metrics.increment(Metrics.Counter.TOKEN_REFRESHES);
+        }
+    }
+    
+    @Override
+    public Transcript transcribe(String credentialsJson, String filePath, RecordingProfile profile,
+                                 String languageCode) throws IOException {
+        // The audio is streamed into the request; nothing proportional to its size is held in memory
+        String prefix = requestPrefix(profile.getEncoding(), profile.getSampleRate(), languageCode, true);
+        return recognize(credentialsJson, new AudioRequestBody(prefix, new File(filePath), REQUEST_SUFFIX));
+    }
+    
+    // The request settings that, with the audio and the language, decide what transcribe() returns.
+    // Part of the TranscriptionCache key, so a change here doesn't reuse results made without it.
+    static String audioConfig(RecordingProfile profile) {
+        return profile.getEncoding() + "/" + profile.getSampleRate() + "/words";
+    }
+    
+    // Recognizes raw 16-bit mono PCM, e.g. a chunk of a recording still in progress
+    public String transcribePcm(String credentialsJson, byte[] pcm, int length, int sampleRate, String languageCode)
+            throws IOException {
+        String prefix = requestPrefix(PCM_ENCODING, sampleRate, languageCode, false);
+        return recognize(credentialsJson, new AudioRequestBody(prefix, pcm, length, REQUEST_SUFFIX)).getText();
+    }
+    
+    // Word positions are only asked for when they are kept with a note
+    private static String requestPrefix(String encoding, int sampleRate, String languageCode, boolean withWords) {
+        return "{"
+                + "\"config\": {"
+                + "\"encoding\": \"" + encoding + "\","
+                + "\"sampleRateHertz\": " + sampleRate + ","
+                + (withWords ? "\"enableWordTimeOffsets\": true, \"enableWordConfidence\": true," : "")
+                + "\"languageCode\": \"" + languageCode + "\""
+                + "},"
+                + "\"audio\": {"
+                + "\"content\": \"";
+    }
+    
+    private Transcript recognize(String credentialsJson, RequestBody body) throws IOException {
+        long tokenStart = Metrics.start();
+        String accessToken = getAccessToken(credentialsJson);
+        metrics.record(Metrics.Stage.ACCESS_TOKEN, tokenStart);
+        try (Response response = execute(body, accessToken)) {
+            if (response.code() != HTTP_UNAUTHORIZED) {
+                return readTranscription(response);
+            }
+        }
+        
+        // The token was revoked or expired early: get a new one and try once more
+        refreshAccessToken();
+        try (Response response = execute(body, getAccessToken(credentialsJson))) {
+            return readTranscription(response);
+        }
+    }
+    
+    private Response execute(RequestBody body, String accessToken) throws IOException {
+        Request request = new Request.Builder()
+                .url(endpointUrl)
+                .addHeader("Authorization", "Bearer " + accessToken)
+                .addHeader("Content-Type", "application/json")
+                .post(body)
+                .build();
+        long start = Metrics.start();
+        Response response = httpClient.newCall(request).execute();
+        metrics.record(Metrics.Stage.HTTP, start);
+        metrics.countHttpStatus(response.code());
+        return response;
+    }
+    
+    private Transcript readTranscription(Response response) throws IOException {
+        if (response.isSuccessful() && response.body() != null) {
+            long start = Metrics.start();
+            Transcript transcript;
+            try {
+                transcript = TranscriptionResponseParser.parse(response.body().charStream());
+            } catch (JsonParseException e) {
+                transcript = Transcript.of(PARSING_FAILED);
+            }
+            metrics.record(Metrics.Stage.PARSE, start);
+            return transcript;
+        }
+        throw new TranscriptionException(response.code(), parseRetryAfter(response));
+    }
+    
+    // Retry-After is either a number of seconds or an HTTP date
+    private static long parseRetryAfter(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate("Retry-After");
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package de.gitterrost4.voicenotes;
+
+import java.io.IOException;
+
+// HTTP error from the Speech-to-Text API, with what the scheduler needs to decide on a retry
+public class TranscriptionException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public static final int HTTP_REQUEST_TIMEOUT = 408;
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+    public static final int HTTP_SERVICE_UNAVAILABLE = 503;
+    
+    private final int statusCode;
+    private final long retryAfterMs; // -1 if the server did not say
+    
+    public TranscriptionException(int statusCode, long retryAfterMs) {
+        super("HTTP " + statusCode);
+        this.statusCode = statusCode;
+        this.retryAfterMs = retryAfterMs;
+    }
+    
+    public int getStatusCode() { return statusCode; }
+    public long getRetryAfterMs() { return retryAfterMs; }
+    
+    // The server asked us to slow down
+    public boolean isThrottled() {
+        return statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HTTP_SERVICE_UNAVAILABLE;
+    }
+    
+    // Worth trying again later; other 4xx errors will fail the same way every time
+    public boolean isRetryable() {
+        return isThrottled() || statusCode == HTTP_REQUEST_TIMEOUT || statusCode >= 500;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package de.gitterrost4.voicenotes;
+
+// One note's entry in the TranscriptionJobQueue. Id, file, profile and category never change;
+// state and result are only touched on the main thread.
+public class TranscriptionJob {
+    
+    public enum State {
+        HELD, // Waiting for a live transcript; sent like an enqueued job if the process dies first
+        ENQUEUED,
+        IN_FLIGHT,
+        SUCCEEDED, // Transcribed, but the result has not reached the note store yet
+        FAILED
+    }
+    
+    private final String noteId;
+    private final String filePath;
+    private final RecordingProfile profile; // null in jobs saved before profiles were
+    private final String category;
+    private State state = State.ENQUEUED;
+    private String result;
+    private float confidence;
+    private TranscriptWords words;
+    private String error;
+    private int dispatches;
+    
+    public TranscriptionJob(String noteId, String filePath, RecordingProfile profile, String category) {
+        this.noteId = noteId;
+        this.filePath = filePath;
+        this.profile = profile;
+        this.category = category;
+    }
+    
+    public static TranscriptionJob forNote(Note note) {
+        return new TranscriptionJob(note.getId(), note.getFilePath(), note.getRecordingProfile(), note.getCategory());
+    }
+    
+    public String getNoteId() { return noteId; }
+    public String getFilePath() { return filePath; }
+    public RecordingProfile getProfile() { return profile != null ? profile : RecordingProfile.forFile(filePath); }
+    public String getCategory() { return category; }
+    public State getState() { return state; }
+    public Transcript getResult() { return result != null ? new Transcript(result, confidence, words) : null; }
+    public String getError() { return error; }
+    public int getDispatches() { return dispatches; }
+    
+    void markEnqueued() {
+        state = State.ENQUEUED;
+        result = null;
+        confidence = 0;
+        words = null;
+        error = null;
+    }
+    
+    void markHeld() {
+        state = State.HELD;
+    }
+    
+    void markInFlight() {
+        state = State.IN_FLIGHT;
+        dispatches++;
+    }
+    
+    void markSucceeded(Transcript transcript) {
+        state = State.SUCCEEDED;
+        result = transcript.getText();
+        confidence = transcript.getConfidence();
+        words = transcript.getWords();
+        error = null;
+    }
+    
+    void markFailed(String message) {
+        state = State.FAILED;
+        error = message;
+    }
+    
+    TranscriptionJob copy() {
+        TranscriptionJob copy = new TranscriptionJob(noteId, filePath, profile, category);
+        copy.state = state;
+        copy.result = result;
+        copy.confidence = confidence;
+        copy.words = words;
+        copy.error = error;
+        copy.dispatches = dispatches;
+        return copy;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,313 @@
+package de.gitterrost4.voicenotes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Process-wide queue of transcription jobs, persisted in transcription_jobs.json so pending work
+// survives activity recreation and process death. There is at most one job per note. Results go
+// to the registered listener (the visible activity) or, if there is none, straight into the NoteStore.
+// All state is owned by the main thread; only the file write happens in the background.
+public class TranscriptionJobQueue {
+    
+    private static final String JOBS_FILE = "transcription_jobs.json";
+    private static final String SEGMENT_DIRECTORY = "segments";
+    private static final String CACHE_FILE = "transcription_cache.json";
+    private static final String PREFS_NAME = "voice_notes_prefs";
+    private static final String CREDENTIALS_KEY = "google_cloud_credentials";
+    
+    public interface Listener {
+        // Returns false if the result can't be applied yet; it is then kept and delivered again later
+        boolean onTranscriptionResult(String noteId, Transcript transcript);
+        void onTranscriptionFailed(TranscriptionJob job, Exception error);
+        void onBatchFinished(TranscriptionScheduler.BatchReport report);
+    }
+    
+    private static TranscriptionJobQueue instance;
+    
+    private final SharedPreferences prefs;
+    private final NoteStore noteStore;
+    private final TranscriptionScheduler scheduler;
+    private final File jobsFile;
+    private final Gson gson = new Gson();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private final AtomicReference<List<TranscriptionJob>> pendingSave = new AtomicReference<>();
+    
+    // Main thread only
+    private final Map<String, TranscriptionJob> jobs = new LinkedHashMap<>();
+    private Listener listener;
+    private boolean loaded = false;
+    private Set<String> retainedNoteIds; // From a retainNotes() call made before load() finished
+    
+    public static synchronized TranscriptionJobQueue getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            SharedPreferences prefs = appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            instance = new TranscriptionJobQueue(appContext, prefs);
+            instance.load();
+        }
+        return instance;
+    }
+    
+    private TranscriptionJobQueue(Context context, SharedPreferences prefs) {
+        this.prefs = prefs;
+        this.noteStore = NoteStore.getInstance(context);
+        this.jobsFile = new File(context.getFilesDir(), JOBS_FILE);
+        Executor mainExecutor = mainHandler::post;
+        AdaptiveRateLimiter rateLimiter = TranscriptionScheduler.defaultRateLimiter();
+        File segmentDirectory = new File(context.getCacheDir(), SEGMENT_DIRECTORY);
+        Transcriber transcriber = new LongAudioTranscriber(TranscriptionClient.getInstance(), rateLimiter,
+                segmentDirectory);
+        this.scheduler = new TranscriptionScheduler(transcriber, new SilenceStripper(segmentDirectory),
+                new NotePacker(segmentDirectory), new TranscriptionCache(cacheFile(context)),
+                rateLimiter, SettingsActivity.getTranscriptionConcurrency(prefs), mainExecutor);
+    }
+    
+    // Kept with the app's files, since the system may clear the cache directory at any time, and
+    // then every recording would be uploaded again. Older versions kept it there, so it is moved over.
+    private static File cacheFile(Context context) {
+        File file = new File(context.getFilesDir(), CACHE_FILE);
+        File legacy = new File(context.getCacheDir(), CACHE_FILE);
+        if (legacy.exists() && !file.exists()) {
+            legacy.renameTo(file);
+        }
+        return file;
+    }
+    
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        deliverSucceeded();
+    }
+    
+    // Only clears the listener if it is still the given one, so a recreated activity isn't unregistered
+    public void removeListener(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+    
+    public void setConcurrency(int concurrency) {
+        scheduler.setConcurrency(concurrency);
+    }
+    
+    // Adds jobs for notes that don't already have one waiting or running, then starts them
+    public void enqueue(Collection<Note> notes) {
+        for (Note note : notes) {
+            TranscriptionJob job = jobs.get(note.getId());
+            if (job == null) {
+                jobs.put(note.getId(), TranscriptionJob.forNote(note));
+            } else if (job.getState() == TranscriptionJob.State.FAILED
+                    || job.getState() == TranscriptionJob.State.HELD) {
+                job.markEnqueued();
+            }
+        }
+        save();
+        dispatchPending();
+    }
+    
+    // Records that the note's transcript is still coming from a live transcription. The job is
+    // not sent; the caller cancels it once the final transcript is stored, or enqueues the note if
+    // it isn't coming. If the process dies in between, the next start sends the recording instead.
+    public void hold(Note note) {
+        if (!jobs.containsKey(note.getId())) {
+            TranscriptionJob job = TranscriptionJob.forNote(note);
+            job.markHeld();
+            jobs.put(note.getId(), job);
+            save();
+        }
+    }
+    
+    public void cancel(String noteId) {
+        if (jobs.remove(noteId) != null) {
+            save();
+        }
+    }
+    
+    // Drops jobs whose note no longer exists and hands over results that were held back. Before the
+    // queue has been read, only the stored jobs are checked, once they are: jobs added since startup
+    // are for notes the caller may not know about yet.
+    public void retainNotes(Set<String> noteIds) {
+        if (!loaded) {
+            retainedNoteIds = noteIds;
+            return;
+        }
+        boolean changed = false;
+        for (Iterator<TranscriptionJob> it = jobs.values().iterator(); it.hasNext(); ) {
+            if (!noteIds.contains(it.next().getNoteId())) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+        deliverSucceeded();
+    }
+    
+    // Starts every enqueued job; without credentials they simply stay enqueued
+    public void dispatchPending() {
+        if (!loaded) {
+            return;
+        }
+        String credentialsJson = prefs.getString(CREDENTIALS_KEY, "");
+        if (credentialsJson.isEmpty()) {
+            return;
+        }
+        
+        List<TranscriptionJob> ready = new ArrayList<>();
+        for (TranscriptionJob job : jobs.values()) {
+            if (job.getState() == TranscriptionJob.State.ENQUEUED) {
+                job.markInFlight();
+                ready.add(job);
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        save();
+        
+        String languageCode = SettingsActivity.getSelectedLanguageCode(prefs);
+        scheduler.submit(ready, credentialsJson, languageCode, new TranscriptionScheduler.Listener() {
+            @Override
+            public void onTranscribed(TranscriptionJob job, Transcript transcript) {
+                if (jobs.get(job.getNoteId()) != job) {
+                    return; // Cancelled while in flight
+                }
+                job.markSucceeded(transcript);
+                save();
+                deliver(job);
+            }
+            
+            @Override
+            public void onFailed(TranscriptionJob job, Exception error) {
+                if (jobs.get(job.getNoteId()) != job) {
+                    return;
+                }
+                job.markFailed(error.getMessage());
+                save();
+                if (listener != null) {
+                    listener.onTranscriptionFailed(job, error);
+                }
+            }
+            
+            @Override
+            public void onBatchFinished(TranscriptionScheduler.BatchReport report) {
+                if (listener != null) {
+                    listener.onBatchFinished(report);
+                }
+            }
+        });
+    }
+    
+    private void deliverSucceeded() {
+        if (!loaded) {
+            return;
+        }
+        for (TranscriptionJob job : new ArrayList<>(jobs.values())) {
+            if (job.getState() == TranscriptionJob.State.SUCCEEDED) {
+                deliver(job);
+            }
+        }
+    }
+    
+    // A job is only forgotten once its result has been handed to the activity or the store
+    private void deliver(TranscriptionJob job) {
+        boolean applied;
+        if (listener != null) {
+            applied = listener.onTranscriptionResult(job.getNoteId(), job.getResult());
+        } else {
+            noteStore.recordTranscript(job.getNoteId(), job.getResult());
+            applied = true;
+        }
+        if (applied) {
+            jobs.remove(job.getNoteId());
+            save();
+        }
+    }
+    
+    private void load() {
+        io.execute(() -> {
+            List<TranscriptionJob> stored = readJobs();
+            mainHandler.post(() -> {
+                for (TranscriptionJob job : stored) {
+                    // Jobs added since startup are newer than what was on disk
+                    boolean stale = retainedNoteIds != null && !retainedNoteIds.contains(job.getNoteId());
+                    if (job.getNoteId() != null && !jobs.containsKey(job.getNoteId()) && !stale) {
+                        if (job.getState() == TranscriptionJob.State.IN_FLIGHT
+                                || job.getState() == TranscriptionJob.State.HELD) {
+                            job.markEnqueued(); // The process died before it finished
+                        }
+                        jobs.put(job.getNoteId(), job);
+                    }
+                }
+                loaded = true;
+                retainedNoteIds = null;
+                save();
+                deliverSucceeded();
+                dispatchPending();
+            });
+        });
+    }
+    
+    private List<TranscriptionJob> readJobs() {
+        if (!jobsFile.exists()) {
+            return new ArrayList<>();
+        }
+        Type listType = new TypeToken<List<TranscriptionJob>>(){}.getType();
+        try (BufferedReader reader = new BufferedReader(new FileReader(jobsFile))) {
+            List<TranscriptionJob> stored = gson.fromJson(reader, listType);
+            return stored != null ? stored : new ArrayList<>();
+        } catch (IOException | JsonParseException e) {
+            return new ArrayList<>(); // Unreadable queue: the notes can be re-queued from the menu
+        }
+    }
+    
+    // Copies the jobs on the main thread; a save that is still waiting is replaced, not queued
+    private void save() {
+        if (!loaded) {
+            return; // The file still holds jobs we haven't read; load() saves once it has merged them
+        }
+        List<TranscriptionJob> copies = new ArrayList<>(jobs.size());
+        for (TranscriptionJob job : jobs.values()) {
+            copies.add(job.copy());
+        }
+        if (pendingSave.getAndSet(copies) == null) {
+            io.execute(this::writePendingSave);
+        }
+    }
+    
+    private void writePendingSave() {
+        List<TranscriptionJob> snapshot = pendingSave.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            AtomicFileWriter.write(jobsFile, out -> gson.toJson(snapshot, out));
+        } catch (IOException e) {
+            // The next change writes the whole queue again
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,259 @@
+package de.gitterrost4.voicenotes;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads a speech:recognize response as it streams in, without building a tree of it. Each result
+// contributes its first (most likely) alternative only; the others are skipped unread. The text of
+// the results is joined with single spaces, and the words are located in that text so they can be
+// mapped back to the audio. Confidence of the whole transcript is the results' confidence weighted
+// by their length.
+final class TranscriptionResponseParser {
+    
+    private final StringBuilder text = new StringBuilder();
+    private final TranscriptWords.Builder words = new TranscriptWords.Builder();
+    private double confidenceSum = 0;
+    private int confidenceChars = 0;
+    
+    private TranscriptionResponseParser() {}
+    
+    // Throws JsonParseException if the response is not what the API sends; IOException is left for
+    // failures reading it
+    static Transcript parse(Reader source) throws IOException {
+        try {
+            return new TranscriptionResponseParser().read(new JsonReader(source));
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException("Unexpected recognize response", e);
+        }
+    }
+    
+    private Transcript read(JsonReader in) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("results") && in.peek() == JsonToken.BEGIN_ARRAY) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    readResult(in);
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        
+        if (text.length() == 0) {
+            return Transcript.of(TranscriptionClient.NO_SPEECH);
+        }
+        float confidence = confidenceChars > 0 ? (float) (confidenceSum / confidenceChars) : 0;
+        return new Transcript(text.toString(), confidence, words.size() > 0 ? words.build() : null);
+    }
+    
+    private void readResult(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("alternatives") && in.peek() == JsonToken.BEGIN_ARRAY) {
+                in.beginArray();
+                if (in.hasNext()) {
+                    readAlternative(in);
+                }
+                while (in.hasNext()) {
+                    in.skipValue();
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+    
+    private void readAlternative(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+        String transcript = null;
+        float confidence = 0;
+        List<Word> alternativeWords = new ArrayList<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "transcript":
+                    transcript = in.nextString();
+                    break;
+                case "confidence":
+                    confidence = (float) in.nextDouble();
+                    break;
+                case "words":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        Word word = readWord(in);
+                        if (word != null) {
+                            alternativeWords.add(word);
+                        }
+                    }
+                    in.endArray();
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        if (transcript != null) {
+            append(transcript.trim(), confidence, alternativeWords);
+        }
+    }
+    
+    // Returns null for a word without text or with unreadable times
+    private static Word readWord(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+        String text = null;
+        long startMs = 0;
+        long endMs = 0;
+        float confidence = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "word":
+                    text = in.nextString();
+                    break;
+                case "startTime":
+                case "startOffset":
+                    startMs = readDurationMs(in);
+                    break;
+                case "endTime":
+                case "endOffset":
+                    endMs = readDurationMs(in);
+                    break;
+                case "confidence":
+                    confidence = (float) in.nextDouble();
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return text != null && !text.isEmpty() && startMs >= 0 && endMs >= 0
+                ? new Word(text, startMs, endMs, confidence) : null;
+    }
+    
+    // A protobuf Duration: "1.300s" in JSON, or {"seconds": ..., "nanos": ...}. -1 if unreadable.
+    static long readDurationMs(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.BEGIN_OBJECT) {
+            long seconds = 0;
+            long nanos = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("seconds") && in.peek() != JsonToken.NULL) {
+                    seconds = in.nextLong(); // Also reads the quoted int64 form
+                } else if (name.equals("nanos") && in.peek() != JsonToken.NULL) {
+                    nanos = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return seconds >= 0 && nanos >= 0 ? seconds * 1000 + nanos / 1_000_000 : -1;
+        }
+        if (in.peek() != JsonToken.STRING) {
+            in.skipValue();
+            return -1;
+        }
+        return parseDurationMs(in.nextString());
+    }
+    
+    static long parseDurationMs(String value) {
+        int end = value.endsWith("s") ? value.length() - 1 : value.length();
+        int dot = value.indexOf('.');
+        int secondsEnd = dot >= 0 && dot < end ? dot : end;
+        long millis = 0;
+        if (secondsEnd == 0 || secondsEnd > 12) {
+            return -1;
+        }
+        for (int i = 0; i < secondsEnd; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            millis = millis * 10 + (c - '0');
+        }
+        millis *= 1000;
+        for (int i = secondsEnd + 1, scale = 100; i < end; i++, scale /= 10) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            millis += (c - '0') * scale; // Digits beyond milliseconds add nothing
+        }
+        return millis;
+    }
+    
+    private void append(String transcript, float confidence, List<Word> alternativeWords) {
+        if (transcript.isEmpty()) {
+            return;
+        }
+        if (text.length() > 0) {
+            text.append(' ');
+        }
+        int base = text.length();
+        text.append(transcript);
+        if (confidence > 0) {
+            confidenceSum += (double) confidence * transcript.length();
+            confidenceChars += transcript.length();
+        }
+        
+        // Words come in the order they appear in the transcript; one that can't be found is left out
+        int cursor = 0;
+        for (Word word : alternativeWords) {
+            int index = transcript.indexOf(word.text, cursor);
+            if (index < 0) {
+                continue;
+            }
+            cursor = index + word.text.length();
+            words.add(base + index, base + cursor, word.startMs, word.endMs,
+                    word.confidence > 0 ? word.confidence : confidence);
+        }
+    }
+    
+    private static final class Word {
+        final String text;
+        final long startMs;
+        final long endMs;
+        final float confidence;
+        
+        Word(String text, long startMs, long endMs, float confidence) {
+            this.text = text;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.confidence = confidence;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,418 @@
+package de.gitterrost4.voicenotes;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs transcriptions on a bounded pool. A shared AdaptiveRateLimiter paces requests across all
+// workers, and failed notes are retried with exponential backoff and jitter. Waiting notes are
+// rescheduled rather than sleeping, so they never hold a worker. With a SilenceStripper, long
+// pauses are cut out of each recording before it is sent; with a NotePacker, short notes of a
+// batch share one request, and are sent one by one if the transcript can't be split between them.
+// With a TranscriptionCache, notes whose audio was transcribed before aren't sent at all.
+public class TranscriptionScheduler {
+    
+    public static final int DEFAULT_CONCURRENCY = 4;
+    
+    private static final String TAG = "TranscriptionScheduler";
+    
+    static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60_000;
+    
+    public interface Listener {
+        void onTranscribed(TranscriptionJob job, Transcript transcript);
+        void onFailed(TranscriptionJob job, Exception error);
+        void onBatchFinished(BatchReport report);
+    }
+    
+    public static final class BatchReport {
+        private final int total;
+        private final int succeeded;
+        private final int failed;
+        private final int retries;
+        private final int throttled;
+        private final int requests;
+        private final int packedNotes;
+        private final int cacheHits;
+        private final long elapsedMs;
+        private final long silenceSavedMs;
+        private final long silenceSavedBytes;
+        
+        BatchReport(int total, int succeeded, int failed, int retries, int throttled, int requests, int packedNotes,
+                    int cacheHits, long elapsedMs, long silenceSavedMs, long silenceSavedBytes) {
+            this.total = total;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.retries = retries;
+            this.throttled = throttled;
+            this.requests = requests;
+            this.packedNotes = packedNotes;
+            this.cacheHits = cacheHits;
+            this.elapsedMs = elapsedMs;
+            this.silenceSavedMs = silenceSavedMs;
+            this.silenceSavedBytes = silenceSavedBytes;
+        }
+        
+        public int getTotal() { return total; }
+        public int getSucceeded() { return succeeded; }
+        public int getFailed() { return failed; }
+        public int getRetries() { return retries; }
+        public int getThrottled() { return throttled; }
+        public long getElapsedMs() { return elapsedMs; }
+        
+        // Recognize requests sent, retries included; fewer than notes when notes were packed
+        public int getRequests() { return requests; }
+        public int getPackedNotes() { return packedNotes; }
+        public int getCacheHits() { return cacheHits; }
+        
+        // Audio left out of the uploads of the transcribed notes
+        public long getSilenceSavedMs() { return silenceSavedMs; }
+        public long getSilenceSavedBytes() { return silenceSavedBytes; }
+        
+        public double getNotesPerMinute() {
+            return elapsedMs > 0 ? succeeded * 60_000.0 / elapsedMs : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d/%d transcribed, %d failed, %d retries (%d throttled) in %d ms, %.1f notes/min, "
+                            + "%d requests (%d notes packed, %d cached), %.1f s of silence (%d bytes) not sent",
+                    succeeded, total, failed, retries, throttled, elapsedMs, getNotesPerMinute(),
+                    requests, packedNotes, cacheHits, silenceSavedMs / 1000.0, silenceSavedBytes);
+        }
+    }
+    
+    private final Transcriber transcriber;
+    private final SilenceStripper silenceStripper; // null to send recordings unchanged
+    private final NotePacker notePacker; // null to send every note on its own
+    private final TranscriptionCache cache; // null to always send
+    private final AdaptiveRateLimiter rateLimiter;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Executor callbackExecutor;
+    private volatile long baseBackoffMs = BASE_BACKOFF_MS;
+    
+    public TranscriptionScheduler(Transcriber transcriber, SilenceStripper silenceStripper, NotePacker notePacker,
+                                  TranscriptionCache cache, AdaptiveRateLimiter rateLimiter, int concurrency,
+                                  Executor callbackExecutor) {
+        this.transcriber = transcriber;
+        this.silenceStripper = silenceStripper;
+        this.notePacker = notePacker;
+        this.cache = cache;
+        this.rateLimiter = rateLimiter;
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, concurrency));
+        this.callbackExecutor = callbackExecutor;
+    }
+    
+    // Starts with a couple of requests per second and lets the server's answers steer from there
+    public static AdaptiveRateLimiter defaultRateLimiter() {
+        return new AdaptiveRateLimiter(2, 0.1, 20, DEFAULT_CONCURRENCY);
+    }
+    
+    public void setConcurrency(int concurrency) {
+        executor.setCorePoolSize(Math.max(1, concurrency));
+    }
+    
+    // Shorter waits between attempts, so tests against a local server don't take minutes
+    void setBaseBackoffMs(long baseBackoffMs) {
+        this.baseBackoffMs = baseBackoffMs;
+    }
+    
+    // Listener callbacks run on the callback executor
+    public void submit(List<TranscriptionJob> jobs, String credentialsJson, String languageCode, Listener listener) {
+        Batch batch = new Batch(jobs.size(), listener);
+        if (jobs.isEmpty()) {
+            batch.finish();
+            return;
+        }
+        // Hashing and planning read the recordings, so they run on the pool too
+        executor.execute(() -> {
+            List<TranscriptionJob> uncached = takeFromCache(jobs, languageCode, batch);
+            List<TranscriptionJob> unpacked = new ArrayList<>();
+            if (notePacker != null && uncached.size() > 1) {
+                for (NotePacker.Pack pack : notePacker.plan(uncached, unpacked)) {
+                    executor.execute(new PackAttempt(pack, credentialsJson, languageCode, batch));
+                }
+            } else {
+                unpacked.addAll(uncached);
+            }
+            for (TranscriptionJob job : unpacked) {
+                executor.execute(new Attempt(job, credentialsJson, languageCode, batch));
+            }
+        });
+    }
+    
+    // Finishes the jobs the cache has a transcript for and returns the others
+    private List<TranscriptionJob> takeFromCache(List<TranscriptionJob> jobs, String languageCode, Batch batch) {
+        if (cache == null) {
+            return jobs;
+        }
+        List<TranscriptionJob> uncached = new ArrayList<>();
+        for (TranscriptionJob job : jobs) {
+            String key = job.getFilePath() != null ? cache.key(job.getFilePath(), job.getProfile(), languageCode) : null;
+            Transcript cached = key != null ? cache.get(key) : null;
+            if (cached == null) {
+                if (key != null) {
+                    batch.cacheKeys.put(job, key);
+                }
+                uncached.add(job);
+                continue;
+            }
+            batch.cacheHits.incrementAndGet();
+            batch.succeeded.incrementAndGet();
+            callbackExecutor.execute(() -> batch.listener.onTranscribed(job, cached));
+            batch.noteDone();
+        }
+        return uncached;
+    }
+    
+    private class Batch {
+        final int total;
+        final Listener listener;
+        final long startNanos = System.nanoTime();
+        final AtomicInteger remaining;
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicInteger throttled = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger packedNotes = new AtomicInteger();
+        final AtomicInteger cacheHits = new AtomicInteger();
+        final Map<TranscriptionJob, String> cacheKeys = new ConcurrentHashMap<>();
+        final AtomicLong silenceSavedMs = new AtomicLong();
+        final AtomicLong silenceSavedBytes = new AtomicLong();
+        
+        Batch(int total, Listener listener) {
+            this.total = total;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(total);
+        }
+        
+        void noteDone() {
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+        
+        // Remembers a transcript of the whole recording, mapped back onto it
+        void succeeded(TranscriptionJob job, Transcript transcript) {
+            succeeded.incrementAndGet();
+            Metrics.getInstance().increment(Metrics.Counter.TRANSCRIPTIONS_SUCCEEDED);
+            String key = cacheKeys.remove(job);
+            if (key != null) {
+                cache.put(key, transcript);
+            }
+            callbackExecutor.execute(() -> listener.onTranscribed(job, transcript));
+        }
+        
+        void finish() {
+            if (cache != null) {
+                cache.flush();
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            BatchReport report = new BatchReport(total, succeeded.get(), failed.get(), retries.get(),
+                    throttled.get(), requests.get(), packedNotes.get(), cacheHits.get(), elapsedMs, silenceSavedMs.get(),
+                    silenceSavedBytes.get());
+            callbackExecutor.execute(() -> listener.onBatchFinished(report));
+        }
+    }
+    
+    private class Attempt implements Runnable {
+        private final TranscriptionJob job;
+        private final String credentialsJson;
+        private final String languageCode;
+        private final Batch batch;
+        private int attempt = 0;
+        private boolean stripped = false;
+        private SilenceStripper.Result shortened; // Made once and sent again on every retry
+        private int requestCount = 0; // Of the file that is sent; 0 until it is known
+        
+        Attempt(TranscriptionJob job, String credentialsJson, String languageCode, Batch batch) {
+            this.job = job;
+            this.credentialsJson = credentialsJson;
+            this.languageCode = languageCode;
+            this.batch = batch;
+        }
+        
+        // A note the transcriber splits into several requests paces them itself; only a note sent
+        // as one request takes a token here and slows the limiter down when throttled
+        @Override
+        public void run() {
+            Metrics metrics = Metrics.getInstance();
+            long start = Metrics.start();
+            try {
+                stripSilence();
+                String filePath = shortened != null ? shortened.getFile().getPath() : job.getFilePath();
+                if (requestCount == 0) {
+                    requestCount = transcriber.requestCount(filePath, job.getProfile());
+                }
+                if (requestCount == 1) {
+                    long waitMs = rateLimiter.reserve();
+                    if (waitMs > 0) {
+                        executor.schedule(this, waitMs, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+                batch.requests.addAndGet(requestCount);
+                Transcript result = transcriber.transcribe(credentialsJson, filePath, job.getProfile(), languageCode);
+                metrics.record(Metrics.Stage.TRANSCRIBE, start);
+                if (requestCount == 1) {
+                    rateLimiter.onSuccess();
+                }
+                if (shortened != null) {
+                    reportSilenceSaved();
+                }
+                batch.succeeded(job, shortened != null ? shortened.getTimeMap().toOriginal(result) : result);
+            } catch (IOException e) {
+                metrics.record(Metrics.Stage.TRANSCRIBE, start);
+                long retryAfterMs = -1;
+                boolean retryable = !(e instanceof FileNotFoundException);
+                if (e instanceof TranscriptionException) {
+                    TranscriptionException error = (TranscriptionException) e;
+                    retryAfterMs = error.getRetryAfterMs();
+                    retryable = error.isRetryable();
+                    if (error.isThrottled()) {
+                        batch.throttled.incrementAndGet();
+                        metrics.increment(Metrics.Counter.THROTTLED);
+                        if (requestCount == 1) {
+                            rateLimiter.onThrottled(retryAfterMs);
+                        }
+                    }
+                }
+                if (retryable && ++attempt < MAX_ATTEMPTS) {
+                    batch.retries.incrementAndGet();
+                    metrics.increment(Metrics.Counter.RETRIES);
+                    executor.schedule(this, backoffMs(attempt, retryAfterMs, baseBackoffMs), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            if (shortened != null) {
+                shortened.getFile().delete();
+            }
+            batch.noteDone();
+        }
+        
+        // Only tried once; if stripping fails, the original recording is sent instead
+        private void stripSilence() {
+            if (silenceStripper == null || stripped || !job.getProfile().isAmr()) {
+                return;
+            }
+            stripped = true;
+            long stripStart = Metrics.start();
+            try {
+                shortened = silenceStripper.strip(job.getFilePath());
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Note " + job.getNoteId() + ": silence stripping failed, sending it unchanged", e);
+            }
+            Metrics.getInstance().record(Metrics.Stage.SILENCE_STRIP, stripStart);
+        }
+        
+        private void reportSilenceSaved() {
+            Log.i(TAG, String.format(Locale.US, "Note %s: %.1f s of silence (%d bytes) not sent",
+                    job.getNoteId(), shortened.getSavedMs() / 1000.0, shortened.getSavedBytes()));
+            batch.silenceSavedMs.addAndGet(shortened.getSavedMs());
+            batch.silenceSavedBytes.addAndGet(shortened.getSavedBytes());
+            Metrics.getInstance().add(Metrics.Counter.SILENCE_SAVED_MS, shortened.getSavedMs());
+            Metrics.getInstance().add(Metrics.Counter.SILENCE_SAVED_BYTES, shortened.getSavedBytes());
+        }
+        
+        private void fail(Exception e) {
+            batch.failed.incrementAndGet();
+            Metrics.getInstance().increment(Metrics.Counter.TRANSCRIPTIONS_FAILED);
+            callbackExecutor.execute(() -> batch.listener.onFailed(job, e));
+        }
+    }
+    
+    // One request for all notes of a pack. Any failure, or a transcript that can't be split, sends
+    // the notes again one by one; they then retry, back off and fail on their own.
+    private class PackAttempt implements Runnable {
+        private final NotePacker.Pack pack;
+        private final String credentialsJson;
+        private final String languageCode;
+        private final Batch batch;
+        
+        PackAttempt(NotePacker.Pack pack, String credentialsJson, String languageCode, Batch batch) {
+            this.pack = pack;
+            this.credentialsJson = credentialsJson;
+            this.languageCode = languageCode;
+            this.batch = batch;
+        }
+        
+        @Override
+        public void run() {
+            long waitMs = rateLimiter.reserve();
+            if (waitMs > 0) {
+                executor.schedule(this, waitMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+            
+            Metrics metrics = Metrics.getInstance();
+            List<Transcript> parts = null;
+            File packed = null;
+            try {
+                packed = notePacker.write(pack);
+                long start = Metrics.start();
+                batch.requests.incrementAndGet();
+                try {
+                    Transcript result = transcriber.transcribe(credentialsJson, packed.getPath(), pack.getProfile(),
+                            languageCode);
+                    rateLimiter.onSuccess();
+                    parts = NotePacker.split(pack, result);
+                } finally {
+                    metrics.record(Metrics.Stage.TRANSCRIBE, start);
+                }
+            } catch (TranscriptionException e) {
+                if (e.isThrottled()) {
+                    batch.throttled.incrementAndGet();
+                    metrics.increment(Metrics.Counter.THROTTLED);
+                    rateLimiter.onThrottled(e.getRetryAfterMs());
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Packed request failed", e);
+            } finally {
+                if (packed != null) {
+                    packed.delete();
+                }
+            }
+            
+            List<TranscriptionJob> jobs = pack.getJobs();
+            if (parts == null) {
+                metrics.increment(Metrics.Counter.PACK_FALLBACKS);
+                for (TranscriptionJob job : jobs) {
+                    executor.execute(new Attempt(job, credentialsJson, languageCode, batch));
+                }
+                return;
+            }
+            batch.packedNotes.addAndGet(jobs.size());
+            metrics.add(Metrics.Counter.PACKED_NOTES, jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                batch.succeeded(jobs.get(i), parts.get(i));
+                batch.noteDone();
+            }
+        }
+    }
+    
+    // Random delay between half and all of an exponentially growing cap, but never before Retry-After
+    static long backoffMs(int attempt, long retryAfterMs, long baseBackoffMs) {
+        long cap = Math.min(MAX_BACKOFF_MS, baseBackoffMs << Math.min(attempt, 16));
+        long delay = ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+        return Math.max(delay, retryAfterMs);
+    }
+}
\ No newline at end of file
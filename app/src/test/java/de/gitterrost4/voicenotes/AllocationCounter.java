@@ -0,0 +1,49 @@
+package de.gitterrost4.voicenotes;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+// Bytes allocated by the current thread, where the JVM reports them (HotSpot's
+// com.sun.management.ThreadMXBean). That interface is looked up by name, so on a JVM without it
+// this class still loads and isSupported() is simply false.
+final class AllocationCounter {
+    
+    private static final Object THREADS = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATED_BYTES = find();
+    
+    private AllocationCounter() {
+    }
+    
+    static boolean isSupported() {
+        return ALLOCATED_BYTES != null;
+    }
+    
+    // Bytes the current thread allocated while running work
+    static long allocatedBy(Runnable work) {
+        long before = allocatedBytes();
+        work.run();
+        return allocatedBytes() - before;
+    }
+    
+    static long allocatedBytes() {
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static Method find() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(THREADS)) {
+                return null;
+            }
+            boolean enabled = (Boolean) type.getMethod("isThreadAllocatedMemorySupported").invoke(THREADS)
+                    && (Boolean) type.getMethod("isThreadAllocatedMemoryEnabled").invoke(THREADS);
+            return enabled ? type.getMethod("getThreadAllocatedBytes", long.class) : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
\ No newline at end of file
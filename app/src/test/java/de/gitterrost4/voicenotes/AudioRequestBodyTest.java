@@ -0,0 +1,111 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import android.util.Base64;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import okio.Buffer;
+
+// Compared with android.util.Base64, which built the request before it was streamed
+@RunWith(RobolectricTestRunner.class)
+public class AudioRequestBodyTest {
+    
+    private static final String PREFIX = "{\"audio\": {\"content\": \"";
+    private static final String SUFFIX = "\"}}";
+    private static final int CHUNK = 3 * 4096;
+    private static final int[] LENGTHS = {0, 1, 2, 3, 4, 5, 6, 7, 100, 1000, CHUNK - 2, CHUNK - 1, CHUNK, CHUNK + 1,
+            CHUNK + 2, 2 * CHUNK - 1, 2 * CHUNK, 2 * CHUNK + 1, 1_000_003};
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void encodesFilesLikeBase64() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] audio = audio(length);
+            File file = write(audio);
+            
+            assertBody(audio, audio.length, new AudioRequestBody(PREFIX, file, SUFFIX));
+        }
+    }
+    
+    @Test
+    public void encodesThePrefixOfABuffer() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] audio = audio(length + 17); // Only the first length bytes are audio
+            
+            assertBody(audio, length, new AudioRequestBody(PREFIX, audio, length, SUFFIX));
+        }
+    }
+    
+    @Test
+    public void encodesEveryByteValue() throws Exception {
+        byte[] audio = new byte[3 * 256]; // Each value at each position of a three-byte group
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) (i / 3 + i % 3 * 85);
+        }
+        
+        assertBody(audio, audio.length, new AudioRequestBody(PREFIX, audio, audio.length, SUFFIX));
+    }
+    
+    @Test
+    public void canBeWrittenAgainForARetry() throws Exception {
+        byte[] audio = audio(50_000);
+        AudioRequestBody body = new AudioRequestBody(PREFIX, write(audio), SUFFIX);
+        
+        assertBody(audio, audio.length, body);
+        assertBody(audio, audio.length, body);
+    }
+    
+    @Test
+    public void failsIfTheFileShrinks() throws Exception {
+        File file = write(audio(3 * CHUNK));
+        AudioRequestBody body = new AudioRequestBody(PREFIX, file, SUFFIX);
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(CHUNK + 5);
+        }
+        
+        try {
+            body.writeTo(new Buffer());
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+    
+    private static void assertBody(byte[] audio, int length, AudioRequestBody body) throws IOException {
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+        String expected = PREFIX + Base64.encodeToString(audio, 0, length, Base64.NO_WRAP) + SUFFIX;
+        
+        assertEquals("Length " + length, expected.length(), body.contentLength());
+        assertEquals("Length " + length, body.contentLength(), sink.size());
+        assertEquals("Length " + length, expected, sink.readUtf8());
+    }
+    
+    private static byte[] audio(int length) {
+        byte[] audio = new byte[length];
+        new Random(length).nextBytes(audio);
+        return audio;
+    }
+    
+    private File write(byte[] audio) throws IOException {
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(audio);
+        }
+        return file;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// Opt-in measurements: skipped unless the tests run with -Pbenchmark, since timings on a shared
+// machine say little. Results go to standard output, one line per case.
+final class Benchmark {
+    
+    private static final int WARMUP_ROUNDS = 3;
+    private static final long WARMUP_NANOS = 1_000_000_000L; // Short work needs many more rounds to be compiled
+    private static final int ROUNDS = 5;
+    
+    interface Work {
+        void run() throws Exception;
+    }
+    
+    private Benchmark() {
+    }
+    
+    static void assumeEnabled() {
+        assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+    }
+    
+    // Median time of a few runs after warming up for a second, and the bytes one run allocates (-1 where the JVM
+    // doesn't say)
+    static String measure(Work work) throws Exception {
+        long warmupStart = System.nanoTime();
+        for (int i = 0; i < WARMUP_ROUNDS || System.nanoTime() - warmupStart < WARMUP_NANOS; i++) {
+            work.run();
+        }
+        long[] nanos = new long[ROUNDS];
+        long bytes = -1;
+        for (int i = 0; i < ROUNDS; i++) {
+            long allocatedBefore = AllocationCounter.isSupported() ? AllocationCounter.allocatedBytes() : 0;
+            long start = System.nanoTime();
+            work.run();
+            nanos[i] = System.nanoTime() - start;
+            if (AllocationCounter.isSupported()) {
+                bytes = AllocationCounter.allocatedBytes() - allocatedBefore;
+            }
+        }
+        Arrays.sort(nanos);
+        return String.format(Locale.ROOT, "%9.2f ms %9.2f MB", nanos[ROUNDS / 2] / 1e6,
+                bytes < 0 ? Double.NaN : bytes / 1e6);
+    }
+    
+    static void report(String name, String result) {
+        System.out.println(String.format(Locale.ROOT, "%-44s %s", name, result));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,287 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BinaryNoteFileTest {
+    
+    private static final int MAGIC = 0x564E4231;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+            .create();
+    private File recordings;
+    private File file;
+    
+    @Before
+    public void setUp() throws Exception {
+        recordings = folder.newFolder("recordings");
+        file = new File(folder.getRoot(), "notes.bin");
+    }
+    
+    @Test
+    public void roundTripsEveryField() throws Exception {
+        Note transcribed = new Note("a", Note.Type.AUDIO, "Work", LocalDateTime.of(2024, 3, 7, 9, 5, 30, 123_456_789),
+                null, new File(recordings, "a.awb").getPath());
+        transcribed.setTranscript(new Transcript("Call Müller", 0.85f, new TranscriptWords.Builder()
+                .add(0, 4, 100, 400, 0.9f)
+                .add(5, 11, 450, 900, 0)
+                .build()));
+        transcribed.setDone(true);
+        transcribed.setDurationMs(61_500);
+        transcribed.setRecordingProfile(RecordingProfile.AMR_WB);
+        Note elsewhere = new Note("b", Note.Type.AUDIO, null, LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999_999_999),
+                "", "/sdcard/imported/b.3gp");
+        Note untranscribed = new Note("c", Note.Type.AUDIO, "Work", LocalDateTime.of(2024, 3, 7, 9, 6), null,
+                new File(recordings, "c.3gp").getPath());
+        Note text = new Note("d", Note.Type.TEXT, "Ideas", LocalDateTime.of(2024, 3, 7, 9, 7), "Line one\nLine two ✓");
+        List<Note> notes = Arrays.asList(transcribed, elsewhere, untranscribed, text);
+        
+        BinaryNoteFile.write(file, notes, recordings);
+        BinaryNoteFile.Reader reader = BinaryNoteFile.open(file, recordings);
+        
+        assertEquals(notes.size(), reader.size());
+        for (int i = notes.size() - 1; i >= 0; i--) { // In any order
+            assertSameNote(notes.get(i), reader.get(i));
+        }
+        Note read = reader.get(0);
+        assertEquals(2, read.getWords().size());
+        assertEquals(450, read.getWords().getStartMs(1));
+        assertEquals(11, read.getWords().getCharEnd(1));
+        assertNull(reader.get(1).getCategory());
+        assertNull(reader.get(2).getContent());
+    }
+    
+    @Test
+    public void roundTripsManyNotes() throws Exception {
+        List<Note> notes = randomNotes(5_000, new Random(19));
+        
+        BinaryNoteFile.write(file, notes, recordings);
+        BinaryNoteFile.Reader reader = BinaryNoteFile.open(file, recordings);
+        
+        assertEquals(notes.size(), reader.size());
+        for (int i = 0; i < notes.size(); i++) {
+            assertSameNote(notes.get(i), reader.get(i));
+        }
+    }
+    
+    @Test
+    public void readsFilesOfEveryEarlierVersion() throws Exception {
+        List<Note> notes = randomNotes(200, new Random(1));
+        for (Note note : notes) {
+            note.setContent(note.getContent()); // Neither had confidence, word positions or profiles
+            note.setRecordingProfile(null);
+        }
+        for (int version = 1; version <= 2; version++) {
+            writeVersion1Layout(file, notes, version);
+            BinaryNoteFile.Reader reader = BinaryNoteFile.open(file, recordings);
+            
+            assertEquals(notes.size(), reader.size());
+            for (int i = 0; i < notes.size(); i++) {
+                Note read = reader.get(i);
+                assertSameNote(notes.get(i), read);
+                assertNull(read.getStoredRecordingProfile());
+            }
+        }
+    }
+    
+    @Test
+    public void migratesTheJsonSnapshot() throws Exception {
+        File json = folder.newFile("notes.json");
+        String legacy = "[{\"id\":\"old\",\"type\":\"AUDIO\",\"category\":\"Work\",\"timestamp\":\"2023-05-01T10:00:00\","
+                + "\"content\":\"" + new File(recordings, "old.3gp").getPath() + "\",\"done\":true},"
+                + "{\"id\":\"new\",\"type\":\"AUDIO\",\"category\":\"Work\",\"timestamp\":\"2024-05-01T10:00:00.5\","
+                + "\"content\":\"hello\",\"filePath\":\"" + new File(recordings, "new.awb").getPath() + "\","
+                + "\"durationMs\":4200,\"recordingProfile\":\"amr_wb\"},"
+                + "{\"id\":\"text\",\"type\":\"TEXT\",\"category\":\"Ideas\",\"timestamp\":\"2024-05-02T11:00:00\","
+                + "\"content\":\"Buy milk\"}]";
+        Files.write(json.toPath(), legacy.getBytes(StandardCharsets.UTF_8));
+        
+        List<Note> imported = BinaryNoteFile.importJson(json, gson);
+        BinaryNoteFile.write(file, imported, recordings);
+        BinaryNoteFile.Reader reader = BinaryNoteFile.open(file, recordings);
+        
+        assertEquals(3, reader.size());
+        for (int i = 0; i < imported.size(); i++) {
+            assertSameNote(imported.get(i), reader.get(i));
+        }
+        assertEquals(new File(recordings, "old.3gp").getPath(), reader.get(0).getFilePath());
+        assertEquals("", reader.get(0).getContent());
+        assertEquals(RecordingProfile.AMR_WB, reader.get(1).getStoredRecordingProfile());
+        
+        // And back to JSON, as the export writes it
+        File exported = folder.newFile("export.json");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(exported), StandardCharsets.UTF_8)) {
+            BinaryNoteFile.exportJson(imported, out, gson);
+        }
+        List<Note> reimported = BinaryNoteFile.importJson(exported, gson);
+        for (int i = 0; i < imported.size(); i++) {
+            assertSameNote(imported.get(i), reimported.get(i));
+        }
+    }
+    
+    @Test
+    public void rejectsNewerAndDamagedFiles() throws Exception {
+        BinaryNoteFile.write(file, randomNotes(10, new Random(2)), recordings);
+        byte[] valid = Files.readAllBytes(file.toPath());
+        
+        try (RandomAccessFile patched = new RandomAccessFile(file, "rw")) {
+            patched.seek(valid.length - 8);
+            patched.writeInt(99); // The version
+        }
+        assertOpenFails();
+        
+        Files.write(file.toPath(), Arrays.copyOf(valid, valid.length - 3));
+        assertOpenFails();
+        
+        Files.write(file.toPath(), new byte[0]);
+        assertOpenFails();
+        
+        byte[] badOffset = valid.clone();
+        int table = valid.length - 28 - 4 * 10;
+        badOffset[table] = 0x7f; // First record far past the end
+        Files.write(file.toPath(), badOffset);
+        BinaryNoteFile.Reader reader = BinaryNoteFile.open(file, recordings);
+        try {
+            reader.get(0);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals("n1", reader.get(1).getId());
+    }
+    
+    private void assertOpenFails() {
+        try {
+            BinaryNoteFile.open(file, recordings);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+    
+    private static void assertSameNote(Note expected, Note actual) {
+        assertEquals(expected, actual); // Id, type, category, timestamp, content and file path
+        assertEquals(expected.getId(), expected.isDone(), actual.isDone());
+        assertEquals(expected.getId(), expected.getDurationMs(), actual.getDurationMs());
+        assertEquals(expected.getId(), expected.getConfidence(), actual.getConfidence(), 0);
+        assertEquals(expected.getId(), expected.getStoredRecordingProfile(), actual.getStoredRecordingProfile());
+        assertEquals(expected.getId(), expected.getWords() != null ? expected.getWords().size() : 0,
+                actual.getWords() != null ? actual.getWords().size() : 0);
+    }
+    
+    private List<Note> randomNotes(int count, Random random) {
+        String[] categories = {"Work", "Ideas", "Shopping", null};
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LocalDateTime timestamp = LocalDateTime.of(2000 + random.nextInt(30), 1 + random.nextInt(12),
+                    1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                    random.nextBoolean() ? 0 : random.nextInt(1_000_000_000));
+            String category = categories[random.nextInt(categories.length)];
+            Note note;
+            if (random.nextBoolean()) {
+                note = new Note("n" + i, Note.Type.TEXT, category, timestamp, "text " + random.nextLong());
+            } else {
+                String path = random.nextInt(4) == 0 ? "/elsewhere/n" + i + ".3gp"
+                        : new File(recordings, "n" + i + ".3gp").getPath();
+                note = new Note("n" + i, Note.Type.AUDIO, category, timestamp,
+                        random.nextBoolean() ? null : "transcript " + i, path);
+                if (note.getContent() != null && random.nextBoolean()) {
+                    note.setTranscript(new Transcript(note.getContent(), random.nextFloat(), random.nextBoolean()
+                            ? new TranscriptWords.Builder().add(0, 10, 0, random.nextInt(5000), 0.5f).build() : null));
+                }
+                if (random.nextBoolean()) {
+                    note.setRecordingProfile(RecordingProfile.values()[random.nextInt(3)]);
+                }
+                note.setDurationMs(random.nextInt(3_600_000));
+            }
+            note.setDone(random.nextInt(5) == 0);
+            notes.add(note);
+        }
+        return notes;
+    }
+    
+    // The layout as version 1 wrote it, which version 2 kept for notes without transcript details
+    private void writeVersion1Layout(File target, List<Note> notes, int version) throws IOException {
+        List<String> categories = new ArrayList<>();
+        int[] offsets = new int[notes.size()];
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(target))) {
+            out.writeInt(MAGIC);
+            for (int i = 0; i < notes.size(); i++) {
+                Note note = notes.get(i);
+                offsets[i] = out.size();
+                int categoryId = -1;
+                if (note.getCategory() != null) {
+                    if (!categories.contains(note.getCategory())) {
+                        categories.add(note.getCategory());
+                    }
+                    categoryId = categories.indexOf(note.getCategory());
+                }
+                String filePath = note.getFilePath();
+                boolean relative = filePath != null && recordings.equals(new File(filePath).getParentFile());
+                int flags = (note.isDone() ? 1 : 0) | (filePath != null ? 2 : 0) | (relative ? 4 : 0)
+                        | (note.getContent() != null ? 8 : 0);
+                LocalDateTime timestamp = note.getTimestamp();
+                out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC) * 1000 + timestamp.getNano() / 1_000_000);
+                out.writeInt(timestamp.getNano() % 1_000_000);
+                out.writeLong(note.getDurationMs());
+                out.writeInt(categoryId);
+                out.writeByte(note.getType() == Note.Type.AUDIO ? 1 : 0);
+                out.writeByte(flags);
+                writeString(out, note.getId());
+                if (filePath != null) {
+                    writeString(out, relative ? new File(filePath).getName() : filePath);
+                }
+                if (note.getContent() != null) {
+                    writeString(out, note.getContent());
+                }
+            }
+            long dictionaryOffset = out.size();
+            out.writeInt(categories.size());
+            for (String category : categories) {
+                writeString(out, category);
+            }
+            long tableOffset = out.size();
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.writeLong(dictionaryOffset);
+            out.writeLong(tableOffset);
+            out.writeInt(notes.size());
+            out.writeInt(version);
+            out.writeInt(MAGIC);
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,170 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ChunkedStreamingRecognizerTest {
+    
+    private static final int SAMPLE_RATE = 16000;
+    private static final Pattern CONTENT = Pattern.compile("\"content\": \"([^\"]*)\"");
+    
+    private StandInSpeechServer server;
+    private String credentialsJson;
+    
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInSpeechServer();
+        credentialsJson = server.credentialsJson();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+    
+    @Test
+    public void sendsTheWholeRecordingInChunksAndJoinsTheirTranscripts() throws Exception {
+        server.enqueue(StandInSpeechServer.transcript("one"));
+        server.enqueue(StandInSpeechServer.transcript("two"));
+        server.setDefaultResponse(StandInSpeechServer.transcript("three"));
+        byte[] pcm = speech(12_000);
+        
+        RecordingListener listener = recognize(pcm);
+        
+        List<String> bodies = server.getRecognizeBodies();
+        assertTrue(bodies.size() >= 3);
+        StringBuilder expected = new StringBuilder("one two");
+        for (int i = 2; i < bodies.size(); i++) {
+            expected.append(" three");
+        }
+        assertEquals(expected.toString(), listener.finalTranscript);
+        assertEquals("one", listener.interims.get(0));
+        assertEquals("one two", listener.interims.get(1));
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (String body : bodies) {
+            assertTrue(body.contains("\"encoding\": \"LINEAR16\""));
+            assertTrue(body.contains("\"sampleRateHertz\": " + SAMPLE_RATE));
+            byte[] chunk = Base64.getDecoder().decode(content(body));
+            assertTrue("Chunks are at most 5 s", chunk.length <= 5000 * SAMPLE_RATE * 2 / 1000);
+            sent.write(chunk);
+        }
+        assertArrayEquals(pcm, sent.toByteArray());
+    }
+    
+    @Test
+    public void leavesPlaceholdersOutOfTheTranscript() throws Exception {
+        server.enqueue(StandInSpeechServer.transcript("before"));
+        server.enqueue(StandInSpeechServer.noSpeech());
+        server.enqueue(new okhttp3.mockwebserver.MockResponse().setBody("not a recognize response"));
+        server.setDefaultResponse(StandInSpeechServer.transcript("after"));
+        
+        RecordingListener listener = recognize(speech(20_000));
+        
+        assertTrue(listener.finalTranscript, listener.finalTranscript.matches("before( after)+"));
+        for (String interim : listener.interims) {
+            assertTrue(interim, !interim.contains("["));
+        }
+    }
+    
+    @Test
+    public void reportsAFailedChunkAsAnErrorAndNothingElse() throws Exception {
+        server.enqueue(StandInSpeechServer.transcript("one"));
+        server.setDefaultResponse(StandInSpeechServer.status(400));
+        
+        RecordingListener listener = recognize(speech(12_000));
+        
+        assertTrue(listener.error instanceof TranscriptionException);
+        assertNull(listener.finalTranscript);
+        assertEquals(2, server.getRecognizeRequests());
+    }
+    
+    @Test
+    public void cancelledSessionReportsNothing() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        StreamingRecognizer.Session session = new ChunkedStreamingRecognizer(server.newClient())
+                .start(credentialsJson, "en-US", SAMPLE_RATE, listener);
+        session.cancel();
+        byte[] pcm = speech(6_000);
+        session.sendAudio(pcm, pcm.length);
+        session.finish();
+        
+        assertTrue(!listener.done.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(0, server.getRecognizeRequests());
+    }
+    
+    // Feeds the audio in 100 ms buffers, as LiveRecorder does, and waits for the outcome
+    private RecordingListener recognize(byte[] pcm) throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        StreamingRecognizer.Session session = new ChunkedStreamingRecognizer(server.newClient())
+                .start(credentialsJson, "en-US", SAMPLE_RATE, listener);
+        int buffer = SAMPLE_RATE * 2 / 10;
+        for (int offset = 0; offset < pcm.length; offset += buffer) {
+            byte[] read = new byte[buffer];
+            int length = Math.min(buffer, pcm.length - offset);
+            System.arraycopy(pcm, offset, read, 0, length);
+            session.sendAudio(read, length);
+        }
+        session.finish();
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        return listener;
+    }
+    
+    // A tone with a short pause every second, so chunks have a quiet place to be cut
+    private static byte[] speech(int durationMs) {
+        int samples = SAMPLE_RATE * durationMs / 1000;
+        byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            boolean pause = i % SAMPLE_RATE > SAMPLE_RATE * 8 / 10;
+            short sample = pause ? 0 : (short) (8000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+    
+    private static String content(String body) {
+        Matcher matcher = CONTENT.matcher(body);
+        assertTrue(body, matcher.find());
+        return matcher.group(1);
+    }
+    
+    private static final class RecordingListener implements StreamingRecognizer.Listener {
+        final List<String> interims = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String finalTranscript;
+        volatile Exception error;
+        
+        @Override
+        public void onInterim(String transcript) {
+            interims.add(transcript);
+        }
+        
+        @Override
+        public void onFinal(String transcript) {
+            finalTranscript = transcript;
+            done.countDown();
+        }
+        
+        @Override
+        public void onError(Exception error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,240 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LongAudioTranscriberTest {
+    
+    private static final int SPEECH_TYPE = 7; // AMR-NB 12.2 kbit/s, 32 bytes a frame
+    private static final int SPEECH_FRAME_BYTES = 32;
+    private static final int LONG_NOTE_FRAMES = 70_000 / AmrFile.FRAME_MS; // Two segments
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File segmentDirectory;
+    
+    @Before
+    public void setUp() throws Exception {
+        segmentDirectory = folder.newFolder("segments");
+        Metrics.getInstance().reset();
+    }
+    
+    @Test
+    public void cutsInTheMiddleOfTheLongestSilence() throws Exception {
+        boolean[] silent = new boolean[250];
+        fill(silent, 80, 86); // The longest run near the first limit
+        fill(silent, 90, 93);
+        fill(silent, 160, 162); // Too short to cut in
+        AmrFile amr = AmrFile.read(recording("note", silent));
+        
+        List<int[]> segments = LongAudioTranscriber.planSegments(amr, 100, 10, 30);
+        
+        assertEquals(Arrays.asList("0-83", "83-183", "173-250"), ranges(segments)); // Without silence, an overlap
+    }
+    
+    @Test
+    public void leavesShortRecordingsWhole() throws Exception {
+        AmrFile amr = AmrFile.read(recording("note", new boolean[100]));
+        
+        assertEquals(Arrays.asList("0-100"), ranges(LongAudioTranscriber.planSegments(amr, 100, 10, 30)));
+    }
+    
+    @Test
+    public void dropsWordsRepeatedInTheOverlap() {
+        Transcript first = transcript("Call the garage about", 0.8f, 0, 400, 900, 1_500);
+        Transcript second = transcript("garage, About the invoice", 0.6f, 500, 1_100, 1_600, 2_000);
+        Transcript silence = Transcript.of("");
+        
+        Transcript joined = LongAudioTranscriber.stitch(Arrays.asList(first, silence, second),
+                new long[] {0, 30_000, 50_000});
+        
+        assertEquals("Call the garage about the invoice", joined.getText());
+        assertEquals((0.8 * 21 + 0.6 * 25) / 46, joined.getConfidence(), 1e-6);
+        TranscriptWords words = joined.getWords();
+        assertEquals(6, words.size());
+        assertEquals(1_500, words.getStartMs(3)); // "about", from the first segment
+        assertEquals(22, words.getCharStart(4));
+        assertEquals(51_600, words.getStartMs(4)); // "the", moved to where the second segment starts
+        assertEquals(25, words.getCharEnd(4));
+        assertEquals(52_000, words.getStartMs(5));
+        assertEquals(52_000 + 300, words.getEndMs(5));
+    }
+    
+    @Test
+    public void keepsTheTextOfWordsPlacedBeforeTheirPredecessor() {
+        Transcript first = transcript("call me", 0.9f, 52_000, 54_500);
+        Transcript second = transcript("maybe tomorrow", 0.9f, 0, 600); // The segments disagree on timing
+        
+        Transcript joined = LongAudioTranscriber.stitch(Arrays.asList(first, second), new long[] {0, 54_000});
+        
+        assertEquals("call me maybe tomorrow", joined.getText());
+        TranscriptWords words = joined.getWords();
+        assertEquals(3, words.size()); // "maybe" at 54 000 ms would come before "me"
+        assertEquals(14, words.getCharStart(2));
+        assertEquals(54_600, words.getStartMs(2));
+    }
+    
+    @Test
+    public void aSplitNoteTakesOneTokenPerSegment() throws Exception {
+        CountingRateLimiter rateLimiter = new CountingRateLimiter();
+        FakeClient client = new FakeClient(0);
+        LongAudioTranscriber transcriber = new LongAudioTranscriber(client, rateLimiter, segmentDirectory);
+        List<TranscriptionJob> jobs = Arrays.asList(job("long", LONG_NOTE_FRAMES), job("short", 500));
+        
+        assertEquals(2, transcriber.requestCount(jobs.get(0).getFilePath(), RecordingProfile.AMR_NB));
+        assertEquals(1, transcriber.requestCount(jobs.get(1).getFilePath(), RecordingProfile.AMR_NB));
+        TranscriptionScheduler.BatchReport report = run(transcriber, rateLimiter, jobs);
+        
+        assertEquals(2, report.getSucceeded());
+        assertEquals(3, client.requests.get());
+        assertEquals(3, report.getRequests());
+        assertEquals(3, rateLimiter.reserved.get());
+        assertEquals(0, segmentDirectory.list().length); // Segment files are deleted
+    }
+    
+    @Test
+    public void aThrottledSegmentSlowsTheLimiterDownOnce() throws Exception {
+        CountingRateLimiter rateLimiter = new CountingRateLimiter();
+        FakeClient client = new FakeClient(1); // The first segment is throttled
+        LongAudioTranscriber transcriber = new LongAudioTranscriber(client, rateLimiter, segmentDirectory);
+        
+        TranscriptionScheduler.BatchReport report = run(transcriber, rateLimiter,
+                Arrays.asList(job("long", LONG_NOTE_FRAMES)));
+        
+        assertEquals(1, report.getSucceeded());
+        assertEquals(1, rateLimiter.throttled.get());
+        assertEquals(1, report.getThrottled());
+        assertEquals(1, report.getRetries());
+        assertEquals(4, report.getRequests()); // Both segments, twice
+    }
+    
+    private TranscriptionScheduler.BatchReport run(Transcriber transcriber, AdaptiveRateLimiter rateLimiter,
+                                                   List<TranscriptionJob> jobs) throws InterruptedException {
+        TranscriptionScheduler scheduler = new TranscriptionScheduler(transcriber, null, null, null, rateLimiter, 2,
+                Runnable::run);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<TranscriptionScheduler.BatchReport> report = new AtomicReference<>();
+        scheduler.submit(jobs, "{}", "en-US", new TranscriptionScheduler.Listener() {
+            @Override
+            public void onTranscribed(TranscriptionJob job, Transcript transcript) {
+            }
+            
+            @Override
+            public void onFailed(TranscriptionJob job, Exception error) {
+            }
+            
+            @Override
+            public void onBatchFinished(TranscriptionScheduler.BatchReport batchReport) {
+                report.set(batchReport);
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        return report.get();
+    }
+    
+    // Plenty of tokens; counts the ones taken and how often it was slowed down
+    private static class CountingRateLimiter extends AdaptiveRateLimiter {
+        final AtomicInteger reserved = new AtomicInteger();
+        final AtomicInteger throttled = new AtomicInteger();
+        
+        CountingRateLimiter() {
+            super(1_000, 1, 1_000, 100);
+        }
+        
+        @Override
+        public synchronized long reserve() {
+            long waitMs = super.reserve();
+            if (waitMs == 0) {
+                reserved.incrementAndGet();
+            }
+            return waitMs;
+        }
+        
+        @Override
+        public synchronized void onThrottled(long retryAfterMs) {
+            throttled.incrementAndGet();
+            super.onThrottled(retryAfterMs);
+        }
+    }
+    
+    // Answers every request with a word of its own, after throttling the given number of them
+    private static class FakeClient implements Transcriber {
+        final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger toThrottle;
+        
+        FakeClient(int throttled) {
+            this.toThrottle = new AtomicInteger(throttled);
+        }
+        
+        @Override
+        public Transcript transcribe(String credentialsJson, String filePath, RecordingProfile profile,
+                                     String languageCode) throws IOException {
+            int request = requests.incrementAndGet();
+            if (toThrottle.getAndDecrement() > 0) {
+                throw new TranscriptionException(TranscriptionException.HTTP_TOO_MANY_REQUESTS, -1);
+            }
+            return Transcript.of("word" + request);
+        }
+    }
+    
+    // Text with a position for every word, from pairs of start and end times
+    private static Transcript transcript(String text, float confidence, long... startMs) {
+        TranscriptWords.Builder words = new TranscriptWords.Builder();
+        int wordStart = 0;
+        for (String word : text.split(" ")) {
+            long start = startMs[words.size()];
+            words.add(wordStart, wordStart + word.length(), start, start + 300, confidence);
+            wordStart += word.length() + 1;
+        }
+        return new Transcript(text, confidence, words.build());
+    }
+    
+    private TranscriptionJob job(String id, int frames) throws IOException {
+        return new TranscriptionJob(id, recording(id, new boolean[frames]).getPath(), RecordingProfile.AMR_NB, "Work");
+    }
+    
+    // An AMR-NB storage format file of speech frames and, where silent is set, NO_DATA frames
+    private File recording(String name, boolean[] silent) throws IOException {
+        File file = folder.newFile(name + ".amr");
+        byte[] speech = new byte[SPEECH_FRAME_BYTES];
+        speech[0] = (byte) (SPEECH_TYPE << 3 | 0x04);
+        byte[] noData = {(byte) (AmrFile.FRAME_TYPE_NO_DATA << 3 | 0x04)};
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("#!AMR\n".getBytes("US-ASCII"));
+            for (boolean frameSilent : silent) {
+                out.write(frameSilent ? noData : speech);
+            }
+        }
+        return file;
+    }
+    
+    private static void fill(boolean[] silent, int from, int to) {
+        Arrays.fill(silent, from, to, true);
+    }
+    
+    private static List<String> ranges(List<int[]> segments) {
+        List<String> ranges = new ArrayList<>();
+        for (int[] segment : segments) {
+            ranges.add(segment[0] + "-" + segment[1]);
+        }
+        return ranges;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,227 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.widget.FrameLayout;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class NoteAdapterTest {
+    
+    private static final int ROWS = 10_000;
+    private static final long MAX_BYTES_PER_UNCHANGED_ROW = 128; // About 50 on a desktop JVM; rebuilt rows take 850
+    
+    private final List<Note> active = new ArrayList<>();
+    private final List<Note> completed = new ArrayList<>();
+    private final List<String> changes = new ArrayList<>(); // "changed 5 1", "inserted 0 3", ...
+    private final List<Object> payloads = new ArrayList<>(); // Of the changes, null where there was none
+    private MainActivity activity;
+    private NoteAdapter adapter;
+    
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < ROWS; i++) {
+            active.add(note(i));
+        }
+        for (int i = ROWS; i < ROWS + 100; i++) {
+            Note note = note(i);
+            note.setDone(true);
+            completed.add(note);
+        }
+        // Only attached, not created: the adapter reads resources and the playback state from it
+        activity = Robolectric.buildActivity(MainActivity.class).get();
+        adapter = new NoteAdapter(active, completed, new IgnoringListener(), activity);
+        refresh();
+        adapter.registerAdapterDataObserver(new RecordingObserver());
+    }
+    
+    @Test
+    public void showsActiveNotesThenTheCollapsedHeader() {
+        assertEquals(ROWS + 1, adapter.getItemCount());
+        assertSame(active.get(0), adapter.getRow(0).getNote());
+        assertTrue(adapter.getRow(ROWS).isHeader());
+        assertEquals(completed.size(), adapter.getRow(ROWS).getCompletedCount());
+    }
+    
+    @Test
+    public void refreshWithoutChangesKeepsEveryRow() throws Exception {
+        List<NoteRow> before = rows();
+        
+        refresh();
+        
+        assertEquals(new ArrayList<String>(), changes);
+        for (int i = 0; i < before.size(); i++) {
+            assertSame(before.get(i), adapter.getRow(i));
+        }
+    }
+    
+    @Test
+    public void rebindsOnlyTheChangedRow() throws Exception {
+        active.get(5_000).setContent("edited");
+        
+        refresh();
+        
+        assertEquals(listOf("changed 5000 1"), changes);
+        assertNull(payloads.get(0)); // A full rebind
+        assertEquals("edited", adapter.getRow(5_000).getContent());
+    }
+    
+    @Test
+    public void expandingTouchesOnlyTheHeaderAndTheCompletedRows() throws Exception {
+        adapter.toggleCompletedSection();
+        refresh();
+        
+        Collections.sort(changes);
+        assertEquals(listOf("changed " + ROWS + " 1", "inserted " + (ROWS + 1) + " " + completed.size()), changes);
+        assertNotNull(payloads.get(0)); // Only the header's title is rebound
+    }
+    
+    @Test
+    public void playbackRebindsOnlyThePlayButton() {
+        RecyclerView.ViewHolder holder = adapter.onCreateViewHolder(new FrameLayout(activity), 0);
+        adapter.onBindViewHolder(holder, 0);
+        NoteAdapter.AudioViewHolder audio = (NoteAdapter.AudioViewHolder) holder;
+        audio.title.setText("unchanged");
+        
+        adapter.notifyPlaybackChanged(active.get(0));
+        
+        assertEquals(listOf("changed 0 1"), changes);
+        assertNotNull(payloads.get(0));
+        adapter.onBindViewHolder(holder, 0, listOf(payloads.get(0)));
+        assertEquals("unchanged", audio.title.getText().toString());
+    }
+    
+    // Reusing rows means a refresh of unchanged notes formats nothing: no strings, no new rows
+    @Test
+    public void unchangedRowsAllocateAlmostNothing() throws Exception {
+        assumeTrue("No per-thread allocation counts on this JVM", AllocationCounter.isSupported());
+        bindAll(); // Formats every row's strings once
+        
+        long unchanged = refreshAndBind();
+        for (Note note : active) {
+            note.setContent(note.getContent() + "!");
+        }
+        long changed = refreshAndBind();
+        
+        assertTrue("Unchanged: " + unchanged / ROWS + " bytes a row", unchanged < ROWS * MAX_BYTES_PER_UNCHANGED_ROW);
+        assertTrue("Unchanged " + unchanged + " bytes, changed " + changed, unchanged * 4 < changed);
+    }
+    
+    // Bytes allocated on this thread by building the rows and by reading what binding shows; the
+    // diff and its commit are left out
+    private long refreshAndBind() throws InterruptedException {
+        CountDownLatch committed = new CountDownLatch(1);
+        long bytes = AllocationCounter.allocatedBy(() -> adapter.refresh(committed::countDown));
+        await(committed);
+        return bytes + AllocationCounter.allocatedBy(this::bindAll);
+    }
+    
+    private void refresh() throws InterruptedException {
+        CountDownLatch committed = new CountDownLatch(1);
+        adapter.refresh(committed::countDown);
+        await(committed);
+    }
+    
+    // The diff runs on a background thread and is committed on the main looper
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (latch.getCount() > 0) {
+            shadowOf(Looper.getMainLooper()).idle();
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Refresh not committed");
+            }
+            latch.await(1, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // What binding reads from a row, without the views
+    private void bindAll() {
+        for (int i = 0; i < adapter.getItemCount(); i++) {
+            NoteRow row = adapter.getRow(i);
+            if (!row.isHeader()) {
+                row.getTitle();
+                row.getTimestampText();
+                row.hasText();
+            }
+        }
+    }
+    
+    private List<NoteRow> rows() {
+        List<NoteRow> rows = new ArrayList<>();
+        for (int i = 0; i < adapter.getItemCount(); i++) {
+            rows.add(adapter.getRow(i));
+        }
+        return rows;
+    }
+    
+    private static Note note(int i) {
+        LocalDateTime timestamp = LocalDateTime.of(2024, 1, 1, 8, 0).plusMinutes(i);
+        Note note = i % 2 == 0
+                ? new Note("n" + i, Note.Type.AUDIO, "Work", timestamp, "transcript " + i, "/rec/n" + i + ".3gp")
+                : new Note("n" + i, Note.Type.TEXT, "Ideas", timestamp, "text " + i);
+        note.setDurationMs(i * 1000L);
+        return note;
+    }
+    
+    @SafeVarargs
+    private static <T> List<T> listOf(T... items) {
+        List<T> list = new ArrayList<>();
+        for (T item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+    
+    private class RecordingObserver extends RecyclerView.AdapterDataObserver {
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount, @Nullable Object payload) {
+            changes.add("changed " + positionStart + " " + itemCount);
+            payloads.add(payload);
+        }
+        
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            changes.add("inserted " + positionStart + " " + itemCount);
+        }
+        
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            changes.add("removed " + positionStart + " " + itemCount);
+        }
+        
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            changes.add("moved " + fromPosition + " " + toPosition + " " + itemCount);
+        }
+    }
+    
+    private static class IgnoringListener implements NoteAdapter.OnNoteActionListener {
+        @Override public void onPlayAudio(Note note) {}
+        @Override public void onToggleDone(Note note) {}
+        @Override public void onDelete(Note note) {}
+        @Override public void onEditTextNote(Note note) {}
+        @Override public void onCompletedExpanded() {}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The archive as the app sees it: through a NoteStore that was reopened, so it holds no archived notes
+@RunWith(RobolectricTestRunner.class)
+public class NoteArchiveTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+            .create();
+    private File directory;
+    private RecordingsDirectory recordings;
+    
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("files");
+        recordings = new RecordingsDirectory(new File(directory, "recordings"));
+    }
+    
+    @Test
+    public void appliesChangesToNotesItDoesNotHold() throws Exception {
+        NoteStore store = archive(text("n0"), text("n1"), text("n2"), text("n3"), text("n4"));
+        Note restored = text("n3");
+        restored.setDone(false);
+        store.recordTranscript("n1", Transcript.of("changed"));
+        store.recordDelete(text("n2"));
+        store.recordDone(restored);
+        store.compact(Arrays.asList(restored));
+        load(store, new ArrayList<>()); // Waits for the compaction
+        
+        NoteStore reopened = open();
+        List<Note> active = new ArrayList<>();
+        assertEquals(3, load(reopened, active));
+        assertEquals(Arrays.asList("n3"), ids(active));
+        List<Note> archived = new ArrayList<>();
+        assertFalse(page(reopened, 10, archived));
+        assertEquals(Arrays.asList("n0", "n1", "n4"), ids(archived));
+        assertEquals("changed", archived.get(1).getContent());
+    }
+    
+    @Test
+    public void keepsPagingByKeyAfterTheFileWasRewritten() throws Exception {
+        NoteStore store = archive(text("n0"), text("n1"), text("n2"), text("n3"), text("n4"), text("n5"));
+        List<Note> held = new ArrayList<>();
+        assertTrue(page(store, 3, held));
+        // Changing a note further down moves every line after the ones already handed out
+        store.recordTranscript("n4", Transcript.of("changed"));
+        store.compact(held);
+        
+        List<Note> rest = new ArrayList<>();
+        assertFalse(page(store, 10, rest));
+        
+        assertEquals(Arrays.asList("n0", "n1", "n2"), ids(held));
+        assertEquals(Arrays.asList("n3", "n4", "n5"), ids(rest));
+        assertEquals("changed", rest.get(1).getContent());
+    }
+    
+    @Test
+    public void dropsHeldNotesWhoseAudioIsGone() throws Exception {
+        Note kept = audio("n0");
+        Note lost = audio("n1");
+        NoteStore store = archive(kept, lost, text("n2"));
+        List<Note> held = new ArrayList<>();
+        assertFalse(page(store, 10, held));
+        assertEquals(3, held.size());
+        
+        assertTrue(recordings.delete(lost.getFilePath()));
+        store.compact(held);
+        load(store, new ArrayList<>());
+        
+        NoteStore reopened = open();
+        assertEquals(2, load(reopened, new ArrayList<>()));
+        List<Note> archived = new ArrayList<>();
+        assertFalse(page(reopened, 10, archived));
+        assertEquals(Arrays.asList("n0", "n2"), ids(archived));
+    }
+    
+    // Completes the notes, compacts them into the archive and returns a reopened store
+    private NoteStore archive(Note... notes) throws Exception {
+        NoteStore store = open();
+        for (Note note : notes) {
+            note.setDone(true);
+            store.recordInsert(note);
+        }
+        store.compact(Arrays.asList(notes));
+        load(store, new ArrayList<>()); // Waits for the compaction
+        
+        NoteStore reopened = open();
+        assertEquals(notes.length, load(reopened, new ArrayList<>()));
+        return reopened;
+    }
+    
+    private NoteStore open() {
+        return new NoteStore(directory, gson, recordings);
+    }
+    
+    // Adds the loaded notes and returns the archived count
+    private static int load(NoteStore store, List<Note> notes) throws InterruptedException {
+        AtomicInteger archivedCount = new AtomicInteger(-1);
+        CountDownLatch loaded = new CountDownLatch(1);
+        store.load(Runnable::run, new NoteStore.LoadListener() {
+            @Override
+            public void onBatch(List<Note> batch) {
+                notes.addAll(batch);
+            }
+            
+            @Override
+            public void onLoaded(int count) {
+                archivedCount.set(count);
+                loaded.countDown();
+            }
+            
+            @Override
+            public void onError(Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        return archivedCount.get();
+    }
+    
+    // Adds the next page and returns whether there is more
+    private static boolean page(NoteStore store, int maxNotes, List<Note> notes) throws InterruptedException {
+        AtomicBoolean hasMore = new AtomicBoolean();
+        CountDownLatch read = new CountDownLatch(1);
+        store.loadArchivePage(maxNotes, Runnable::run, new NoteStore.ArchiveListener() {
+            @Override
+            public void onArchivePage(List<Note> page, boolean more) {
+                notes.addAll(page);
+                hasMore.set(more);
+                read.countDown();
+            }
+            
+            @Override
+            public void onError(Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        assertTrue(read.await(10, TimeUnit.SECONDS));
+        return hasMore.get();
+    }
+    
+    private static List<String> ids(List<Note> notes) {
+        List<String> ids = new ArrayList<>();
+        for (Note note : notes) {
+            ids.add(note.getId());
+        }
+        return ids;
+    }
+    
+    // Notes are an hour apart, n0 the newest, so they are archived in the order of their ids
+    private static LocalDateTime timestamp(String id) {
+        return LocalDateTime.of(2024, 5, 1, 9, 0).minusHours(Integer.parseInt(id.substring(1)));
+    }
+    
+    private static Note text(String id) {
+        return new Note(id, Note.Type.TEXT, "Work", timestamp(id), "text " + id);
+    }
+    
+    private Note audio(String id) throws Exception {
+        File file = recordings.newFile(id + ".3gp");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[100]);
+        }
+        recordings.added(file);
+        return new Note(id, Note.Type.AUDIO, "Work", timestamp(id), "", file.getPath());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,390 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.mockwebserver.MockResponse;
+
+public class NotePackerTest {
+    
+    private static final int NB_SPEECH_TYPE = 7; // 12.2 kbit/s
+    private static final int[] NB_FRAME_BYTES = {13, 14, 16, 18, 20, 21, 27, 32, 6, 1, 1, 1, 1, 1, 1, 1};
+    private static final int WB_SPEECH_TYPE = 8; // 23.85 kbit/s
+    private static final int WB_FRAME_BYTES = 61;
+    private static final long GAP_MS = 1_000;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File packDirectory;
+    private NotePacker packer;
+    
+    @Before
+    public void setUp() throws Exception {
+        packDirectory = folder.newFolder("packs");
+        packer = new NotePacker(packDirectory);
+        Metrics.getInstance().reset();
+    }
+    
+    @Test
+    public void packsShortAmrNotesOfTheSameCodec() throws Exception {
+        List<TranscriptionJob> jobs = Arrays.asList(
+                job("a", 2_000, false),
+                job("b", 3_000, false),
+                job("long", 12_000, false), // Over ten seconds, sent alone
+                job("c", 1_000, false),
+                job("wide1", 2_000, true), // Another codec starts a new pack
+                job("wide2", 2_000, true),
+                new TranscriptionJob("opus", folder.newFile("opus.ogg").getPath(), RecordingProfile.OGG_OPUS, "Work"),
+                new TranscriptionJob("missing", new File(folder.getRoot(), "missing.3gp").getPath(),
+                        RecordingProfile.AMR_NB, "Work"),
+                job("alone", 2_000, false)); // A pack of one is no pack
+        List<TranscriptionJob> unpacked = new ArrayList<>();
+        
+        List<NotePacker.Pack> packs = packer.plan(jobs, unpacked);
+        
+        assertEquals(2, packs.size());
+        assertEquals(Arrays.asList("a", "b", "c"), ids(packs.get(0).getJobs()));
+        assertEquals(RecordingProfile.AMR_NB, packs.get(0).getProfile());
+        assertEquals(Arrays.asList("wide1", "wide2"), ids(packs.get(1).getJobs()));
+        assertEquals(RecordingProfile.AMR_WB, packs.get(1).getProfile());
+        assertEquals(Arrays.asList("long", "opus", "missing", "alone"), ids(unpacked));
+    }
+    
+    @Test
+    public void keepsPacksWithinTheirLimits() throws Exception {
+        List<TranscriptionJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            jobs.add(job("long" + i, 9_000, false)); // Five of these and their gaps are 49 s
+        }
+        for (int i = 0; i < 10; i++) {
+            jobs.add(job("short" + i, 500, false));
+        }
+        List<TranscriptionJob> unpacked = new ArrayList<>();
+        
+        List<NotePacker.Pack> packs = packer.plan(jobs, unpacked);
+        
+        assertEquals(3, packs.size());
+        assertEquals(5, packs.get(0).getJobs().size());
+        assertEquals(8, packs.get(1).getJobs().size()); // The sixth long note and seven short ones
+        assertEquals(3, packs.get(2).getJobs().size());
+        assertEquals(Collections.<TranscriptionJob>emptyList(), unpacked);
+    }
+    
+    @Test
+    public void joinsTheRecordingsWithSilenceBetween() throws Exception {
+        List<TranscriptionJob> unpacked = new ArrayList<>();
+        NotePacker.Pack pack = packer.plan(Arrays.asList(job("a", 2_000, false), job("b", 3_000, false),
+                job("c", 1_000, false)), unpacked).get(0);
+        
+        File joined = packer.write(pack);
+        AmrFile recording = AmrFile.read(joined);
+        
+        assertEquals(packDirectory, joined.getParentFile());
+        assertEquals(6_000 + 2 * GAP_MS, recording.getDurationMs());
+        assertEquals(0, pack.startMs(0));
+        assertEquals(3_000, pack.startMs(1));
+        assertEquals(7_000, pack.startMs(2));
+        for (int frame = 0; frame < recording.getFrameCount(); frame++) {
+            long ms = (long) frame * AmrFile.FRAME_MS;
+            boolean inGap = ms >= 2_000 && ms < 3_000 || ms >= 6_000 && ms < 7_000;
+            assertEquals("Frame at " + ms + " ms", inGap, recording.isSilent(frame));
+        }
+    }
+    
+    @Test
+    public void splitsWordsByTheNoteTheyWereHeardIn() throws Exception {
+        NotePacker.Pack pack = pack(2_000, 3_000, 1_000); // Notes at 0, 3000 and 7000 ms
+        Transcript transcript = transcript("call the garage buy milk okay",
+                word(0, 4, 100, 500, 0.9f), word(5, 8, 600, 800, 0.8f), word(9, 15, 900, 1_800, 0.7f),
+                word(16, 19, 3_100, 3_400, 0.6f), word(20, 24, 3_500, 4_000, 0.5f),
+                word(25, 29, 7_100, 7_600, 0.4f));
+        
+        List<Transcript> parts = NotePacker.split(pack, transcript);
+        
+        assertEquals(3, parts.size());
+        assertEquals("call the garage", parts.get(0).getText());
+        assertEquals("buy milk", parts.get(1).getText());
+        assertEquals("okay", parts.get(2).getText());
+        TranscriptWords milk = parts.get(1).getWords();
+        assertEquals(2, milk.size());
+        assertEquals(4, milk.getCharStart(1));
+        assertEquals(8, milk.getCharEnd(1));
+        assertEquals(500, milk.getStartMs(1)); // Relative to the note
+        assertEquals(1_000, milk.getEndMs(1));
+        assertEquals((0.6 * 3 + 0.5 * 4) / 7, parts.get(1).getConfidence(), 0.01);
+    }
+    
+    @Test
+    public void aNoteWithoutWordsHeardNothing() throws Exception {
+        NotePacker.Pack pack = pack(2_000, 3_000);
+        
+        List<Transcript> parts = NotePacker.split(pack, transcript("hello", word(0, 5, 3_200, 3_600, 0.9f)));
+        
+        assertEquals(TranscriptionClient.NO_SPEECH, parts.get(0).getText());
+        assertEquals("hello", parts.get(1).getText());
+        
+        parts = NotePacker.split(pack, Transcript.of(TranscriptionClient.NO_SPEECH));
+        assertEquals(TranscriptionClient.NO_SPEECH, parts.get(0).getText());
+        assertEquals(TranscriptionClient.NO_SPEECH, parts.get(1).getText());
+    }
+    
+    @Test
+    public void givesUpWhenTheSplitIsAmbiguous() throws Exception {
+        NotePacker.Pack pack = pack(2_000, 3_000); // The gap is 2000 to 3000 ms
+        
+        // No word positions at all
+        assertNull(NotePacker.split(pack, Transcript.of("call the garage")));
+        // A word running from the first note well into the second
+        assertNull(NotePacker.split(pack, transcript("call garage",
+                word(0, 4, 100, 500, 0.9f), word(5, 11, 1_500, 3_600, 0.9f))));
+        // Text no word accounts for, between, before or after the words
+        assertNull(NotePacker.split(pack, transcript("call and garage",
+                word(0, 4, 100, 500, 0.9f), word(9, 15, 3_100, 3_500, 0.9f))));
+        assertNull(NotePacker.split(pack, transcript("um call", word(3, 7, 100, 500, 0.9f))));
+        assertNull(NotePacker.split(pack, transcript("call um", word(0, 4, 100, 500, 0.9f))));
+        
+        // Slightly across the boundary is within the tolerance
+        List<Transcript> parts = NotePacker.split(pack, transcript("call garage",
+                word(0, 4, 1_500, 2_100, 0.9f), word(5, 11, 2_900, 3_500, 0.9f)));
+        assertEquals("call", parts.get(0).getText());
+        assertEquals("garage", parts.get(1).getText());
+    }
+    
+    @Test
+    public void schedulerSendsAPackOnceAndSplitsIt() throws Exception {
+        List<TranscriptionJob> jobs = Arrays.asList(job("a", 2_000, false), job("b", 3_000, false));
+        FakeTranscriber transcriber = new FakeTranscriber(transcript("one two",
+                word(0, 3, 200, 600, 0.9f), word(4, 7, 3_200, 3_600, 0.8f)));
+        
+        Map<String, Transcript> results = new ConcurrentHashMap<>();
+        TranscriptionScheduler.BatchReport report = run(transcriber, jobs, results);
+        
+        assertEquals(1, transcriber.packedRequests.get());
+        assertEquals(0, transcriber.singleRequests.get());
+        assertEquals(1, report.getRequests());
+        assertEquals(2, report.getPackedNotes());
+        assertEquals("one", results.get("a").getText());
+        assertEquals("two", results.get("b").getText());
+        assertEquals(200, results.get("b").getWords().getStartMs(0));
+        assertEquals(0, packDirectory.list().length); // The joined recording is deleted
+    }
+    
+    @Test
+    public void schedulerFallsBackToSingleNotes() throws Exception {
+        List<TranscriptionJob> jobs = Arrays.asList(job("a", 2_000, false), job("b", 3_000, false),
+                job("c", 1_000, false));
+        FakeTranscriber transcriber = new FakeTranscriber(Transcript.of("one two three")); // No word positions
+        
+        Map<String, Transcript> results = new ConcurrentHashMap<>();
+        TranscriptionScheduler.BatchReport report = run(transcriber, jobs, results);
+        
+        assertEquals(1, transcriber.packedRequests.get());
+        assertEquals(3, transcriber.singleRequests.get());
+        assertEquals(4, report.getRequests());
+        assertEquals(0, report.getPackedNotes());
+        assertEquals(3, report.getSucceeded());
+        assertEquals(1L, (long) Metrics.getInstance().snapshot().counters.get(Metrics.Counter.PACK_FALLBACKS.key));
+        for (TranscriptionJob job : jobs) {
+            assertEquals("alone " + new File(job.getFilePath()).getName(), results.get(job.getNoteId()).getText());
+        }
+    }
+    
+    @Test
+    public void schedulerFallsBackWhenThePackFails() throws Exception {
+        List<TranscriptionJob> jobs = Arrays.asList(job("a", 2_000, false), job("b", 3_000, false));
+        FakeTranscriber transcriber = new FakeTranscriber(null); // The packed request fails
+        
+        Map<String, Transcript> results = new ConcurrentHashMap<>();
+        TranscriptionScheduler.BatchReport report = run(transcriber, jobs, results);
+        
+        assertEquals(2, transcriber.singleRequests.get());
+        assertEquals(2, report.getSucceeded());
+        assertEquals(0, report.getFailed());
+        assertFalse(results.get("a").getText().isEmpty());
+    }
+    
+    // Five two-second notes start at 0, 3, 6, 9 and 12 s of their pack
+    @Test
+    public void sendsOneRequestForFiveNotesInsteadOfFive() throws Exception {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            words.add("{\"startTime\":\"" + 3 * i + ".200s\",\"endTime\":\"" + 3 * i + ".700s\","
+                    + "\"word\":\"word" + i + "\"}");
+        }
+        String response = "{\"results\":[{\"alternatives\":[{\"transcript\":\"word0 word1 word2 word3 word4\","
+                + "\"confidence\":0.9,\"words\":[" + String.join(",", words) + "]}]}]}";
+        
+        try (StandInSpeechServer server = new StandInSpeechServer()) {
+            server.setDefaultResponse(new MockResponse().setBody(response));
+            Map<String, Transcript> results = new ConcurrentHashMap<>();
+            TranscriptionScheduler.BatchReport report = run(server, null, shortNotes("alone"), results);
+            assertEquals(5, server.getRecognizeRequests());
+            assertEquals(5, report.getRequests());
+            assertEquals(0, report.getPackedNotes());
+            
+            report = run(server, packer, shortNotes("packed"), results);
+            assertEquals(5 + 1, server.getRecognizeRequests());
+            assertEquals(1, report.getRequests());
+            assertEquals(5, report.getPackedNotes());
+            for (int i = 0; i < 5; i++) {
+                assertEquals("word" + i, results.get("packed" + i).getText());
+            }
+        }
+    }
+    
+    @Test
+    public void sendsEveryNoteAgainWhenThePackCannotBeSplit() throws Exception {
+        try (StandInSpeechServer server = new StandInSpeechServer()) { // Answers without word positions
+            TranscriptionScheduler.BatchReport report = run(server, packer, shortNotes("note"),
+                    new ConcurrentHashMap<>());
+            
+            assertEquals(1 + 5, server.getRecognizeRequests());
+            assertEquals(1 + 5, report.getRequests());
+            assertEquals(0, report.getPackedNotes());
+            assertEquals(5, report.getSucceeded());
+        }
+    }
+    
+    private List<TranscriptionJob> shortNotes(String prefix) throws IOException {
+        List<TranscriptionJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            jobs.add(job(prefix + i, 2_000, false));
+        }
+        return jobs;
+    }
+    
+    private TranscriptionScheduler.BatchReport run(StandInSpeechServer server, NotePacker notePacker,
+                                                   List<TranscriptionJob> jobs, Map<String, Transcript> results)
+            throws InterruptedException {
+        return run(server.newClient(), notePacker, server.credentialsJson(), jobs, results);
+    }
+    
+    private TranscriptionScheduler.BatchReport run(Transcriber transcriber, List<TranscriptionJob> jobs,
+                                                   Map<String, Transcript> results) throws InterruptedException {
+        return run(transcriber, packer, "{}", jobs, results);
+    }
+    
+    private TranscriptionScheduler.BatchReport run(Transcriber transcriber, NotePacker notePacker,
+                                                   String credentialsJson, List<TranscriptionJob> jobs,
+                                                   Map<String, Transcript> results) throws InterruptedException {
+        TranscriptionScheduler scheduler = new TranscriptionScheduler(transcriber, null, notePacker, null,
+                new AdaptiveRateLimiter(1_000, 1, 1_000, 10), 2, Runnable::run);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<TranscriptionScheduler.BatchReport> report = new AtomicReference<>();
+        scheduler.submit(jobs, credentialsJson, "en-US", new TranscriptionScheduler.Listener() {
+            @Override
+            public void onTranscribed(TranscriptionJob job, Transcript transcript) {
+                results.put(job.getNoteId(), transcript);
+            }
+            
+            @Override
+            public void onFailed(TranscriptionJob job, Exception error) {
+            }
+            
+            @Override
+            public void onBatchFinished(TranscriptionScheduler.BatchReport batchReport) {
+                report.set(batchReport);
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        return report.get();
+    }
+    
+    // Answers joined recordings with the given transcript, or fails them if it is null, and
+    // single notes with their file name
+    private class FakeTranscriber implements Transcriber {
+        final AtomicInteger packedRequests = new AtomicInteger();
+        final AtomicInteger singleRequests = new AtomicInteger();
+        private final Transcript packed;
+        
+        FakeTranscriber(Transcript packed) {
+            this.packed = packed;
+        }
+        
+        @Override
+        public Transcript transcribe(String credentialsJson, String filePath, RecordingProfile profile,
+                                     String languageCode) throws IOException {
+            File file = new File(filePath);
+            if (packDirectory.equals(file.getParentFile())) {
+                packedRequests.incrementAndGet();
+                if (packed == null) {
+                    throw new TranscriptionException(400, -1); // Not retryable, so no waiting
+                }
+                return packed;
+            }
+            singleRequests.incrementAndGet();
+            return Transcript.of("alone " + file.getName());
+        }
+    }
+    
+    private NotePacker.Pack pack(long... durationsMs) throws IOException {
+        List<TranscriptionJob> jobs = new ArrayList<>();
+        for (int i = 0; i < durationsMs.length; i++) {
+            jobs.add(job("n" + i, durationsMs[i], false));
+        }
+        List<NotePacker.Pack> packs = packer.plan(jobs, new ArrayList<>());
+        assertEquals(1, packs.size());
+        return packs.get(0);
+    }
+    
+    // An AMR storage format recording of speech frames
+    private TranscriptionJob job(String id, long durationMs, boolean wideband) throws IOException {
+        File file = folder.newFile(id + (wideband ? ".awb" : ".3gp"));
+        int type = wideband ? WB_SPEECH_TYPE : NB_SPEECH_TYPE;
+        byte[] frame = new byte[wideband ? WB_FRAME_BYTES : NB_FRAME_BYTES[type]];
+        frame[0] = (byte) (type << 3 | 0x04);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write((wideband ? "#!AMR-WB\n" : "#!AMR\n").getBytes("US-ASCII"));
+            for (long ms = 0; ms < durationMs; ms += AmrFile.FRAME_MS) {
+                out.write(frame);
+            }
+        }
+        return new TranscriptionJob(id, file.getPath(), wideband ? RecordingProfile.AMR_WB : RecordingProfile.AMR_NB,
+                "Work");
+    }
+    
+    private static Transcript transcript(String text, long[]... words) {
+        TranscriptWords.Builder builder = new TranscriptWords.Builder();
+        double confidenceSum = 0;
+        for (long[] word : words) {
+            builder.add((int) word[0], (int) word[1], word[2], word[3], word[4] / 100f);
+            confidenceSum += word[4] / 100.0;
+        }
+        return new Transcript(text, (float) (confidenceSum / words.length), builder.build());
+    }
+    
+    private static long[] word(int charStart, int charEnd, long startMs, long endMs, float confidence) {
+        return new long[] {charStart, charEnd, startMs, endMs, Math.round(confidence * 100)};
+    }
+    
+    private static List<String> ids(List<TranscriptionJob> jobs) {
+        List<String> ids = new ArrayList<>();
+        for (TranscriptionJob job : jobs) {
+            ids.add(job.getNoteId());
+        }
+        return ids;
+    }
+}
\ No newline at end of file
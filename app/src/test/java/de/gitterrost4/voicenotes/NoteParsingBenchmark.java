@@ -0,0 +1,98 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Reading notes.json with NoteTypeAdapter against the JsonObject-based deserializer it replaced
+public class NoteParsingBenchmark {
+    
+    private static final Type NOTE_LIST = new TypeToken<List<Note>>() {}.getType();
+    
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+            .create();
+    private final Gson treeGson = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, (JsonDeserializer<LocalDateTime>) (json, type, context) ->
+                    LocalDateTime.parse(json.getAsString(), DateTimeFormatter.ISO_LOCAL_DATE_TIME))
+            .registerTypeAdapter(Note.class, new TreeNoteDeserializer())
+            .create();
+    
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+    
+    @Test
+    public void parseNotes() throws Exception {
+        for (int count : new int[] {1_000, 10_000, 100_000}) {
+            String json = gson.toJson(notes(count));
+            AtomicReference<List<Note>> fromTree = new AtomicReference<>();
+            AtomicReference<List<Note>> fromAdapter = new AtomicReference<>();
+            Benchmark.report(count + " notes, JsonObject tree", Benchmark.measure(() ->
+                    fromTree.set(treeGson.fromJson(new StringReader(json), NOTE_LIST))));
+            Benchmark.report(count + " notes, NoteTypeAdapter", Benchmark.measure(() ->
+                    fromAdapter.set(gson.fromJson(new StringReader(json), NOTE_LIST))));
+            assertEquals(fromTree.get(), fromAdapter.get());
+        }
+    }
+    
+    // Text and audio notes a minute apart, some done, with a sentence or two of content
+    private static List<Note> notes(int count) {
+        List<Note> notes = new ArrayList<>(count);
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 8, 0, 12, 345_000_000);
+        for (int i = 0; i < count; i++) {
+            String id = Long.toString(1_704_096_012_345L + i);
+            String content = "Call the garage about the invoice, note number " + i;
+            Note note = i % 3 == 0
+                    ? new Note(id, Note.Type.AUDIO, "Work", start.plusMinutes(i), content,
+                            "/data/user/0/de.gitterrost4.voicenotes/files/recordings/audio_" + id + ".3gp")
+                    : new Note(id, Note.Type.TEXT, i % 2 == 0 ? "Work" : "Private", start.plusMinutes(i), content);
+            note.setDone(i % 4 == 0);
+            notes.add(note);
+        }
+        return notes;
+    }
+    
+    // The deserializer MainActivity registered before NoteTypeAdapter: a JsonObject per note
+    private static class TreeNoteDeserializer implements JsonDeserializer<Note> {
+        @Override
+        public Note deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) {
+            JsonObject jsonObject = json.getAsJsonObject();
+            String id = jsonObject.get("id").getAsString();
+            Note.Type noteType = Note.Type.valueOf(jsonObject.get("type").getAsString());
+            String category = jsonObject.get("category").getAsString();
+            LocalDateTime timestamp = context.deserialize(jsonObject.get("timestamp"), LocalDateTime.class);
+            String content = jsonObject.get("content").getAsString();
+            boolean done = jsonObject.has("done") && jsonObject.get("done").getAsBoolean();
+            
+            Note note;
+            if (noteType == Note.Type.TEXT) {
+                note = new Note(id, noteType, category, timestamp, content);
+            } else if (jsonObject.has("filePath")) {
+                note = new Note(id, noteType, category, timestamp, content, jsonObject.get("filePath").getAsString());
+            } else {
+                note = new Note(id, noteType, category, timestamp, "", content);
+            }
+            note.setDone(done);
+            return note;
+        }
+    }
+}
\ No newline at end of file
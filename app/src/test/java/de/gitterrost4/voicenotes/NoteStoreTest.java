@@ -0,0 +1,231 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Journal replay and compaction. Every call on a store is queued on its writer thread, so a load()
+// also waits for everything recorded before it.
+@RunWith(RobolectricTestRunner.class)
+public class NoteStoreTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+            .create();
+    private File directory;
+    private RecordingsDirectory recordings;
+    
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("files");
+        recordings = new RecordingsDirectory(new File(directory, "recordings"));
+        Metrics.getInstance().reset();
+    }
+    
+    @Test
+    public void replaysEverythingBeforeATornLastLine() throws Exception {
+        NoteStore store = open();
+        for (String id : new String[] {"a", "b", "c"}) {
+            store.recordInsert(note(id));
+        }
+        store.recordTranscript("a", Transcript.of("changed"));
+        store.recordDelete(note("b"));
+        load(store);
+        // The process died in the middle of writing the next record
+        try (FileOutputStream journal = new FileOutputStream(journalFile(), true)) {
+            journal.write("{\"op\":\"content\",\"id\":\"c\",\"content\":\"lo".getBytes(StandardCharsets.UTF_8));
+        }
+        
+        NoteStore restarted = open();
+        Map<String, Note> notes = load(restarted);
+        
+        assertEquals(2, notes.size());
+        assertEquals("changed", notes.get("a").getContent());
+        assertEquals("text c", notes.get("c").getContent());
+        
+        // The torn line doesn't take the next record with it
+        restarted.recordTranscript("c", Transcript.of("after the crash"));
+        load(restarted);
+        assertEquals("after the crash", load(open()).get("c").getContent());
+    }
+    
+    // Records made after compact() took its copies aren't in the snapshot, and have to stay in the
+    // journal however the flush and the snapshot write are ordered on the writer thread
+    @Test
+    public void keepsRecordsMadeWhileACompactionWaitsBehindAFlush() throws Exception {
+        NoteStore store = open();
+        store.recordInsert(note("a"));
+        store.recordInsert(note("b"));
+        List<Note> notes = new ArrayList<>(load(store).values());
+        
+        CountDownLatch release = blockWriter(store);
+        notes.get(0).setTranscript(Transcript.of("before"));
+        store.recordContent(notes.get(0)); // Flushed first, then covered by the snapshot
+        store.compact(notes);
+        store.recordTranscript("b", Transcript.of("after"));
+        release.countDown();
+        load(store);
+        
+        assertEquals(1, journalLines().size());
+        Map<String, Note> reloaded = load(open());
+        assertEquals("before", reloaded.get("a").getContent());
+        assertEquals("after", reloaded.get("b").getContent());
+    }
+    
+    @Test
+    public void keepsRecordsMadeWhileACompactionWaitsAlone() throws Exception {
+        NoteStore store = open();
+        store.recordInsert(note("a"));
+        store.recordInsert(note("b"));
+        List<Note> notes = new ArrayList<>(load(store).values());
+        
+        CountDownLatch release = blockWriter(store);
+        store.compact(notes); // Written before the record below is flushed
+        store.recordTranscript("b", Transcript.of("after"));
+        release.countDown();
+        load(store);
+        
+        assertEquals(1, journalLines().size());
+        assertTrue(journalLines().get(0).contains("after"));
+        Map<String, Note> reloaded = load(open());
+        assertEquals("text a", reloaded.get("a").getContent());
+        assertEquals("after", reloaded.get("b").getContent());
+    }
+    
+    @Test
+    public void aFailedSnapshotWriteAsksForAnotherCompaction() throws Exception {
+        NoteStore store = open();
+        store.recordInsert(note("a"));
+        List<Note> notes = new ArrayList<>(load(store).values());
+        File blocker = new File(directory, "notes.bin.tmp"); // The temp file can't be created
+        File blocking = new File(blocker, "file");
+        assertTrue(blocker.mkdir() && blocking.createNewFile());
+        
+        store.compact(notes);
+        load(store);
+        
+        assertTrue(store.shouldCompact());
+        assertEquals(1, journalLines().size()); // Nothing dropped
+        assertEquals(Long.valueOf(1),
+                Metrics.getInstance().snapshot().counters.get(Metrics.Counter.SNAPSHOT_WRITE_FAILURES.key));
+        
+        assertTrue(blocking.delete() && blocker.delete());
+        store.compact(notes);
+        load(store);
+        
+        assertFalse(store.shouldCompact());
+        assertEquals(0, journalLines().size());
+        assertEquals("text a", load(open()).get("a").getContent());
+    }
+    
+    @Test
+    public void replaysOntoTheSnapshot() throws Exception {
+        NoteStore store = open();
+        store.recordInsert(note("a"));
+        store.recordInsert(note("b"));
+        store.compact(new ArrayList<>(load(store).values()));
+        store.recordDelete(note("a"));
+        store.recordInsert(note("c"));
+        load(store);
+        
+        Map<String, Note> notes = load(open());
+        
+        assertEquals(2, notes.size());
+        assertNull(notes.get("a"));
+        assertEquals("text b", notes.get("b").getContent());
+        assertEquals("text c", notes.get("c").getContent());
+    }
+    
+    private NoteStore open() {
+        return new NoteStore(directory, gson, recordings);
+    }
+    
+    // Every note load() hands out, by id, once it has finished
+    private static Map<String, Note> load(NoteStore store) throws InterruptedException {
+        Map<String, Note> notes = new LinkedHashMap<>();
+        CountDownLatch loaded = new CountDownLatch(1);
+        store.load(Runnable::run, new NoteStore.LoadListener() {
+            @Override
+            public void onBatch(List<Note> batch) {
+                for (Note note : batch) {
+                    notes.put(note.getId(), note);
+                }
+            }
+            
+            @Override
+            public void onLoaded(int archivedCount) {
+                loaded.countDown();
+            }
+            
+            @Override
+            public void onError(Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        return notes;
+    }
+    
+    // Holds the writer thread until the returned latch is counted down, so what is asked for in the
+    // meantime is queued in order
+    private static CountDownLatch blockWriter(NoteStore store) throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Executor blocking = command -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        store.readArchivedIds(blocking, ids -> {});
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+    
+    private File journalFile() {
+        return new File(directory, "notes.journal");
+    }
+    
+    private List<String> journalLines() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(journalFile().toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+    
+    private static Note note(String id) {
+        return new Note(id, Note.Type.TEXT, "Work", LocalDateTime.of(2024, 5, 1, 9, 0), "text " + id);
+    }
+}
\ No newline at end of file
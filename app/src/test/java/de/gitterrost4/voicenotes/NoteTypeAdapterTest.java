@@ -0,0 +1,183 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Words go through android.util.Base64, hence Robolectric
+@RunWith(RobolectricTestRunner.class)
+public class NoteTypeAdapterTest {
+    
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+            .create();
+    
+    @Test
+    public void roundTripsEveryField() {
+        TranscriptWords words = new TranscriptWords.Builder()
+                .add(0, 4, 120, 480, 0.9f)
+                .add(5, 10, 500, 1_100, 0.75f)
+                .build();
+        Note note = new Note("a1", Note.Type.AUDIO, "Work", LocalDateTime.of(2024, 3, 7, 9, 5, 30, 250_000_000),
+                "", "/data/recordings/a1.awb");
+        note.setTranscript(new Transcript("Call Müller", 0.85f, words));
+        note.setDone(true);
+        note.setDurationMs(61_500);
+        note.setRecordingProfile(RecordingProfile.AMR_WB);
+        
+        Note read = roundTrip(note);
+        
+        assertEquals(note, read);
+        assertTrue(read.isDone());
+        assertEquals(61_500, read.getDurationMs());
+        assertEquals(0.85f, read.getConfidence(), 0.0001f);
+        assertEquals(RecordingProfile.AMR_WB, read.getStoredRecordingProfile());
+        assertEquals(2, read.getWords().size());
+        assertEquals(5, read.getWords().getCharStart(1));
+        assertEquals(10, read.getWords().getCharEnd(1));
+        assertEquals(500, read.getWords().getStartMs(1));
+        assertEquals(1_100, read.getWords().getEndMs(1));
+    }
+    
+    @Test
+    public void leavesOutDefaults() {
+        Note note = new Note("t1", Note.Type.TEXT, "Ideas", LocalDateTime.of(2024, 1, 2, 3, 4), "Buy milk");
+        String json = gson.toJson(note);
+        
+        assertFalse(json, json.contains("filePath"));
+        assertFalse(json, json.contains("durationMs"));
+        assertFalse(json, json.contains("confidence"));
+        assertFalse(json, json.contains("words"));
+        assertFalse(json, json.contains("recordingProfile"));
+        
+        Note read = gson.fromJson(json, Note.class);
+        assertEquals(note, read);
+        assertFalse(read.isDone());
+        assertNull(read.getStoredRecordingProfile());
+    }
+    
+    @Test
+    public void readsAudioNotesWhoseContentWasThePath() {
+        Note read = gson.fromJson("{\"id\":\"old\",\"type\":\"AUDIO\",\"category\":\"Work\","
+                + "\"timestamp\":\"2023-11-30T18:45:12\",\"content\":\"/data/recordings/old.3gp\",\"done\":false}",
+                Note.class);
+        
+        assertEquals("/data/recordings/old.3gp", read.getFilePath());
+        assertEquals("", read.getText());
+        assertNull(read.getStoredRecordingProfile());
+        assertEquals(RecordingProfile.AMR_NB, read.getRecordingProfile());
+    }
+    
+    @Test
+    public void skipsNullsAndUnknownFields() {
+        Note read = gson.fromJson("{\"id\":\"x\",\"future\":{\"nested\":[1,2,3]},\"type\":\"TEXT\","
+                + "\"category\":null,\"timestamp\":\"2024-05-06T07:08:09.123\",\"content\":\"hi\","
+                + "\"recordingProfile\":\"flac\",\"words\":null}", Note.class);
+        
+        assertEquals("x", read.getId());
+        assertNull(read.getCategory());
+        assertEquals(LocalDateTime.of(2024, 5, 6, 7, 8, 9, 123_000_000), read.getTimestamp());
+        assertNull(read.getStoredRecordingProfile());
+        assertNull(read.getWords());
+    }
+    
+    @Test
+    public void rejectsIncompleteRecords() {
+        try {
+            gson.fromJson("{\"id\":\"x\",\"type\":\"TEXT\",\"content\":\"no timestamp\"}", Note.class);
+            fail();
+        } catch (JsonParseException expected) {
+        }
+        try {
+            gson.fromJson("{\"id\":\"x\",\"type\":\"TEXT\",\"timestamp\":\"yesterday\"}", Note.class);
+            fail();
+        } catch (JsonParseException expected) {
+        }
+    }
+    
+    @Test
+    public void roundTripsALargeList() {
+        Random random = new Random(3);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            LocalDateTime timestamp = randomTimestamp(random);
+            Note note = i % 3 == 0
+                    ? new Note("n" + i, Note.Type.TEXT, "C" + random.nextInt(5), timestamp, "text \"" + i + "\"\n")
+                    : new Note("n" + i, Note.Type.AUDIO, "C" + random.nextInt(5), timestamp, "transcript " + i,
+                            "/rec/n" + i + ".3gp");
+            note.setDone(random.nextBoolean());
+            note.setDurationMs(random.nextInt(600_000));
+            notes.add(note);
+        }
+        
+        List<Note> read = gson.fromJson(gson.toJson(notes), new TypeToken<List<Note>>() {}.getType());
+        
+        assertEquals(notes, read);
+        for (int i = 0; i < notes.size(); i++) {
+            assertEquals(notes.get(i).isDone(), read.get(i).isDone());
+            assertEquals(notes.get(i).getDurationMs(), read.get(i).getDurationMs());
+        }
+    }
+    
+    @Test
+    public void timestampsMatchTheIsoFormatter() {
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            LocalDateTime timestamp = randomTimestamp(random);
+            String iso = timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            assertEquals(iso, NoteTypeAdapter.formatTimestamp(timestamp));
+            assertEquals(timestamp, NoteTypeAdapter.parseTimestamp(iso));
+        }
+        assertEquals(LocalDateTime.of(2024, 1, 2, 3, 4), NoteTypeAdapter.parseTimestamp("2024-01-02T03:04"));
+        assertEquals(LocalDateTime.of(2024, 1, 2, 3, 4, 5, 100_000_000),
+                NoteTypeAdapter.parseTimestamp("2024-01-02T03:04:05.1"));
+        LocalDateTime farFuture = LocalDateTime.of(12_024, 1, 2, 3, 4);
+        assertEquals(farFuture, NoteTypeAdapter.parseTimestamp(NoteTypeAdapter.formatTimestamp(farFuture)));
+    }
+    
+    @Test
+    public void rejectsOutOfRangeTimestamps() {
+        String[] invalid = {"2024-13-01T00:00", "2024-02-30T00:00", "2024-01-01T24:00", "2024-01-01T00:00:60",
+                "2024-01-01T00:00:00.1234567890", "2024-01-01 00:00", "2024-1-01T00:00"};
+        for (String value : invalid) {
+            try {
+                NoteTypeAdapter.parseTimestamp(value);
+                fail(value);
+            } catch (JsonParseException expected) {
+            }
+        }
+    }
+    
+    private Note roundTrip(Note note) {
+        return gson.fromJson(gson.toJson(note), Note.class);
+    }
+    
+    private static LocalDateTime randomTimestamp(Random random) {
+        int nano;
+        switch (random.nextInt(4)) {
+            case 0: nano = 0; break;
+            case 1: nano = random.nextInt(1_000) * 1_000_000; break;
+            case 2: nano = random.nextInt(1_000_000) * 1_000; break;
+            default: nano = random.nextInt(1_000_000_000); break;
+        }
+        return LocalDateTime.of(1970 + random.nextInt(100), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                random.nextInt(24), random.nextInt(60), random.nextInt(60), nano);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,65 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Sizes of a minute of speech, from files written the way the app writes them
+public class RecordingProfileTest {
+    
+    private static final int FRAMES_PER_MINUTE = 60_000 / AmrFile.FRAME_MS;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void amrNarrowbandMinuteHasTheEstimatedSize() throws Exception {
+        // 12.2 kbit/s is frame type 7, 32 bytes with its header
+        File cut = cut(minute("#!AMR\n", 7, 32));
+        
+        assertEquals(96_000, RecordingProfile.AMR_NB.getBytesPerMinute());
+        assertEquals(RecordingProfile.AMR_NB.getBytesPerMinute() + "#!AMR\n".length(), cut.length());
+    }
+    
+    @Test
+    public void amrWidebandMinuteHasTheEstimatedSize() throws Exception {
+        // 23.85 kbit/s is frame type 8, 61 bytes with its header
+        File cut = cut(minute("#!AMR-WB\n", 8, 61));
+        
+        assertEquals(183_000, RecordingProfile.AMR_WB.getBytesPerMinute());
+        assertEquals(RecordingProfile.AMR_WB.getBytesPerMinute() + "#!AMR-WB\n".length(), cut.length());
+    }
+    
+    @Test
+    public void pcmMinuteIsTwoBytesASample() {
+        assertEquals(60L * LiveRecorder.SAMPLE_RATE * 2, RecordingProfile.PCM_WAV.getBytesPerMinute());
+    }
+    
+    // Through AmrFile, which writes stripped and joined recordings
+    private File cut(File recording) throws IOException {
+        AmrFile amr = AmrFile.read(recording);
+        assertEquals(60_000, amr.getDurationMs());
+        File target = folder.newFile();
+        amr.writeFrames(0, amr.getFrameCount(), target);
+        return target;
+    }
+    
+    private File minute(String magic, int type, int frameBytes) throws IOException {
+        File file = folder.newFile();
+        byte[] frame = new byte[frameBytes];
+        frame[0] = (byte) (type << 3 | 0x04);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(magic.getBytes("US-ASCII"));
+            for (int i = 0; i < FRAMES_PER_MINUTE; i++) {
+                out.write(frame);
+            }
+        }
+        return file;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,75 @@
+package de.gitterrost4.voicenotes;
+
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+// What sending a recording costs: AudioRequestBody against building the whole request as a string
+// first, the way transcribeNoteSync did. The old way keeps the file, its Base64 string, the JSON
+// around it and that JSON's bytes reachable until the request is written, so most of what it
+// allocates is needed at once.
+@RunWith(RobolectricTestRunner.class)
+public class RequestBodyBenchmark {
+    
+    private static final String PREFIX = "{\"config\": {\"encoding\": \"AMR_WB\", \"sampleRateHertz\": 16000, "
+            + "\"languageCode\": \"en-US\"}, \"audio\": {\"content\": \"";
+    private static final String SUFFIX = "\"}}";
+    private static final MediaType JSON = MediaType.parse("application/json");
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+    
+    @Test
+    public void writeRequestBodies() throws Exception {
+        // About 30 seconds, 5 minutes and 50 minutes of AMR-WB at 23.85 kbit/s
+        for (int length : new int[] {100_000, 1_000_000, 10_000_000}) {
+            File file = recording(length);
+            String name = length / 1000 + " KB of audio";
+            Benchmark.report(name + ", whole string", Benchmark.measure(() -> {
+                byte[] audioData = Files.readAllBytes(file.toPath());
+                String audioBase64 = Base64.encodeToString(audioData, Base64.NO_WRAP);
+                String requestJson = PREFIX + audioBase64 + SUFFIX;
+                write(RequestBody.create(requestJson, JSON));
+            }));
+            Benchmark.report(name + ", AudioRequestBody", Benchmark.measure(() ->
+                    write(new AudioRequestBody(PREFIX, file, SUFFIX))));
+        }
+    }
+    
+    // Into a sink that drops everything, like a socket would take it
+    private static void write(RequestBody body) throws Exception {
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            body.writeTo(sink);
+        }
+    }
+    
+    private File recording(int length) throws Exception {
+        byte[] audio = new byte[length];
+        new Random(length).nextBytes(audio);
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(audio);
+        }
+        return file;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+// TranscriptionResponseParser against the JsonObject tree TranscriptionClient parsed responses into
+// before. The tree parse reads only the text (of every alternative, as it did); the streaming parse
+// also keeps confidence and word times.
+public class ResponseParsingBenchmark {
+    
+    private final Gson gson = new Gson();
+    
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+    
+    @Test
+    public void parseResponses() throws Exception {
+        String recorded = TranscriptionResponseParserTest.fixture("two_results.json");
+        // Its two results over and over, for the longer responses a long recording gets
+        String results = recorded.substring(recorded.indexOf('[') + 1, recorded.lastIndexOf(']'));
+        for (int copies : new int[] {1, 20, 200}) {
+            String response = "{\"results\":[" + String.join(",", Collections.nCopies(copies, results)) + "]}";
+            String name = 2 * copies + " results, " + response.length() / 1024 + " KB";
+            AtomicReference<String> text = new AtomicReference<>();
+            Benchmark.report(name + ", JsonObject tree", Benchmark.measure(() ->
+                    text.set(parseTree(response))));
+            Benchmark.report(name + ", streaming", Benchmark.measure(() ->
+                    text.set(TranscriptionResponseParser.parse(new StringReader(response)).getText())));
+            assertEquals(61 * copies + copies - 1, text.get().length()); // One space between results
+        }
+    }
+    
+    // What TranscriptionClient did with the response body before TranscriptionResponseParser
+    private String parseTree(String responseJson) {
+        JsonObject response = gson.fromJson(responseJson, JsonObject.class);
+        StringBuilder transcript = new StringBuilder();
+        if (response.has("results")) {
+            for (JsonElement result : response.getAsJsonArray("results")) {
+                JsonObject resultObj = result.getAsJsonObject();
+                if (resultObj.has("alternatives")) {
+                    for (JsonElement alternative : resultObj.getAsJsonArray("alternatives")) {
+                        JsonObject altObj = alternative.getAsJsonObject();
+                        if (altObj.has("transcript")) {
+                            transcript.append(altObj.get("transcript").getAsString());
+                        }
+                    }
+                }
+            }
+        }
+        return transcript.toString().trim();
+    }
+}
\ No newline at end of file
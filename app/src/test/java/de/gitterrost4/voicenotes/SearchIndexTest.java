@@ -0,0 +1,172 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SearchIndexTest {
+    
+    private static final long FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void matchesWordBeginningsWithoutAccents() throws Exception {
+        SearchIndex index = new SearchIndex(folder.getRoot());
+        build(index, Arrays.asList(
+                note("1", "Call Müller about the invoice"),
+                note("2", "Buy milk"),
+                note("3", "Invoice for the garage")));
+        
+        assertEquals(set("1"), index.search("mull"));
+        assertEquals(set("1", "3"), index.search("INV"));
+        assertEquals(set("3"), index.search("invoice gar"));
+        assertEquals(Collections.emptySet(), index.search("voice"));
+        assertNull(index.search(" ,. "));
+    }
+    
+    @Test
+    public void followsEditsAndDeletes() throws Exception {
+        SearchIndex index = new SearchIndex(folder.getRoot());
+        Note note = note("1", "first draft");
+        build(index, Collections.singletonList(note));
+        
+        note.setTranscript(Transcript.of("second version"));
+        index.put(note);
+        assertEquals(Collections.emptySet(), index.search("draft"));
+        assertEquals(set("1"), index.search("sec"));
+        
+        index.remove("1");
+        assertEquals(Collections.emptySet(), index.search("sec"));
+    }
+    
+    @Test
+    public void keepsSavedEntriesOfNotesThatAreNotLoaded() throws Exception {
+        SearchIndex first = new SearchIndex(folder.getRoot());
+        List<Note> all = Arrays.asList(note("active", "shopping list"), note("archived", "shipping label"));
+        build(first, all);
+        saveAndWait(first, all);
+        
+        // The archived note isn't loaded on the next start
+        List<Note> loaded = Collections.singletonList(note("active", "shopping list"));
+        SearchIndex second = new SearchIndex(folder.getRoot());
+        build(second, loaded);
+        assertEquals(set("archived"), second.search("ship"));
+        saveAndWait(second, loaded);
+        
+        SearchIndex third = new SearchIndex(folder.getRoot());
+        build(third, Collections.singletonList(note("active", "shopping list")));
+        assertEquals(set("active", "archived"), third.search("sh"));
+    }
+    
+    @Test
+    public void reindexesChangedContentOnBuild() throws Exception {
+        SearchIndex first = new SearchIndex(folder.getRoot());
+        List<Note> notes = Collections.singletonList(note("1", "old words"));
+        build(first, notes);
+        saveAndWait(first, notes);
+        
+        SearchIndex second = new SearchIndex(folder.getRoot());
+        build(second, Collections.singletonList(note("1", "new words")));
+        assertEquals(Collections.emptySet(), second.search("old"));
+        assertEquals(set("1"), second.search("new"));
+    }
+    
+    @Test
+    public void hashIsADigestOfTheContent() {
+        // Both strings have the same String.hashCode()
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(SearchIndex.hash("Aa"), SearchIndex.hash("BB"));
+        assertEquals(64, SearchIndex.hash("").length());
+    }
+    
+    // Queries over 50k notes of 5 to 65 words each, from a few hundred distinct words, must answer
+    // within one frame. Short prefixes cover dozens of tokens and most notes. The queries run a few
+    // times untimed first, as they would have by the time someone types; then each is timed a few
+    // times and the best run counts, so a GC pause on a busy build machine doesn't fail the test.
+    @Test
+    public void queriesOverFiftyThousandNotesFitInAFrame() throws Exception {
+        Random random = new Random(42);
+        String[] vocabulary = vocabulary(random, 600);
+        List<Note> notes = new ArrayList<>(50_000);
+        for (int i = 0; i < 50_000; i++) {
+            int words = 5 + random.nextInt(61);
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+            }
+            notes.add(note(Integer.toString(i), text.toString()));
+        }
+        SearchIndex index = new SearchIndex(folder.getRoot());
+        build(index, notes);
+        
+        String[] queries = {"m", "ba", "ve lo", vocabulary[0], vocabulary[1] + " " + vocabulary[2], "zzz"};
+        for (int warmup = 0; warmup < 20; warmup++) {
+            for (String query : queries) {
+                index.search(query);
+            }
+        }
+        for (String query : queries) {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                Set<String> result = index.search(query);
+                best = Math.min(best, System.nanoTime() - start);
+                assertTrue(result != null);
+            }
+            System.out.printf("\"%s\": %d hits in %.2f ms%n", query, index.search(query).size(), best / 1e6);
+            assertTrue("\"" + query + "\" took " + best / 1e6 + " ms", best < FRAME_BUDGET_NANOS);
+        }
+    }
+    
+    private static String[] vocabulary(Random random, int size) {
+        String[] syllables = {"ka", "lo", "mi", "ne", "ba", "tu", "ri", "so", "ve", "da", "ze", "pu"};
+        Set<String> words = new HashSet<>();
+        while (words.size() < size) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 1 + random.nextInt(4); i > 0; i--) {
+                word.append(syllables[random.nextInt(syllables.length)]);
+            }
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+    
+    private static void build(SearchIndex index, Collection<Note> notes) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(1);
+        index.build(notes, Runnable::run, ready::countDown);
+        assertTrue(ready.await(60, TimeUnit.SECONDS));
+    }
+    
+    // The write runs on the index's background thread, so building again returns after it
+    private static void saveAndWait(SearchIndex index, Collection<Note> notes) throws InterruptedException {
+        index.save();
+        build(index, notes);
+    }
+    
+    private static Note note(String id, String content) {
+        return new Note(id, Note.Type.TEXT, "General", LocalDateTime.of(2024, 1, 1, 12, 0), content);
+    }
+    
+    private static Set<String> set(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A long pause is at least 50 frames (1 s); 7 frames of it are kept before the cut and 8 after
+public class SilenceStripperTest {
+    
+    private static final int SPEECH_TYPE = 7; // AMR-NB 12.2 kbit/s, 32 bytes a frame
+    private static final int SPEECH_FRAME_BYTES = 32;
+    private static final int MIN_RUN_FRAMES = 50;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void cutsARunOfExactlyTheMinimumLength() throws Exception {
+        boolean[] silent = new boolean[300];
+        fill(silent, 100, 100 + MIN_RUN_FRAMES);
+        
+        assertEquals(Arrays.asList("0-107", "142-300"), ranges(silent));
+    }
+    
+    @Test
+    public void leavesAShorterRunAlone() throws Exception {
+        boolean[] silent = new boolean[300];
+        fill(silent, 100, 100 + MIN_RUN_FRAMES - 1);
+        
+        assertEquals(Arrays.asList("0-300"), ranges(silent));
+        assertNull(new SilenceStripper(folder.newFolder("stripped")).strip(recording(silent).getPath()));
+    }
+    
+    @Test
+    public void cutsRunsAtEitherEnd() throws Exception {
+        boolean[] silent = new boolean[300];
+        fill(silent, 0, 60);
+        fill(silent, 200, 300);
+        
+        assertEquals(Arrays.asList("0-7", "52-207", "292-300"), ranges(silent));
+    }
+    
+    @Test
+    public void writesTheKeptFrames() throws Exception {
+        boolean[] silent = new boolean[300];
+        fill(silent, 100, 200);
+        File source = recording(silent);
+        
+        SilenceStripper.Result result = new SilenceStripper(folder.newFolder("stripped")).strip(source.getPath());
+        
+        AmrFile stripped = AmrFile.read(result.getFile());
+        assertEquals(300 - 85, stripped.getFrameCount());
+        assertEquals(85 * AmrFile.FRAME_MS, result.getSavedMs());
+        assertEquals(source.length() - result.getFile().length(), result.getSavedBytes());
+        assertEquals(stripped.getDurationMs(), result.getTimeMap().getDurationMs());
+        for (int frame = 0; frame < stripped.getFrameCount(); frame++) {
+            assertEquals("Frame " + frame, frame >= 100 && frame < 115, stripped.isSilent(frame));
+        }
+    }
+    
+    // Kept: 0 to 2140 ms, then 2840 ms on, which starts at 2140 ms in the shortened audio
+    @Test
+    public void mapsTimesBackAcrossTheCut() {
+        SilenceStripper.TimeMap map = SilenceStripper.TimeMap.of(Arrays.asList(new int[] {0, 107},
+                new int[] {142, 300}));
+        
+        assertEquals((300 - 35) * AmrFile.FRAME_MS, map.getDurationMs());
+        assertEquals(0, map.toOriginalMs(0));
+        assertEquals(2_139, map.toOriginalMs(2_139));
+        assertEquals(2_840, map.toOriginalMs(2_140));
+        assertEquals(3_000, map.toOriginalMs(2_300));
+    }
+    
+    @Test
+    public void movesWordEndsWithTheirStarts() {
+        SilenceStripper.TimeMap map = SilenceStripper.TimeMap.of(Arrays.asList(new int[] {0, 107},
+                new int[] {142, 300}));
+        TranscriptWords words = new TranscriptWords.Builder()
+                .add(0, 4, 1_500, 2_140, 0.9f) // Ends where the pause was cut
+                .add(5, 9, 2_140, 2_500, 0.8f) // Starts there
+                .add(10, 14, 2_100, 2_300, 0.7f) // Runs across the cut
+                .add(15, 16, 3_000, 3_000, 0.6f) // No length
+                .build();
+        
+        Transcript mapped = map.toOriginal(new Transcript("left when over a", 0.75f, words));
+        
+        assertEquals("left when over a", mapped.getText());
+        assertEquals(0.75f, mapped.getConfidence(), 0);
+        TranscriptWords original = mapped.getWords();
+        assertEquals(1_500, original.getStartMs(0));
+        assertEquals(2_140, original.getEndMs(0));
+        assertEquals(2_840, original.getStartMs(1));
+        assertEquals(3_200, original.getEndMs(1));
+        assertEquals(2_100, original.getStartMs(2));
+        assertEquals(3_000, original.getEndMs(2));
+        assertEquals(3_700, original.getStartMs(3));
+        assertEquals(3_700, original.getEndMs(3));
+        assertEquals(10, original.getCharStart(2));
+        assertEquals(0.7f, original.getConfidence(2), 0.01f);
+    }
+    
+    private List<String> ranges(boolean[] silent) throws IOException {
+        List<String> ranges = new ArrayList<>();
+        for (int[] range : SilenceStripper.keptRanges(AmrFile.read(recording(silent)))) {
+            ranges.add(range[0] + "-" + range[1]);
+        }
+        return ranges;
+    }
+    
+    // An AMR-NB storage format file of speech frames and, where silent is set, NO_DATA frames
+    private File recording(boolean[] silent) throws IOException {
+        File file = folder.newFile();
+        byte[] speech = new byte[SPEECH_FRAME_BYTES];
+        speech[0] = (byte) (SPEECH_TYPE << 3 | 0x04);
+        byte[] noData = {(byte) (AmrFile.FRAME_TYPE_NO_DATA << 3 | 0x04)};
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("#!AMR\n".getBytes("US-ASCII"));
+            for (boolean frameSilent : silent) {
+                out.write(frameSilent ? noData : speech);
+            }
+        }
+        return file;
+    }
+    
+    private static void fill(boolean[] silent, int from, int to) {
+        Arrays.fill(silent, from, to, true);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Size and load time of the binary snapshot (notes.bin) against the JSON one it replaced (notes.json)
+public class SnapshotBenchmark {
+    
+    private static final int FIRST_SCREEN_NOTES = 20; // As many as NoteStore keeps in first_screen.json
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Note.class, new NoteTypeAdapter())
+            .create();
+    private File recordings;
+    
+    @Before
+    public void setUp() throws Exception {
+        Benchmark.assumeEnabled();
+        recordings = folder.newFolder("recordings");
+    }
+    
+    @Test
+    public void loadSnapshot() throws Exception {
+        for (int count : new int[] {1_000, 10_000, 100_000}) {
+            List<Note> notes = notes(count);
+            File json = new File(folder.getRoot(), "notes" + count + ".json");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(json), StandardCharsets.UTF_8)) {
+                BinaryNoteFile.exportJson(notes, out, gson);
+            }
+            File binary = new File(folder.getRoot(), "notes" + count + ".bin");
+            BinaryNoteFile.write(binary, notes, recordings);
+            Benchmark.report(count + " notes, file size", String.format(Locale.ROOT,
+                    "JSON %.2f MB, binary %.2f MB", json.length() / 1e6, binary.length() / 1e6));
+            
+            AtomicReference<List<Note>> fromJson = new AtomicReference<>();
+            AtomicReference<List<Note>> fromBinary = new AtomicReference<>();
+            Benchmark.report(count + " notes, JSON", Benchmark.measure(() ->
+                    fromJson.set(BinaryNoteFile.importJson(json, gson))));
+            Benchmark.report(count + " notes, binary, every note", Benchmark.measure(() -> {
+                BinaryNoteFile.Reader reader = BinaryNoteFile.open(binary, recordings);
+                List<Note> read = new ArrayList<>(reader.size());
+                for (int i = 0; i < reader.size(); i++) {
+                    read.add(reader.get(i));
+                }
+                fromBinary.set(read);
+            }));
+            Benchmark.report(count + " notes, binary, first screen", Benchmark.measure(() -> {
+                BinaryNoteFile.Reader reader = BinaryNoteFile.open(binary, recordings);
+                for (int i = 0; i < FIRST_SCREEN_NOTES; i++) {
+                    reader.get(i);
+                }
+            }));
+            assertEquals(notes, fromJson.get());
+            assertEquals(notes, fromBinary.get());
+        }
+    }
+    
+    // Text and audio notes a minute apart, as written by this version: audio notes carry their
+    // duration, recording profile and confidence
+    private List<Note> notes(int count) {
+        List<Note> notes = new ArrayList<>(count);
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 8, 0, 12, 345_000_000);
+        for (int i = 0; i < count; i++) {
+            String id = Long.toString(1_704_096_012_345L + i);
+            String content = "Call the garage about the invoice, note number " + i;
+            Note note;
+            if (i % 3 == 0) {
+                note = new Note(id, Note.Type.AUDIO, "Work", start.plusMinutes(i), "",
+                        new File(recordings, "audio_" + id + ".3gp").getPath());
+                note.setTranscript(new Transcript(content, 0.87f, null));
+                note.setDurationMs(12_000 + i);
+                note.setRecordingProfile(RecordingProfile.AMR_WB);
+            } else {
+                note = new Note(id, Note.Type.TEXT, i % 2 == 0 ? "Work" : "Private", start.plusMinutes(i), content);
+            }
+            note.setDone(i % 4 == 0);
+            notes.add(note);
+        }
+        return notes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+// Saves run on the calling thread, so the file is current once a call returns
+public class TranscriptionCacheTest {
+    
+    // Entries of this text length take a little under a tenth of the limit, by the cache's estimate
+    private static final int LARGE_TEXT = (int) (TranscriptionCache.MAX_BYTES / 20) - 20;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File file;
+    
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "transcriptions.json");
+        Metrics.getInstance().reset();
+    }
+    
+    @Test
+    public void dropsTheLeastRecentlyUsedEntryOverTheLimit() {
+        TranscriptionCache cache = open();
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, large(i));
+        }
+        assertNotNull(cache.get("k0")); // Now used more recently than k1
+        
+        cache.put("k10", large(10));
+        
+        assertNull(cache.get("k1"));
+        assertEquals(large(0).getText(), cache.get("k0").getText());
+        for (int i = 2; i <= 10; i++) {
+            assertNotNull("k" + i, cache.get("k" + i));
+        }
+        assertEquals(11, counter(Metrics.Counter.CACHE_HITS));
+        assertEquals(1, counter(Metrics.Counter.CACHE_MISSES));
+    }
+    
+    @Test
+    public void neverKeepsPlaceholders() {
+        TranscriptionCache cache = open();
+        
+        cache.put("silence", Transcript.of(TranscriptionClient.NO_SPEECH));
+        cache.put("garbled", Transcript.of(TranscriptionClient.PARSING_FAILED));
+        
+        assertNull(cache.get("silence"));
+        assertNull(cache.get("garbled"));
+        assertFalse(file.exists());
+    }
+    
+    @Test
+    public void keepsEntriesAndTheirOrderAcrossARestart() {
+        TranscriptionCache cache = open();
+        TranscriptWords words = new TranscriptWords.Builder()
+                .add(0, 4, 200, 600, 0.9f)
+                .add(5, 11, 700, 1_300, 0.6f)
+                .build();
+        String text = large(20).getText();
+        cache.put("a", new Transcript(text, 0.8f, words));
+        cache.put("b", large(21));
+        cache.get("a");
+        cache.flush(); // The hit made a the most recently used
+        
+        TranscriptionCache reopened = open();
+        for (int i = 0; i < 9; i++) { // One more than fits
+            reopened.put("k" + i, large(i));
+        }
+        
+        assertNull(reopened.get("b"));
+        Transcript a = reopened.get("a");
+        assertEquals(text, a.getText());
+        assertEquals(0.8f, a.getConfidence(), 0);
+        assertEquals(2, a.getWords().size());
+        assertEquals(5, a.getWords().getCharStart(1));
+        assertEquals(700, a.getWords().getStartMs(1));
+        assertEquals(1_300, a.getWords().getEndMs(1));
+    }
+    
+    @Test
+    public void startsOverFromAnUnreadableFile() throws Exception {
+        Files.write(file.toPath(), Arrays.asList("[{\"key\":"));
+        
+        TranscriptionCache cache = open();
+        
+        assertNull(cache.get("a"));
+        cache.put("a", Transcript.of("call garage"));
+        assertEquals("call garage", open().get("a").getText());
+    }
+    
+    private TranscriptionCache open() {
+        return new TranscriptionCache(file, Runnable::run);
+    }
+    
+    private static Transcript large(int i) {
+        char[] text = new char[LARGE_TEXT];
+        Arrays.fill(text, (char) ('a' + i));
+        return Transcript.of(new String(text));
+    }
+    
+    private static long counter(Metrics.Counter counter) {
+        Long value = Metrics.getInstance().snapshot().counters.get(counter.key);
+        return value != null ? value : 0;
+    }
+}
\ No newline at end of file
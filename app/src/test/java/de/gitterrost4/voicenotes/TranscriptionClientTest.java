@@ -0,0 +1,177 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TranscriptionClientTest {
+    
+    private static final int BATCH_SIZE = 500;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private StandInSpeechServer server;
+    private String credentialsJson;
+    
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInSpeechServer();
+        credentialsJson = server.credentialsJson();
+        Metrics.getInstance().reset();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+    
+    @Test
+    public void sharesConnectionsAndOneTokenAcrossABatch() throws Exception {
+        TranscriptionClient client = server.newClient();
+        long audioBytes = 0;
+        List<TranscriptionJob> jobs = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            File file = recording("note" + i, 500 + i);
+            audioBytes += file.length();
+            jobs.add(new TranscriptionJob("note" + i, file.getPath(), RecordingProfile.AMR_NB, "Work"));
+        }
+        
+        TranscriptionScheduler.BatchReport report = runBatch(client, jobs);
+        
+        assertEquals(BATCH_SIZE, report.getSucceeded());
+        assertEquals(BATCH_SIZE, server.getRecognizeRequests());
+        assertEquals(1, server.getTokenRequests());
+        assertEquals(1, counter(Metrics.Counter.TOKEN_REFRESHES));
+        assertTrue("Opened " + server.getConnections() + " connections",
+                server.getConnections() <= TranscriptionScheduler.DEFAULT_CONCURRENCY + 1);
+        // Base64 adds a third, the JSON around the audio a few hundred bytes per request
+        long uploaded = counter(Metrics.Counter.BYTES_UPLOADED);
+        assertTrue(uploaded > audioBytes * 4 / 3);
+        assertTrue(uploaded < audioBytes * 4 / 3 + BATCH_SIZE * 400L);
+    }
+    
+    @Test
+    public void fetchesANewTokenOnlyWhenTheCachedOneIsAboutToExpire() throws Exception {
+        server.setTokenLifetimeSeconds(1); // Always inside the refresh margin
+        TranscriptionClient client = server.newClient();
+        File file = recording("note", 1000);
+        
+        for (int i = 0; i < 5; i++) {
+            client.transcribe(credentialsJson, file.getPath(), RecordingProfile.AMR_NB, "en-US");
+        }
+        
+        assertEquals(5, server.getTokenRequests());
+        assertEquals(5, counter(Metrics.Counter.TOKEN_REFRESHES));
+    }
+    
+    @Test
+    public void refreshesTheTokenOnceWhenTheServerRejectsIt() throws Exception {
+        TranscriptionClient client = server.newClient();
+        File file = recording("note", 1000);
+        server.enqueue(StandInSpeechServer.status(401));
+        
+        Transcript transcript = client.transcribe(credentialsJson, file.getPath(), RecordingProfile.AMR_NB, "en-US");
+        
+        assertEquals("hello", transcript.getText());
+        assertEquals(2, server.getRecognizeRequests());
+        assertEquals(2, server.getTokenRequests());
+        assertEquals(2, counter(Metrics.Counter.TOKEN_REFRESHES));
+        assertEquals(Long.valueOf(1), Metrics.getInstance().snapshot().httpStatus.get("401"));
+    }
+    
+    @Test
+    public void readsTheCredentialsAgainOnlyWhenTheyChange() throws Exception {
+        TranscriptionClient client = server.newClient();
+        File file = recording("note", 1000);
+        
+        client.transcribe(credentialsJson, file.getPath(), RecordingProfile.AMR_NB, "en-US");
+        client.transcribe(credentialsJson, file.getPath(), RecordingProfile.AMR_NB, "en-US");
+        assertEquals(1, server.getTokenRequests());
+        
+        client.transcribe(server.credentialsJson(), file.getPath(), RecordingProfile.AMR_NB, "en-US");
+        assertEquals(2, server.getTokenRequests());
+        
+        client.invalidateCredentials();
+        client.transcribe(credentialsJson, file.getPath(), RecordingProfile.AMR_NB, "en-US");
+        assertEquals(3, server.getTokenRequests());
+    }
+    
+    @Test
+    public void reportsAnErrorResponseByItsStatus() throws Exception {
+        TranscriptionClient client = server.newClient();
+        File file = recording("note", 1000);
+        server.enqueue(StandInSpeechServer.status(400)
+                .setBody(TranscriptionResponseParserTest.fixture("error_invalid_argument.json")));
+        
+        try {
+            client.transcribe(credentialsJson, file.getPath(), RecordingProfile.AMR_NB, "en-US");
+            fail("The error body was read as a transcript");
+        } catch (TranscriptionException e) {
+            assertEquals(400, e.getStatusCode());
+            assertFalse(e.isRetryable());
+        }
+        assertEquals(1, server.getRecognizeRequests());
+    }
+    
+    private TranscriptionScheduler.BatchReport runBatch(TranscriptionClient client, List<TranscriptionJob> jobs)
+            throws InterruptedException {
+        TranscriptionScheduler scheduler = new TranscriptionScheduler(client, null, null, null,
+                new AdaptiveRateLimiter(10_000, 1, 10_000, BATCH_SIZE), TranscriptionScheduler.DEFAULT_CONCURRENCY,
+                Runnable::run);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<TranscriptionScheduler.BatchReport> report = new AtomicReference<>();
+        AtomicInteger failed = new AtomicInteger();
+        scheduler.submit(jobs, credentialsJson, "en-US", new TranscriptionScheduler.Listener() {
+            @Override
+            public void onTranscribed(TranscriptionJob job, Transcript transcript) {
+            }
+            
+            @Override
+            public void onFailed(TranscriptionJob job, Exception error) {
+                failed.incrementAndGet();
+            }
+            
+            @Override
+            public void onBatchFinished(TranscriptionScheduler.BatchReport batchReport) {
+                report.set(batchReport);
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(60, TimeUnit.SECONDS));
+        assertEquals(0, failed.get());
+        return report.get();
+    }
+    
+    private File recording(String name, int length) throws IOException {
+        byte[] audio = new byte[length];
+        new Random(length).nextBytes(audio);
+        File file = folder.newFile(name + RecordingProfile.AMR_NB.getExtension());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(audio);
+        }
+        return file;
+    }
+    
+    private static long counter(Metrics.Counter counter) {
+        return Metrics.getInstance().snapshot().counters.get(counter.key);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,322 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.gson.JsonParseException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class TranscriptionResponseParserTest {
+    
+    private static final String[] VOCABULARY = {"call", "Müller", "about", "the", "invoice", "at", "3", "o'clock",
+            "groß", "\"quoted\"", "back\\slash", "日本", "😀"};
+    
+    @Test
+    public void readsTheFirstAlternativeOfEachResult() throws Exception {
+        Transcript transcript = parse("{\"results\":["
+                + "{\"alternatives\":[{\"transcript\":\"hello there\",\"confidence\":0.9,\"words\":["
+                + "{\"startTime\":\"0s\",\"endTime\":\"0.400s\",\"word\":\"hello\"},"
+                + "{\"startTime\":\"0.500s\",\"endTime\":\"1.100s\",\"word\":\"there\",\"confidence\":0.7}]},"
+                + "{\"transcript\":\"hollow hair\",\"confidence\":0.1}],\"resultEndTime\":\"1.200s\"},"
+                + "{\"alternatives\":[{\"transcript\":\" again \",\"confidence\":0.5}],\"languageCode\":\"en-us\"}],"
+                + "\"totalBilledTime\":\"2s\",\"requestId\":\"123\"}");
+        
+        assertEquals("hello there again", transcript.getText());
+        assertEquals((0.9 * 11 + 0.5 * 5) / 16, transcript.getConfidence(), 1e-6);
+        TranscriptWords words = transcript.getWords();
+        assertEquals(2, words.size());
+        assertEquals(0, words.getCharStart(0));
+        assertEquals(5, words.getCharEnd(0));
+        assertEquals(0.9f, words.getConfidence(0), 0.01f); // The result's, since the word has none
+        assertEquals(6, words.getCharStart(1));
+        assertEquals(500, words.getStartMs(1));
+        assertEquals(1_100, words.getEndMs(1));
+        assertEquals(0.7f, words.getConfidence(1), 0.01f);
+    }
+    
+    // A response as the API sends it for two sentences, with two alternatives each and word confidence
+    @Test
+    public void readsARecordedResponse() throws Exception {
+        Transcript transcript = parse(fixture("two_results.json"));
+        
+        assertEquals("call Mr Müller about the invoice and the garage tomorrow at 3", transcript.getText());
+        assertEquals((0.92187655 * 32 + 0.8832017 * 28) / 60, transcript.getConfidence(), 1e-6);
+        TranscriptWords words = transcript.getWords();
+        assertEquals(12, words.size());
+        assertEquals(8, words.getCharStart(2));
+        assertEquals(14, words.getCharEnd(2));
+        assertEquals(900, words.getStartMs(2));
+        assertEquals(0.79f, words.getConfidence(2), 0.01f);
+        assertEquals(33, words.getCharStart(6)); // "and", after the space between the results
+        assertEquals(3_100, words.getStartMs(6));
+        assertEquals(60, words.getCharStart(11));
+        assertEquals(61, words.getCharEnd(11));
+        assertEquals(5_100, words.getEndMs(11));
+    }
+    
+    @Test
+    public void readsARecordedResponseWithoutSpeech() throws Exception {
+        assertEquals(TranscriptionClient.NO_SPEECH, parse(fixture("no_speech.json")).getText());
+    }
+    
+    @Test
+    public void emptyResponsesAreNoSpeech() throws Exception {
+        String[] empty = {"{}", "{\"results\":[]}", "{\"results\":null}", "{\"results\":[{}]}",
+                "{\"results\":[{\"alternatives\":[]}]}", "{\"results\":[{\"alternatives\":[{\"transcript\":\"  \"}]}]}",
+                "{\"totalBilledTime\":\"0s\"}"};
+        for (String response : empty) {
+            assertEquals(response, TranscriptionClient.NO_SPEECH, parse(response).getText());
+        }
+    }
+    
+    @Test
+    public void readsEveryDurationForm() throws Exception {
+        assertEquals(1_300, TranscriptionResponseParser.parseDurationMs("1.300s"));
+        assertEquals(1_300, TranscriptionResponseParser.parseDurationMs("1.3s"));
+        assertEquals(1_000, TranscriptionResponseParser.parseDurationMs("1s"));
+        assertEquals(1_234, TranscriptionResponseParser.parseDurationMs("1.234567891s"));
+        assertEquals(-1, TranscriptionResponseParser.parseDurationMs("-1s"));
+        assertEquals(-1, TranscriptionResponseParser.parseDurationMs("s"));
+        assertEquals(-1, TranscriptionResponseParser.parseDurationMs(".5s"));
+        assertEquals(-1, TranscriptionResponseParser.parseDurationMs("1,5s"));
+        assertEquals(-1, TranscriptionResponseParser.parseDurationMs("9999999999999s"));
+        
+        Transcript transcript = parse("{\"results\":[{\"alternatives\":[{\"transcript\":\"a b c d\",\"words\":["
+                + "{\"word\":\"a\",\"startOffset\":{\"seconds\":\"2\",\"nanos\":500000000},\"endOffset\":{\"seconds\":3}},"
+                + "{\"word\":\"b\",\"startTime\":{\"nanos\":1000000},\"endTime\":null},"
+                + "{\"word\":\"c\",\"startTime\":-1,\"endTime\":\"4s\"},"
+                + "{\"word\":\"d\",\"startTime\":\"5s\",\"endTime\":{\"seconds\":-5}}]}]}]}");
+        
+        TranscriptWords words = transcript.getWords();
+        assertEquals(2, words.size()); // c and d have unreadable times
+        assertEquals(2_500, words.getStartMs(0));
+        assertEquals(3_000, words.getEndMs(0));
+        assertEquals(1, words.getStartMs(1));
+    }
+    
+    // Generated responses, with the fields in any order, extra alternatives and unknown fields,
+    // against what was put into them
+    @Test
+    public void readsGeneratedResponses() throws Exception {
+        Random random = new Random(21);
+        for (int run = 0; run < 2_000; run++) {
+            StringBuilder expectedText = new StringBuilder();
+            List<int[]> expectedWords = new ArrayList<>(); // charStart, charEnd, startMs, endMs
+            double confidenceSum = 0;
+            int confidenceChars = 0;
+            long clockMs = 0;
+            
+            List<String> results = new ArrayList<>();
+            int resultCount = random.nextInt(5);
+            for (int r = 0; r < resultCount; r++) {
+                int wordCount = random.nextInt(6);
+                StringBuilder transcript = new StringBuilder();
+                List<String> wordJson = new ArrayList<>();
+                int base = expectedText.length() + (expectedText.length() > 0 ? 1 : 0);
+                for (int w = 0; w < wordCount; w++) {
+                    String word = VOCABULARY[random.nextInt(VOCABULARY.length)];
+                    if (transcript.length() > 0) {
+                        transcript.append(' ');
+                    }
+                    int start = transcript.length();
+                    transcript.append(word);
+                    long startMs = clockMs + random.nextInt(300);
+                    long endMs = startMs + random.nextInt(800);
+                    clockMs = endMs;
+                    expectedWords.add(new int[] {base + start, base + transcript.length(), (int) startMs, (int) endMs});
+                    wordJson.add(object(random,
+                            "\"word\":" + quote(word),
+                            "\"startTime\":" + duration(random, startMs),
+                            "\"endTime\":" + duration(random, endMs)));
+                }
+                float confidence = random.nextInt(4) == 0 ? 0 : (random.nextInt(1000) + 1) / 1000f;
+                if (transcript.length() > 0) {
+                    if (expectedText.length() > 0) {
+                        expectedText.append(' ');
+                    }
+                    expectedText.append(transcript);
+                    if (confidence > 0) {
+                        confidenceSum += confidence * transcript.length();
+                        confidenceChars += transcript.length();
+                    }
+                }
+                List<String> fields = new ArrayList<>();
+                fields.add("\"transcript\":" + quote(transcript.toString()));
+                if (confidence > 0) {
+                    fields.add("\"confidence\":" + confidence);
+                }
+                fields.add("\"words\":[" + String.join(",", wordJson) + "]");
+                String alternatives = "[" + object(random, fields.toArray(new String[0]))
+                        + (random.nextBoolean() ? ",{\"transcript\":\"never read\",\"confidence\":0.01}" : "") + "]";
+                results.add(object(random, "\"alternatives\":" + alternatives,
+                        "\"resultEndTime\":" + duration(random, clockMs),
+                        "\"languageCode\":\"de-de\"",
+                        "\"channelTag\":null"));
+            }
+            String response = object(random, "\"results\":[" + String.join(",", results) + "]",
+                    "\"totalBilledTime\":\"15s\"", "\"speechAdaptationInfo\":{\"adaptationTimeout\":false}");
+            
+            Transcript transcript = parse(response);
+            
+            if (expectedText.length() == 0) {
+                assertEquals(response, TranscriptionClient.NO_SPEECH, transcript.getText());
+                continue;
+            }
+            assertEquals(response, expectedText.toString(), transcript.getText());
+            assertEquals(response, confidenceChars > 0 ? confidenceSum / confidenceChars : 0,
+                    transcript.getConfidence(), 1e-5);
+            TranscriptWords words = transcript.getWords();
+            if (expectedWords.isEmpty()) {
+                assertNull(response, words);
+                continue;
+            }
+            assertEquals(response, expectedWords.size(), words.size());
+            for (int i = 0; i < expectedWords.size(); i++) {
+                int[] expected = expectedWords.get(i);
+                assertEquals(response, expected[0], words.getCharStart(i));
+                assertEquals(response, expected[1], words.getCharEnd(i));
+                assertEquals(response, expected[2], words.getStartMs(i));
+                assertEquals(response, expected[3], words.getEndMs(i));
+            }
+        }
+    }
+    
+    // Damaged responses either parse or fail with JsonParseException, or EOFException when cut
+    // short; nothing else may escape to the caller
+    @Test
+    public void survivesDamagedResponses() throws Exception {
+        String valid = "{\"results\":[{\"alternatives\":[{\"transcript\":\"call the garage\",\"confidence\":0.91,"
+                + "\"words\":[{\"startTime\":\"0.100s\",\"endTime\":\"0.400s\",\"word\":\"call\",\"confidence\":0.9},"
+                + "{\"startOffset\":{\"seconds\":\"1\",\"nanos\":5},\"endOffset\":\"1.2s\",\"word\":\"the\"},"
+                + "{\"startTime\":\"1.3s\",\"endTime\":\"2s\",\"word\":\"garage\"}]}],\"resultEndTime\":\"2.1s\"}],"
+                + "\"totalBilledTime\":\"3s\"}";
+        String junk = "{}[]:,\"\\0123456789.-+eEsntrufal ";
+        Random random = new Random(4);
+        int parsed = 0;
+        for (int run = 0; run < 50_000; run++) {
+            StringBuilder damaged = new StringBuilder(valid);
+            for (int edits = 1 + random.nextInt(3); edits > 0 && damaged.length() > 0; edits--) {
+                int at = random.nextInt(damaged.length());
+                switch (random.nextInt(4)) {
+                    case 0:
+                        damaged.deleteCharAt(at);
+                        break;
+                    case 1:
+                        damaged.insert(at, junk.charAt(random.nextInt(junk.length())));
+                        break;
+                    case 2:
+                        damaged.setCharAt(at, junk.charAt(random.nextInt(junk.length())));
+                        break;
+                    default:
+                        damaged.setLength(at);
+                        break;
+                }
+            }
+            try {
+                parse(damaged.toString());
+                parsed++;
+            } catch (JsonParseException | EOFException expected) {
+                // Turned into PARSING_FAILED, or an IOException that is retried
+            } catch (RuntimeException | IOException e) {
+                throw new AssertionError(damaged.toString(), e);
+            }
+        }
+        if (parsed == 0) {
+            fail("No damaged response was still readable; the edits are too coarse to tell anything");
+        }
+    }
+    
+    @Test
+    public void rejectsWhatIsNotAResponse() throws Exception {
+        String[] invalid = {"", "[]", "\"results\"", "{\"results\":[{\"alternatives\":[{\"confidence\":\"high\"}]}]}",
+                "{\"results\":[{\"alternatives\":[{\"words\":{}}]}]}", "<html>Service Unavailable</html>"};
+        for (String response : invalid) {
+            try {
+                parse(response);
+                fail(response);
+            } catch (JsonParseException | EOFException expected) {
+            }
+        }
+    }
+    
+    private static Transcript parse(String response) throws IOException {
+        return TranscriptionResponseParser.parse(new StringReader(response));
+    }
+    
+    // A recorded response from src/test/resources/recognize
+    static String fixture(String name) throws IOException {
+        try (InputStream in = TranscriptionResponseParserTest.class.getResourceAsStream("/recognize/" + name)) {
+            if (in == null) {
+                throw new FileNotFoundException(name);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    // The fields in a random order
+    private static String object(Random random, String... fields) {
+        List<String> shuffled = new ArrayList<>();
+        for (String field : fields) {
+            shuffled.add(random.nextInt(shuffled.size() + 1), field);
+        }
+        if (random.nextInt(4) == 0) {
+            shuffled.add(random.nextInt(shuffled.size() + 1), "\"unknown\":{\"nested\":[1,{\"a\":null},\"x\"]}");
+        }
+        return "{" + String.join(",", shuffled) + "}";
+    }
+    
+    // The forms a protobuf Duration takes in JSON
+    private static String duration(Random random, long ms) {
+        long seconds = ms / 1000;
+        int millis = (int) (ms % 1000);
+        switch (random.nextInt(5)) {
+            case 0:
+                return String.format(Locale.US, "\"%d.%03ds\"", seconds, millis);
+            case 1:
+                return String.format(Locale.US, "\"%d.%09ds\"", seconds, millis * 1_000_000 + random.nextInt(1_000_000));
+            case 2:
+                return String.format(Locale.US, "{\"seconds\":\"%d\",\"nanos\":%d}", seconds, millis * 1_000_000);
+            case 3:
+                return String.format(Locale.US, "{\"nanos\":%d,\"seconds\":%d}", millis * 1_000_000, seconds);
+            default:
+                return millis == 0 ? String.format(Locale.US, "\"%ds\"", seconds)
+                        : String.format(Locale.US, "\"%d.%03ds\"", seconds, millis);
+        }
+    }
+    
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            if (c > 127 && i % 2 == 0) {
+                quoted.append(String.format(Locale.US, "\\u%04x", (int) c)); // Both forms occur
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
\ No newline at end of file
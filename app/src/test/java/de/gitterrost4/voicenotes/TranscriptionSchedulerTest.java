@@ -0,0 +1,150 @@
+package de.gitterrost4.voicenotes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Throttling and retries against the stand-in server, with backoff cut down to milliseconds
+public class TranscriptionSchedulerTest {
+    
+    private static final double RATE = 100;
+    private static final double INCREASE_PER_SUCCESS = RATE / 10;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private StandInSpeechServer server;
+    private AdaptiveRateLimiter rateLimiter;
+    private final Map<String, Transcript> transcribed = new ConcurrentHashMap<>();
+    private final Map<String, Exception> failed = new ConcurrentHashMap<>();
+    
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInSpeechServer();
+        rateLimiter = new AdaptiveRateLimiter(RATE, 1, RATE, 1);
+        Metrics.getInstance().reset();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+    
+    @Test
+    public void slowsDownAndPausesWhenThrottled() throws Exception {
+        server.enqueue(StandInSpeechServer.status(429, 1));
+        server.enqueue(StandInSpeechServer.status(503));
+        
+        TranscriptionScheduler.BatchReport report = run(jobs(2));
+        
+        assertEquals(2, report.getSucceeded());
+        assertEquals("hello", transcribed.get("note1").getText());
+        assertEquals(0, report.getFailed());
+        assertEquals(2, report.getThrottled());
+        assertEquals(2, report.getRetries());
+        assertEquals(4, report.getRequests());
+        assertEquals(4, server.getRecognizeRequests());
+        assertEquals(2, counter(Metrics.Counter.THROTTLED));
+        assertEquals(2, counter(Metrics.Counter.RETRIES));
+        // Halved twice, then grown by both successes
+        assertEquals(RATE / 4 + 2 * INCREASE_PER_SUCCESS, rateLimiter.getRatePerSecond(), 1e-9);
+        // Neither note sent anything in the one second Retry-After asked for
+        List<Long> arrivals = server.getRecognizeNanos();
+        for (int i = 1; i < arrivals.size(); i++) {
+            long afterMs = TimeUnit.NANOSECONDS.toMillis(arrivals.get(i) - arrivals.get(0));
+            assertTrue("Request " + i + " after " + afterMs + " ms", afterMs >= 1_000);
+        }
+    }
+    
+    @Test
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        server.setDefaultResponse(StandInSpeechServer.status(503));
+        
+        TranscriptionScheduler.BatchReport report = run(jobs(1));
+        
+        int attempts = TranscriptionScheduler.MAX_ATTEMPTS;
+        assertEquals(0, report.getSucceeded());
+        assertEquals(1, report.getFailed());
+        assertEquals(attempts, report.getThrottled());
+        assertEquals(attempts - 1, report.getRetries());
+        assertEquals(attempts, report.getRequests());
+        assertEquals(attempts, server.getRecognizeRequests());
+        assertEquals(503, ((TranscriptionException) failed.get("note0")).getStatusCode());
+        assertEquals(1, counter(Metrics.Counter.TRANSCRIPTIONS_FAILED));
+        assertEquals(Math.max(1, RATE / (1 << attempts)), rateLimiter.getRatePerSecond(), 1e-9);
+    }
+    
+    @Test
+    public void doesNotRetryRequestsThatWillFailAgain() throws Exception {
+        server.enqueue(StandInSpeechServer.status(400));
+        
+        TranscriptionScheduler.BatchReport report = run(jobs(1));
+        
+        assertEquals(1, report.getFailed());
+        assertEquals(0, report.getRetries());
+        assertEquals(0, report.getThrottled());
+        assertEquals(1, server.getRecognizeRequests());
+        assertEquals(RATE, rateLimiter.getRatePerSecond(), 1e-9);
+    }
+    
+    // One worker, so the second note only starts once the first was throttled
+    private TranscriptionScheduler.BatchReport run(List<TranscriptionJob> jobs) throws InterruptedException {
+        TranscriptionScheduler scheduler = new TranscriptionScheduler(server.newClient(), null, null, null,
+                rateLimiter, 1, Runnable::run);
+        scheduler.setBaseBackoffMs(10);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<TranscriptionScheduler.BatchReport> report = new AtomicReference<>();
+        scheduler.submit(jobs, server.credentialsJson(), "en-US", new TranscriptionScheduler.Listener() {
+            @Override
+            public void onTranscribed(TranscriptionJob job, Transcript transcript) {
+                transcribed.put(job.getNoteId(), transcript);
+            }
+            
+            @Override
+            public void onFailed(TranscriptionJob job, Exception error) {
+                failed.put(job.getNoteId(), error);
+            }
+            
+            @Override
+            public void onBatchFinished(TranscriptionScheduler.BatchReport batchReport) {
+                report.set(batchReport);
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        return report.get();
+    }
+    
+    private List<TranscriptionJob> jobs(int count) throws IOException {
+        List<TranscriptionJob> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = folder.newFile("note" + i + ".3gp");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[1_000]);
+            }
+            jobs.add(new TranscriptionJob("note" + i, file.getPath(), RecordingProfile.AMR_NB, "Work"));
+        }
+        return jobs;
+    }
+    
+    private static long counter(Metrics.Counter counter) {
+        Long value = Metrics.getInstance().snapshot().counters.get(counter.key);
+        return value != null ? value : 0;
+    }
+}
\ No newline at end of file